@@ -3,7 +3,8 @@
 
 package org.denom.net.d5.relay;
 
-import java.util.*;
+import java.io.IOException;
+import java.nio.channels.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
@@ -17,18 +18,36 @@ import static org.denom.Ex.*;
 /**
  * Server that accepts 'Resources' and 'Users' and transmit messages from Users to Resources.
  */
-class Relay
+public class Relay
 {
 	// Длина публичного ключа в байтах
 	public final static int PUBLIC_KEY_SIZE = 32;
 
+	// Накладные расходы на одну задачу в рабочем потоке, в байтах данных - см. taskCost
+	private final static int TASK_OVERHEAD = 1024;
+
 	final RelayOptions options;
 	private ILog log;
 
 	private ExecutorService workerExecutor;
+	// workerExecutor со счётчиками для метрик
+	private Executor meteredExecutor;
+	// Распределяет рабочие потоки между сессиями: у каждой сессии своя очередь задач
+	FairExecutor scheduler;
+	// Очередь для задач, не относящихся к одной сессии
+	private FairExecutor.Lane commonLane;
+
+	TCPServer serverUsers = null;
+	TCPServer serverResources = null;
+	private TCPServer serverAdmin = null;
+
+	// null, если Relay работает не в кластере
+	RelayCluster cluster = null;
 
-	private TCPServer serverUsers = null;
-	private TCPServer serverResources = null;
+	final RelayMetrics metrics = new RelayMetrics( this );
+
+	// Ограничения частоты соединений и команд, см. RelayOptions.RateLimitOptions
+	RelayRateLimiter rateLimiter = null;
 
 	private Consumer<Binary> shutdownConsumer;
 
@@ -37,10 +56,14 @@ class Relay
 
 	boolean started = false;
 
-	Map<Binary, RelayResourceSession> resources = null;
+	// Relay завершает работу: новые соединения не принимаются, новые команды юзеров отклоняются.
+	volatile boolean draining = false;
+
+	// Resource PublicKey -> Resource Session
+	ConcurrentMap<Binary, RelayResourceSession> resources = null;
 
 	// -----------------------------------------------------------------------------------------------------------------
-	Relay( RelayOptions options, Consumer<Binary> shutdownConsumer, ILog log )
+	public Relay( RelayOptions options, Consumer<Binary> shutdownConsumer, ILog log )
 	{
 		this.shutdownConsumer = shutdownConsumer;
 		this.options = options;
@@ -48,35 +71,149 @@ class Relay
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	void startServer()
+	public void startServer()
 	{
 		MUST( !started, "DenomRelay already started" );
 
 		log.writeln( Colors.GRAY, "DenomRelay starting..." );
 
-		resources = new HashMap<>();
+		resources = new ConcurrentHashMap<>();
+		rateLimiter = new RelayRateLimiter( options.rateLimits );
 
-		workerExecutor = Executors.newFixedThreadPool( options.workerThreads,
-			new ThreadFactoryNamed( "DenomRelayWorker", Thread.NORM_PRIORITY, 0, false ) );
+		workerExecutor = WorkerExecutors.create( options.workerMode, options.workerThreads, "DenomRelayWorker" );
+		meteredExecutor = metrics.meter( workerExecutor );
+		scheduler = new FairExecutor( meteredExecutor, getParallelism(), options.schedulerQuantum );
+		commonLane = scheduler.newLane( 1, getParallelism() );
 
 		log.writeln( Colors.GRAY, "Start listening Resources on " + options.host + ":" + options.resource.port );
 		serverResources = new TCPServer( log, options.host, options.resource.port,
-				new RelayResourceSession( this, log ) );
+				new RelayResourceSession( this, log ), options.ioThreads, options.reusePort );
 		
-		log.writeln( Colors.GRAY, "Start listening Users on " + options.host + ":" + options.userPort );
-		serverUsers = new TCPServer( log, options.host, options.userPort,
-				new RelayUserSession( this, log ) );
+		if( options.inheritedUserPort )
+		{
+			log.writeln( Colors.GRAY, "Start listening Users on inherited socket" );
+			serverUsers = new TCPServer( log, inheritedServerSocket(), new RelayUserSession( this, log ), options.ioThreads );
+		}
+		else
+		{
+			log.writeln( Colors.GRAY, "Start listening Users on " + options.host + ":" + options.userPort );
+			serverUsers = new TCPServer( log, options.host, options.userPort,
+					new RelayUserSession( this, log ), options.ioThreads, options.reusePort );
+		}
+
+		serverResources.setWriteCoalescing( options.coalesceMaxBytes, options.coalesceMaxDelayMicros );
+		serverUsers.setWriteCoalescing( options.coalesceMaxBytes, options.coalesceMaxDelayMicros );
+		serverResources.setWriteWatermarks( options.writeLowWatermark, options.writeHighWatermark );
+		serverUsers.setWriteWatermarks( options.writeLowWatermark, options.writeHighWatermark );
+		serverResources.setIdleTimeout( options.resource.timeoutSec * 1000L );
+		serverUsers.setIdleTimeout( options.userIdleTimeoutSec * 1000L );
+
+		if( options.adminPort != 0 )
+		{
+			log.writeln( Colors.GRAY, "Start listening Admin (metrics) on " + options.adminHost + ":" + options.adminPort );
+			serverAdmin = new TCPServer( log, options.adminHost, options.adminPort, new MetricsSession( metrics::write ) );
+		}
+
+		if( options.cluster.port != 0 )
+		{
+			cluster = new RelayCluster( this, log );
+			cluster.start();
+		}
 
 		log.writeln( Colors.GRAY, "DenomRelay started." );
 		started = true;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	void stopServer()
+	/**
+	 * Слушающий сокет, переданный процессу при запуске как stdin, например, systemd socket activation
+	 * (ListenStream=4210, Accept=no, StandardInput=socket). Порт открыт, пока Relay перезапускается.
+	 */
+	private static ServerSocketChannel inheritedServerSocket()
+	{
+		try
+		{
+			Channel channel = System.inheritedChannel();
+			MUST( channel instanceof ServerSocketChannel, "No inherited server socket" );
+			return (ServerSocketChannel)channel;
+		}
+		catch( IOException ex )
+		{
+			throw new Ex( "Can't get inherited server socket: " + ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Плавное завершение работы.
+	 * Закрываются порты юзеров и ресурсов - новый процесс Relay-я может открыть их сразу, а с "Reuse Port" -
+	 * ещё до вызова drain. Новые команды юзеров отклоняются, чтобы юзеры переподключились к новому процессу.
+	 * Уже принятые команды выполняются, ответы ресурсов на них пересылаются юзерам - но не дольше timeoutMs.
+	 * Затем - stopServer().
+	 */
+	public void drain( long timeoutMs )
 	{
 		if( !started )
 			return;
 
+		log.writeln( Colors.GRAY, "DenomRelay draining..." );
+		draining = true;
+		serverUsers.stopAccepting();
+		serverResources.stopAccepting();
+
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		boolean drained;
+		while( !(drained = isDrained()) && (System.currentTimeMillis() < deadline) )
+			Sys.sleep( 20 );
+
+		if( !drained )
+			log.writeln( Colors.YELLOW, "DenomRelay drain timeout, unfinished work is dropped" );
+		stopServer();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Нет команд, ожидающих ответа ресурса, задач в рабочих потоках и неотправленных ответов юзерам.
+	 * Проверяется в порядке прохождения ответа: ресурс -> рабочий поток -> сессия юзера. Каждый этап передаёт
+	 * ответ следующему раньше, чем перестаёт его учитывать, поэтому ответ "в пути" не пропускается.
+	 */
+	private boolean isDrained()
+	{
+		for( RelayResourceSession s : resources.values() )
+		{
+			if( s.getSocket().isOpen() && (s.getAwaitingResponses() != 0) )
+				return false;
+		}
+
+		if( !scheduler.isIdle() )
+			return false;
+
+		for( TCPServerSession s : serverUsers.getSessions() )
+		{
+			if( s.getQueuedBytes() != 0 )
+				return false;
+		}
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public void stopServer()
+	{
+		if( !started )
+			return;
+
+		if( cluster != null )
+		{
+			cluster.stop();
+			cluster = null;
+		}
+
+		if( serverAdmin != null )
+		{
+			serverAdmin.close();
+			serverAdmin = null;
+		}
+
 		serverUsers.close();
 		serverUsers = null;
 
@@ -92,17 +229,78 @@ class Relay
 		}
 		catch( InterruptedException ex ) {}
 		workerExecutor = null;
+		meteredExecutor = null;
+		scheduler = null;
+		commonLane = null;
 		
 		started = false;
+		draining = false;
 		log.writeln( Colors.DARK_GRAY, "DenomRelay stopped." );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	void doWork( Runnable someWork )
+	/**
+	 * Сколько задач планировщик одновременно передаёт рабочим потокам.
+	 * "Fixed" - по числу потоков; "Virtual" - поток на задачу, поэтому не workerThreads, а "Virtual Parallelism".
+	 */
+	public int getParallelism()
+	{
+		if( WorkerExecutors.MODE_VIRTUAL.equalsIgnoreCase( options.workerMode ) )
+			return options.virtualParallelism;
+		return options.workerThreads;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Выполнить задачу в рабочих потоках Relay-я, в общей очереди планировщика.
+	 */
+	public void doWork( Runnable someWork )
 	{
-		workerExecutor.execute( someWork );
+		commonLane.execute( someWork );
 	}
-	
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Очередь задач юзера - выполняются строго по порядку.
+	 */
+	FairExecutor.Lane newUserLane()
+	{
+		return scheduler.newLane( 1, 1 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Очередь для обработки ответов одного ресурса - с ограничением параллельности,
+	 * чтобы медленный или шумный ресурс не занимал все рабочие потоки.
+	 * Ресурс отвечает многим юзерам, поэтому его вес больше.
+	 */
+	FairExecutor.Lane newResourceLane()
+	{
+		int maxConcurrency = (options.resource.maxConcurrency > 0) ? options.resource.maxConcurrency : getParallelism();
+		return scheduler.newLane( options.resource.schedulerWeight, maxConcurrency );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Стоимость задачи для планировщика: размер данных плюс накладные расходы на задачу,
+	 * чтобы поток мелких команд не получал больше задач за обход, чем поток крупных.
+	 */
+	static int taskCost( Binary data )
+	{
+		return TASK_OVERHEAD + data.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс подключился или отключился.
+	 */
+	void onDirectoryChanged()
+	{
+		RelayCluster c = cluster;
+		if( c != null )
+			c.onLocalDirectoryChanged();
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	public void executeToken( Binary token )
 	{
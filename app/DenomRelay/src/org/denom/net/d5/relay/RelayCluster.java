@@ -0,0 +1,358 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.net.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Кластер из нескольких Relay-ев (узлов). Ресурсы и юзеры могут подключаться к любому узлу,
+ * например, через TCP-балансировщик. Все узлы используют один и тот же Relay Key.
+ *
+ * Каждый узел подключается ко всем узлам из списка "Peers" (RelayPeerLink) и принимает их подключения на
+ * кластерном порту (RelayPeerSession). Узлы аутентифицируют друг друга подписью ключом Relay-а (PEER_HELLO, PEER_AUTH).
+ * По каждой связи узлы обмениваются справочниками своих ресурсов (PEER_DIRECTORY) - периодически
+ * и сразу при подключении или отключении ресурса. Узел сообщает только о своих ресурсах, поэтому нужна полная связность.
+ *
+ * Юзер запрашивает GET_RESOURCE_INFO на своём узле. Если ресурс подключён к другому узлу, то юзеру выдаётся
+ * локальный Resource Handle, а другому узлу сообщается маршрут (PEER_BIND). Кадры SEND и SEND_ENCRYPTED юзера
+ * пересылаются узлу ресурса без копирования, с Route ID вместо Resource ID; узел ресурса выделяет маршруту
+ * свой User Handle. Ответы ресурса возвращаются тем же путём.
+ */
+public class RelayCluster
+{
+	private final Relay relay;
+	private final ILog log;
+	final RelayOptions.ClusterOptions options;
+
+	/**
+	 * Имя этого узла, уникальное в кластере.
+	 */
+	final String nodeName;
+
+	TCPServer serverPeers = null;
+	private ScheduledExecutorService timer = null;
+
+	// Адрес узла "host:port" из настроек -> исходящая связь с ним
+	private final ConcurrentMap<String, RelayPeerLink> linksByAddress = new ConcurrentHashMap<>();
+	// Имя узла -> аутентифицированная исходящая связь с ним
+	private final ConcurrentMap<String, RelayPeerLink> links = new ConcurrentHashMap<>();
+	// Адреса из "Peers", оказавшиеся адресами этого узла
+	private final Set<String> selfAddresses = ConcurrentHashMap.newKeySet();
+
+	// Resource Public Key -> ресурс, подключённый к другому узлу
+	private final ConcurrentMap<Binary, RemoteResource> remoteResources = new ConcurrentHashMap<>();
+
+	private final AtomicLong lastRouteID = new AtomicLong();
+
+	// =================================================================================================================
+	/**
+	 * Ресурс, подключённый к другому узлу.
+	 */
+	static final class RemoteResource
+	{
+		final String node;
+		final Binary publicKey;
+		final String name;
+		final String description;
+		/**
+		 * Resource Handle на этом узле - его получают юзеры в ответ на GET_RESOURCE_INFO.
+		 */
+		final long handle;
+
+		RemoteResource( String node, Binary publicKey, String name, String description, long handle )
+		{
+			this.node = node;
+			this.publicKey = publicKey;
+			this.name = name;
+			this.description = description;
+			this.handle = handle;
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Маршрут: юзер этого узла -> ресурс другого узла.
+	 */
+	static final class Route
+	{
+		final long id;
+		final RelayUserSession user;
+		final RemoteResource resource;
+		final RelayPeerLink link;
+
+		Route( long id, RelayUserSession user, RemoteResource resource, RelayPeerLink link )
+		{
+			this.id = id;
+			this.user = user;
+			this.resource = resource;
+			this.link = link;
+		}
+
+		boolean isAlive()
+		{
+			return link.isOpen();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayCluster( Relay relay, ILog log )
+	{
+		this.relay = relay;
+		this.log = log;
+		this.options = relay.options.cluster;
+		this.nodeName = options.nodeName.isEmpty() ? new Binary().random( 8 ).Hex() : options.nodeName;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void start()
+	{
+		log.writeln( Colors.GRAY, "Cluster node '" + nodeName + "'. Start listening Peers on "
+				+ relay.options.host + ":" + options.port );
+		serverPeers = new TCPServer( log, relay.options.host, options.port, new RelayPeerSession( relay, log ),
+				relay.options.ioThreads );
+		serverPeers.setWriteCoalescing( relay.options.coalesceMaxBytes, relay.options.coalesceMaxDelayMicros );
+
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryNamed( "DenomRelayCluster", Thread.NORM_PRIORITY, 0, true ) );
+		timer.scheduleWithFixedDelay( this::gossip, 0, options.gossipIntervalMs, TimeUnit.MILLISECONDS );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void stop()
+	{
+		Sys.shutdownNow( timer, 3 );
+		for( RelayPeerLink link : linksByAddress.values() )
+			link.close();
+		serverPeers.close();
+		linksByAddress.clear();
+		links.clear();
+		remoteResources.clear();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Поток таймера.
+	 * Подключиться к узлам, с которыми нет связи, остальным - отправить свой справочник.
+	 */
+	private void gossip()
+	{
+		for( String address : options.peers )
+		{
+			if( selfAddresses.contains( address ) )
+				continue;
+
+			try
+			{
+				RelayPeerLink link = linksByAddress.get( address );
+				if( (link == null) || !link.isOpen() )
+					connect( address );
+				else if( link.isReady() )
+					link.sendDirectory( localDirectory() );
+			}
+			catch( Throwable ex )
+			{
+				// Узел недоступен - попробуем в следующий раз.
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void connect( String address )
+	{
+		int colon = address.lastIndexOf( ':' );
+		MUST( colon > 0, "Wrong peer address: " + address );
+		String host = address.substring( 0, colon );
+		int port = Integer.parseInt( address.substring( colon + 1 ) );
+
+		RelayPeerLink link = (RelayPeerLink)serverPeers.connect( host, port, 3000, new RelayPeerLink( relay, this, log ) );
+		link.address = address;
+		linksByAddress.put( address, link );
+		link.sendHello();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Исходящая связь аутентифицирована.
+	 */
+	void onLinkReady( RelayPeerLink link )
+	{
+		if( link.peerNode.equals( nodeName ) )
+		{
+			// В списке узлов - свой адрес
+			selfAddresses.add( link.address );
+			linksByAddress.remove( link.address, link );
+			link.close();
+			return;
+		}
+
+		RelayPeerLink old = links.put( link.peerNode, link );
+		if( (old != null) && (old != link) )
+			old.close();
+
+		log.writeln( "Peer connected: '" + link.peerNode + "', " + link.address );
+		link.sendDirectory( localDirectory() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Исходящая связь закрыта - ресурсы того узла недоступны, пока связь не восстановится.
+	 */
+	void onLinkClosed( RelayPeerLink link )
+	{
+		if( link.address != null )
+			linksByAddress.remove( link.address, link );
+
+		if( (link.peerNode != null) && links.remove( link.peerNode, link ) )
+		{
+			synchronized( remoteResources )
+			{
+				remoteResources.values().removeIf( r -> r.node.equals( link.peerNode ) );
+			}
+			log.writeln( "Peer disconnected: '" + link.peerNode + "', " + link.address );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс подключился к этому узлу или отключился - сообщаем узлам, не дожидаясь таймера.
+	 */
+	void onLocalDirectoryChanged()
+	{
+		ScheduledExecutorService t = timer;
+		if( t == null )
+			return;
+
+		try
+		{
+			t.execute( () ->
+			{
+				Binary directory = localDirectory();
+				for( RelayPeerLink link : links.values() )
+					link.sendDirectory( directory );
+			} );
+		}
+		catch( RejectedExecutionException ex ) {}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Справочник ресурсов этого узла: количество, затем для каждого - Public Key, Name, Description.
+	 */
+	Binary localDirectory()
+	{
+		List<ResponseWhoAreYou> list = new ArrayList<>();
+		for( RelayResourceSession s : relay.resources.values() )
+		{
+			if( s.resourceInfo != null )
+				list.add( s.resourceInfo );
+		}
+
+		BinBuilder bb = new BinBuilder();
+		bb.append( list.size() );
+		for( ResponseWhoAreYou info : list )
+		{
+			bb.append( info.resourcePublicKey );
+			bb.append( info.resourceName );
+			bb.append( info.resourceDescription );
+		}
+		return bb.getResult();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Получен справочник ресурсов узла node - заменяет предыдущий.
+	 * Resource Handle не меняется, если ресурс уже был в справочнике, чтобы маршруты юзеров оставались в силе.
+	 * Вызывается из RelayPeerLink и RelayPeerSession в разных потоках - справочник применяется целиком
+	 * под блокировкой, иначе одновременные обновления перемешались бы.
+	 */
+	void updateDirectory( String node, Binary directory )
+	{
+		BinParser bp = new BinParser( directory );
+		int n = bp.getInt();
+		MUST( (n >= 0) && (n <= directory.size()), "Wrong directory" );
+
+		synchronized( remoteResources )
+		{
+			Set<Binary> keys = new HashSet<>();
+			for( int i = 0; i < n; ++i )
+			{
+				Binary publicKey = bp.getBinary( Relay.PUBLIC_KEY_SIZE );
+				String name = bp.getString();
+				String description = bp.getString();
+				keys.add( publicKey );
+
+				RemoteResource old = remoteResources.get( publicKey );
+				if( (old != null) && old.node.equals( node ) && old.name.equals( name ) && old.description.equals( description ) )
+					continue;
+
+				long handle = relay.lastResourceID.incrementAndGet();
+				remoteResources.put( publicKey, new RemoteResource( node, publicKey, name, description, handle ) );
+			}
+
+			remoteResources.values().removeIf( r -> r.node.equals( node ) && !keys.contains( r.publicKey ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return null, если ресурс не подключён ни к одному узлу кластера.
+	 */
+	RemoteResource findRemote( Binary publicKey )
+	{
+		RemoteResource r = remoteResources.get( publicKey );
+		return ((r != null) && links.containsKey( r.node )) ? r : null;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Создать маршрут от юзера к ресурсу другого узла.
+	 * @return null, если связи с узлом ресурса нет.
+	 */
+	Route bind( RelayUserSession user, RemoteResource resource )
+	{
+		RelayPeerLink link = links.get( resource.node );
+		if( (link == null) || !link.isOpen() )
+			return null;
+
+		Route route = new Route( lastRouteID.incrementAndGet(), user, resource, link );
+		link.bind( route );
+		return route;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int getPeerCount()
+	{
+		return links.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int getRemoteResourceCount()
+	{
+		return remoteResources.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Маршрутов от юзеров этого узла к ресурсам других узлов.
+	 */
+	int getRouteCount()
+	{
+		int n = 0;
+		for( RelayPeerLink link : links.values() )
+			n += link.routes.size();
+		return n;
+	}
+
+}
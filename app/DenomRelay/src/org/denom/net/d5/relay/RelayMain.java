@@ -70,7 +70,7 @@ public class RelayMain
 	{
 		try
 		{
-			relay.stopServer();
+			relay.drain( options.drainTimeoutSec * 1000L );
 		}
 		catch( Throwable ex )
 		{
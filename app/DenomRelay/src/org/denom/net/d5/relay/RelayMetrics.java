@@ -0,0 +1,272 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.denom.*;
+import org.denom.net.*;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Binary.Num_Bin;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Метрики Relay-а для админ-порта (MetricsSession): соединения, кадры и байты по портам, очереди на отправку,
+ * очередь рабочих потоков, счётчики каждого ресурса и гистограммы задержек по кодам команд.
+ * Счётчики соединений, кадров и байт ведут TCPServer и сессии, здесь они только собираются при запросе.
+ */
+public class RelayMetrics
+{
+	private final Relay relay;
+	private final long startMs = System.currentTimeMillis();
+
+	// Рабочие потоки: задач в очереди, выполняется, выполнено
+	final AtomicInteger workerQueued = new AtomicInteger();
+	final AtomicInteger workerRunning = new AtomicInteger();
+	final AtomicLong workerCompleted = new AtomicLong();
+
+	private final static int[] COMMAND_CODES = { D5Command.ENUM_COMMANDS, D5Command.EXECUTE_TOKEN,
+		RelayCommand.GET_RESOURCE_INFO, RelayCommand.SEND, RelayCommand.SEND_ENCRYPTED };
+	private final static String[] COMMAND_NAMES = { "ENUM_COMMANDS", "EXECUTE_TOKEN",
+		"GET_RESOURCE_INFO", "SEND", "SEND_ENCRYPTED" };
+
+	/**
+	 * Обработка команд юзеров в Relay-е: от приёма кадра до постановки ответа в очередь. Последняя - прочие коды.
+	 */
+	private final LatencyHistogram[] commandLatency = new LatencyHistogram[ COMMAND_CODES.length + 1 ];
+
+	/**
+	 * SEND и SEND_ENCRYPTED: от отправки команды ресурсу до получения его ответа.
+	 */
+	private final LatencyHistogram[] resourceLatency = new LatencyHistogram[ COMMAND_CODES.length + 1 ];
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayMetrics( Relay relay )
+	{
+		this.relay = relay;
+		for( int i = 0; i < commandLatency.length; ++i )
+		{
+			commandLatency[ i ] = new LatencyHistogram();
+			resourceLatency[ i ] = new LatencyHistogram();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int commandSlot( int code )
+	{
+		for( int i = 0; i < COMMAND_CODES.length; ++i )
+			if( COMMAND_CODES[ i ] == code )
+				return i;
+		return COMMAND_CODES.length;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static String commandName( int slot )
+	{
+		return (slot < COMMAND_NAMES.length) ? COMMAND_NAMES[ slot ] : "OTHER";
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Команда юзера обработана Relay-ем.
+	 */
+	void commandDone( int commandCode, long startNanos )
+	{
+		commandLatency[ commandSlot( commandCode ) ].recordSince( startNanos );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Получен ответ ресурса на команду юзера.
+	 */
+	void resourceAnswered( int commandCode, long nanos )
+	{
+		resourceLatency[ commandSlot( commandCode ) ].record( nanos );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Executor, который считает задачи в очереди и выполняемые задачи.
+	 */
+	Executor meter( Executor executor )
+	{
+		return task ->
+		{
+			workerQueued.incrementAndGet();
+			try
+			{
+				executor.execute( () ->
+				{
+					workerQueued.decrementAndGet();
+					workerRunning.incrementAndGet();
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						workerRunning.decrementAndGet();
+						workerCompleted.incrementAndGet();
+					}
+				} );
+			}
+			catch( RejectedExecutionException ex )
+			{
+				workerQueued.decrementAndGet();
+				throw ex;
+			}
+		};
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке админ-сервера на каждый запрос метрик.
+	 */
+	void write( MetricsText m )
+	{
+		m.gauge( "denom_relay_uptime_seconds", "Time since Relay start", (System.currentTimeMillis() - startMs) / 1000 );
+		m.gauge( "denom_relay_draining", "1 - Relay is shutting down gracefully", relay.draining ? 1 : 0 );
+
+		TCPServer users = relay.serverUsers;
+		TCPServer resources = relay.serverResources;
+		if( (users == null) || (resources == null) )
+			return;
+
+		writeServer( m, users, "user" );
+		writeServer( m, resources, "resource" );
+
+		m.gauge( "denom_relay_resources_registered", "Authenticated Resources", relay.resources.size() );
+
+		RelayRateLimiter limiter = relay.rateLimiter;
+		if( limiter != null )
+			writeRateLimits( m, limiter );
+
+		RelayCluster cluster = relay.cluster;
+		if( cluster != null )
+		{
+			writeServer( m, cluster.serverPeers, "peer" );
+			m.gauge( "denom_relay_cluster_peers", "Authenticated links to other cluster nodes", cluster.getPeerCount() );
+			m.gauge( "denom_relay_cluster_remote_resources", "Resources connected to other cluster nodes",
+					cluster.getRemoteResourceCount() );
+			m.gauge( "denom_relay_cluster_routes", "Routes from local Users to Resources of other nodes", cluster.getRouteCount() );
+		}
+
+		m.gauge( "denom_relay_worker_queued", "Tasks waiting for a worker thread", workerQueued.get() );
+		m.gauge( "denom_relay_worker_running", "Tasks being executed by worker threads", workerRunning.get() );
+		m.counter( "denom_relay_worker_completed_total", "Tasks executed by worker threads", workerCompleted.get() );
+
+		FairExecutor scheduler = relay.scheduler;
+		if( scheduler != null )
+		{
+			m.gauge( "denom_relay_scheduler_queued", "Tasks waiting in session queues of the scheduler", scheduler.getQueueSize() );
+			m.gauge( "denom_relay_scheduler_active_queues", "Session queues waiting for their turn", scheduler.getActiveLanes() );
+		}
+		writeUserQueues( m, users );
+
+		for( RelayResourceSession s : relay.resources.values() )
+			writeResource( m, s );
+
+		for( int i = 0; i < commandLatency.length; ++i )
+		{
+			if( commandLatency[ i ].getCount() != 0 )
+				m.histogram( "denom_relay_command_duration_seconds",
+					"User commands processed by Relay: from frame read to response queued", commandLatency[ i ],
+					"command", commandName( i ) );
+		}
+
+		for( int i = 0; i < resourceLatency.length; ++i )
+		{
+			if( resourceLatency[ i ].getCount() != 0 )
+				m.histogram( "denom_relay_resource_response_seconds",
+					"User commands forwarded to Resources: from sending to Resource to its response", resourceLatency[ i ],
+					"command", commandName( i ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static void writeServer( MetricsText m, TCPServer server, String port )
+	{
+		long queued = 0;
+		long maxQueued = 0;
+		int blocked = 0;
+		int suspended = 0;
+		int open = 0;
+		for( TCPServerSession s : server.getSessions() )
+		{
+			++open;
+			long q = s.getQueuedBytes();
+			queued += q;
+			maxQueued = Math.max( maxQueued, q );
+			if( !s.isWritable() )
+				++blocked;
+			if( s.isReadingSuspended() )
+				++suspended;
+		}
+
+		m.counter( "denom_relay_connections_accepted_total", "Accepted connections", server.getAcceptedConnections(), "port", port );
+		m.counter( "denom_relay_connections_rejected_total", "Connections closed on accept", server.getRejectedConnections(), "port", port );
+		m.gauge( "denom_relay_connections_open", "Open sessions", open, "port", port );
+		m.counter( "denom_relay_frames_read_total", "D5 frames read", server.getReadFrames(), "port", port );
+		m.counter( "denom_relay_frames_written_total", "D5 frames written", server.getWrittenFrames(), "port", port );
+		m.counter( "denom_relay_bytes_read_total", "Bytes read from sockets", server.getReadBytes(), "port", port );
+		m.counter( "denom_relay_bytes_written_total", "Bytes written to sockets", server.getWrittenBytes(), "port", port );
+		m.counter( "denom_relay_write_syscalls_total", "Socket write calls", server.getWriteSyscalls(), "port", port );
+		m.gauge( "denom_relay_write_queue_bytes", "Bytes queued for sending, all sessions", queued, "port", port );
+		m.gauge( "denom_relay_write_queue_max_bytes", "Largest send queue of one session", maxQueued, "port", port );
+		m.gauge( "denom_relay_write_blocked_sessions", "Sessions over write high watermark", blocked, "port", port );
+		m.gauge( "denom_relay_read_suspended_sessions", "Sessions with reading suspended by backpressure", suspended, "port", port );
+		m.gauge( "denom_relay_buffer_pool_free_bytes", "Free bytes in pooled buffers", server.getBufferPool().getFreeBytes(), "port", port );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static void writeRateLimits( MetricsText m, RelayRateLimiter limiter )
+	{
+		String help = "Connections and user commands rejected by rate limits";
+		m.counter( "denom_relay_rate_limited_total", help, limiter.rejectedConnects.get(), "limit", "connects" );
+		m.counter( "denom_relay_rate_limited_total", help, limiter.rejectedAddresses.get(), "limit", "addresses" );
+		m.counter( "denom_relay_rate_limited_total", help, limiter.rejectedCommands.get(), "limit", "commands" );
+		m.counter( "denom_relay_rate_limited_total", help, limiter.rejectedBytes.get(), "limit", "bytes" );
+		m.gauge( "denom_relay_rate_limit_addresses", "IP addresses tracked by rate limits", limiter.getAddressCount() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Очереди юзеров - без метки на каждого юзера: сколько юзеров ждут, и самая длинная очередь.
+	 */
+	private static void writeUserQueues( MetricsText m, TCPServer users )
+	{
+		int waiting = 0;
+		int maxQueued = 0;
+		for( TCPServerSession s : users.getSessions() )
+		{
+			int n = ((RelayUserSession)s).getQueueSize();
+			if( n > 0 )
+				++waiting;
+			maxQueued = Math.max( maxQueued, n );
+		}
+		m.gauge( "denom_relay_user_queue_waiting_users", "Users with commands waiting in their queue", waiting );
+		m.gauge( "denom_relay_user_queue_max", "Longest queue of one User", maxQueued );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static void writeResource( MetricsText m, RelayResourceSession s )
+	{
+		ResponseWhoAreYou info = s.resourceInfo;
+		if( info == null )
+			return;
+
+		String[] labels = { "resource", info.resourceName, "handle", Num_Bin( s.handle, 8 ).Hex() };
+		m.counter( "denom_relay_resource_frames_read_total", "Frames from Resource", s.getReadFrames(), labels );
+		m.counter( "denom_relay_resource_frames_written_total", "Frames to Resource", s.getWrittenFrames(), labels );
+		m.counter( "denom_relay_resource_bytes_read_total", "Bytes from Resource", s.getReadBytes(), labels );
+		m.counter( "denom_relay_resource_bytes_written_total", "Bytes to Resource", s.getWrittenBytes(), labels );
+		m.gauge( "denom_relay_resource_write_queue_bytes", "Bytes queued for sending to Resource", s.getQueuedBytes(), labels );
+		m.gauge( "denom_relay_resource_users", "Users bound to Resource", s.bindedUsers.size(), labels );
+		m.gauge( "denom_relay_resource_dispatch_queued", "Resource responses waiting in its scheduler queue", s.getDispatchQueueSize(), labels );
+	}
+
+}
@@ -3,6 +3,9 @@
 
 package org.denom.net.d5.relay;
 
+import java.util.*;
+
+import org.denom.WorkerExecutors;
 import org.denom.d5.relay.RelaySigner;
 import org.denom.format.*;
 
@@ -14,9 +17,37 @@ public class RelayOptions
 	String host;
 
 	int workerThreads;
+	// Режим рабочих потоков: "Fixed" - workerThreads потоков, "Virtual" - поток на задачу (виртуальный на Java 21+).
+	String workerMode = WorkerExecutors.MODE_FIXED;
+	// Режим "Virtual": сколько задач выполняется одновременно. Блокирующиеся обработчики не занимают
+	// ограниченное число потоков, предел - только от перегрузки. В режиме "Fixed" - workerThreads.
+	int virtualParallelism = 1000;
+	// Количество IO-потоков (селекторов) в каждом TCPServer-е. Если > 1, то приём соединений - в отдельном потоке.
+	int ioThreads = 1;
+	// Объединение мелких кадров при отправке: ждать до N мкс, пока в очереди сессии не наберётся M байт. 0 - выключено.
+	int coalesceMaxDelayMicros = 0;
+	int coalesceMaxBytes = 16384;
+	// Границы очереди на отправку в каждое соединение, в байтах.
+	// При превышении верхней приостанавливается чтение из соединений, которые отправляют в него данные.
+	long writeHighWatermark = 32 << 20;
+	long writeLowWatermark = 8 << 20;
 	int sessionBufSize = 10_000_000;
+	// Планировщик рабочих потоков: очередь сессии с весом 1 получает за один обход столько байт данных команд.
+	int schedulerQuantum = 16384;
 	
 	int userPort;
+	// Порт юзеров - слушающий сокет, унаследованный от родительского процесса (stdin), а не userPort.
+	boolean inheritedUserPort = false;
+	// Сессия юзера, от которого ничего не приходило столько секунд, закрывается. 0 - не закрывается.
+	int userIdleTimeoutSec = 0;
+	// Открывать порты с SO_REUSEPORT (Java 9+): новый процесс Relay-я запускается, пока старый завершает работу.
+	boolean reusePort = false;
+	// Сколько ждать завершения принятых команд при остановке Relay-я.
+	int drainTimeoutSec = 10;
+
+	// Админ-порт: метрики в текстовом формате (Prometheus). 0 - выключен.
+	String adminHost = "127.0.0.1";
+	int adminPort = 0;
 
 	public final static class ResourceOptions
 	{
@@ -29,16 +60,50 @@ public class RelayOptions
 		int nameMaxLen;
 		// Максимальная длина строки с описанием Ресурса
 		int descriptionMaxLen;
+		// Сколько ответов одного ресурса могут обрабатываться одновременно. 0 - без ограничения. 1 - строго по порядку.
+		int maxConcurrency = 4;
+		// Вес очереди ресурса в планировщике рабочих потоков, у юзеров - 1.
+		int schedulerWeight = 4;
 	}
 	ResourceOptions resource = new ResourceOptions();
 
+	public final static class ClusterOptions
+	{
+		// Имя узла, уникальное в кластере. Пустое - случайное.
+		String nodeName = "";
+		// Порт, по которому подключаются другие узлы. 0 - Relay работает не в кластере.
+		int port = 0;
+		// Адреса узлов кластера, "host:port". Свой адрес может быть в списке - он будет пропущен.
+		List<String> peers = new ArrayList<>();
+		// Период обмена справочниками ресурсов и переподключения к недоступным узлам, мс.
+		long gossipIntervalMs = 2000;
+	}
+	ClusterOptions cluster = new ClusterOptions();
+
+	public final static class RateLimitOptions
+	{
+		// С одного IP-адреса, на порты юзеров и ресурсов вместе: соединений в секунду. 0 - без ограничения.
+		double addressConnectsPerSec = 0;
+		// С одного IP-адреса, все его сессии юзеров вместе: команд и байт данных команд в секунду. 0 - без ограничения.
+		double addressCommandsPerSec = 0;
+		double addressBytesPerSec = 0;
+		// Одна сессия юзера: команд и байт данных команд в секунду. 0 - без ограничения.
+		double sessionCommandsPerSec = 0;
+		double sessionBytesPerSec = 0;
+		// Допустимый всплеск - столько секунд работы на пределе.
+		double burstSec = 2;
+		// Сколько IP-адресов отслеживается одновременно. Соединения с новых адресов сверх этого отклоняются.
+		int maxAddresses = 100_000;
+	}
+	RateLimitOptions rateLimits = new RateLimitOptions();
+
 	RelaySigner relayKey = new RelaySigner();
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Read Options from JSON-object.
 	 */
-	void fromJSON( JSONObject jo )
+	public void fromJSON( JSONObject jo )
 	{
 		fileLog = jo.getBoolean( "File log" ); // false
 		showTransport = jo.getBoolean( "Show transport" ); // false
@@ -46,15 +111,58 @@ public class RelayOptions
 		host = jo.getString( "Host" ); // ""
 
 		workerThreads = jo.getInt( "Worker Threads" ); // 8
+		workerMode = jo.optString( "Worker Mode", WorkerExecutors.MODE_FIXED ); // "Fixed"
+		virtualParallelism = jo.optInt( "Virtual Parallelism", 1000 ); // 1000
+		ioThreads = jo.optInt( "IO Threads", 1 ); // 1
+		coalesceMaxDelayMicros = jo.optInt( "Coalesce Max Delay Micros", 0 ); // 0
+		coalesceMaxBytes = jo.optInt( "Coalesce Max Bytes", 16384 ); // 16384
+		writeHighWatermark = jo.optLong( "Write High Watermark", 32 << 20 ); // 33554432
+		writeLowWatermark = jo.optLong( "Write Low Watermark", 8 << 20 ); // 8388608
 		sessionBufSize = jo.getInt( "Session BufSize" );
+		schedulerQuantum = jo.optInt( "Scheduler Quantum", 16384 ); // 16384
 
 		userPort = jo.getInt( "User Port" ); // 4210
+		inheritedUserPort = jo.optBoolean( "Inherited User Port", false ); // false
+		userIdleTimeoutSec = jo.optInt( "User Idle Timeout Sec", 0 ); // 0
+		reusePort = jo.optBoolean( "Reuse Port", false ); // false
+		drainTimeoutSec = jo.optInt( "Drain Timeout Sec", 10 ); // 10
+
+		adminHost = jo.optString( "Admin Host", "127.0.0.1" ); // "127.0.0.1"
+		adminPort = jo.optInt( "Admin Port", 0 ); // 4212
 
 		JSONObject joResource = jo.getJSONObject( "Resource" );
 		resource.port = joResource.getInt( "Port" ); // 4211
 		resource.timeoutSec = joResource.getInt( "Timeout Sec" ); // 5
 		resource.nameMaxLen = joResource.getInt( "Name Max Length" ); // 256
 		resource.descriptionMaxLen = joResource.getInt( "Description Max Length" );
+		resource.maxConcurrency = joResource.optInt( "Max Concurrency", 4 ); // 4
+		resource.schedulerWeight = joResource.optInt( "Scheduler Weight", 4 ); // 4
+
+		JSONObject joCluster = jo.optJSONObject( "Cluster" );
+		if( joCluster != null )
+		{
+			cluster.nodeName = joCluster.optString( "Node Name", "" ); // ""
+			cluster.port = joCluster.optInt( "Port", 0 ); // 4213
+			cluster.gossipIntervalMs = joCluster.optLong( "Gossip Interval Ms", 2000 ); // 2000
+			JSONArray jaPeers = joCluster.optJSONArray( "Peers" );
+			if( jaPeers != null )
+			{
+				for( int i = 0; i < jaPeers.length(); ++i )
+					cluster.peers.add( jaPeers.getString( i ) );
+			}
+		}
+
+		JSONObject joLimits = jo.optJSONObject( "Rate Limits" );
+		if( joLimits != null )
+		{
+			rateLimits.addressConnectsPerSec = joLimits.optDouble( "Address Connects Per Sec", 0 ); // 20
+			rateLimits.addressCommandsPerSec = joLimits.optDouble( "Address Commands Per Sec", 0 ); // 0
+			rateLimits.addressBytesPerSec = joLimits.optDouble( "Address Bytes Per Sec", 0 ); // 0
+			rateLimits.sessionCommandsPerSec = joLimits.optDouble( "Session Commands Per Sec", 0 ); // 1000
+			rateLimits.sessionBytesPerSec = joLimits.optDouble( "Session Bytes Per Sec", 0 ); // 10000000
+			rateLimits.burstSec = joLimits.optDouble( "Burst Sec", 2 ); // 2
+			rateLimits.maxAddresses = joLimits.optInt( "Max Addresses", 100_000 ); // 100000
+		}
 
 		relayKey.readPrivateKeyFromJSON( jo.getJSONObject( "Relay Key" ) );
 	}
@@ -0,0 +1,279 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.net.TCPServer;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Binary.*;
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Исходящая связь с другим узлом кластера. Этот узел отправляет команды, другой (RelayPeerSession) - отвечает.
+ * По ней передаются команды юзеров этого узла к ресурсам того узла и возвращаются ответы ресурсов.
+ */
+public class RelayPeerLink extends D5ResponseSession
+{
+	private final Relay relay;
+	private final RelayCluster cluster;
+
+	/**
+	 * Адрес узла из настроек, "host:port".
+	 */
+	String address = null;
+
+	/**
+	 * Имя узла - из ответа на PEER_HELLO.
+	 */
+	volatile String peerNode = null;
+
+	private volatile boolean ready = false;
+
+	private Binary challenge = null;
+
+	// Route ID -> маршрут юзера этого узла к ресурсу узла peerNode
+	final LongConcurrentMap<RelayCluster.Route> routes = new LongConcurrentMap<>();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * For creating instances by method newInstance.
+	 */
+	RelayPeerLink( Relay relay, RelayCluster cluster, ILog log )
+	{
+		super( relay.options.sessionBufSize, log );
+		this.relay = relay;
+		this.cluster = cluster;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public RelayPeerLink newInstance( TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		return new RelayPeerLink( relay, cluster, log, tcpServer, clientSocket );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	protected RelayPeerLink( Relay relay, RelayCluster cluster, ILog log, TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		super( relay.options.sessionBufSize, log, tcpServer, clientSocket );
+		this.relay = relay;
+		this.cluster = cluster;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	boolean isOpen()
+	{
+		return socket.isOpen();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Связь аутентифицирована, можно передавать команды юзеров.
+	 */
+	boolean isReady()
+	{
+		return ready && socket.isOpen();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void sendHello()
+	{
+		challenge = Bin().random( 32 );
+		BinBuilder bb = new BinBuilder();
+		bb.append( cluster.nodeName );
+		bb.append( challenge );
+		sendCommand( RelayCommand.PEER_HELLO, bb.getResult() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void sendDirectory( Binary directory )
+	{
+		if( isReady() )
+			sendCommand( RelayCommand.PEER_DIRECTORY, directory );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сообщить узлу ресурса о новом маршруте. Команда уходит раньше кадров юзера по этому маршруту.
+	 */
+	void bind( RelayCluster.Route route )
+	{
+		routes.put( route.id, route );
+		BinBuilder bb = new BinBuilder();
+		bb.append( route.id );
+		bb.append( route.resource.publicKey );
+		sendCommand( RelayCommand.PEER_BIND, bb.getResult() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void unbind( RelayCluster.Route route )
+	{
+		if( routes.remove( route.id, route ) && socket.isOpen() )
+			sendCommand( RelayCommand.PEER_UNBIND, Num_Bin( route.id, 8 ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread of user session.
+	 * Кадр SEND или SEND_ENCRYPTED юзера пересылается узлу ресурса в том же буфере:
+	 * Resource ID заменяется на Route ID, индекс команды юзера сохраняется в теле.
+	 */
+	void forwardFrame( RelayCluster.Route route, ByteBuffer frame )
+	{
+		frame.putLong( 12, route.id );
+		frame.putInt( 20, frame.getInt( 0 ) );
+		sendCommandFrame( frame );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Worker thread. Обычный путь - для кадров, не поместившихся в буфер из пула.
+	 */
+	void forwardCommand( RelayCluster.Route route, D5Command command )
+	{
+		command.data.setLong( 0, route.id );
+		command.data.setInt( 8, command.index );
+		sendCommand( command );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 * Успешный ответ ресурса на SEND или SEND_ENCRYPTED пересылается юзеру в том же буфере:
+	 * Route ID заменяется на Resource Handle, выданный юзеру этим узлом. Индекс в заголовке уже восстановлен узлом ресурса.
+	 */
+	@Override
+	protected boolean forwardResponse( ByteBuffer frame )
+	{
+		int code = frame.getInt( 4 ) + 0x20000000;
+		if( ((code != RelayCommand.SEND) && (code != RelayCommand.SEND_ENCRYPTED))
+			|| (frame.getInt( 8 ) != D5Response.STATUS_OK) || (frame.getInt( 12 ) < 12) )
+			return false;
+
+		RelayCluster.Route route = routes.get( frame.getLong( 16 ) );
+		if( (route == null) || !route.user.isOpen() )
+			return false;
+
+		frame.putLong( 16, route.resource.handle );
+		route.user.sendResponseFrame( frame );
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	protected void processResponse( D5Response response )
+	{
+		switch( response.code + 0x20000000 )
+		{
+			case RelayCommand.SEND:
+			case RelayCommand.SEND_ENCRYPTED:
+				// Порядок ответов юзеру сохраняется - в IO-потоке, как и быстрый путь.
+				responseSend( response );
+				break;
+
+			case RelayCommand.PEER_HELLO:
+			case RelayCommand.PEER_DIRECTORY:
+				relay.doWork( () -> dispatch( response ) );
+				break;
+
+			default:
+				dispatch( response );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void dispatch( D5Response response )
+	{
+		try
+		{
+			if( response.status != D5Response.STATUS_OK )
+			{
+				THROW( response.status, String.format( "(0x%08X) %s", response.status, response.data.asUTF8() ) );
+			}
+
+			switch( response.code + 0x20000000 )
+			{
+				case RelayCommand.PEER_HELLO     : responseHello( response ); break;
+				case RelayCommand.PEER_DIRECTORY : cluster.updateDirectory( peerNode, response.data ); break;
+				case RelayCommand.PEER_AUTH      :
+				case RelayCommand.PEER_BIND      :
+				case RelayCommand.PEER_UNBIND    : break;
+				default:
+					throw new Ex( "Unknown Response" );
+			}
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, "Peer " + address + ": " + ex.toString() );
+			this.close();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Другой узел подписал наше случайное число своим - значит, у него тот же Relay Key. Подписываем его число.
+	 */
+	private void responseHello( D5Response response )
+	{
+		MUST( challenge != null, "Protocol Error: Got 'PEER HELLO' response" );
+
+		BinParser bp = new BinParser( response.data );
+		String node = bp.getString();
+		Binary peerChallenge = bp.getBinary( 32 );
+		Binary sign = bp.getBinary();
+		MUST( relay.options.relayKey.verify( Bin( challenge, peerChallenge ), sign ), "Wrong peer signature" );
+
+		BinBuilder bb = new BinBuilder();
+		bb.append( relay.options.relayKey.sign( Bin( peerChallenge, challenge ) ) );
+		sendCommand( RelayCommand.PEER_AUTH, bb.getResult() );
+
+		challenge = null;
+		peerNode = node;
+		ready = true;
+		cluster.onLinkReady( this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ответ об ошибке или ответ, не поместившийся в буфер из пула: [Route ID][...].
+	 * Ошибки узла ресурса приходят с индексом команды юзера, в теле после Route ID - сообщение.
+	 */
+	private void responseSend( D5Response response )
+	{
+		if( response.data.size() < 8 )
+			return;
+
+		RelayCluster.Route route = routes.get( response.data.getLong( 0 ) );
+		if( (route == null) || !route.user.isOpen() )
+			return;
+
+		if( response.status == D5Response.STATUS_OK )
+		{
+			response.data.setLong( 0, route.resource.handle );
+		}
+		else
+		{
+			response.data = response.data.slice( 8, response.data.size() - 8 );
+		}
+		route.user.sendResponse( response );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void close()
+	{
+		super.close();
+		ready = false;
+		cluster.onLinkClosed( this );
+	}
+
+}
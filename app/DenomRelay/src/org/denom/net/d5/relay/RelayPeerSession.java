@@ -0,0 +1,365 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.net.TCPServer;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Binary.*;
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Входящая связь от другого узла кластера (его RelayPeerLink): этот узел получает команды и отвечает.
+ * Команды юзеров другого узла передаются ресурсам этого узла от имени RemoteUser - по одному на маршрут.
+ */
+public class RelayPeerSession extends D5CommandSession
+{
+	private final Relay relay;
+
+	/**
+	 * Имя узла - из PEER_HELLO.
+	 */
+	private volatile String peerNode = null;
+	private Binary peerChallenge = null;
+	private Binary challenge = null;
+	private volatile boolean authenticated = false;
+
+	// Route ID -> юзер другого узла
+	private final LongConcurrentMap<RemoteUser> routes = new LongConcurrentMap<>();
+
+	// Ресурсы, чтение из которых приостановлено, пока очередь на отправку другому узлу переполнена
+	private final Set<RelayResourceSession> suspendedResources = new HashSet<>();
+
+	// =================================================================================================================
+	/**
+	 * Юзер другого узла, работающий с ресурсом этого узла по маршруту routeId.
+	 * Для ресурса - обычный юзер со своим User Handle.
+	 */
+	final class RemoteUser implements RelayUser
+	{
+		final long id;
+		final long routeId;
+		final RelayResourceSession resourceSession;
+
+		RemoteUser( long routeId, RelayResourceSession resourceSession )
+		{
+			this.id = relay.lastUserID.incrementAndGet();
+			this.routeId = routeId;
+			this.resourceSession = resourceSession;
+		}
+
+		@Override
+		public long getId()
+		{
+			return id;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return socket.isOpen() && (routes.get( routeId ) == this);
+		}
+
+		/**
+		 * Resource Handle в ответе заменяется на Route ID, по нему другой узел найдёт юзера.
+		 */
+		@Override
+		public void sendResponseFrameFrom( RelayResourceSession resourceSession, ByteBuffer frame )
+		{
+			frame.putLong( 16, routeId );
+			sendResponseFrame( frame );
+			suspendIfBlocked( resourceSession );
+		}
+
+		@Override
+		public void sendResponseFrom( RelayResourceSession resourceSession, D5Response response )
+		{
+			response.data.setLong( 0, routeId );
+			sendResponse( response );
+			suspendIfBlocked( resourceSession );
+		}
+
+		@Override
+		public void suspendReading()
+		{
+			RelayPeerSession.this.suspendReading();
+		}
+
+		@Override
+		public void resumeReading()
+		{
+			RelayPeerSession.this.resumeReading();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * For creating instances by method newInstance.
+	 */
+	public RelayPeerSession( Relay relay, ILog log )
+	{
+		super( relay.options.sessionBufSize, log );
+		this.relay = relay;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public RelayPeerSession newInstance( TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		return new RelayPeerSession( relay, log, tcpServer, clientSocket );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	protected RelayPeerSession( Relay relay, ILog log, TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		super( relay.options.sessionBufSize, log, tcpServer, clientSocket );
+		this.relay = relay;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 * PEER_AUTH, PEER_BIND, PEER_UNBIND и команды юзеров выполняются здесь же, чтобы сохранить их порядок:
+	 * маршрут должен появиться раньше, чем по нему придёт первый кадр.
+	 */
+	@Override
+	protected void processCommand( D5Command command )
+	{
+		switch( command.code )
+		{
+			case RelayCommand.PEER_HELLO:
+			case RelayCommand.PEER_DIRECTORY:
+				relay.doWork( () -> execute( command ) );
+				break;
+
+			default:
+				execute( command );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void execute( D5Command command )
+	{
+		Binary data = Bin();
+		int status = D5Response.STATUS_OK;
+		int index = command.index;
+
+		try
+		{
+			MUST( authenticated || (command.code == RelayCommand.PEER_HELLO) || (command.code == RelayCommand.PEER_AUTH),
+					"Peer not authenticated" );
+
+			switch( command.code )
+			{
+				case RelayCommand.PEER_HELLO     : data = onCmdHello( command.data ); break;
+				case RelayCommand.PEER_AUTH      : data = onCmdAuth( command.data ); break;
+				case RelayCommand.PEER_DIRECTORY : data = onCmdDirectory( command.data ); break;
+				case RelayCommand.PEER_BIND      : data = onCmdBind( command.data ); break;
+				case RelayCommand.PEER_UNBIND    : routes.remove( command.data.getLong( 0 ) ); break;
+				case RelayCommand.SEND:
+				case RelayCommand.SEND_ENCRYPTED :
+					MUST( command.data.size() >= 12, D5Response.STATUS_WRONG_SYNTAX );
+					index = command.data.getIntBE( 8 );
+					data = onCmdSend( command );
+					break;
+				default:
+					throw new Ex( D5Response.STATUS_COMMAND_NOT_SUPPORTED );
+			}
+		}
+		catch( Throwable ex )
+		{
+			status = D5Response.STATUS_UNKNOWN_ERROR;
+			if( (ex instanceof Ex) && ((((Ex)ex).code & 0xE0000000) == 0xE0000000) )
+				status = ((Ex)ex).code;
+
+			String message = (ex instanceof Ex) ? ex.getMessage() : ex.toString();
+			data = Bin().fromUTF8( message );
+
+			// Ошибка по маршруту юзера - другой узел перешлёт её юзеру с индексом его команды.
+			if( ((command.code == RelayCommand.SEND) || (command.code == RelayCommand.SEND_ENCRYPTED))
+				&& (command.data.size() >= 8) )
+			{
+				data = Bin( command.data.slice( 0, 8 ), data );
+			}
+		}
+
+		if( data != null )
+			sendResponse( new D5Response( index, command.code - 0x20000000, status, data ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Worker thread. Подписываем случайное число узла вместе со своим.
+	 */
+	private Binary onCmdHello( Binary commandData )
+	{
+		BinParser bp = new BinParser( commandData );
+		String node = bp.getString();
+		Binary nodeChallenge = bp.getBinary( 32 );
+
+		Binary myChallenge = Bin().random( 32 );
+		BinBuilder bb = new BinBuilder();
+		bb.append( relay.cluster.nodeName );
+		bb.append( myChallenge );
+		bb.append( relay.options.relayKey.sign( Bin( nodeChallenge, myChallenge ) ) );
+
+		synchronized( this )
+		{
+			peerNode = node;
+			peerChallenge = nodeChallenge;
+			challenge = myChallenge;
+		}
+		return bb.getResult();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread. Узел подписал наше случайное число - у него тот же Relay Key.
+	 */
+	private Binary onCmdAuth( Binary commandData )
+	{
+		Binary sign = new BinParser( commandData ).getBinary();
+		synchronized( this )
+		{
+			MUST( challenge != null, "Protocol Error: 'PEER AUTH' before 'PEER HELLO'" );
+			MUST( relay.options.relayKey.verify( Bin( challenge, peerChallenge ), sign ), "Wrong peer signature" );
+			challenge = null;
+		}
+		authenticated = true;
+		log.writeln( "Peer authenticated: '" + peerNode + "', " + remoteAddress );
+		return Bin();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Worker thread. Справочник узла в обмен на свой.
+	 */
+	private Binary onCmdDirectory( Binary directory )
+	{
+		relay.cluster.updateDirectory( peerNode, directory );
+		return relay.cluster.localDirectory();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 */
+	private Binary onCmdBind( Binary commandData )
+	{
+		BinParser bp = new BinParser( commandData );
+		long routeId = bp.getLong();
+		Binary resourcePublicKey = bp.getBinary( Relay.PUBLIC_KEY_SIZE );
+
+		RelayResourceSession resourceSession = relay.resources.get( resourcePublicKey );
+		MUST( resourceSession != null, "Resource absent" );
+		routes.put( routeId, new RemoteUser( routeId, resourceSession ) );
+		return Bin();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread. Обычный путь - для кадров, не поместившихся в буфер из пула, и для ошибок.
+	 */
+	private Binary onCmdSend( D5Command command )
+	{
+		RemoteUser user = routes.get( command.data.getLong( 0 ) );
+		MUST( user != null, "Wrong Route ID" );
+		MUST( user.resourceSession.getSocket().isOpen(), "Resource absent" );
+
+		// Route ID -> User Handle; индекс команды юзера уже сохранён в теле узлом юзера.
+		command.data.setLong( 0, user.id );
+		user.resourceSession.cmdSend( user, command );
+		return null; // Do not send Response now
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 * Быстрый путь для SEND и SEND_ENCRYPTED: Route ID заменяется на User Handle, и кадр пересылается ресурсу
+	 * в том же буфере.
+	 */
+	@Override
+	protected boolean forwardCommand( ByteBuffer frame )
+	{
+		int code = frame.getInt( 4 );
+		if( ((code != RelayCommand.SEND) && (code != RelayCommand.SEND_ENCRYPTED)) || (frame.getInt( 8 ) <= 12)
+			|| !authenticated )
+			return false;
+
+		RemoteUser user = routes.get( frame.getLong( 12 ) );
+		if( (user == null) || !user.resourceSession.getSocket().isOpen() )
+			return false;
+
+		frame.putLong( 12, user.id );
+		user.resourceSession.cmdSendFrame( user, frame );
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Другой узел не успевает забирать ответы - приостанавливаем чтение ответов от ресурсов, которые ему отвечают.
+	 */
+	@Override
+	protected void onWritabilityChanged( boolean writable )
+	{
+		synchronized( suspendedResources )
+		{
+			if( !writable )
+			{
+				List<RemoteUser> users = new ArrayList<>();
+				routes.collectValues( users );
+				for( RemoteUser user : users )
+				{
+					if( suspendedResources.add( user.resourceSession ) )
+						user.resourceSession.suspendReading();
+				}
+			}
+			else
+			{
+				for( RelayResourceSession resourceSession : suspendedResources )
+					resourceSession.resumeReading();
+				suspendedResources.clear();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void suspendIfBlocked( RelayResourceSession resourceSession )
+	{
+		if( isWritable() )
+			return;
+
+		synchronized( suspendedResources )
+		{
+			if( !isWritable() && suspendedResources.add( resourceSession ) )
+				resourceSession.suspendReading();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int getRouteCount()
+	{
+		return routes.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void close()
+	{
+		super.close();
+		routes.clear();
+		if( peerNode != null )
+			log.writeln( Colors.CYAN, "Peer session closed: '" + peerNode + "', " + remoteAddress );
+	}
+
+}
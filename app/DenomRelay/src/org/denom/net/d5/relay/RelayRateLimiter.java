@@ -0,0 +1,240 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+
+import org.denom.net.TokenBucket;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Ограничения частоты на портах Relay-я (RelayOptions.RateLimitOptions) - корзины токенов на IP-адрес и на сессию юзера.
+ * Проверки выполняются в IO-потоках: соединение - при приёме, до создания сессии; команда - когда кадр прочитан,
+ * до пересылки ресурсу и до постановки в очередь рабочих потоков. Поэтому отклонённое не занимает рабочие потоки.
+ *
+ * Корзины адреса удаляются, когда у адреса нет открытых сессий и корзины снова полные, - но только когда
+ * число адресов достигло maxAddresses. Если удалить нечего, соединения с новых адресов отклоняются.
+ */
+public class RelayRateLimiter
+{
+	private final RelayOptions.RateLimitOptions options;
+	private final boolean addressLimits;
+	private final boolean sessionLimits;
+
+	// Изменяется под блокировкой в admit; Address.sessions уменьшается в любом потоке.
+	private final ConcurrentMap<InetAddress, Address> addresses = new ConcurrentHashMap<>();
+	private long lastPurgeNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos( 1 );
+
+	// Для соединений, на которые лимиты не распространяются
+	private final Client noLimits = new Client( null, false );
+
+	final AtomicLong rejectedConnects = new AtomicLong();
+	final AtomicLong rejectedAddresses = new AtomicLong();
+	final AtomicLong rejectedCommands = new AtomicLong();
+	final AtomicLong rejectedBytes = new AtomicLong();
+
+	// =================================================================================================================
+	/**
+	 * Корзины одного IP-адреса.
+	 */
+	private final class Address
+	{
+		final TokenBucket connects = bucket( options.addressConnectsPerSec );
+		final TokenBucket commands = bucket( options.addressCommandsPerSec );
+		final TokenBucket bytes = bucket( options.addressBytesPerSec );
+		final AtomicInteger sessions = new AtomicInteger();
+
+		boolean isIdle()
+		{
+			return (sessions.get() == 0) && isFull( connects ) && isFull( commands ) && isFull( bytes );
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Лимиты одного соединения: свои корзины и корзины его адреса.
+	 */
+	public final class Client
+	{
+		private final Address address;
+		private final TokenBucket commands;
+		private final TokenBucket bytes;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		// -------------------------------------------------------------------------------------------------------------
+		private Client( Address address, boolean userSession )
+		{
+			this.address = address;
+			this.commands = userSession ? bucket( options.sessionCommandsPerSec ) : null;
+			this.bytes = userSession ? bucket( options.sessionBytesPerSec ) : null;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * IO-поток. Команда с dataLen байтами данных.
+		 * @return false - команду нужно отклонить.
+		 */
+		public boolean admitCommand( int dataLen )
+		{
+			TokenBucket addressCommands = (address != null) ? address.commands : null;
+			TokenBucket addressBytes = (address != null) ? address.bytes : null;
+
+			if( !take( commands, addressCommands, 1 ) )
+			{
+				rejectedCommands.incrementAndGet();
+				return false;
+			}
+			if( !take( bytes, addressBytes, dataLen ) )
+			{
+				// Отклонённая команда не расходует лимит команд
+				giveBack( commands, 1 );
+				giveBack( addressCommands, 1 );
+				rejectedBytes.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Соединение закрыто. Можно вызывать повторно.
+		 */
+		public void release()
+		{
+			if( (address != null) && released.compareAndSet( false, true ) )
+				address.sessions.decrementAndGet();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayRateLimiter( RelayOptions.RateLimitOptions options )
+	{
+		this.options = options;
+		this.addressLimits = (options.addressConnectsPerSec > 0) || (options.addressCommandsPerSec > 0)
+				|| (options.addressBytesPerSec > 0);
+		this.sessionLimits = (options.sessionCommandsPerSec > 0) || (options.sessionBytesPerSec > 0);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private TokenBucket bucket( double ratePerSec )
+	{
+		if( ratePerSec <= 0 )
+			return null;
+		return new TokenBucket( ratePerSec, Math.max( 1, ratePerSec * options.burstSec ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static boolean take( TokenBucket bucket, long n )
+	{
+		return (bucket == null) || bucket.tryTake( n );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Взять n токенов из обеих корзин или ни из одной.
+	 */
+	private static boolean take( TokenBucket first, TokenBucket second, long n )
+	{
+		if( !take( first, n ) )
+			return false;
+		if( take( second, n ) )
+			return true;
+		giveBack( first, n );
+		return false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static void giveBack( TokenBucket bucket, long n )
+	{
+		if( bucket != null )
+			bucket.giveBack( n );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static boolean isFull( TokenBucket bucket )
+	{
+		return (bucket == null) || bucket.isFull();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO-поток boss-реактора, из newInstance сессии. Порты юзеров и ресурсов принимают соединения в разных потоках.
+	 * @param userSession - для сессии юзера создаются корзины сессии; для ресурса - только учёт соединений адреса.
+	 * @return null - соединение нужно отклонить.
+	 */
+	synchronized Client admit( SocketChannel clientSocket, boolean userSession )
+	{
+		Address address = null;
+		if( addressLimits )
+		{
+			InetAddress ip;
+			try
+			{
+				ip = ((InetSocketAddress)clientSocket.getRemoteAddress()).getAddress();
+			}
+			catch( Throwable ex )
+			{
+				return null;
+			}
+
+			address = addresses.get( ip );
+			if( address == null )
+			{
+				if( (addresses.size() >= options.maxAddresses) && !purge() )
+				{
+					rejectedAddresses.incrementAndGet();
+					return null;
+				}
+				address = new Address();
+				addresses.put( ip, address );
+			}
+
+			if( !take( address.connects, 1 ) )
+			{
+				rejectedConnects.incrementAndGet();
+				return null;
+			}
+			address.sessions.incrementAndGet();
+		}
+
+		if( (address == null) && !(userSession && sessionLimits) )
+			return noLimits;
+		return new Client( address, userSession );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Удалить адреса без сессий с полными корзинами - не чаще раза в секунду, чтобы поток соединений
+	 * с разных адресов не превращал каждый приём в обход всей таблицы.
+	 * @return true - место для нового адреса есть.
+	 */
+	private boolean purge()
+	{
+		long now = System.nanoTime();
+		if( (now - lastPurgeNanos) >= TimeUnit.SECONDS.toNanos( 1 ) )
+		{
+			lastPurgeNanos = now;
+			for( Iterator<Address> it = addresses.values().iterator(); it.hasNext(); )
+			{
+				if( it.next().isIdle() )
+					it.remove();
+			}
+		}
+		return addresses.size() < options.maxAddresses;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько IP-адресов отслеживается.
+	 */
+	int getAddressCount()
+	{
+		return addresses.size();
+	}
+
+}
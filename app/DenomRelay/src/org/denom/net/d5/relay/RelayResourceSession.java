@@ -3,9 +3,10 @@
 
 package org.denom.net.d5.relay;
 
-import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import org.denom.*;
 import org.denom.log.*;
@@ -31,10 +32,25 @@ public class RelayResourceSession extends D5ResponseSession
 	protected long handle = 0;
 
 	// Connected users to this Resource
-	protected Map<Long, RelayUserSession> bindedUsers = new HashMap<>();
+	protected LongConcurrentMap<RelayUser> bindedUsers = new LongConcurrentMap<>();
+
+	// Юзеры, чтение из которых приостановлено, пока очередь на отправку ресурсу переполнена
+	private Set<RelayUser> suspendedUsers = new HashSet<>();
 
 	protected RelayAuth relayAuth = null;
 
+	// Очередь обработки ответов ресурса в планировщике рабочих потоков - с ограничением параллельности
+	private FairExecutor.Lane dispatchLane = null;
+
+	// Учёт соединения в ограничениях частоты его IP-адреса
+	private RelayRateLimiter.Client limits = null;
+
+	// Время отправки последних SENT_RING команд ресурсу - для гистограммы задержек ответов.
+	// Слот - индекс команды & (SENT_RING - 1); если ответ пришёл после перезаписи слота, он не учитывается.
+	private final static int SENT_RING = 1024;
+	private AtomicIntegerArray sentIndex = null;
+	private AtomicLongArray sentNanos = null;
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * For creating instances by method newInstance.
@@ -47,10 +63,25 @@ public class RelayResourceSession extends D5ResponseSession
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO-поток. Частота соединений с одного адреса ограничена - до WHO_ARE_YOU, который занимает рабочий поток.
+	 */
 	@Override
 	public RelayResourceSession newInstance( TCPServer tcpServer, SocketChannel clientSocket )
 	{
-		RelayResourceSession newSession = new RelayResourceSession( relay, log, tcpServer, clientSocket );
+		RelayRateLimiter.Client limits = relay.rateLimiter.admit( clientSocket, false );
+		MUST( limits != null, "Rate limit exceeded" );
+		RelayResourceSession newSession;
+		try
+		{
+			newSession = new RelayResourceSession( relay, log, tcpServer, clientSocket );
+		}
+		catch( Throwable ex )
+		{
+			limits.release();
+			throw ex;
+		}
+		newSession.limits = limits;
 		log.writeln( "Accept on Resource port. Remote Address: " + newSession.remoteAddress );
 		relay.doWork( newSession::commandWhoAreYou );
 		return newSession;
@@ -62,15 +93,27 @@ public class RelayResourceSession extends D5ResponseSession
 		super( relay.options.sessionBufSize, log, tcpServer, clientSocket );
 		this.relay = relay;
 		this.resourceTimeoutSec = relay.options.resource.timeoutSec;
+		this.dispatchLane = relay.newResourceLane();
+		this.sentIndex = new AtomicIntegerArray( SENT_RING );
+		this.sentNanos = new AtomicLongArray( SENT_RING );
+	}
 
-		try
-		{
-			socket.socket().setSoTimeout( resourceTimeoutSec * 1000 );
-		}
-		catch( SocketException ex )
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO-поток. От ресурса ничего не пришло за resourceTimeoutSec (TCPServer.setIdleTimeout).
+	 * Ресурс, не ответивший на команды, отключается. Иначе ему отправляется ENUM_COMMANDS как ping -
+	 * если и на него не будет ответа, ресурс будет отключен на следующем таймауте.
+	 */
+	@Override
+	protected boolean onIdle()
+	{
+		if( getAwaitingResponses() != 0 )
 		{
-			THROW( ex.toString() );
+			log.writeln( Colors.YELLOW, "Resource " + remoteAddress + " not responding for " + resourceTimeoutSec + " sec, disconnect" );
+			return false;
 		}
+		commandEnumCommands();
+		return true;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -84,7 +127,7 @@ public class RelayResourceSession extends D5ResponseSession
 	@Override
 	protected void processResponse( D5Response response )
 	{
-		relay.doWork( () -> dispatch( response ) );
+		dispatchLane.execute( () -> dispatch( response ), Relay.taskCost( response.data ) );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -148,15 +191,11 @@ public class RelayResourceSession extends D5ResponseSession
 
 		handle = relay.lastResourceID.incrementAndGet();
 
-		synchronized( relay.resources )
-		{
-			// Закрываем сессию, если было старую подключение с таким же публичным ключом.
-			RelayResourceSession oldSession = relay.resources.get( resourceInfo.resourcePublicKey );
-			if( oldSession != null )
-				oldSession.close();
-
-			relay.resources.put( resourceInfo.resourcePublicKey, this );
-		}
+		// Закрываем сессию, если было старое подключение с таким же публичным ключом.
+		RelayResourceSession oldSession = relay.resources.put( resourceInfo.resourcePublicKey, this );
+		if( (oldSession != null) && (oldSession != this) )
+			oldSession.close();
+		relay.onDirectoryChanged();
 
 		log.writeln( "Resource connected."
 				+ "\nPublicKey: " + resourceInfo.resourcePublicKey.Hex()
@@ -180,42 +219,149 @@ public class RelayResourceSession extends D5ResponseSession
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	public void cmdSend( RelayUserSession userSession, D5Command command )
+	void cmdSend( RelayUser userSession, D5Command command )
+	{
+		bindedUsers.putIfAbsent( userSession.getId(), userSession );
+		this.sendCommand( command );
+		suspendIfBlocked( userSession );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Команда юзера - кадр целиком, пересылается без перекодирования.
+	 */
+	void cmdSendFrame( RelayUser userSession, ByteBuffer frame )
+	{
+		bindedUsers.putIfAbsent( userSession.getId(), userSession );
+		this.sendCommandFrame( frame );
+		suspendIfBlocked( userSession );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Запоминаем время отправки команды ресурсу - до постановки кадра в очередь.
+	 */
+	@Override
+	protected void onCommandQueued( int commandIndex )
+	{
+		int slot = commandIndex & (SENT_RING - 1);
+		sentNanos.set( slot, System.nanoTime() );
+		sentIndex.set( slot, commandIndex );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ответ ресурса на команду юзера - в гистограмму задержек. Каждый ответ учитывается один раз.
+	 */
+	private void markAnswered( int commandIndex, int commandCode )
 	{
-		synchronized( bindedUsers )
+		int slot = commandIndex & (SENT_RING - 1);
+		long nanos = System.nanoTime() - sentNanos.get( slot );
+		if( sentIndex.compareAndSet( slot, commandIndex, 0 ) )
+			relay.metrics.resourceAnswered( commandCode, nanos );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько ответов ресурса ждут обработки в его очереди.
+	 */
+	public int getDispatchQueueSize()
+	{
+		return (dispatchLane != null) ? dispatchLane.getQueueSize() : 0;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Очередь ресурса переполнена - юзер, начавший отправку после этого, тоже приостанавливается.
+	 */
+	private void suspendIfBlocked( RelayUser userSession )
+	{
+		if( isWritable() )
+			return;
+
+		synchronized( suspendedUsers )
 		{
-			bindedUsers.putIfAbsent( userSession.id, userSession );
+			if( !isWritable() && suspendedUsers.add( userSession ) )
+				userSession.suspendReading();
 		}
-		this.sendCommand( command );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 * Быстрый путь для успешных ответов на SEND и SEND_ENCRYPTED: в кадре заменяются только индекс и Resource ID,
+	 * и кадр пересылается юзеру в том же буфере. Остальные ответы обрабатываются обычным путём.
+	 */
+	@Override
+	protected boolean forwardResponse( ByteBuffer frame )
+	{
+		int code = frame.getInt( 4 ) + 0x20000000;
+		if( (code == RelayCommand.SEND) || (code == RelayCommand.SEND_ENCRYPTED) )
+			markAnswered( frame.getInt( 0 ), code );
+
+		if( ((code != RelayCommand.SEND) && (code != RelayCommand.SEND_ENCRYPTED))
+			|| (frame.getInt( 8 ) != D5Response.STATUS_OK) || (frame.getInt( 12 ) < 12) )
+			return false;
+
+		RelayUser userSession = bindedUsers.get( frame.getLong( 16 ) );
+		if( (userSession == null) || !userSession.isOpen() )
+			return false;
+
+		// Restore userCommandIndex, replace User ID with Resource ID.
+		frame.putInt( 0, frame.getInt( 24 ) );
+		frame.putLong( 16, this.handle );
+		frame.putInt( 24, 0 );
+		userSession.sendResponseFrameFrom( this, frame );
+		return true;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	private void responseSend( D5Response response )
 	{
+		markAnswered( response.index, response.code + 0x20000000 );
+
 		BinParser bp = new BinParser( response.data, 0 );
 		long userHandle = bp.getLong();
 
-		RelayUserSession userSession = null;
-		synchronized( bindedUsers )
-		{
-			userSession = bindedUsers.get( userHandle );
-		}
+		RelayUser userSession = bindedUsers.get( userHandle );
 
 		if( userSession == null )
 			return;
 
-		if( userSession.getSocket().isOpen() )
+		if( userSession.isOpen() )
 		{
 			response.data.setLong( 0, this.handle );
 			response.index = response.data.getIntBE( 8 );
 			response.data.setInt( 8, 0 );
-			userSession.sendResponse( response );
+			userSession.sendResponseFrom( this, response );
 		}
 		else
 		{
-			synchronized( bindedUsers )
+			bindedUsers.remove( userHandle, userSession );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс не успевает забирать команды - приостанавливаем чтение команд от юзеров, работающих с ним.
+	 * Кадры не отбрасываются - иначе рассинхронизируется Secure Messaging между юзером и ресурсом.
+	 */
+	@Override
+	protected void onWritabilityChanged( boolean writable )
+	{
+		synchronized( suspendedUsers )
+		{
+			if( !writable )
+			{
+				bindedUsers.collectValues( suspendedUsers );
+				for( RelayUser userSession : suspendedUsers )
+					userSession.suspendReading();
+			}
+			else
 			{
-				userSession = bindedUsers.remove( userHandle );
+				for( RelayUser userSession : suspendedUsers )
+					userSession.resumeReading();
+				suspendedUsers.clear();
 			}
 		}
 	}
@@ -225,13 +371,14 @@ public class RelayResourceSession extends D5ResponseSession
 	public void close()
 	{
 		super.close();
+		if( limits != null )
+			limits.release();
 
 		if( resourceInfo != null )
 		{
-			synchronized( relay.resources )
-			{
-				relay.resources.remove( resourceInfo.resourcePublicKey );
-			}
+			// Сессия могла быть уже заменена новым подключением ресурса с тем же ключом.
+			if( relay.resources.remove( resourceInfo.resourcePublicKey, this ) )
+				relay.onDirectoryChanged();
 
 			log.writeln( "Resource disconnected."
 					+ "\nPublicKey: " + resourceInfo.resourcePublicKey.Hex()
@@ -0,0 +1,37 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net.d5.relay;
+
+import java.nio.ByteBuffer;
+
+import org.denom.d5.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Получатель ответов ресурса: юзер, подключённый к этому узлу (RelayUserSession),
+ * или юзер другого узла кластера, чьи команды пришли по связи между узлами (RelayPeerSession.RemoteUser).
+ */
+interface RelayUser
+{
+	/**
+	 * User Handle - под этим идентификатором ресурс видит юзера. Уникален в пределах узла.
+	 */
+	long getId();
+
+	boolean isOpen();
+
+	/**
+	 * Ответ ресурса на SEND - кадр целиком, пересылается без перекодирования.
+	 */
+	void sendResponseFrameFrom( RelayResourceSession resourceSession, ByteBuffer frame );
+
+	void sendResponseFrom( RelayResourceSession resourceSession, D5Response response );
+
+	/**
+	 * Приостановить/возобновить чтение команд юзера, пока очередь ресурса переполнена.
+	 */
+	void suspendReading();
+
+	void resumeReading();
+}
@@ -4,6 +4,7 @@
 package org.denom.net.d5.relay;
 
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 
 import org.denom.*;
@@ -17,14 +18,26 @@ import static org.denom.Ex.MUST;
 import static org.denom.Binary.*;
 
 // -----------------------------------------------------------------------------------------------------------------
-public class RelayUserSession extends D5CommandSession
+public class RelayUserSession extends D5CommandSession implements RelayUser
 {
 	public long id = 0;
 
 	private final Relay relay;
 
 	// Resource ID -> Resource Session
-	private Map<Long, RelayResourceSession> bindedResources = new HashMap<>();
+	private LongConcurrentMap<RelayResourceSession> bindedResources = new LongConcurrentMap<>();
+
+	// Resource ID -> маршрут к ресурсу другого узла кластера
+	private LongConcurrentMap<RelayCluster.Route> bindedRoutes = new LongConcurrentMap<>();
+
+	// Очередь команд юзера в планировщике рабочих потоков
+	private FairExecutor.Lane lane = null;
+
+	// Ограничения частоты команд этого юзера и его IP-адреса
+	private RelayRateLimiter.Client limits = null;
+
+	// Ресурсы, чтение из которых приостановлено, пока очередь на отправку юзеру переполнена
+	private Set<RelayResourceSession> suspendedResources = new HashSet<>();
 
 	// -----------------------------------------------------------------------------------------------------------------
 	public RelayUserSession( Relay relay, ILog log )
@@ -34,29 +47,81 @@ public class RelayUserSession extends D5CommandSession
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO-поток. Соединение сверх лимита отклоняется до создания сессии - TCPServer закрывает сокет.
+	 */
 	@Override
 	public RelayUserSession newInstance( TCPServer tcpProcessor, SocketChannel clientSocket )
 	{
-		return new RelayUserSession( relay, log, tcpProcessor, clientSocket );
+		RelayRateLimiter.Client limits = relay.rateLimiter.admit( clientSocket, true );
+		MUST( limits != null, "Rate limit exceeded" );
+		try
+		{
+			return new RelayUserSession( relay, log, tcpProcessor, clientSocket, limits );
+		}
+		catch( Throwable ex )
+		{
+			limits.release();
+			throw ex;
+		}
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	protected RelayUserSession( Relay relay, ILog log, TCPServer tcpProcessor, SocketChannel clientSocket )
+	protected RelayUserSession( Relay relay, ILog log, TCPServer tcpProcessor, SocketChannel clientSocket,
+		RelayRateLimiter.Client limits )
 	{
 		super( relay.options.sessionBufSize, log, tcpProcessor, clientSocket );
 		this.relay = relay;
+		this.limits = limits;
 		id = relay.lastUserID.incrementAndGet();
+		lane = relay.newUserLane();
 		log.writeln( "User Session created. ID: " + Num_Bin( id, 8 ).Hex() + ". Remote address: " + remoteAddress.toString() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO-поток, до пересылки команды ресурсу и до постановки в очередь.
+	 * Отклонённая команда сразу получает ответ с ошибкой и не занимает рабочие потоки.
+	 */
+	@Override
+	protected boolean admitCommand( int commandIndex, int commandCode, int dataLen )
+	{
+		String error = null;
+		if( relay.draining )
+			error = "Relay is shutting down"; // Юзер переподключится к новому процессу Relay-я
+		else if( !limits.admitCommand( dataLen ) )
+			error = "Rate limit exceeded";
+
+		if( error == null )
+			return true;
+
+		sendResponse( new D5Response( commandIndex, commandCode - 0x20000000, D5Response.STATUS_UNKNOWN_ERROR,
+				Bin().fromUTF8( error ) ) );
+		return false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Команды юзера выполняются в рабочих потоках строго по порядку, в очереди юзера.
+	 * Юзер, отправивший много команд, ждёт своей очереди и не задерживает команды других юзеров.
+	 */
 	protected void processCommand( D5Command command )
 	{
-		relay.doWork( () -> processCommandImpl( command ) );
+		long startNanos = System.nanoTime();
+		lane.execute( () -> processCommandImpl( command, startNanos ), Relay.taskCost( command.data ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько команд юзера ждут выполнения.
+	 */
+	public int getQueueSize()
+	{
+		return (lane != null) ? lane.getQueueSize() : 0;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	private void processCommandImpl( D5Command command )
+	private void processCommandImpl( D5Command command, long startNanos )
 	{
 		Binary data = Bin();
 		int status = D5Response.STATUS_OK;
@@ -89,6 +154,8 @@ public class RelayUserSession extends D5CommandSession
 			response.data = data;
 			sendResponse( response );
 		}
+
+		relay.metrics.commandDone( command.code, startNanos );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -130,15 +197,9 @@ public class RelayUserSession extends D5CommandSession
 	// -----------------------------------------------------------------------------------------------------------------
 	private RelayResourceSession findResourceSession( Binary resourcePublicKey )
 	{
-		RelayResourceSession resourceSession = null;
 		// Find resource by PublicKey
 		MUST( resourcePublicKey.size() == relay.PUBLIC_KEY_SIZE, "Resource PublicKey length wrong" );
-		synchronized( relay.resources )
-		{
-			resourceSession = relay.resources.get( resourcePublicKey );
-		}
-
-		return resourceSession;
+		return relay.resources.get( resourcePublicKey );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -159,38 +220,109 @@ public class RelayUserSession extends D5CommandSession
 			resp.resourceDescription = resourceSession.resourceInfo.resourceDescription;
 
 			// Add local mapping Handle -> Resource Session
-			synchronized( bindedResources )
+			bindedResources.putIfAbsent( resourceSession.handle, resourceSession );
+		}
+		else if( relay.cluster != null )
+		{
+			RelayCluster.RemoteResource remote = relay.cluster.findRemote( resourcePublicKey );
+			if( (remote != null) && bindRoute( remote ) )
 			{
-				bindedResources.putIfAbsent( resourceSession.handle, resourceSession );
+				resp.resourceHandle = remote.handle;
+				resp.resourcePublicKey = remote.publicKey;
+				resp.resourceName = remote.name;
+				resp.resourceDescription = remote.description;
 			}
 		}
 
 		return resp.toBin();
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс подключён к другому узлу кластера - нужен маршрут к нему.
+	 * @return false, если связи с узлом ресурса нет.
+	 */
+	private boolean bindRoute( RelayCluster.RemoteResource remote )
+	{
+		RelayCluster.Route route = bindedRoutes.get( remote.handle );
+		if( (route != null) && route.isAlive() )
+			return true;
+
+		RelayCluster.Route newRoute = relay.cluster.bind( this, remote );
+		if( newRoute == null )
+			return false;
+
+		if( route != null )
+			route.link.unbind( route );
+		bindedRoutes.put( remote.handle, newRoute );
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 * Быстрый путь для SEND и SEND_ENCRYPTED: Relay не читает данные сообщения,
+	 * поэтому в кадре заменяются только Resource ID и индекс, и кадр пересылается ресурсу в том же буфере.
+	 * Если ресурс не найден или кадр некорректен - команда обрабатывается обычным путём, с ответом об ошибке.
+	 * Только если очередь юзера пуста и ничего не выполняет - иначе кадр обогнал бы предыдущие команды юзера
+	 * и обошёл бы справедливое распределение рабочих потоков. Новые задачи в очередь юзера ставит только
+	 * этот IO-поток, поэтому между проверкой и пересылкой очередь не пополнится.
+	 */
+	@Override
+	protected boolean forwardCommand( ByteBuffer frame )
+	{
+		int code = frame.getInt( 4 );
+		if( ((code != RelayCommand.SEND) && (code != RelayCommand.SEND_ENCRYPTED)) || (frame.getInt( 8 ) <= 12) )
+			return false;
+
+		if( !lane.isIdle() )
+			return false;
+
+		RelayResourceSession resourceSession = bindedResources.get( frame.getLong( 12 ) );
+		if( resourceSession == null )
+		{
+			RelayCluster.Route route = bindedRoutes.get( frame.getLong( 12 ) );
+			if( (route == null) || !route.isAlive() )
+				return false;
+
+			route.link.forwardFrame( route, frame );
+			return true;
+		}
+
+		if( !resourceSession.getSocket().isOpen() )
+			return false;
+
+		// Replace Resource ID with User ID.
+		frame.putLong( 12, this.id );
+		// Save userCommandIndex in body to restore it later, on Resource response.
+		frame.putInt( 20, frame.getInt( 0 ) );
+		resourceSession.cmdSendFrame( this, frame );
+		return true;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Send message to Resource identified by Resource ID.
+	 * Обычный путь - для кадров, не поместившихся в буфер из пула, и для ошибок.
 	 */
 	private Binary onCmdSend( D5Command command )
 	{
 		long resourceID = command.data.getLong( 0 );
 		MUST( command.data.size() > 12, D5Response.STATUS_WRONG_SYNTAX );
 
-		RelayResourceSession resourceSession = null;
-		synchronized( bindedResources )
+		RelayResourceSession resourceSession = bindedResources.get( resourceID );
+		if( resourceSession == null )
 		{
-			resourceSession = bindedResources.get( resourceID );
+			RelayCluster.Route route = bindedRoutes.get( resourceID );
+			MUST( route != null, "Wrong Resource ID or Resource absent" );
+			MUST( route.isAlive(), "Resource absent" );
+			route.link.forwardCommand( route, command );
+			return null; // Response will come from the resource node
 		}
 
-		MUST( resourceSession != null, "Wrong Resource ID or Resource absent" );
-
 		if( !resourceSession.getSocket().isOpen() )
 		{
-			synchronized( bindedResources )
-			{
-				bindedResources.remove( resourceID );
-			}
+			bindedResources.remove( resourceID, resourceSession );
 			throw new Ex( "Resource absent" );
 		}
 
@@ -203,11 +335,96 @@ public class RelayUserSession extends D5CommandSession
 		return null; // Do not send Response now
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Юзер не успевает забирать ответы - приостанавливаем чтение ответов от ресурсов, с которыми он работает.
+	 * Кадры не отбрасываются - иначе рассинхронизируется Secure Messaging между юзером и ресурсом.
+	 */
+	@Override
+	protected void onWritabilityChanged( boolean writable )
+	{
+		synchronized( suspendedResources )
+		{
+			if( !writable )
+			{
+				bindedResources.collectValues( suspendedResources );
+				for( RelayResourceSession resourceSession : suspendedResources )
+					resourceSession.suspendReading();
+			}
+			else
+			{
+				for( RelayResourceSession resourceSession : suspendedResources )
+					resourceSession.resumeReading();
+				suspendedResources.clear();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public long getId()
+	{
+		return id;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public boolean isOpen()
+	{
+		return socket.isOpen();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ответ ресурса на SEND - кадр целиком, пересылается без перекодирования.
+	 */
+	@Override
+	public void sendResponseFrameFrom( RelayResourceSession resourceSession, ByteBuffer frame )
+	{
+		sendResponseFrame( frame );
+		suspendIfBlocked( resourceSession );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void sendResponseFrom( RelayResourceSession resourceSession, D5Response response )
+	{
+		sendResponse( response );
+		suspendIfBlocked( resourceSession );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс отправил ответ, когда очередь юзера уже переполнена, - приостанавливаем и его.
+	 */
+	private void suspendIfBlocked( RelayResourceSession resourceSession )
+	{
+		if( isWritable() )
+			return;
+
+		synchronized( suspendedResources )
+		{
+			if( !isWritable() && suspendedResources.add( resourceSession ) )
+				resourceSession.suspendReading();
+		}
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	@Override
 	public void close()
 	{
 		super.close();
+		if( lane != null )
+			lane.close();
+		if( limits != null )
+			limits.release();
+
+		List<RelayCluster.Route> routes = new ArrayList<>();
+		bindedRoutes.collectValues( routes );
+		bindedRoutes.clear();
+		for( RelayCluster.Route route : routes )
+			route.link.unbind( route );
+
 		log.writeln( Colors.CYAN, "User Session closed: " + remoteAddress );
 	}
 
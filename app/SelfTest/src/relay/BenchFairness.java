@@ -0,0 +1,114 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.denom.*;
+import org.denom.log.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Сравнение общей FIFO-очереди рабочих потоков и FairExecutor (очередь на сессию, Deficit Round Robin).
+ * Один "шумный" источник сразу ставит FLOOD_TASKS задач, остальные LIGHT_SOURCES источников - по одной задаче
+ * каждые LIGHT_INTERVAL_MS. Задача занимает поток на TASK_MICROS.
+ * Выводится задержка задач "тихих" источников от постановки до начала выполнения, и проверяется,
+ * что задачи каждого источника в FairExecutor выполнились по порядку.
+ */
+public class BenchFairness
+{
+	int WORKER_THREADS = 4;
+	int FLOOD_TASKS = 20_000;
+	int TASK_MICROS = 100;
+	int LIGHT_SOURCES = 8;
+	int LIGHT_TASKS = 100;
+	int LIGHT_INTERVAL_MS = 5;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchFairness()
+	{
+		try
+		{
+			log.writeln( String.format( "%d workers, flood %d tasks, %d light sources, task %d us",
+					WORKER_THREADS, FLOOD_TASKS, LIGHT_SOURCES, TASK_MICROS ) );
+			log.writeln( String.format( "%-6s %10s %10s %10s", "Mode", "p50 us", "p99 us", "max us" ) );
+			measure( false );
+			measure( true );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void measure( boolean fair ) throws InterruptedException
+	{
+		ExecutorService workers = Executors.newFixedThreadPool( WORKER_THREADS );
+		FairExecutor scheduler = new FairExecutor( workers, WORKER_THREADS, 1 );
+
+		Executor flood = fair ? scheduler.newLane() : workers;
+		Executor[] light = new Executor[ LIGHT_SOURCES ];
+		for( int i = 0; i < LIGHT_SOURCES; ++i )
+			light[ i ] = fair ? scheduler.newLane() : workers;
+
+		AtomicInteger floodNext = new AtomicInteger();
+		for( int i = 0; i < FLOOD_TASKS; ++i )
+		{
+			int n = i;
+			flood.execute( () ->
+			{
+				MUST( !fair || (floodNext.getAndIncrement() == n), "Order broken" );
+				busy( TASK_MICROS );
+			} );
+		}
+
+		long[] latencies = new long[ LIGHT_SOURCES * LIGHT_TASKS ];
+		CountDownLatch done = new CountDownLatch( latencies.length );
+		for( int t = 0; t < LIGHT_TASKS; ++t )
+		{
+			for( int s = 0; s < LIGHT_SOURCES; ++s )
+			{
+				int slot = t * LIGHT_SOURCES + s;
+				long queuedAt = System.nanoTime();
+				light[ s ].execute( () ->
+				{
+					latencies[ slot ] = (System.nanoTime() - queuedAt) / 1000;
+					busy( TASK_MICROS );
+					done.countDown();
+				} );
+			}
+			Sys.sleep( LIGHT_INTERVAL_MS );
+		}
+
+		MUST( done.await( 120, TimeUnit.SECONDS ), "Light tasks not completed" );
+		workers.shutdownNow();
+		MUST( workers.awaitTermination( 10, TimeUnit.SECONDS ), "Can't stop workers" );
+
+		Arrays.sort( latencies );
+		log.writeln( String.format( "%-6s %10d %10d %10d", fair ? "Fair" : "FIFO",
+				latencies[ latencies.length / 2 ], latencies[ latencies.length * 99 / 100 ], latencies[ latencies.length - 1 ] ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static void busy( long micros )
+	{
+		long end = System.nanoTime() + micros * 1000;
+		while( System.nanoTime() < end ) {}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchFairness();
+		System.exit( 0 );
+	}
+
+}
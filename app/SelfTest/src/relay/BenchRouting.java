@@ -0,0 +1,157 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.denom.*;
+import org.denom.log.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Микробенчмарк маршрутизации SEND в Relay-е при росте числа юзеров.
+ * На каждый SEND Relay делает 2 поиска: Resource ID -> ресурс у юзера и User ID -> юзер у ресурса.
+ * Сравниваются synchronized HashMap<Long, ...> (как было) и LongConcurrentMap.
+ */
+public class BenchRouting
+{
+	int THREADS = 8;
+	int ROUTES_PER_THREAD = 2_000_000;
+	int RESOURCES = 16;
+	int[] USER_COUNTS = { 10, 1_000, 100_000 };
+
+	ILog log = new LogConsole();
+
+	interface Registry
+	{
+		void put( long key, Object value );
+		Object get( long key );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static class SyncHashMapRegistry implements Registry
+	{
+		private final Map<Long, Object> map = new HashMap<>();
+
+		public void put( long key, Object value )
+		{
+			synchronized( map ) { map.put( key, value ); }
+		}
+
+		public Object get( long key )
+		{
+			synchronized( map ) { return map.get( key ); }
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static class LongMapRegistry implements Registry
+	{
+		private final LongConcurrentMap<Object> map = new LongConcurrentMap<>();
+
+		public void put( long key, Object value )
+		{
+			map.put( key, value );
+		}
+
+		public Object get( long key )
+		{
+			return map.get( key );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchRouting()
+	{
+		log.writeln( String.format( "%-10s %18s %18s", "Users", "sync HashMap", "LongConcurrentMap" ) );
+		for( int users : USER_COUNTS )
+		{
+			long tSync = measure( users, SyncHashMapRegistry::new );
+			long tLong = measure( users, LongMapRegistry::new );
+			log.writeln( String.format( "%-10d %14d K/s %14d K/s", users, tSync, tLong ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	interface RegistryFactory
+	{
+		Registry create();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return маршрутизаций SEND в секунду, в тысячах.
+	 */
+	long measure( int numUsers, RegistryFactory factory )
+	{
+		// Реестры ресурсов: User ID -> юзер. Все юзеры работают со всеми ресурсами.
+		Registry[] resources = new Registry[ RESOURCES ];
+		for( int r = 0; r < RESOURCES; ++r )
+		{
+			resources[ r ] = factory.create();
+			for( long u = 1; u <= numUsers; ++u )
+				resources[ r ].put( u, Long.valueOf( u ) );
+		}
+
+		// Реестры юзеров: Resource ID -> ресурс. Ограничиваем количество реестров, чтобы не раздувать память.
+		int numUserRegs = Math.min( numUsers, 1024 );
+		Registry[] users = new Registry[ numUserRegs ];
+		for( int u = 0; u < numUserRegs; ++u )
+		{
+			users[ u ] = factory.create();
+			for( int r = 0; r < RESOURCES; ++r )
+				users[ u ].put( r + 1, resources[ r ] );
+		}
+
+		AtomicLong sink = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool( THREADS,
+				new ThreadFactoryNamed( "BenchRouting", Thread.NORM_PRIORITY, 0, true ) );
+
+		Ticker ticker = new Ticker();
+		for( int t = 0; t < THREADS; ++t )
+		{
+			final int seed = t;
+			executor.execute( () ->
+			{
+				long found = 0;
+				long rnd = seed * 0x9E3779B97F4A7C15L + 1;
+				for( int i = 0; i < ROUTES_PER_THREAD; ++i )
+				{
+					rnd ^= rnd << 13; rnd ^= rnd >>> 7; rnd ^= rnd << 17;
+					long userID = 1 + ((rnd >>> 1) % numUsers);
+					long resourceID = 1 + ((rnd >>> 40) % RESOURCES);
+
+					// User -> Resource
+					Registry resource = (Registry)users[ (int)(userID % numUserRegs) ].get( resourceID );
+					// Resource -> User (ответ)
+					if( resource.get( userID ) != null )
+						++found;
+				}
+				sink.addAndGet( found );
+			} );
+		}
+
+		executor.shutdown();
+		try
+		{
+			MUST( executor.awaitTermination( 1000, TimeUnit.SECONDS ), "Can't stop executor" );
+		}
+		catch( InterruptedException ex ) {}
+
+		long ms = Math.max( ticker.getDiffMs(), 1 );
+		MUST( sink.get() == (long)THREADS * ROUTES_PER_THREAD, "Route lost" );
+		return (long)THREADS * ROUTES_PER_THREAD / ms;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchRouting();
+	}
+
+}
@@ -0,0 +1,131 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.BinParser;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Бенчмарк RelaySM без сети: User шифрует запрос, Resource расшифровывает его и шифрует ответ, User расшифровывает ответ.
+ * Сравниваются режимы MODE_CLASSIC (AES-CFB + CBC-MAC) и MODE_CHACHA20_POLY1305.
+ * Выводится: МБ/с полезных данных (запрос + ответ) и выделение памяти на одну команду.
+ */
+public class BenchSM
+{
+	int[] PAYLOAD_SIZES = { 64, 1024, 16384, 65536 };
+	int SECONDS = 2;
+
+	ILog log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchSM()
+	{
+		RelaySigner userKey = new RelaySigner().generateKeyPair();
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+
+		checkNegotiation( userKey, resourceKey );
+
+		log.writeln( String.format( "%-8s %16s %10s %16s %10s", "Size", "CLASSIC MB/s", "alloc B", "CHACHA20 MB/s", "alloc B" ) );
+		for( int size : PAYLOAD_SIZES )
+		{
+			long[] classic = measure( userKey, resourceKey, RelaySM.MODE_CLASSIC, size );
+			long[] aead = measure( userKey, resourceKey, RelaySM.MODE_CHACHA20_POLY1305, size );
+			log.writeln( String.format( "%-8d %16d %10d %16d %10d", size, classic[ 0 ], classic[ 1 ], aead[ 0 ], aead[ 1 ] ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static RelaySM[] initSM( RelaySigner userKey, int userMode, RelaySigner resourceKey, int resourceMode )
+	{
+		RelaySM userSM = new RelaySM( userKey, userMode );
+		RelaySM resourceSM = new RelaySM( resourceKey, resourceMode );
+		userSM.onResponseInitSM( resourceSM.parseRequestInitSM( userSM.requestInitSM( resourceKey.getPublicKey() ) ) );
+		MUST( userSM.getMode() == resourceSM.getMode(), "Different SM modes" );
+		return new RelaySM[] { userSM, resourceSM };
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим AEAD выбирается, только если его поддерживают обе стороны.
+	 */
+	void checkNegotiation( RelaySigner userKey, RelaySigner resourceKey )
+	{
+		int aead = RelaySM.MODE_CHACHA20_POLY1305;
+		int classic = RelaySM.MODE_CLASSIC;
+		MUST( initSM( userKey, aead, resourceKey, aead )[ 0 ].getMode() == aead, "Negotiation failed" );
+		MUST( initSM( userKey, aead, resourceKey, classic )[ 0 ].getMode() == classic, "Negotiation failed" );
+		MUST( initSM( userKey, classic, resourceKey, aead )[ 0 ].getMode() == classic, "Negotiation failed" );
+
+		// Подмена данных должна обнаруживаться
+		RelaySM[] sm = initSM( userKey, aead, resourceKey, aead );
+		Binary crypt = sm[ 0 ].encryptRequest( 1, 0x11, new Binary().random( 100 ) );
+		crypt.set( 10, crypt.get( 10 ) ^ 1 );
+		boolean detected = false;
+		try
+		{
+			sm[ 1 ].decryptRequest( 1, new BinParser( crypt ), new Int() );
+		}
+		catch( Ex ex )
+		{
+			detected = true;
+		}
+		MUST( detected, "Modified data not detected" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return { МБ/с, байт выделено на команду }.
+	 */
+	long[] measure( RelaySigner userKey, RelaySigner resourceKey, int mode, int payloadSize )
+	{
+		RelaySM[] sm = initSM( userKey, mode, resourceKey, mode );
+		RelaySM userSM = sm[ 0 ];
+		RelaySM resourceSM = sm[ 1 ];
+
+		Binary data = new Binary().random( payloadSize );
+		Int code = new Int();
+		Int status = new Int();
+
+		// Прогрев. Индексы продолжаются при замере - каждый индекс используется один раз.
+		int index = 1;
+		long deadline = System.currentTimeMillis() + 500;
+		for( ; System.currentTimeMillis() < deadline; ++index )
+			roundTrip( userSM, resourceSM, index, data, code, status );
+
+		long allocStart = RelayLoad.allocatedBytes();
+		Ticker ticker = new Ticker();
+		long n = 0;
+		deadline = System.currentTimeMillis() + SECONDS * 1000;
+		for( ; System.currentTimeMillis() < deadline; ++index, ++n )
+			roundTrip( userSM, resourceSM, index, data, code, status );
+
+		long ms = Math.max( ticker.getDiffMs(), 1 );
+		long alloc = (allocStart < 0) ? -1 : (RelayLoad.allocatedBytes() - allocStart) / n;
+		return new long[] { n * 2 * payloadSize * 1000 / ms / (1 << 20), alloc };
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static void roundTrip( RelaySM userSM, RelaySM resourceSM, int index, Binary data, Int code, Int status )
+	{
+		Binary request = userSM.encryptRequest( index, 0x11, data );
+		Binary open = resourceSM.decryptRequest( index, new BinParser( request ), code );
+		MUST( (code.val == 0x11) && (open.size() == data.size()), "Wrong request" );
+
+		Binary response = resourceSM.encryptResponse( index, 0x11 - 0x20000000, 0, open );
+		Binary answer = userSM.decryptResponse( index, new BinParser( response ), code, status );
+		MUST( (status.val == 0) && answer.equals( data ), "Wrong response" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchSM();
+	}
+
+}
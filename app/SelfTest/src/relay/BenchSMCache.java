@@ -0,0 +1,180 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Бенчмарк SM-сессий ресурса.
+ * 1. Стоимость рукопожатия: полный INIT_SM (ECDH) против RESUME_SM по билету.
+ * 2. Поиск сессий в рабочих потоках ресурса: synchronized HashMap (как было, без вытеснения) против RelaySMCache,
+ *    когда все юзеры помещаются в кэш и когда их вдвое больше.
+ */
+public class BenchSMCache
+{
+	int SECONDS = 2;
+	int THREADS = 8;
+	int LOOKUPS_PER_THREAD = 1_000_000;
+	int[] USER_COUNTS = { 50_000, 200_000 };
+	int CACHE_SIZE = 100_000;
+
+	ILog log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchSMCache()
+	{
+		RelaySigner userKey = new RelaySigner().generateKeyPair();
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+
+		long full = measureHandshakes( userKey, resourceKey, false );
+		long resumed = measureHandshakes( userKey, resourceKey, true );
+		log.writeln( String.format( "Handshakes/s: INIT_SM %d, RESUME_SM %d", full, resumed ) );
+
+		RelaySM sm = new RelaySM( resourceKey );
+		for( int users : USER_COUNTS )
+		{
+			long tSync = measureLookups( new SyncMapSessions(), sm, users );
+			RelaySMCache cache = new RelaySMCache( CACHE_SIZE, 60_000, CACHE_SIZE, 60_000 );
+			long tCache = measureLookups( new CacheSessions( cache ), sm, users );
+			log.writeln( String.format( "Lookups, %d threads, %d users: sync HashMap %d K/s, RelaySMCache(%d) %d K/s",
+					THREADS, users, tSync, CACHE_SIZE, tCache ) );
+			log.writeln( "  " + cache.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Рукопожатие как у RelayUserClient и RelayResourceClient, без сети.
+	 */
+	long measureHandshakes( RelaySigner userKey, RelaySigner resourceKey, boolean resume )
+	{
+		RelaySMCache cache = new RelaySMCache();
+		RelaySM.Ticket ticket = null;
+
+		long n = 0;
+		Ticker ticker = new Ticker();
+		long deadline = System.currentTimeMillis() + SECONDS * 1000;
+		while( System.currentTimeMillis() < deadline )
+		{
+			RelaySM userSM = new RelaySM( userKey );
+			RelaySM resourceSM = new RelaySM( resourceKey );
+			if( resume && (ticket != null) )
+			{
+				Binary request = userSM.requestResumeSM( ticket );
+				RelaySM.Ticket found = cache.takeTicket( RelaySM.parseTicketId( request ),
+						t -> RelaySM.checkResumeRequest( request, t ) );
+				userSM.onResponseResumeSM( resourceSM.parseRequestResumeSM( request, found ) );
+			}
+			else
+			{
+				userSM.onResponseInitSM( resourceSM.parseRequestInitSM( userSM.requestInitSM( resourceKey.getPublicKey() ) ) );
+			}
+			cache.putTicket( resourceSM.getTicket() );
+			// После RelaySM.MAX_RESUMPTIONS возобновлений билета нет - следующее рукопожатие полное
+			ticket = userSM.getTicket();
+			MUST( (ticket == null) ? (resourceSM.getTicket() == null) : ticket.id.equals( resourceSM.getTicket().id ), "Different tickets" );
+			++n;
+		}
+		return n * 1000 / Math.max( ticker.getDiffMs(), 1 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	interface Sessions
+	{
+		RelaySM get( long userHandle );
+		void put( long userHandle, RelaySM sm );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static class SyncMapSessions implements Sessions
+	{
+		private final Map<Long, RelaySM> map = new HashMap<>();
+
+		public RelaySM get( long userHandle )
+		{
+			synchronized( map ) { return map.get( userHandle ); }
+		}
+
+		public void put( long userHandle, RelaySM sm )
+		{
+			synchronized( map ) { map.put( userHandle, sm ); }
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static class CacheSessions implements Sessions
+	{
+		private final RelaySMCache cache;
+
+		CacheSessions( RelaySMCache cache )
+		{
+			this.cache = cache;
+		}
+
+		public RelaySM get( long userHandle )
+		{
+			return cache.get( userHandle );
+		}
+
+		public void put( long userHandle, RelaySM sm )
+		{
+			cache.put( userHandle, sm );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Каждый поток ищет сессии случайных юзеров; если сессии нет - юзер делает INIT_SM (put).
+	 * @return поисков в секунду, в тысячах.
+	 */
+	long measureLookups( Sessions sessions, RelaySM sm, int users )
+	{
+		ExecutorService executor = Executors.newFixedThreadPool( THREADS,
+				new ThreadFactoryNamed( "BenchSMCache", Thread.NORM_PRIORITY, 0, true ) );
+
+		Ticker ticker = new Ticker();
+		for( int t = 0; t < THREADS; ++t )
+		{
+			final int seed = t;
+			executor.execute( () ->
+			{
+				long rnd = seed * 0x9E3779B97F4A7C15L + 1;
+				for( int i = 0; i < LOOKUPS_PER_THREAD; ++i )
+				{
+					rnd ^= rnd << 13; rnd ^= rnd >>> 7; rnd ^= rnd << 17;
+					// Часть юзеров активнее остальных: квадрат равномерного распределения
+					double u = (rnd >>> 11) * 0x1.0p-53;
+					long userHandle = 1 + (long)(u * u * users);
+					if( sessions.get( userHandle ) == null )
+						sessions.put( userHandle, sm );
+				}
+			} );
+		}
+
+		executor.shutdown();
+		try
+		{
+			MUST( executor.awaitTermination( 1000, TimeUnit.SECONDS ), "Can't stop executor" );
+		}
+		catch( InterruptedException ex ) {}
+
+		long ms = Math.max( ticker.getDiffMs(), 1 );
+		return (long)THREADS * LOOKUPS_PER_THREAD / ms;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchSMCache();
+	}
+
+}
@@ -0,0 +1,150 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Бенчмарк рукопожатий с общими ключами Relay-я, ресурса и юзера при росте числа потоков.
+ * Одно рукопожатие: авторизация ресурса (WHO_ARE_YOU + RELAY_SIGN) и INIT_SM между юзером и ресурсом,
+ * т.е. 2 подписи, 2 проверки подписи и 2 ECDH с каждой стороны SM.
+ * Сравниваются RelaySigner (без блокировок) и обёртка с synchronized sign/verify (как было).
+ */
+public class BenchSigner
+{
+	int SECONDS = 3;
+
+	ILog log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Старое поведение: один монитор на ключ.
+	 */
+	static class LockedSigner extends RelaySigner
+	{
+		@Override
+		public synchronized Binary sign( final Binary data )
+		{
+			return super.sign( data );
+		}
+
+		@Override
+		public synchronized boolean verify( final Binary data, final Binary sign )
+		{
+			return super.verify( data, sign );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	interface SignerFactory
+	{
+		RelaySigner create();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchSigner()
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		log.writeln( "Cores: " + cores );
+		log.writeln( String.format( "%-8s %18s %18s", "Threads", "synchronized", "lock-free" ) );
+
+		// Прогрев: таблицы предвычислений и JIT
+		measure( 1, LockedSigner::new );
+		measure( 1, RelaySigner::new );
+
+		for( int threads = 1; ; threads = Math.min( threads * 2, cores ) )
+		{
+			long tLocked = measure( threads, LockedSigner::new );
+			long tFree = measure( threads, RelaySigner::new );
+			log.writeln( String.format( "%-8d %12d hs/s %12d hs/s", threads, tLocked, tFree ) );
+			if( threads == cores )
+				break;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return рукопожатий в секунду.
+	 */
+	long measure( int threads, SignerFactory factory )
+	{
+		RelaySigner relayKey = factory.create().generateKeyPair();
+		RelaySigner resourceKey = factory.create().generateKeyPair();
+		RelaySigner userKey = factory.create().generateKeyPair();
+
+		AtomicLong handshakes = new AtomicLong();
+		AtomicLong errors = new AtomicLong();
+		long deadline = System.currentTimeMillis() + SECONDS * 1000;
+
+		ExecutorService executor = Executors.newFixedThreadPool( threads,
+				new ThreadFactoryNamed( "BenchSigner", Thread.NORM_PRIORITY, 0, true ) );
+
+		Ticker ticker = new Ticker();
+		for( int t = 0; t < threads; ++t )
+		{
+			executor.execute( () ->
+			{
+				long n = 0;
+				try
+				{
+					while( System.currentTimeMillis() < deadline )
+					{
+						handshake( relayKey, resourceKey, userKey );
+						++n;
+					}
+				}
+				catch( Throwable ex )
+				{
+					errors.incrementAndGet();
+					log.writeln( Colors.RED_I, ex.toString() );
+				}
+				handshakes.addAndGet( n );
+			} );
+		}
+
+		executor.shutdown();
+		try
+		{
+			MUST( executor.awaitTermination( 1000, TimeUnit.SECONDS ), "Can't stop executor" );
+		}
+		catch( InterruptedException ex ) {}
+
+		long ms = Math.max( ticker.getDiffMs(), 1 );
+		MUST( errors.get() == 0, "Handshake errors" );
+		return handshakes.get() * 1000 / ms;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static void handshake( RelaySigner relayKey, RelaySigner resourceKey, RelaySigner userKey )
+	{
+		// Relay <-> Resource
+		RelayAuth relayAuth = new RelayAuth( relayKey );
+		RelayAuth resourceAuth = new RelayAuth( resourceKey );
+		Binary resp = resourceAuth.onRequestWhoAreYou( relayAuth.requestWhoAreYou(), "BenchSigner", "" );
+		relayAuth.responseWhoAreYou( resp );
+		resourceAuth.onRequestSignRelay( relayAuth.requestRelaySign() );
+
+		// User <-> Resource
+		RelaySM userSM = new RelaySM( userKey );
+		RelaySM resourceSM = new RelaySM( resourceKey );
+		Binary request = userSM.requestInitSM( resourceKey.getPublicKey() );
+		userSM.onResponseInitSM( resourceSM.parseRequestInitSM( request ) );
+		MUST( userSM.iv.equals( resourceSM.iv ), "Different session keys" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchSigner();
+	}
+
+}
@@ -0,0 +1,132 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.concurrent.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+import static relay.EchoResource.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Сравнение: новый RelayUserClient на каждую единицу работы (connect + GET_RESOURCE_INFO + INIT_SM)
+ * и соединения из RelayUserClientPool.
+ * Единица работы - несколько зашифрованных команд ресурсу.
+ * Relay должен быть запущен, например, DenomRelay на localhost.
+ */
+public class BenchUserPool
+{
+	int THREADS = 8;
+	int UNITS_PER_THREAD = 200;
+	int COMMANDS_PER_UNIT = 2;
+	int DATA_SIZE = 100;
+
+	String host = "localhost";
+	int userPort = 4210;
+	int resourcePort = 4211;
+
+	LogConsole log = new LogConsole();
+
+	RelaySigner userKey = new RelaySigner().generateKeyPair();
+	Binary data = new Binary().random( DATA_SIZE );
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchUserPool()
+	{
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+		try( RelayResourceClient resource = new EchoResource( resourceKey, "BenchUserPool", 8 ) )
+		{
+			resource.connect( host, resourcePort, 3 );
+			Sys.sleep( 500 ); // Ждём аутентификации ресурса в Relay
+			Binary resourcePublicKey = resourceKey.getPublicKey();
+
+			long ms = measure( () -> {
+				try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+				{
+					client.cmdGetResourceInfo( resourcePublicKey );
+					client.sendInitSM( userKey );
+					doUnit( client );
+				}
+			} );
+			report( "New client", ms );
+
+			try( RelayUserClientPool pool = new RelayUserClientPool( userKey ) )
+			{
+				ms = measure( () -> {
+					RelayUserClient client = pool.borrow( host, userPort, resourcePublicKey );
+					try
+					{
+						doUnit( client );
+						pool.giveBack( client );
+					}
+					catch( Throwable ex )
+					{
+						pool.invalidate( client );
+						throw ex;
+					}
+				} );
+				report( "Pool", ms );
+				log.writeln( pool.toString() );
+			}
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void doUnit( RelayUserClient client )
+	{
+		for( int i = 0; i < COMMANDS_PER_UNIT; ++i )
+			MUST( client.cmdSendEncrypted( CMD_ECHO, data ).equals( data ), "Wrong Response" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	long measure( Runnable unit ) throws InterruptedException
+	{
+		ExecutorService threads = Executors.newFixedThreadPool( THREADS,
+				new ThreadFactoryNamed( "BenchUserPool", Thread.NORM_PRIORITY, 0, true ) );
+
+		Ticker ticker = new Ticker();
+		for( int t = 0; t < THREADS; ++t )
+		{
+			threads.execute( () ->
+			{
+				try
+				{
+					for( int i = 0; i < UNITS_PER_THREAD; ++i )
+						unit.run();
+				}
+				catch( Throwable ex )
+				{
+					log.writeln( Colors.RED_I, ex.toString() );
+				}
+			} );
+		}
+
+		threads.shutdown();
+		MUST( threads.awaitTermination( 1000, TimeUnit.SECONDS ), "Can't stop threads" );
+		return ticker.getDiffMs();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void report( String name, long ms )
+	{
+		long units = (long)THREADS * UNITS_PER_THREAD;
+		log.writeln( String.format( "%-12s: %d units, %d ms, %d units/sec",
+				name, units, ms, units * 1000 / Math.max( ms, 1 ) ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchUserPool();
+	}
+
+}
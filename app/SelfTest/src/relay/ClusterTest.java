@@ -0,0 +1,191 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.d5.relay.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+import static relay.EchoResource.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Кластер из NODES Relay-ев на localhost, в одном процессе.
+ * Ресурс подключается к первому узлу, юзеры - к каждому узлу. Проверяется:
+ * ресурс виден на всех узлах; SEND и SEND_ENCRYPTED (в т.ч. больше буфера из пула) доходят и возвращаются;
+ * после отключения ресурса он пропадает из справочников узлов; после его переподключения к другому узлу -
+ * снова доступен с любого узла.
+ */
+public class ClusterTest
+{
+	int NODES = 3;
+	long GOSSIP_INTERVAL_MS = 300;
+
+	String host = "127.0.0.1";
+	int basePort = 14240;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int userPort( int node )
+	{
+		return basePort + node * 10;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int resourcePort( int node )
+	{
+		return basePort + node * 10 + 1;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int clusterPort( int node )
+	{
+		return basePort + node * 10 + 3;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	ClusterTest()
+	{
+		JSONObject joKey = RelayTestOptions.newRelayKey();
+
+		Relay[] relays = new Relay[ NODES ];
+		RelayResourceClient resource = null;
+		try
+		{
+			for( int i = 0; i < NODES; ++i )
+			{
+				relays[ i ] = new Relay( makeOptions( i, joKey ), token -> {}, new LogDummy() );
+				relays[ i ].startServer();
+			}
+
+			RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+			resource = newResource( resourceKey );
+			resource.connect( host, resourcePort( 0 ), 3 );
+
+			// Юзеры каждого узла находят ресурс
+			for( int i = 0; i < NODES; ++i )
+				checkEcho( i, resourceKey.getPublicKey() );
+			log.writeln( Colors.GREEN_I, "Resource on node 0 reachable from all nodes" );
+
+			// Ресурс отключился - пропадает из справочников
+			resource.close();
+			resource = null;
+			for( int i = 0; i < NODES; ++i )
+				waitResource( i, resourceKey.getPublicKey(), false );
+			log.writeln( Colors.GREEN_I, "Resource removed from all nodes" );
+
+			// Переподключился к последнему узлу
+			resource = newResource( resourceKey );
+			resource.connect( host, resourcePort( NODES - 1 ), 3 );
+			for( int i = 0; i < NODES; ++i )
+				checkEcho( i, resourceKey.getPublicKey() );
+			log.writeln( Colors.GREEN_I, "Resource on node " + (NODES - 1) + " reachable from all nodes" );
+
+			log.writeln( Colors.GREEN_I, "ClusterTest OK" );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			if( resource != null )
+				resource.close();
+			for( Relay relay : relays )
+				if( relay != null )
+					relay.stopServer();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions( int node, JSONObject joKey )
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort( node ), resourcePort( node ) );
+
+		// Все узлы, включая себя, - свой адрес узел пропустит.
+		JSONArray jaPeers = new JSONArray();
+		for( int i = 0; i < NODES; ++i )
+			jaPeers.put( host + ":" + clusterPort( i ) );
+
+		JSONObject joCluster = new JSONObject();
+		joCluster.put( "Node Name", "node" + node );
+		joCluster.put( "Port", clusterPort( node ) );
+		joCluster.put( "Peers", jaPeers );
+		joCluster.put( "Gossip Interval Ms", GOSSIP_INTERVAL_MS );
+		jo.put( "Cluster", joCluster );
+
+		jo.put( "Relay Key", joKey );
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Эхо-ресурс, принимающий данные больше буфера из пула.
+	 */
+	RelayResourceClient newResource( RelaySigner resourceKey )
+	{
+		EchoResource resource = new EchoResource( resourceKey, "ClusterTest", 4 );
+		resource.setCommandDataLimit( 4_000_000 );
+		return resource;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ждать, пока справочник узла не придёт в ожидаемое состояние.
+	 */
+	void waitResource( int node, Binary resourcePublicKey, boolean present )
+	{
+		long deadline = System.currentTimeMillis() + GOSSIP_INTERVAL_MS * 20;
+		while( true )
+		{
+			try( RelayUserClient client = new RelayUserClient( host, userPort( node ) ) )
+			{
+				ResponseGetResourceInfo info = client.cmdGetResourceInfo( resourcePublicKey );
+				if( (info.resourceHandle != 0) == present )
+					return;
+			}
+			MUST( System.currentTimeMillis() < deadline,
+					"Node " + node + ": Resource " + (present ? "not found" : "not removed") );
+			Sys.sleep( 50 );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkEcho( int node, Binary resourcePublicKey )
+	{
+		waitResource( node, resourcePublicKey, true );
+
+		try( RelayUserClient client = new RelayUserClient( host, userPort( node ) ) )
+		{
+			client.cmdGetResourceInfo( resourcePublicKey );
+			MUST( client.resourceInfo.resourceName.equals( "ClusterTest" ), "Wrong Resource Name" );
+
+			for( int size : new int[] { 1, 1000, 100_000, 2_000_000 } )
+			{
+				Binary data = new Binary().random( size );
+				MUST( client.cmdSend( CMD_ECHO, data ).equals( data ), "Wrong SEND response, size " + size );
+			}
+
+			client.sendInitSM( new RelaySigner().generateKeyPair() );
+			for( int size : new int[] { 1, 1000, 100_000, 2_000_000 } )
+			{
+				Binary data = new Binary().random( size );
+				MUST( client.cmdSendEncrypted( CMD_ECHO, data ).equals( data ), "Wrong SEND_ENCRYPTED response, size " + size );
+			}
+		}
+		log.writeln( "Node " + node + ": echo OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new ClusterTest();
+		System.exit( 0 );
+	}
+
+}
@@ -0,0 +1,144 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.concurrent.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.d5.relay.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+import static relay.EchoResource.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Плавный перезапуск Relay-я на localhost.
+ * Юзер отправляет ресурсу медленную команду, во время её выполнения Relay завершается через drain.
+ * Проверяется: ответ на принятую команду доходит до юзера; новая команда юзера отклоняется;
+ * новый Relay на тех же портах запускается сразу; ресурс (через RelayResourceConnector) переподключается к нему сам.
+ */
+public class DrainTest
+{
+	int SLOW_MS = 500;
+
+	String host = "127.0.0.1";
+	int userPort = 14280;
+	int resourcePort = 14281;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	DrainTest()
+	{
+		JSONObject joKey = RelayTestOptions.newRelayKey();
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+
+		Relay relay = null;
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try( RelayResourceConnector connector = new RelayResourceConnector( host, resourcePort, () -> new EchoResource( resourceKey, "DrainTest", 4 ).setSlowEchoMs( SLOW_MS ) ) )
+		{
+			relay = new Relay( makeOptions( joKey ), token -> {}, new LogDummy() );
+			relay.startServer();
+
+			connector.setBackoff( 200, 2000 ).setConnectTimeout( 3 ).start();
+			waitConnects( connector, 1, resourceKey.getPublicKey() );
+
+			try( RelayUserClient slowClient = new RelayUserClient( host, userPort );
+				RelayUserClient otherClient = new RelayUserClient( host, userPort ) )
+			{
+				slowClient.cmdGetResourceInfo( resourceKey.getPublicKey() );
+				otherClient.cmdGetResourceInfo( resourceKey.getPublicKey() );
+
+				Binary data = new Binary().random( 1000 );
+				Future<Binary> slowAnswer = executor.submit( () -> slowClient.cmdSend( CMD_SLOW_ECHO, data ) );
+				Sys.sleep( SLOW_MS / 5 );
+
+				Relay draining = relay;
+				Future<?> drained = executor.submit( () -> draining.drain( 10_000 ) );
+				Sys.sleep( SLOW_MS / 5 );
+
+				boolean rejected = false;
+				try
+				{
+					otherClient.cmdSend( CMD_ECHO, data );
+				}
+				catch( Throwable ex )
+				{
+					rejected = true;
+				}
+				MUST( rejected, "Command accepted while draining" );
+
+				MUST( slowAnswer.get( 10, TimeUnit.SECONDS ).equals( data ), "Wrong SEND response" );
+				drained.get( 10, TimeUnit.SECONDS );
+			}
+			log.writeln( Colors.GREEN_I, "In-flight command completed, new command rejected" );
+
+			relay = new Relay( makeOptions( joKey ), token -> {}, new LogDummy() );
+			relay.startServer();
+			waitConnects( connector, 2, resourceKey.getPublicKey() );
+
+			try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+			{
+				client.cmdGetResourceInfo( resourceKey.getPublicKey() );
+				Binary data = new Binary().random( 1000 );
+				MUST( client.cmdSend( CMD_ECHO, data ).equals( data ), "Wrong SEND response" );
+			}
+			log.writeln( Colors.GREEN_I, "Resource reconnected to new Relay, failed attempts: " + connector.getFailures() );
+
+			log.writeln( Colors.GREEN_I, "DrainTest OK" );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			if( relay != null )
+				relay.stopServer();
+			executor.shutdownNow();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions( JSONObject joKey )
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort, resourcePort );
+		jo.put( "Reuse Port", true );
+		jo.put( "Relay Key", joKey );
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ждать, пока ресурс не подключится в connects-й раз и не появится в справочнике Relay-я.
+	 */
+	void waitConnects( RelayResourceConnector connector, long connects, Binary resourcePublicKey )
+	{
+		long deadline = System.currentTimeMillis() + 10_000;
+		while( true )
+		{
+			if( (connector.getConnects() >= connects) && (connector.getClient() != null) )
+			{
+				try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+				{
+					if( client.cmdGetResourceInfo( resourcePublicKey ).resourceHandle != 0 )
+						return;
+				}
+			}
+			MUST( System.currentTimeMillis() < deadline, "Resource not connected" );
+			Sys.sleep( 20 );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new DrainTest();
+		System.exit( 0 );
+	}
+
+}
@@ -0,0 +1,56 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import org.denom.*;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Ресурс для тестов Relay-я: возвращает юзеру данные SEND и SEND_ENCRYPTED как есть.
+ * На CMD_SLOW_ECHO отвечает через setSlowEchoMs - например, чтобы команда была в обработке при остановке Relay-я.
+ */
+public class EchoResource extends RelayResourceClient
+{
+	public final static int CMD_ECHO = 0xCDD01155;
+	public final static int CMD_SLOW_ECHO = 0xCDD01156;
+
+	private volatile long slowEchoMs = 0;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Команды обрабатываются в numWorkerThreads потоках; name - имя ресурса и префикс имён потоков.
+	 */
+	public EchoResource( RelaySigner resourceKey, String name, int numWorkerThreads )
+	{
+		super( resourceKey, name, "", numWorkerThreads, name );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Соединение обслуживается общим реактором.
+	 */
+	public EchoResource( RelaySigner resourceKey, String name, D5ReverseReactor reactor )
+	{
+		super( resourceKey, name, "", reactor );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public EchoResource setSlowEchoMs( long slowEchoMs )
+	{
+		this.slowEchoMs = slowEchoMs;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	protected Binary dispatchSend( long userHandle, int userToResourceIndex, int commandCode, Binary data )
+	{
+		if( commandCode == CMD_SLOW_ECHO )
+			Sys.sleep( slowEchoMs );
+		return data;
+	}
+
+}
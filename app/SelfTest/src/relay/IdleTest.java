@@ -0,0 +1,115 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.net.Socket;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+import static relay.EchoResource.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Закрытие простаивающих соединений Relay-ем на localhost (TCPServer.setIdleTimeout).
+ * Молчащие юзер и ресурс (не отвечает на WHO_ARE_YOU) отключаются через таймаут.
+ * Ресурс без KEEP ALIVE, но отвечающий на ping, и активный юзер остаются подключены.
+ */
+public class IdleTest
+{
+	int TIMEOUT_SEC = 1;
+
+	String host = "127.0.0.1";
+	int userPort = 14300;
+	int resourcePort = 14301;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	IdleTest()
+	{
+		Relay relay = null;
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+		try( D5ReverseReactor reactor = new D5ReverseReactor( 1, 2, "IdleTest" );
+			EchoResource resource = new EchoResource( resourceKey, "IdleTest", reactor ) )
+		{
+			relay = new Relay( makeOptions(), token -> {}, new LogDummy() );
+			relay.startServer();
+
+			resource.setKeepAliveInterval( 0 );
+			resource.connect( host, resourcePort, 3 );
+
+			long userMs = waitClosed( userPort );
+			MUST( (userMs >= TIMEOUT_SEC * 900) && (userMs <= TIMEOUT_SEC * 1000 + 1500), "Wrong user idle close: " + userMs + " ms" );
+			log.writeln( Colors.GREEN_I, "Silent user closed after " + userMs + " ms" );
+
+			long resourceMs = waitClosed( resourcePort );
+			MUST( (resourceMs >= TIMEOUT_SEC * 900) && (resourceMs <= TIMEOUT_SEC * 1000 + 1500), "Wrong resource idle close: " + resourceMs + " ms" );
+			log.writeln( Colors.GREEN_I, "Silent resource closed after " + resourceMs + " ms" );
+
+			try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+			{
+				MUST( client.cmdGetResourceInfo( resourceKey.getPublicKey() ).resourceHandle != 0, "Resource disconnected" );
+				Binary data = new Binary().random( 100 );
+				for( int i = 0; i < 10; ++i )
+				{
+					MUST( client.cmdSend( CMD_ECHO, data ).equals( data ), "Wrong SEND response" );
+					Sys.sleep( TIMEOUT_SEC * 300 );
+				}
+			}
+			MUST( !resource.isClosed(), "Resource disconnected" );
+			log.writeln( Colors.GREEN_I, "Active user and pinged resource stay connected" );
+
+			log.writeln( Colors.GREEN_I, "IdleTest OK" );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			if( relay != null )
+				relay.stopServer();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Подключиться к порту и молчать.
+	 * @return через сколько мс Relay закрыл соединение.
+	 */
+	long waitClosed( int port ) throws Exception
+	{
+		try( Socket socket = new Socket( host, port ) )
+		{
+			socket.setSoTimeout( TIMEOUT_SEC * 5000 );
+			long start = System.nanoTime();
+			// Ресурсу Relay отправляет WHO_ARE_YOU - читаем до закрытия
+			while( socket.getInputStream().read() >= 0 ) {}
+			return (System.nanoTime() - start) / 1_000_000;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions()
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort, resourcePort );
+		jo.put( "User Idle Timeout Sec", TIMEOUT_SEC );
+		jo.getJSONObject( "Resource" ).put( "Timeout Sec", TIMEOUT_SEC );
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new IdleTest();
+		System.exit( 0 );
+	}
+
+}
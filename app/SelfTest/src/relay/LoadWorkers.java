@@ -0,0 +1,124 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.concurrent.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Нагрузочный тест режимов рабочих потоков ресурса (WorkerExecutors):
+ * обработчик команд блокируется на HANDLER_SLEEP_MS (имитация чтения файла), много юзеров шлют команды параллельно.
+ * Сравнивается фиксированный пул из WORKER_THREADS потоков и поток на задачу.
+ * Relay должен быть запущен, например, DenomRelay на localhost.
+ */
+public class LoadWorkers
+{
+	public final static int CMD_LOAD = 0xCDD01133;
+
+	int WORKER_THREADS = 8;
+	int USERS_NUMBER = 64;
+	int COMMANDS_NUMBER = 50;
+	int DATA_SIZE = 1000;
+	int HANDLER_SLEEP_MS = 10;
+
+	String host = "localhost";
+	int userPort = 4210;
+	int resourcePort = 4211;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	LoadWorkers()
+	{
+		log.writeln( "Virtual threads supported: " + WorkerExecutors.isVirtualThreadsSupported() );
+		try
+		{
+			measure( WorkerExecutors.MODE_FIXED );
+			measure( WorkerExecutors.MODE_VIRTUAL );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void measure( String mode ) throws InterruptedException
+	{
+		RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+		ExecutorService resourceWorkers = WorkerExecutors.create( mode, WORKER_THREADS, "LoadWorkers-" + mode );
+
+		try( RelayResourceClient resource = new SlowResource( resourceKey, resourceWorkers ) )
+		{
+			resource.setLog( log );
+			resource.connect( host, resourcePort, 3 );
+			Sys.sleep( 500 ); // Ждём аутентификации ресурса в Relay
+
+			ExecutorService users = Executors.newFixedThreadPool( USERS_NUMBER,
+					new ThreadFactoryNamed( "LoadWorkersUser", Thread.NORM_PRIORITY, 0, true ) );
+
+			Ticker ticker = new Ticker();
+			for( int i = 0; i < USERS_NUMBER; ++i )
+				users.execute( () -> sendCommands( resourceKey.getPublicKey() ) );
+
+			users.shutdown();
+			MUST( users.awaitTermination( 1000, TimeUnit.SECONDS ), "Can't stop users" );
+
+			long ms = ticker.getDiffMs();
+			long total = (long)USERS_NUMBER * COMMANDS_NUMBER;
+			log.writeln( String.format( "%-8s: %d commands, %d ms, %d msg/sec",
+					mode, total, ms, total * 1000 / Math.max( ms, 1 ) ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void sendCommands( Binary resourcePublicKey )
+	{
+		try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+		{
+			client.cmdGetResourceInfo( resourcePublicKey );
+			MUST( client.resourceInfo.resourceHandle != 0, "No Resource with key: " + resourcePublicKey.Hex() );
+			client.sendInitSM( new RelaySigner().generateKeyPair() );
+
+			Binary data = new Binary().random( DATA_SIZE );
+			for( int i = 0; i < COMMANDS_NUMBER; ++i )
+			{
+				MUST( client.cmdSend( CMD_LOAD, data ).equals( data ), "Wrong Response" );
+			}
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// =================================================================================================================
+	class SlowResource extends RelayResourceClient
+	{
+		SlowResource( RelaySigner resourceKey, ExecutorService workers )
+		{
+			super( resourceKey, "LoadWorkers", "", workers, "LoadWorkers" );
+		}
+
+		@Override
+		protected Binary dispatchSend( long userHandle, int userToResourceIndex, int commandCode, Binary data )
+		{
+			Sys.sleep( HANDLER_SLEEP_MS );
+			return data;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new LoadWorkers();
+	}
+
+}
@@ -0,0 +1,199 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.d5.*;
+import org.denom.d5.relay.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Ограничения частоты ("Rate Limits") Relay-я на localhost.
+ * Юзер отправляет команды быстрее лимита сессии - часть команд отклоняется с "Rate limit exceeded", число принятых
+ * укладывается в burst плюс пополнение за время теста; после паузы команды снова принимаются.
+ * То же для байт данных команд; отклонённые по байтам команды не расходуют лимит команд. Соединения с одного адреса сверх лимита закрываются Relay-ем сразу.
+ */
+public class RateLimitTest
+{
+	double COMMANDS_PER_SEC = 50;
+	double BYTES_PER_SEC = 100_000;
+	double CONNECTS_PER_SEC = 5;
+	double BURST_SEC = 1;
+
+	String host = "127.0.0.1";
+	int userPort = 14290;
+	int resourcePort = 14291;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RateLimitTest()
+	{
+		Relay relay = null;
+		List<RelayUserClient> clients = new ArrayList<>();
+		try
+		{
+			relay = new Relay( makeOptions(), token -> {}, new LogDummy() );
+			relay.startServer();
+
+			try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+			{
+				check( client, "commands", 200, 0, COMMANDS_PER_SEC );
+			}
+
+			try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+			{
+				check( client, "bytes", 30, 10_000, BYTES_PER_SEC / 10_000 );
+			}
+
+			try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+			{
+				checkBytesReject( client );
+			}
+
+			// Корзина соединений снова полная - после паузы в check
+			int connected = 0;
+			long start = System.nanoTime();
+			for( int i = 0; i < 10; ++i )
+			{
+				RelayUserClient client = new RelayUserClient( host, userPort );
+				clients.add( client );
+				try
+				{
+					client.command( D5Command.ENUM_COMMANDS, new Binary() );
+					++connected;
+				}
+				catch( Throwable ex ) {}
+			}
+			double refill = CONNECTS_PER_SEC * (System.nanoTime() - start) / 1e9;
+			MUST( (connected >= 1) && (connected <= CONNECTS_PER_SEC * BURST_SEC + refill + 1), "Wrong connects: " + connected );
+			log.writeln( Colors.GREEN_I, "connects: " + connected + " of 10 accepted" );
+
+			log.writeln( Colors.GREEN_I, "RateLimitTest OK" );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			for( RelayUserClient client : clients )
+				client.close();
+			if( relay != null )
+				relay.stopServer();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Отправить count команд ENUM_COMMANDS с dataSize байтами данных подряд.
+	 * @param perSec - сколько таких команд в секунду допускает лимит.
+	 */
+	void check( RelayUserClient client, String name, int count, int dataSize, double perSec )
+	{
+		Binary data = new Binary().random( dataSize );
+		int accepted = 0;
+		int rejected = 0;
+		long start = System.nanoTime();
+		for( int i = 0; i < count; ++i )
+		{
+			if( send( client, data ) )
+				++accepted;
+			else
+				++rejected;
+		}
+		double refill = perSec * (System.nanoTime() - start) / 1e9;
+
+		MUST( rejected > 0, name + ": nothing rejected" );
+		MUST( accepted <= perSec * BURST_SEC + refill + 1, name + ": too many accepted - " + accepted );
+
+		Sys.sleep( (long)(BURST_SEC * 1000) );
+		MUST( send( client, data ), name + ": rejected after pause" );
+
+		log.writeln( Colors.GREEN_I, name + ": " + accepted + " accepted, " + rejected + " rejected" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Команды, отклонённые по лимиту байт, не расходуют лимит команд.
+	 * Большая команда уводит корзину байт в долг на DEBT_SEC, пока долг не погашен - отклоняются все команды с данными.
+	 * После погашения долга корзина команд должна быть полной, а не пустой от отклонённых команд.
+	 */
+	void checkBytesReject( RelayUserClient client )
+	{
+		double DEBT_SEC = 0.3;
+		int count = (int)(COMMANDS_PER_SEC * BURST_SEC) + 10;
+
+		long start = System.nanoTime();
+		MUST( send( client, new Binary().random( (int)(BYTES_PER_SEC * (BURST_SEC + DEBT_SEC)) ) ), "Big command rejected" );
+
+		Binary oneByte = new Binary().random( 1 );
+		int rejected = 0;
+		for( int i = 0; i < count; ++i )
+		{
+			if( !send( client, oneByte ) )
+				++rejected;
+		}
+		MUST( System.nanoTime() - start < DEBT_SEC * 1e9, "Too slow, bytes debt repaid during test" );
+		MUST( rejected == count, "bytes-rejected: debt not enforced" );
+
+		// Долг погашен, корзина команд за это время полностью не пополнилась бы
+		Sys.sleep( (long)(DEBT_SEC * 1000) + 100 );
+
+		int accepted = 0;
+		for( int i = 0; i < count; ++i )
+		{
+			if( send( client, new Binary() ) )
+				++accepted;
+		}
+		MUST( accepted >= COMMANDS_PER_SEC * BURST_SEC - 1, "bytes-rejected commands charged commands limit, accepted: " + accepted );
+
+		log.writeln( Colors.GREEN_I, "bytes-rejected: " + rejected + " rejected, then " + accepted + " of " + count + " accepted" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	boolean send( RelayUserClient client, Binary data )
+	{
+		try
+		{
+			client.command( D5Command.ENUM_COMMANDS, data );
+			return true;
+		}
+		catch( Ex ex )
+		{
+			MUST( ex.getMessage().contains( "Rate limit exceeded" ), ex.getMessage() );
+			return false;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions()
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort, resourcePort );
+
+		JSONObject joLimits = new JSONObject();
+		joLimits.put( "Address Connects Per Sec", CONNECTS_PER_SEC );
+		joLimits.put( "Session Commands Per Sec", COMMANDS_PER_SEC );
+		joLimits.put( "Session Bytes Per Sec", BYTES_PER_SEC );
+		joLimits.put( "Burst Sec", BURST_SEC );
+		jo.put( "Rate Limits", joLimits );
+
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new RateLimitTest();
+		System.exit( 0 );
+	}
+
+}
@@ -0,0 +1,289 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.JSONObject;
+import org.denom.d5.relay.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+import static relay.EchoResource.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Нагрузочный тест DenomRelay на localhost.
+ * Relay запускается в этом же процессе, к нему подключаются RESOURCES ресурсов (эхо) и USERS юзеров.
+ * Каждый юзер шлёт SEND или SEND_ENCRYPTED с заданным размером данных и темпом.
+ * Выводится: команд/сек, задержка p50/p99/p999 и скорость выделения памяти во всём процессе (Relay + клиенты).
+ * Если задан темп (USER_RATE), задержка отсчитывается от запланированного момента отправки,
+ * чтобы задержки Relay-я не скрывались тем, что юзер реже отправляет.
+ */
+public class RelayLoad
+{
+	int RESOURCES = 2;
+	int USERS = 16;
+	int[] PAYLOAD_SIZES = { 64, 1024, 16384 };
+	boolean[] ENCRYPTED = { false, true };
+	// Режим SM для SEND_ENCRYPTED, см. RelaySM.MODE_*
+	int SM_MODE = RelaySM.MODE_CHACHA20_POLY1305;
+	// Команд в секунду от одного юзера. 0 - без ограничения: следующая команда сразу после ответа.
+	int USER_RATE = 0;
+	int WARMUP_SEC = 2;
+	int DURATION_SEC = 5;
+
+	// Параметры Relay-я, как в DenomRelay.config
+	int IO_THREADS = 2;
+	int WORKER_THREADS = 8;
+	String WORKER_MODE = WorkerExecutors.MODE_FIXED;
+	int COALESCE_MAX_DELAY_MICROS = 0;
+
+	String host = "127.0.0.1";
+	int userPort = 14210;
+	int resourcePort = 14211;
+
+	LogConsole log = new LogConsole();
+
+	// Фаза теста, общая для потоков юзеров
+	final static int PHASE_WARMUP  = 0;
+	final static int PHASE_MEASURE = 1;
+	final static int PHASE_STOP    = 2;
+	volatile int phase;
+
+	AtomicLong errors = new AtomicLong();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayLoad()
+	{
+		Relay relay = new Relay( makeOptions(), token -> {}, new LogDummy() );
+		relay.startServer();
+
+		RelayResourceClient[] resources = new RelayResourceClient[ RESOURCES ];
+		Binary[] resourceKeys = new Binary[ RESOURCES ];
+		try
+		{
+			for( int i = 0; i < RESOURCES; ++i )
+			{
+				RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+				resourceKeys[ i ] = resourceKey.getPublicKey();
+				resources[ i ] = new EchoResource( resourceKey, "RelayLoad", WORKER_THREADS );
+				resources[ i ].setSMMode( SM_MODE );
+				resources[ i ].connect( host, resourcePort, 3 );
+			}
+			Sys.sleep( 500 ); // Ждём аутентификации ресурсов в Relay
+
+			log.writeln( String.format( "Relay: %d IO threads, %d workers (%s), coalesce %d us; %d resources, %d users, rate %s, SM mode %d",
+					IO_THREADS, WORKER_THREADS, WORKER_MODE, COALESCE_MAX_DELAY_MICROS, RESOURCES, USERS,
+					(USER_RATE == 0) ? "max" : (USER_RATE + " msg/s per user"), SM_MODE ) );
+			log.writeln( String.format( "%-15s %7s %11s %8s %8s %8s %11s %9s %5s %7s",
+					"Command", "Size", "msg/s", "p50 us", "p99 us", "p999 us", "alloc MB/s", "alloc B", "GC", "errors" ) );
+
+			for( boolean encrypted : ENCRYPTED )
+				for( int size : PAYLOAD_SIZES )
+					run( resourceKeys, encrypted, size );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			for( RelayResourceClient resource : resources )
+				if( resource != null )
+					resource.close();
+			relay.stopServer();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions()
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort, resourcePort );
+		jo.put( "Worker Threads", WORKER_THREADS );
+		jo.put( "Worker Mode", WORKER_MODE );
+		jo.put( "IO Threads", IO_THREADS );
+		jo.put( "Coalesce Max Delay Micros", COALESCE_MAX_DELAY_MICROS );
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void run( Binary[] resourceKeys, boolean encrypted, int payloadSize ) throws InterruptedException
+	{
+		phase = PHASE_WARMUP;
+		errors.set( 0 );
+
+		ExecutorService users = Executors.newFixedThreadPool( USERS,
+				new ThreadFactoryNamed( "RelayLoadUser", Thread.NORM_PRIORITY, 0, true ) );
+		LatencyHistogram[] histograms = new LatencyHistogram[ USERS ];
+		for( int i = 0; i < USERS; ++i )
+		{
+			histograms[ i ] = new LatencyHistogram();
+			Binary resourceKey = resourceKeys[ i % RESOURCES ];
+			LatencyHistogram histogram = histograms[ i ];
+			users.execute( () -> userLoop( resourceKey, encrypted, payloadSize, histogram ) );
+		}
+		users.shutdown();
+
+		Sys.sleep( WARMUP_SEC * 1000 );
+
+		long allocStart = allocatedBytes();
+		long gcStart = gcCount();
+		Ticker ticker = new Ticker();
+		phase = PHASE_MEASURE;
+
+		Sys.sleep( DURATION_SEC * 1000 );
+
+		phase = PHASE_STOP;
+		long ms = Math.max( ticker.getDiffMs(), 1 );
+		long allocBytes = allocatedBytes() - allocStart;
+		long gc = gcCount() - gcStart;
+		MUST( users.awaitTermination( 60, TimeUnit.SECONDS ), "Can't stop users" );
+
+		LatencyHistogram total = new LatencyHistogram();
+		for( LatencyHistogram h : histograms )
+			total.add( h );
+
+		long msgs = total.getCount();
+		log.writeln( String.format( "%-15s %7d %11d %8d %8d %8d %11.1f %9d %5d %7d",
+				encrypted ? "SEND_ENCRYPTED" : "SEND", payloadSize, msgs * 1000 / ms,
+				total.getPercentileMicros( 0.5 ), total.getPercentileMicros( 0.99 ), total.getPercentileMicros( 0.999 ),
+				(allocStart < 0) ? -1.0 : allocBytes * 1000.0 / ms / (1 << 20),
+				((allocStart < 0) || (msgs == 0)) ? -1 : allocBytes / msgs, gc, errors.get() ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void userLoop( Binary resourceKey, boolean encrypted, int payloadSize, LatencyHistogram histogram )
+	{
+		try( RelayUserClient client = new RelayUserClient( host, userPort ) )
+		{
+			client.cmdGetResourceInfo( resourceKey );
+			MUST( client.resourceInfo.resourceHandle != 0, "No Resource with key: " + resourceKey.Hex() );
+			if( encrypted )
+				client.sendInitSM( new RelaySigner().generateKeyPair(), SM_MODE );
+
+			Binary data = new Binary().random( payloadSize );
+			long intervalNs = (USER_RATE == 0) ? 0 : 1_000_000_000L / USER_RATE;
+			long next = System.nanoTime();
+
+			int curPhase;
+			while( (curPhase = phase) != PHASE_STOP )
+			{
+				if( intervalNs != 0 )
+				{
+					long wait = next - System.nanoTime();
+					if( wait > 0 )
+						LockSupport.parkNanos( wait );
+				}
+				else
+				{
+					next = System.nanoTime();
+				}
+
+				Binary resp = encrypted ? client.cmdSendEncrypted( CMD_ECHO, data ) : client.cmdSend( CMD_ECHO, data );
+				long latency = System.nanoTime() - next;
+				MUST( resp.size() == payloadSize, "Wrong Response" );
+
+				if( curPhase == PHASE_MEASURE )
+					histogram.record( latency );
+				next += intervalNs;
+			}
+		}
+		catch( Throwable ex )
+		{
+			errors.incrementAndGet();
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько байт выделили все живые потоки процесса. -1, если JVM не даёт такой статистики.
+	 */
+	static long allocatedBytes()
+	{
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if( !(mx instanceof com.sun.management.ThreadMXBean) )
+			return -1;
+
+		com.sun.management.ThreadMXBean sunMX = (com.sun.management.ThreadMXBean)mx;
+		if( !sunMX.isThreadAllocatedMemorySupported() || !sunMX.isThreadAllocatedMemoryEnabled() )
+			return -1;
+
+		long sum = 0;
+		for( long bytes : sunMX.getThreadAllocatedBytes( sunMX.getAllThreadIds() ) )
+		{
+			if( bytes > 0 )
+				sum += bytes;
+		}
+		return sum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static long gcCount()
+	{
+		long n = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+			n += Math.max( gc.getCollectionCount(), 0 );
+		return n;
+	}
+
+	// =================================================================================================================
+	/**
+	 * Гистограмма задержек с шагом 1 мкс до MAX_MICROS. Запись без выделения памяти.
+	 * Используется одним потоком, объединяется после остановки.
+	 */
+	static class LatencyHistogram
+	{
+		final static int MAX_MICROS = 1_000_000;
+
+		final long[] counts = new long[ MAX_MICROS + 1 ];
+		long count = 0;
+
+		void record( long nanos )
+		{
+			int micros = (int)Math.min( Math.max( nanos / 1000, 0 ), MAX_MICROS );
+			++counts[ micros ];
+			++count;
+		}
+
+		void add( LatencyHistogram other )
+		{
+			for( int i = 0; i <= MAX_MICROS; ++i )
+				counts[ i ] += other.counts[ i ];
+			count += other.count;
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		long getPercentileMicros( double p )
+		{
+			long rank = (long)Math.ceil( count * p );
+			long sum = 0;
+			for( int i = 0; i <= MAX_MICROS; ++i )
+			{
+				sum += counts[ i ];
+				if( (sum >= rank) && (sum > 0) )
+					return i;
+			}
+			return 0;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new RelayLoad();
+		System.exit( 0 );
+	}
+
+}
@@ -0,0 +1,66 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import org.denom.d5.relay.*;
+import org.denom.format.*;
+import org.denom.net.d5.relay.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Настройки Relay-я для тестов на localhost: без файлового лога, 4 рабочих потока, новый ключ Relay-я.
+ * Тест дополняет JSON своими параметрами (кластер, лимиты, таймауты, общий ключ узлов) и вызывает build.
+ */
+public final class RelayTestOptions
+{
+	private RelayTestOptions() {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static JSONObject newJSON( String host, int userPort, int resourcePort )
+	{
+		JSONObject jo = new JSONObject();
+		jo.put( "File log", false );
+		jo.put( "Show transport", false );
+		jo.put( "Host", host );
+		jo.put( "Worker Threads", 4 );
+		jo.put( "Session BufSize", 10_000_000 );
+		jo.put( "User Port", userPort );
+
+		JSONObject joResource = new JSONObject();
+		joResource.put( "Port", resourcePort );
+		joResource.put( "Timeout Sec", 30 );
+		joResource.put( "Name Max Length", 256 );
+		joResource.put( "Description Max Length", 1024 );
+		jo.put( "Resource", joResource );
+
+		jo.put( "Relay Key", newRelayKey() );
+		return jo;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ключ Relay-я в формате настроек - один на все узлы кластера или на старый и новый процесс.
+	 */
+	public static JSONObject newRelayKey()
+	{
+		JSONObject joKey = new JSONObject();
+		new RelaySigner().generateKeyPair().writePrivateKeyToJSON( joKey );
+		return joKey;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static RelayOptions build( JSONObject jo )
+	{
+		RelayOptions options = new RelayOptions();
+		options.fromJSON( jo );
+		return options;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static RelayOptions make( String host, int userPort, int resourcePort )
+	{
+		return build( newJSON( host, userPort, resourcePort ) );
+	}
+
+}
@@ -0,0 +1,320 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.format.BinParser;
+import org.denom.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * RelaySM без сети.
+ * Режим по умолчанию - MODE_CLASSIC. В режиме AEAD команды и ответы принимаются в любом порядке,
+ * повтор отвергается, испорченное сообщение отвергается, не нарушая сессию.
+ * Возобновление по билету: без знания секрета билета его не израсходовать, ключи подтверждаются ресурсом,
+ * цепочка возобновлений ограничена.
+ */
+public class SMTest
+{
+	ILog log = new LogConsole();
+
+	RelaySigner userKey = new RelaySigner().generateKeyPair();
+	RelaySigner resourceKey = new RelaySigner().generateKeyPair();
+
+	Random rand = new Random();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	SMTest()
+	{
+		checkDefaultMode();
+		checkReorder();
+		checkReplay();
+		checkTampered();
+		checkConcurrent();
+		checkResume();
+		checkResumeBinder();
+		checkResumeConfirm();
+		checkResumeLimit();
+
+		log.writeln( Colors.GREEN_I, "SMTest - OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkDefaultMode()
+	{
+		RelaySM[] sm = BenchSM.initSM( userKey, RelaySM.MODE_CLASSIC, resourceKey, RelaySM.MODE_CLASSIC );
+		MUST( sm[ 0 ].getMode() == RelaySM.MODE_CLASSIC, "Wrong default mode" );
+
+		RelaySM userSM = new RelaySM( userKey );
+		RelaySM resourceSM = new RelaySM( resourceKey );
+		userSM.onResponseInitSM( resourceSM.parseRequestInitSM( userSM.requestInitSM( resourceKey.getPublicKey() ) ) );
+		MUST( (userSM.getMode() == RelaySM.MODE_CLASSIC) && (resourceSM.getMode() == RelaySM.MODE_CLASSIC), "Wrong default mode" );
+
+		// Ресурс по умолчанию не принимает AEAD
+		userSM = new RelaySM( userKey, RelaySM.MODE_CHACHA20_POLY1305 );
+		resourceSM = new RelaySM( resourceKey );
+		userSM.onResponseInitSM( resourceSM.parseRequestInitSM( userSM.requestInitSM( resourceKey.getPublicKey() ) ) );
+		MUST( (userSM.getMode() == RelaySM.MODE_CLASSIC) && (resourceSM.getMode() == RelaySM.MODE_CLASSIC), "AEAD not opt-in" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelaySM[] initAEAD()
+	{
+		int aead = RelaySM.MODE_CHACHA20_POLY1305;
+		return BenchSM.initSM( userKey, aead, resourceKey, aead );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ресурс расшифровывает команды не в том порядке, в каком User их зашифровал,
+	 * отвечает тоже в произвольном порядке, User расшифровывает ответы в третьем порядке.
+	 */
+	void checkReorder()
+	{
+		RelaySM[] sm = initAEAD();
+		int count = 200;
+
+		Binary[] data = new Binary[ count ];
+		Binary[] requests = new Binary[ count ];
+		for( int i = 0; i < count; ++i )
+		{
+			data[ i ] = new Binary().random( rand.nextInt( 300 ) );
+			requests[ i ] = sm[ 0 ].encryptRequest( i + 1, 0x11, data[ i ] );
+		}
+
+		Binary[] responses = new Binary[ count ];
+		Int code = new Int();
+		for( int i : shuffled( count ) )
+		{
+			Binary open = sm[ 1 ].decryptRequest( i + 1, new BinParser( requests[ i ] ), code );
+			MUST( (code.val == 0x11) && open.equals( data[ i ] ), "Wrong request" );
+			responses[ i ] = sm[ 1 ].encryptResponse( i + 1, 0x11 - 0x20000000, 0, open );
+		}
+
+		Int status = new Int();
+		for( int i : shuffled( count ) )
+		{
+			Binary answer = sm[ 0 ].decryptResponse( i + 1, new BinParser( responses[ i ] ), code, status );
+			MUST( (status.val == 0) && answer.equals( data[ i ] ), "Wrong response" );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkReplay()
+	{
+		RelaySM[] sm = initAEAD();
+		Int code = new Int();
+
+		Binary request = sm[ 0 ].encryptRequest( 5, 0x11, new Binary().random( 40 ) );
+		Binary copy = request.clone();
+		sm[ 1 ].decryptRequest( 5, new BinParser( request ), code );
+		mustFail( () -> sm[ 1 ].decryptRequest( 5, new BinParser( copy ), code ), "Replayed index" );
+
+		// Повторное шифрование с тем же индексом повторило бы nonce
+		mustFail( () -> sm[ 0 ].encryptRequest( 5, 0x11, new Binary( 4 ) ), "Index already used" );
+
+		// Индекс старше окна
+		Binary old = sm[ 0 ].encryptRequest( 6, 0x11, new Binary( 4 ) );
+		Binary far = sm[ 0 ].encryptRequest( 5 + 2 * 1024, 0x11, new Binary( 4 ) );
+		sm[ 1 ].decryptRequest( 5 + 2 * 1024, new BinParser( far ), code );
+		mustFail( () -> sm[ 1 ].decryptRequest( 6, new BinParser( old ), code ), "Replayed index" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Испорченное или подложное сообщение не меняет состояние: настоящее с тем же индексом и следующие принимаются.
+	 */
+	void checkTampered()
+	{
+		RelaySM[] sm = initAEAD();
+		Int code = new Int();
+		Binary data = new Binary().random( 100 );
+
+		Binary request = sm[ 0 ].encryptRequest( 1, 0x11, data );
+		Binary bad = request.clone();
+		bad.set( 10, bad.get( 10 ) ^ 1 );
+		mustFail( () -> sm[ 1 ].decryptRequest( 1, new BinParser( bad ), code ), "Wrong CCS" );
+
+		// Подложный индекс - тег не сойдётся
+		Binary moved = request.clone();
+		mustFail( () -> sm[ 1 ].decryptRequest( 2, new BinParser( moved ), code ), "Wrong CCS" );
+
+		MUST( sm[ 1 ].decryptRequest( 1, new BinParser( request ), code ).equals( data ), "Session broken by bad frame" );
+		Binary next = sm[ 0 ].encryptRequest( 2, 0x11, data );
+		MUST( sm[ 1 ].decryptRequest( 2, new BinParser( next ), code ).equals( data ), "Session broken by bad frame" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Рабочие потоки ресурса обрабатывают команды одной сессии одновременно.
+	 * Команд в полёте меньше окна индексов (1024).
+	 */
+	void checkConcurrent()
+	{
+		RelaySM[] sm = initAEAD();
+		int count = 1000;
+
+		Binary data = new Binary().random( 1000 );
+		Binary[] requests = new Binary[ count ];
+		for( int i = 0; i < count; ++i )
+			requests[ i ] = sm[ 0 ].encryptRequest( i + 1, 0x11, data );
+
+		Binary[] responses = new Binary[ count ];
+		IntStream.range( 0, count ).parallel().forEach( i ->
+		{
+			Int code = new Int();
+			Binary open = sm[ 1 ].decryptRequest( i + 1, new BinParser( requests[ i ] ), code );
+			responses[ i ] = sm[ 1 ].encryptResponse( i + 1, 0x11 - 0x20000000, 0, open );
+		} );
+
+		IntStream.range( 0, count ).parallel().forEach( i ->
+		{
+			Binary answer = sm[ 0 ].decryptResponse( i + 1, new BinParser( responses[ i ] ), new Int(), new Int() );
+			MUST( answer.equals( data ), "Wrong concurrent response" );
+		} );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Возобновление по билету - как в RelayResourceClient.processResumeSM.
+	 * @return [userSM, resourceSM].
+	 */
+	RelaySM[] resume( RelaySMCache cache, RelaySM.Ticket ticket )
+	{
+		RelaySM userSM = new RelaySM( userKey );
+		Binary request = userSM.requestResumeSM( ticket );
+
+		RelaySM.Ticket found = cache.takeTicket( RelaySM.parseTicketId( request ), t -> RelaySM.checkResumeRequest( request, t ) );
+		MUST( found != null, "SM Error: Unknown ticket" );
+
+		RelaySM resourceSM = new RelaySM( resourceKey );
+		userSM.onResponseResumeSM( resourceSM.parseRequestResumeSM( request, found ) );
+		cache.putTicket( resourceSM.getTicket() );
+		return new RelaySM[] { userSM, resourceSM };
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelaySM[] initWithCache( RelaySMCache cache )
+	{
+		RelaySM[] sm = initAEAD();
+		cache.putTicket( sm[ 1 ].getTicket() );
+		return sm;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkResume()
+	{
+		RelaySMCache cache = new RelaySMCache();
+		RelaySM[] sm = initWithCache( cache );
+		RelaySM.Ticket ticket = sm[ 0 ].getTicket();
+
+		RelaySM[] resumed = resume( cache, ticket );
+		MUST( resumed[ 0 ].getMode() == RelaySM.MODE_CHACHA20_POLY1305, "Mode not resumed" );
+		Int code = new Int();
+		Binary data = new Binary().random( 50 );
+		Binary request = resumed[ 0 ].encryptRequest( 1, 0x11, data );
+		MUST( resumed[ 1 ].decryptRequest( 1, new BinParser( request ), code ).equals( data ), "Wrong resumed keys" );
+
+		// Билет одноразовый
+		mustFail( () -> resume( cache, ticket ), "Unknown ticket" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Запрос с id билета, но без секрета (подслушан id) - отвергается, билет остаётся владельцу.
+	 */
+	void checkResumeBinder()
+	{
+		RelaySMCache cache = new RelaySMCache();
+		RelaySM[] sm = initWithCache( cache );
+		RelaySM.Ticket ticket = sm[ 0 ].getTicket();
+
+		Binary request = new RelaySM( userKey ).requestResumeSM( ticket );
+		Binary forged = request.clone();
+		forged.set( forged.size() - 1, forged.get( forged.size() - 1 ) ^ 1 );
+		MUST( cache.takeTicket( ticket.id, t -> RelaySM.checkResumeRequest( forged, t ) ) == null, "Forged binder accepted" );
+
+		Binary noBinder = request.first( 32 );
+		MUST( cache.takeTicket( ticket.id, t -> RelaySM.checkResumeRequest( noBinder, t ) ) == null, "Missing binder accepted" );
+
+		mustFail( () -> new RelaySM( resourceKey ).parseRequestResumeSM( forged, ticket ), "Wrong ticket" );
+
+		resume( cache, ticket );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Ответ, не подтверждающий ключи, отвергается сразу, а не на первом SEND.
+	 */
+	void checkResumeConfirm()
+	{
+		RelaySM[] sm = initAEAD();
+		RelaySM.Ticket ticket = sm[ 0 ].getTicket();
+
+		RelaySM userSM = new RelaySM( userKey );
+		Binary response = new RelaySM( resourceKey ).parseRequestResumeSM( userSM.requestResumeSM( ticket ), sm[ 1 ].getTicket() );
+		Binary bad = response.clone();
+		bad.set( bad.size() - 1, bad.get( bad.size() - 1 ) ^ 1 );
+		mustFail( () -> userSM.onResponseResumeSM( bad ), "Wrong resume confirmation" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * После MAX_RESUMPTIONS возобновлений билет не выдаётся - нужен полный INIT_SM с новым ECDH.
+	 */
+	void checkResumeLimit()
+	{
+		RelaySMCache cache = new RelaySMCache();
+		RelaySM[] sm = initWithCache( cache );
+		MUST( sm[ 0 ].getTicket().resumeCount == 0, "Wrong resume count" );
+
+		for( int i = 1; i < RelaySM.MAX_RESUMPTIONS; ++i )
+		{
+			sm = resume( cache, sm[ 0 ].getTicket() );
+			MUST( sm[ 0 ].getTicket().resumeCount == i, "Wrong resume count" );
+			MUST( sm[ 1 ].getTicket().resumeCount == i, "Wrong resume count" );
+		}
+
+		sm = resume( cache, sm[ 0 ].getTicket() );
+		MUST( (sm[ 0 ].getTicket() == null) && (sm[ 1 ].getTicket() == null), "Resume chain not limited" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	int[] shuffled( int count )
+	{
+		List<Integer> list = new ArrayList<>();
+		for( int i = 0; i < count; ++i )
+			list.add( i );
+		Collections.shuffle( list, rand );
+		return list.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static void mustFail( Runnable action, String expectedMessage )
+	{
+		try
+		{
+			action.run();
+		}
+		catch( Ex ex )
+		{
+			MUST( ex.getMessage().contains( expectedMessage ), "Unexpected error: " + ex.getMessage() );
+			return;
+		}
+		MUST( false, "Must fail with: " + expectedMessage );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new SMTest();
+	}
+
+}
@@ -0,0 +1,115 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.denom.log.*;
+import org.denom.format.*;
+import org.denom.net.d5.relay.*;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Параллельность рабочих задач Relay-я на localhost.
+ * В режиме "Virtual" TASKS блокирующихся задач (больше, чем "Worker Threads") должны выполняться одновременно,
+ * в режиме "Fixed" - не больше "Worker Threads" одновременно.
+ */
+public class VirtualWorkersTest
+{
+	int WORKER_THREADS = 2;
+	int TASKS = 16;
+	long BLOCK_MS = 1000;
+
+	String host = "127.0.0.1";
+	int userPort = 14310;
+	int resourcePort = 14311;
+
+	LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	VirtualWorkersTest()
+	{
+		try
+		{
+			int maxVirtual = runBlocking( "Virtual" );
+			log.writeln( Colors.GREEN_I, "Virtual: " + maxVirtual + " of " + TASKS + " tasks at once" );
+			MUST( maxVirtual == TASKS, "Virtual mode limited by Worker Threads" );
+
+			int maxFixed = runBlocking( "Fixed" );
+			log.writeln( Colors.GREEN_I, "Fixed: " + maxFixed + " of " + TASKS + " tasks at once" );
+			MUST( maxFixed == WORKER_THREADS, "Fixed mode not limited by Worker Threads" );
+
+			log.writeln( Colors.GREEN_I, "VirtualWorkersTest OK" );
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Отдать Relay-ю TASKS задач, каждая ждёт, пока не запустятся все (не дольше BLOCK_MS).
+	 * @return Наибольшее число задач, выполнявшихся одновременно.
+	 */
+	int runBlocking( String workerMode ) throws Exception
+	{
+		Relay relay = new Relay( makeOptions( workerMode ), token -> {}, new LogDummy() );
+		relay.startServer();
+		try
+		{
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			CountDownLatch started = new CountDownLatch( TASKS );
+			CountDownLatch finished = new CountDownLatch( TASKS );
+
+			for( int i = 0; i < TASKS; ++i )
+			{
+				relay.doWork( () ->
+				{
+					maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+					started.countDown();
+					try
+					{
+						started.await( BLOCK_MS, TimeUnit.MILLISECONDS );
+					}
+					catch( InterruptedException ex )
+					{
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					finished.countDown();
+				} );
+			}
+
+			MUST( finished.await( BLOCK_MS * TASKS + 10_000, TimeUnit.MILLISECONDS ), "Tasks not finished" );
+			return maxRunning.get();
+		}
+		finally
+		{
+			relay.stopServer();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	RelayOptions makeOptions( String workerMode )
+	{
+		JSONObject jo = RelayTestOptions.newJSON( host, userPort, resourcePort );
+		jo.put( "Worker Threads", WORKER_THREADS );
+		jo.put( "Worker Mode", workerMode );
+		jo.put( "Reuse Port", true );
+		return RelayTestOptions.build( jo );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new VirtualWorkersTest();
+		System.exit( 0 );
+	}
+
+}
@@ -0,0 +1,103 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.*;
+
+import static org.denom.Binary.Bin;
+
+/**
+ * Скорость шифрования с аутентификацией, MB/s:
+ * AES_GCM (в т.ч. encryptParallel), AES_CCM, AES/GCM от JCE и два прохода - AES-CBC + CMAC.
+ */
+public class BenchAEAD
+{
+	static final int DATA_SIZE = 1 << 20;
+	static final int ITERATIONS = 20;
+
+	private LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchAEAD() throws Exception
+	{
+		Binary data = Bin().random( DATA_SIZE );
+		Binary aad = Bin().random( 16 );
+		Binary key = Bin().random( 16 );
+		Binary iv = Bin().random( 12 );
+
+		AES_GCM gcm = new AES_GCM( key );
+		AES_CCM ccm = new AES_CCM( key );
+		AES aes = new AES( key );
+		Cipher jce = Cipher.getInstance( "AES/GCM/NoPadding" );
+		SecretKeySpec jceKey = new SecretKeySpec( key.getBytes(), "AES" );
+		byte[] dataArr = data.getBytes();
+
+		// JCE не позволяет повторно шифровать с тем же IV - каждый раз новый
+		byte[][] ivs = new byte[ ITERATIONS ][];
+		for( int i = 0; i < ITERATIONS; ++i )
+			ivs[ i ] = Bin().random( 12 ).getBytes();
+		int[] n = { 0 };
+		Runnable jceEncrypt = () ->
+		{
+			try
+			{
+				jce.init( Cipher.ENCRYPT_MODE, jceKey, new GCMParameterSpec( 128, ivs[ n[ 0 ]++ % ITERATIONS ] ) );
+				jce.updateAAD( aad.getDataRef(), 0, aad.size() );
+				jce.doFinal( dataArr );
+			}
+			catch( Exception ex )
+			{
+				throw new Ex( ex.toString() );
+			}
+		};
+
+		// Прогрев JIT
+		for( int i = 0; i < 3; ++i )
+		{
+			gcm.decrypt( gcm.encrypt( data, iv, aad ), iv, aad );
+			ccm.decrypt( ccm.encrypt( data, iv, aad ), iv, aad );
+			gcm.decryptParallel( gcm.encryptParallel( data, iv, aad ), iv, aad );
+			jceEncrypt.run();
+		}
+
+		Binary gcmCrypt = gcm.encrypt( data, iv, aad );
+		print( "AES_GCM       encrypt", Ticker.measureMs( ITERATIONS, () -> gcm.encrypt( data, iv, aad ) ) );
+		print( "AES_GCM       decrypt", Ticker.measureMs( ITERATIONS, () -> gcm.decrypt( gcmCrypt, iv, aad ) ) );
+		print( "AES_GCM par   encrypt", Ticker.measureMs( ITERATIONS, () -> gcm.encryptParallel( data, iv, aad ) ) );
+		print( "AES_GCM par   decrypt", Ticker.measureMs( ITERATIONS, () -> gcm.decryptParallel( gcmCrypt, iv, aad ) ) );
+
+		Binary ccmCrypt = ccm.encrypt( data, iv, aad );
+		print( "AES_CCM       encrypt", Ticker.measureMs( ITERATIONS, () -> ccm.encrypt( data, iv, aad ) ) );
+		print( "AES_CCM       decrypt", Ticker.measureMs( ITERATIONS, () -> ccm.decrypt( ccmCrypt, iv, aad ) ) );
+
+		print( "JCE AES/GCM   encrypt", Ticker.measureMs( ITERATIONS, jceEncrypt ) );
+
+		Binary cmacIV = Bin( AES.BLOCK_SIZE );
+		print( "AES-CBC+CMAC  encrypt", Ticker.measureMs( ITERATIONS, () ->
+		{
+			Binary crypt = aes.encrypt( data, CryptoMode.CBC, AlignMode.NONE, cmacIV );
+			aes.calcCMAC( crypt, null );
+		} ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void print( String name, long ms )
+	{
+		double mbps = (double)DATA_SIZE * ITERATIONS / (1 << 20) * 1000 / Math.max( 1, ms );
+		log.writeln( String.format( "%s  %7.1f MB/s", name, mbps ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args ) throws Exception
+	{
+		new BenchAEAD();
+	}
+
+}
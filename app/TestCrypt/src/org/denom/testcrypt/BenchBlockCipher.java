@@ -0,0 +1,84 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.*;
+
+import static org.denom.Binary.Bin;
+
+/**
+ * Скорость блочных шифров (ABlockCipher) в режимах ECB, CBC, CFB, OFB, CTR (и cryptCTRParallel), MB/s.
+ * Данные - буфер DATA_SIZE байт, шифруется и расшифровывается ITERATIONS раз потоковыми методами, без выравнивания.
+ */
+public class BenchBlockCipher
+{
+	static final int DATA_SIZE = 1 << 20;
+	static final int ITERATIONS = 20;
+
+	private LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchBlockCipher()
+	{
+		Binary data = Bin().random( DATA_SIZE );
+
+		// Прогрев JIT
+		for( int i = 0; i < 3; ++i )
+		{
+			bench( "", new AES( Bin().random( 16 ) ), data, false );
+			bench( "", new DES( Bin().random( 8 ) ), data, false );
+		}
+
+		bench( "AES-128", new AES( Bin().random( 16 ) ), data, true );
+		bench( "AES-256", new AES( Bin().random( 32 ) ), data, true );
+		bench( "DES", new DES( Bin().random( 8 ) ), data, true );
+		bench( "DES2_EDE", new DES2_EDE( Bin().random( 16 ) ), data, true );
+		bench( "DES3_EDE", new DES3_EDE( Bin().random( 24 ) ), data, true );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void bench( String name, ABlockCipher cipher, Binary data, boolean print )
+	{
+		Binary iv = Bin().random( cipher.getBlockSize() );
+		Binary out = Bin( data.size() );
+
+		for( CryptoMode mode : CryptoMode.values() )
+		{
+			long encMs = Ticker.measureMs( ITERATIONS, () ->
+			{
+				cipher.encryptFirst( Bin(), Bin(), mode, AlignMode.NONE, iv );
+				cipher.encryptNext( data, out );
+			} );
+
+			long decMs = Ticker.measureMs( ITERATIONS, () ->
+			{
+				cipher.decryptFirst( Bin(), Bin(), mode, AlignMode.NONE, iv );
+				cipher.decryptNext( data, out );
+			} );
+
+			if( print )
+				log.writeln( String.format( "%-9s %s  encrypt %7.1f MB/s   decrypt %7.1f MB/s", name, mode, mbps( encMs ), mbps( decMs ) ) );
+		}
+
+		long ctrMs = Ticker.measureMs( ITERATIONS, () -> cipher.cryptCTR( data, iv ) );
+		long ctrParMs = Ticker.measureMs( ITERATIONS, () -> cipher.cryptCTRParallel( data, iv ) );
+		if( print )
+			log.writeln( String.format( "%-9s CTR  crypt   %7.1f MB/s   parallel %7.1f MB/s", name, mbps( ctrMs ), mbps( ctrParMs ) ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static double mbps( long ms )
+	{
+		return (double)DATA_SIZE * ITERATIONS / (1 << 20) * 1000 / Math.max( 1, ms );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchBlockCipher();
+	}
+
+}
@@ -0,0 +1,83 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.*;
+import org.denom.crypt.blockcipher.*;
+
+import static org.denom.Binary.Bin;
+
+/**
+ * Скорость ChaCha20-Poly1305 в сравнении с AES-128 CFB + CCS (шифрование и CBC-MAC - два прохода)
+ * и AES_GCM на одних и тех же размерах данных, MB/s.
+ */
+public class BenchChaCha20Poly1305
+{
+	static final int[] SIZES = { 64, 1024, 16 * 1024, 1 << 20 };
+
+	// Сколько байт обрабатывать на каждом размере
+	static final long TOTAL_BYTES = 32L << 20;
+
+	private LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchChaCha20Poly1305()
+	{
+		ChaCha20Poly1305 chacha = new ChaCha20Poly1305( Bin().random( 32 ).getBytes() );
+		AES aes = new AES( Bin().random( 16 ) );
+		AES_GCM gcm = new AES_GCM( Bin().random( 16 ) );
+		Binary iv = Bin().random( AES.BLOCK_SIZE );
+		Binary nonce = Bin().random( 12 );
+		Binary aad = Bin().random( 8 );
+		byte[] tag = new byte[ ChaCha20Poly1305.TAG_SIZE ];
+
+		// Прогрев JIT
+		for( int size : SIZES )
+			bench( size, chacha, aes, gcm, iv, nonce, aad, tag, false );
+
+		log.writeln( "    Size   ChaCha20-Poly1305   AES CFB+CCS     AES_GCM" );
+		for( int size : SIZES )
+			bench( size, chacha, aes, gcm, iv, nonce, aad, tag, true );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void bench( int size, ChaCha20Poly1305 chacha, AES aes, AES_GCM gcm, Binary iv, Binary nonce, Binary aad, byte[] tag, boolean print )
+	{
+		Binary data = Bin().random( size );
+		byte[] buf = data.getBytes();
+		int iterations = (int)Math.max( 1, (print ? TOTAL_BYTES : TOTAL_BYTES / 8) / size );
+
+		long chachaMs = Ticker.measureMs( iterations, () ->
+			chacha.encrypt( nonce.getDataRef(), 0, aad.getDataRef(), 0, aad.size(), buf, 0, size, buf, 0, tag, 0 ) );
+
+		long aesMs = Ticker.measureMs( iterations, () ->
+		{
+			Binary crypt = aes.encrypt( data, CryptoMode.CFB, AlignMode.BLOCK, iv );
+			aes.calcCCS( crypt, AlignMode.BLOCK, CCSMode.CLASSIC, iv );
+		} );
+
+		long gcmMs = Ticker.measureMs( iterations, () -> gcm.encrypt( data, nonce, aad ) );
+
+		if( print )
+		{
+			log.writeln( String.format( "%8d   %10.1f MB/s   %7.1f MB/s   %6.1f MB/s", size,
+				mbps( size, iterations, chachaMs ), mbps( size, iterations, aesMs ), mbps( size, iterations, gcmMs ) ) );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static double mbps( int size, int iterations, long ms )
+	{
+		return (double)size * iterations / (1 << 20) * 1000 / Math.max( 1, ms );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new BenchChaCha20Poly1305();
+	}
+
+}
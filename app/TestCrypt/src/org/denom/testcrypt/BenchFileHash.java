@@ -0,0 +1,77 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import java.io.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.hash.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.*;
+
+/**
+ * Скорость хеширования файла, MB/s: IHash.calcFileHash (чтение кусками в byte[])
+ * и IHash.calcFileHashMapped (FileChannel.map, без копирования).
+ * Файл создаётся во временной папке, повторные проходы идут из кеша ОС.
+ * Аргумент - размер файла в MB (по умолчанию 256).
+ */
+public class BenchFileHash
+{
+	static final int ITERATIONS = 3;
+
+	private LogConsole log = new LogConsole();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	BenchFileHash( int fileSizeMB ) throws IOException
+	{
+		File file = File.createTempFile( "benchhash", ".bin" );
+		file.deleteOnExit();
+		String fileName = file.getAbsolutePath();
+
+		try
+		{
+			Binary chunk = Bin().random( 1 << 20 );
+			try( FileOutputStream out = new FileOutputStream( file ) )
+			{
+				for( int i = 0; i < fileSizeMB; ++i )
+					out.write( chunk.getDataRef(), 0, chunk.size() );
+			}
+
+			log.writeln( "File " + fileSizeMB + " MB" );
+			log.writeln( "               calcFileHash   calcFileHashMapped" );
+
+			IHash[] algs = { new SHA256(), new SHA512(), new SHA3( 256 ) };
+			for( IHash alg : algs )
+			{
+				// Прогрев JIT и кеша ОС; заодно проверка, что хеши совпадают
+				MUST( alg.calcFileHash( fileName ).equals( alg.calcFileHashMapped( fileName ) ), "Wrong mapped hash: " + alg.name() );
+
+				long readMs = Ticker.measureMs( ITERATIONS, () -> alg.calcFileHash( fileName ) );
+				long mapMs = Ticker.measureMs( ITERATIONS, () -> alg.calcFileHashMapped( fileName ) );
+
+				log.writeln( String.format( "%-12s %8.1f MB/s   %8.1f MB/s", alg.name(),
+					mbps( fileSizeMB, readMs ), mbps( fileSizeMB, mapMs ) ) );
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static double mbps( int fileSizeMB, long ms )
+	{
+		return (double)fileSizeMB * ITERATIONS * 1000 / Math.max( 1, ms );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args ) throws IOException
+	{
+		new BenchFileHash( (args.length > 0) ? Integer.parseInt( args[ 0 ] ) : 256 );
+	}
+
+}
@@ -99,6 +99,7 @@ public class TestAES
 		checkCMAC();
 
 		checkCTR();
+		checkCTRParallel();
 
 		log.writeln( "TestAES - OK" );
 	}
@@ -183,6 +184,25 @@ public class TestAES
 				Bin("44BD326A7CF2529D815B0868") );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * cryptCTRParallel совпадает с cryptCTR, в т.ч. при переполнении счётчика между кусками.
+	 */
+	void checkCTRParallel()
+	{
+		Binary[] SVs = { Bin().random( BLOCK_SIZE ), Bin("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF0"), Bin("00000000000000000000000000FFFFF0") };
+		int[] JBytes = { BLOCK_SIZE, 5 };
+		for( Binary SV : SVs )
+		{
+			for( int J : JBytes )
+			{
+				AES aes = new AES( Bin().random( 16 ) );
+				Binary data = Bin().random( ParallelCrypt.THRESHOLD + rand.nextInt( 3 * ParallelCrypt.CHUNK_SIZE ) );
+				MUST( aes.cryptCTRParallel( data, SV, J ).equals( aes.cryptCTR( data, SV, J ) ), "Wrong parallel CTR" );
+			}
+		}
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	void checkCTR( Binary key, Binary SV, Binary data, Binary crypt )
 	{
@@ -0,0 +1,149 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import java.util.Random;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.MUST;
+
+/**
+ * AES_CCM: тестовые векторы, потоковый режим, неверный тег.
+ */
+public class TestAES_CCM
+{
+	private LogConsole log = new LogConsole();
+
+	static Random rand = new Random( System.nanoTime() );
+
+	// -----------------------------------------------------------------------------------------------------------------
+	TestAES_CCM()
+	{
+		checkVectors();
+		checkFirstNextLast();
+		checkWrongTag();
+
+		log.writeln( "TestAES_CCM - OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	// NIST SP 800-38C, Appendix C - Example Vectors
+	void checkVectors()
+	{
+		Binary K = Bin("404142434445464748494a4b4c4d4e4f");
+
+		// Example 1
+		check( K, 4, Bin("10111213141516"), Bin("0001020304050607"), Bin("20212223"),
+				Bin("7162015b 4dac255d") );
+		// Example 2
+		check( K, 6, Bin("1011121314151617"), Bin("000102030405060708090a0b0c0d0e0f"),
+				Bin("202122232425262728292a2b2c2d2e2f"),
+				Bin("d2a1f0e051ea5f62081a7792073d593d 1fc64fbfaccd") );
+		// Example 3
+		check( K, 8, Bin("101112131415161718191a1b"), Bin("000102030405060708090a0b0c0d0e0f10111213"),
+				Bin("202122232425262728292a2b2c2d2e2f3031323334353637"),
+				Bin("e3b201a9f5b71a7a9b1ceaeccd97e70b6176aad9a4428aa5 484392fbc1b09951") );
+
+		// Example 4 - AAD 65536 bytes: 00 01 .. FF repeated
+		Binary aad = Bin();
+		for( int i = 0; i < 65536; ++i )
+			aad.add( i );
+		Binary data = Bin();
+		for( int i = 0x20; i < 0x40; ++i )
+			data.add( i );
+		check( K, 14, Bin("101112131415161718191a1b1c"), aad, data,
+				Bin("69915dad1e84c6376a68c2967e4dab615ae0fd1faec44cc484828529463ccf72 b4ac6bec93e8598e7f0dadbcea5b") );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void check( Binary key, int tagSize, Binary nonce, Binary aad, Binary data, Binary cryptAndTag )
+	{
+		AES_CCM ccm = new AES_CCM( key, tagSize );
+		MUST( ccm.encrypt( data, nonce, aad ).equals( cryptAndTag ), "Wrong CCM encrypt" );
+		MUST( ccm.decrypt( cryptAndTag, nonce, aad ).equals( data ), "Wrong CCM decrypt" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Потоковый режим с разбиением на куски совпадает с однократным.
+	 */
+	void checkFirstNextLast()
+	{
+		for( int i = 0; i < 100; ++i )
+		{
+			AES_CCM ccm = new AES_CCM( Bin().random( 16 ), 4 + 2 * rand.nextInt( 7 ) );
+			Binary nonce = Bin().random( 7 + rand.nextInt( 7 ) );
+			Binary aad = Bin().random( rand.nextInt( 50 ) );
+			Binary data = Bin().random( 40 * AES.BLOCK_SIZE + rand.nextInt( 100 ) );
+			Binary whole = ccm.encrypt( data, nonce, aad );
+
+			int n1 = rand.nextInt( 20 ) * AES.BLOCK_SIZE;
+			int n2 = rand.nextInt( 20 ) * AES.BLOCK_SIZE;
+
+			Binary c1 = Bin( n1 );
+			Binary c2 = Bin( n2 );
+			Binary c3 = Bin( data.size() - n1 - n2 );
+			Binary tag = Bin();
+			ccm.encryptFirst( data.first( n1 ), c1, nonce, aad, data.size() );
+			ccm.encryptNext( data.slice( n1, n2 ), c2 );
+			ccm.encryptLast( data.slice( n1 + n2, c3.size() ), c3, tag );
+			Binary crypt = Bin().add( c1 ).add( c2 ).add( c3 );
+			MUST( whole.equals( Bin().add( crypt ).add( tag ) ), "Wrong CCM stream encrypt" );
+
+			Binary d1 = Bin( n1 );
+			Binary d2 = Bin( n2 );
+			Binary d3 = Bin( c3.size() );
+			ccm.decryptFirst( c1, d1, nonce, aad, crypt.size() );
+			ccm.decryptNext( c2, d2 );
+			ccm.decryptLast( c3, d3, tag );
+			MUST( data.equals( Bin().add( d1 ).add( d2 ).add( d3 ) ), "Wrong CCM stream decrypt" );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkWrongTag()
+	{
+		AES_CCM ccm = new AES_CCM( Bin().random( 16 ) );
+		Binary nonce = Bin().random( 12 );
+		Binary aad = Bin().random( 20 );
+		Binary crypt = ccm.encrypt( Bin().random( 100 ), nonce, aad );
+
+		for( int i = 0; i < crypt.size(); i += 7 )
+		{
+			Binary bad = crypt.clone();
+			bad.set( i, bad.get( i ) ^ 0x01 );
+			MUST( !decrypts( ccm, bad, nonce, aad ), "CCM: modified cryptogram accepted" );
+		}
+
+		Binary badAad = aad.clone();
+		badAad.set( 0, badAad.get( 0 ) ^ 0x80 );
+		MUST( !decrypts( ccm, crypt, nonce, badAad ), "CCM: modified AAD accepted" );
+		MUST( decrypts( ccm, crypt, nonce, aad ), "CCM: correct cryptogram rejected" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static boolean decrypts( AES_CCM ccm, Binary crypt, Binary nonce, Binary aad )
+	{
+		try
+		{
+			ccm.decrypt( crypt, nonce, aad );
+			return true;
+		}
+		catch( Ex ex )
+		{
+			return false;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new TestAES_CCM();
+	}
+
+}
@@ -0,0 +1,232 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.testcrypt;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.crypt.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.MUST;
+
+/**
+ * AES_GCM: тестовые векторы, потоковый режим, сравнение с JCE, неверный тег.
+ */
+public class TestAES_GCM
+{
+	private LogConsole log = new LogConsole();
+
+	static Random rand = new Random( System.nanoTime() );
+
+	// -----------------------------------------------------------------------------------------------------------------
+	TestAES_GCM()
+	{
+		checkVectors();
+		checkFirstNextLast();
+		checkJce();
+		checkWrongTag();
+		checkParallel();
+
+		log.writeln( "TestAES_GCM - OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	// The Galois/Counter Mode of Operation (GCM), McGrew, Viega - Appendix B, Test Cases (used in NIST SP 800-38D validation)
+	void checkVectors()
+	{
+		Binary K = Bin("feffe9928665731c6d6a8f9467308308");
+		Binary P = Bin("d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+					 + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255");
+		Binary A = Bin("feedfacedeadbeeffeedfacedeadbeefabaddad2");
+
+		// Test Case 1
+		check( Bin( 16 ), Bin( 12 ), Bin(), Bin(), Bin(), Bin("58e2fccefa7e3061367f1d57a4e7455a") );
+		// Test Case 2
+		check( Bin( 16 ), Bin( 12 ), Bin(), Bin( 16 ),
+				Bin("0388dace60b6a392f328c2b971b2fe78"), Bin("ab6e47d42cec13bdf53a67b21257bddf") );
+		// Test Case 3
+		check( K, Bin("cafebabefacedbaddecaf888"), Bin(), P,
+				Bin("42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+				  + "21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091473f5985"),
+				Bin("4d5c2af327cd64a62cf35abd2ba6fab4") );
+		// Test Case 4
+		check( K, Bin("cafebabefacedbaddecaf888"), A, P.first( 60 ),
+				Bin("42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+				  + "21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091"),
+				Bin("5bc94fbc3221a5db94fae95ae7121a47") );
+		// Test Case 5 - IV 8 bytes
+		check( K, Bin("cafebabefacedbad"), A, P.first( 60 ),
+				Bin("61353b4c2806934a777ff51fa22a4755699b2a714fcdc6f83766e5f97b6c7423"
+				  + "73806900e49f24b22b097544d4896b424989b5e1ebac0f07c23f4598"),
+				Bin("3612d2e79e3b0785561be14aaca2fccb") );
+		// Test Case 6 - IV 60 bytes
+		check( K, Bin("9313225df88406e555909c5aff5269aa6a7a9538534f7da1e4c303d2a318a728"
+					+ "c3c0c95156809539fcf0e2429a6b525416aedbf5a0de6a57a637b39b"), A, P.first( 60 ),
+				Bin("8ce24998625615b603a033aca13fb894be9112a5c3a211a8ba262a3cca7e2ca7"
+				  + "01e4a9a4fba43c90ccdcb281d48c7c6fd62875d2aca417034c34aee5"),
+				Bin("619cc5aefffe0bfa462af43c1699d050") );
+		// Test Case 16 - AES-256
+		check( Bin().add( K ).add( K ), Bin("cafebabefacedbaddecaf888"), A, P.first( 60 ),
+				Bin("522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa"
+				  + "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662"),
+				Bin("76fc6ece0f4e1768cddf8853bb2d551b") );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void check( Binary key, Binary iv, Binary aad, Binary data, Binary crypt, Binary tag )
+	{
+		AES_GCM gcm = new AES_GCM( key );
+		Binary res = gcm.encrypt( data, iv, aad );
+		MUST( res.equals( Bin().add( crypt ).add( tag ) ), "Wrong GCM encrypt" );
+		MUST( gcm.decrypt( res, iv, aad ).equals( data ), "Wrong GCM decrypt" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Потоковый режим с разбиением на куски совпадает с однократным.
+	 */
+	void checkFirstNextLast()
+	{
+		for( int i = 0; i < 100; ++i )
+		{
+			AES_GCM gcm = new AES_GCM( Bin().random( 16 ) );
+			Binary iv = Bin().random( 12 );
+			Binary aad = Bin().random( rand.nextInt( 50 ) );
+			Binary data = Bin().random( 40 * AES.BLOCK_SIZE + rand.nextInt( 100 ) );
+			Binary whole = gcm.encrypt( data, iv, aad );
+
+			int n1 = rand.nextInt( 20 ) * AES.BLOCK_SIZE;
+			int n2 = rand.nextInt( 20 ) * AES.BLOCK_SIZE;
+
+			Binary c1 = Bin( n1 );
+			Binary c2 = Bin( n2 );
+			Binary c3 = Bin( data.size() - n1 - n2 );
+			Binary tag = Bin();
+			gcm.encryptFirst( data.first( n1 ), c1, iv, aad );
+			gcm.encryptNext( data.slice( n1, n2 ), c2 );
+			gcm.encryptLast( data.slice( n1 + n2, c3.size() ), c3, tag );
+			Binary crypt = Bin().add( c1 ).add( c2 ).add( c3 );
+			MUST( whole.equals( Bin().add( crypt ).add( tag ) ), "Wrong GCM stream encrypt" );
+
+			Binary d1 = Bin( n1 );
+			Binary d2 = Bin( n2 );
+			Binary d3 = Bin( c3.size() );
+			gcm.decryptFirst( c1, d1, iv, aad );
+			gcm.decryptNext( c2, d2 );
+			gcm.decryptLast( c3, d3, tag );
+			MUST( data.equals( Bin().add( d1 ).add( d2 ).add( d3 ) ), "Wrong GCM stream decrypt" );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Случайные ключи, IV разной длины, размеры тега - сравнение с AES/GCM/NoPadding от JCE.
+	 */
+	void checkJce()
+	{
+		try
+		{
+			int[] keySizes = { 16, 24, 32 };
+			for( int i = 0; i < 300; ++i )
+			{
+				Binary key = Bin().random( keySizes[ i % 3 ] );
+				Binary iv = Bin().random( (i & 1) == 0 ? 12 : 1 + rand.nextInt( 40 ) );
+				Binary aad = Bin().random( rand.nextInt( 70 ) );
+				Binary data = Bin().random( rand.nextInt( 300 ) );
+				int tagSize = 12 + rand.nextInt( 5 );
+
+				Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+				cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( key.getBytes(), "AES" ),
+						new GCMParameterSpec( tagSize * 8, iv.getBytes() ) );
+				cipher.updateAAD( aad.getBytes() );
+				Binary jce = Bin( cipher.doFinal( data.getBytes() ) );
+
+				MUST( new AES_GCM( key, tagSize ).encrypt( data, iv, aad ).equals( jce ), "GCM differs from JCE" );
+			}
+		}
+		catch( Exception ex )
+		{
+			throw new Ex( ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkWrongTag()
+	{
+		AES_GCM gcm = new AES_GCM( Bin().random( 16 ) );
+		Binary iv = Bin().random( 12 );
+		Binary aad = Bin().random( 20 );
+		Binary crypt = gcm.encrypt( Bin().random( 100 ), iv, aad );
+
+		for( int i = 0; i < crypt.size(); i += 7 )
+		{
+			Binary bad = crypt.clone();
+			bad.set( i, bad.get( i ) ^ 0x01 );
+			MUST( !decrypts( gcm, bad, iv, aad ), "GCM: modified cryptogram accepted" );
+		}
+
+		Binary badAad = aad.clone();
+		badAad.set( 0, badAad.get( 0 ) ^ 0x80 );
+		MUST( !decrypts( gcm, crypt, iv, badAad ), "GCM: modified AAD accepted" );
+		MUST( decrypts( gcm, crypt, iv, aad ), "GCM: correct cryptogram rejected" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * encryptParallel и decryptParallel совпадают с encrypt и decrypt.
+	 */
+	void checkParallel()
+	{
+		for( int i = 0; i < 6; ++i )
+		{
+			AES_GCM gcm = new AES_GCM( Bin().random( 16 + 8 * (i % 3) ) );
+			Binary iv = Bin().random( (i & 1) == 0 ? 12 : 16 );
+			Binary aad = Bin().random( rand.nextInt( 40 ) );
+			Binary data = Bin().random( ParallelCrypt.THRESHOLD + rand.nextInt( 3 * ParallelCrypt.CHUNK_SIZE ) );
+
+			Binary crypt = gcm.encryptParallel( data, iv, aad );
+			MUST( crypt.equals( gcm.encrypt( data, iv, aad ) ), "Wrong GCM parallel encrypt" );
+			MUST( gcm.decryptParallel( crypt, iv, aad ).equals( data ), "Wrong GCM parallel decrypt" );
+
+			int k = rand.nextInt( crypt.size() );
+			crypt.set( k, crypt.get( k ) ^ 0x01 );
+			try
+			{
+				gcm.decryptParallel( crypt, iv, aad );
+				MUST( false, "GCM parallel: modified cryptogram accepted" );
+			}
+			catch( Ex ex )
+			{
+				MUST( ex.getMessage().contains( "wrong tag" ), ex.getMessage() );
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static boolean decrypts( AES_GCM gcm, Binary crypt, Binary iv, Binary aad )
+	{
+		try
+		{
+			gcm.decrypt( crypt, iv, aad );
+			return true;
+		}
+		catch( Ex ex )
+		{
+			return false;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new TestAES_GCM();
+	}
+
+}
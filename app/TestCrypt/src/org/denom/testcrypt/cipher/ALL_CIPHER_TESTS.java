@@ -26,6 +26,8 @@ public class ALL_CIPHER_TESTS
 		new TestSalsa20();
 		new TestXSalsa20();
 		new TestChaCha();
+		new TestPoly1305();
+		new TestChaCha20Poly1305();
 		new TestHC();
 		new TestISAAC();
 		new TestShacal2();
@@ -0,0 +1,138 @@
+package org.denom.testcrypt.cipher;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.denom.*;
+import org.denom.crypt.blockcipher.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.*;
+
+/**
+ * ChaCha20 (ChaCha7539) with block counter - RFC 8439 test vector; ChaCha20-Poly1305 AEAD - tampering,
+ * comparison with JCE (if the provider has ChaCha20-Poly1305). AEAD test vectors - in TestPoly1305.
+ */
+public class TestChaCha20Poly1305
+{
+	static Random rand = new Random( System.nanoTime() );
+
+	public TestChaCha20Poly1305()
+	{
+		checkChaCha20();
+		checkTamper();
+		checkJce();
+		System.out.println( "TestChaCha20Poly1305 - OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	// RFC 8439, 2.4.2. Test Vector for the ChaCha20 Cipher. Counter = 1.
+	// Data is processed in parts of different sizes - partial and whole key stream blocks.
+	void checkChaCha20()
+	{
+		Binary key = Bin("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+		Binary nonce = Bin("000000000000004a00000000");
+		Binary crypt = Bin("6e2e359a2568f98041ba0728dd0d6981e97e7aec1d4360c20a27afccfd9fae0b"
+			+ "f91b65c5524733ab8f593dabcd62b3571639d624e65152ab8f530c359f0861d8"
+			+ "07ca0dbf500d6a6156a38e088a22b65e52bc514d16ccf806818ce91ab7793736"
+			+ "5af90bbf74a35be6b40b8eedf2785e42874d");
+
+		int[] parts = { 1, 7, 63, 64, 65, 200 };
+		for( int part : parts )
+		{
+			ChaCha7539 chacha = new ChaCha7539();
+			chacha.init( true, new ParametersWithIV( new KeyParameter( key ), nonce.getBytes() ) );
+			chacha.skip( 64 );
+
+			byte[] out = new byte[ TestPoly1305.SUNSCREEN.length ];
+			for( int off = 0; off < TestPoly1305.SUNSCREEN.length; off += part )
+				chacha.processBytes( TestPoly1305.SUNSCREEN, off, Math.min( part, TestPoly1305.SUNSCREEN.length - off ), out, off );
+			MUST( crypt.equals( out ), "Wrong ChaCha20, part " + part );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void checkTamper()
+	{
+		ChaCha20Poly1305 aead = new ChaCha20Poly1305( Bin().random( 32 ).getBytes() );
+		byte[] nonce = Bin().random( 12 ).getBytes();
+		byte[] aad = Bin().random( 20 ).getBytes();
+		byte[] data = Bin().random( 150 ).getBytes();
+		byte[] crypt = new byte[ data.length ];
+		byte[] tag = new byte[ ChaCha20Poly1305.TAG_SIZE ];
+		aead.encrypt( nonce, 0, aad, 0, aad.length, data, 0, data.length, crypt, 0, tag, 0 );
+
+		byte[] out = new byte[ data.length ];
+		for( int i = 0; i < crypt.length; i += 5 )
+		{
+			crypt[ i ] ^= 1;
+			MUST( !aead.decrypt( nonce, 0, aad, 0, aad.length, crypt, 0, crypt.length, out, 0, tag, 0 ), "Modified cryptogram accepted" );
+			crypt[ i ] ^= 1;
+		}
+
+		aad[ 0 ] ^= 0x80;
+		MUST( !aead.decrypt( nonce, 0, aad, 0, aad.length, crypt, 0, crypt.length, out, 0, tag, 0 ), "Modified AAD accepted" );
+		aad[ 0 ] ^= 0x80;
+
+		tag[ 15 ] ^= 1;
+		MUST( !aead.decrypt( nonce, 0, aad, 0, aad.length, crypt, 0, crypt.length, out, 0, tag, 0 ), "Modified tag accepted" );
+		tag[ 15 ] ^= 1;
+
+		MUST( aead.decrypt( nonce, 0, aad, 0, aad.length, crypt, 0, crypt.length, out, 0, tag, 0 ), "Correct cryptogram rejected" );
+		MUST( Bin( out ).equals( data ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Random sizes against JCE ChaCha20-Poly1305 (Java 11+). Skipped if the provider has no such cipher.
+	 */
+	void checkJce()
+	{
+		Cipher jce;
+		try
+		{
+			jce = Cipher.getInstance( "ChaCha20-Poly1305" );
+		}
+		catch( Exception ex )
+		{
+			System.out.println( "JCE ChaCha20-Poly1305 not available, skipped" );
+			return;
+		}
+
+		try
+		{
+			for( int i = 0; i < 300; ++i )
+			{
+				byte[] key = Bin().random( 32 ).getBytes();
+				byte[] nonce = Bin().random( 12 ).getBytes();
+				byte[] aad = Bin().random( rand.nextInt( 70 ) ).getBytes();
+				byte[] data = Bin().random( rand.nextInt( 1000 ) ).getBytes();
+
+				jce.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( key, "ChaCha20" ), new IvParameterSpec( nonce ) );
+				jce.updateAAD( aad );
+				Binary expected = Bin( jce.doFinal( data ) );
+
+				byte[] out = new byte[ data.length + ChaCha20Poly1305.TAG_SIZE ];
+				new ChaCha20Poly1305( key ).encrypt( nonce, 0, aad, 0, aad.length, data, 0, data.length, out, 0, out, data.length );
+				MUST( expected.equals( out ), "ChaCha20-Poly1305 differs from JCE" );
+			}
+		}
+		catch( Ex ex )
+		{
+			throw ex;
+		}
+		catch( Exception ex )
+		{
+			throw new Ex( ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new TestChaCha20Poly1305();
+	}
+}
@@ -0,0 +1,84 @@
+package org.denom.testcrypt.cipher;
+
+import org.denom.*;
+import org.denom.crypt.blockcipher.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.*;
+
+/**
+ * Poly1305 and ChaCha20-Poly1305 AEAD - RFC 8439 test vectors, in-place processing.
+ */
+public class TestPoly1305
+{
+	static final byte[] SUNSCREEN = ("Ladies and Gentlemen of the class of '99: If I could offer you only one tip "
+		+ "for the future, sunscreen would be it.").getBytes();
+
+	public TestPoly1305()
+	{
+		checkPoly1305();
+		checkAEAD();
+		System.out.println( "TestPoly1305 - OK" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	// RFC 8439, 2.5.2. Poly1305 Test Vector
+	void checkPoly1305()
+	{
+		Poly1305 poly = new Poly1305( Bin("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b").getBytes() );
+		byte[] msg = "Cryptographic Forum Research Group".getBytes();
+		byte[] tag = new byte[ Poly1305.TAG_SIZE ];
+
+		poly.update( msg, 0, msg.length );
+		poly.doFinal( tag, 0 );
+		MUST( Bin( tag ).equals( "a8061dc1305136c6c22b8baf0c0127a9" ), "Wrong Poly1305" );
+
+		// By bytes
+		for( byte b : msg )
+			poly.update( b );
+		poly.doFinal( tag, 0 );
+		MUST( Bin( tag ).equals( "a8061dc1305136c6c22b8baf0c0127a9" ), "Wrong Poly1305" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	// RFC 8439, 2.8.2. Example and Test Vector for AEAD_CHACHA20_POLY1305
+	void checkAEAD()
+	{
+		Binary key = Bin("808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+		Binary nonce = Bin("070000004041424344454647");
+		Binary aad = Bin("50515253c0c1c2c3c4c5c6c7");
+		Binary crypt = Bin("d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d6"
+			+ "3dbea45e8ca9671282fafb69da92728b1a71de0a9e060b2905d6a5b67ecd3b36"
+			+ "92ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7bc"
+			+ "3ff4def08e4b7a9de576d26586cec64b6116");
+		Binary tag = Bin("1ae10b594f09e26a7e902ecbd0600691");
+
+		ChaCha20Poly1305 aead = new ChaCha20Poly1305( key.getBytes() );
+		int len = SUNSCREEN.length;
+
+		byte[] out = new byte[ len ];
+		byte[] outTag = new byte[ ChaCha20Poly1305.TAG_SIZE ];
+		aead.encrypt( nonce.getDataRef(), 0, aad.getDataRef(), 0, aad.size(), SUNSCREEN, 0, len, out, 0, outTag, 0 );
+		MUST( crypt.equals( out ) && tag.equals( outTag ), "Wrong ChaCha20-Poly1305 encrypt" );
+
+		byte[] plain = new byte[ len ];
+		MUST( aead.decrypt( nonce.getDataRef(), 0, aad.getDataRef(), 0, aad.size(), out, 0, len, plain, 0, outTag, 0 ),
+			"Wrong ChaCha20-Poly1305 tag" );
+		MUST( Bin( plain ).equals( SUNSCREEN ), "Wrong ChaCha20-Poly1305 decrypt" );
+
+		// In-place, data at offset in a larger buffer
+		byte[] buf = new byte[ len + 10 ];
+		System.arraycopy( SUNSCREEN, 0, buf, 3, len );
+		aead.encrypt( nonce.getDataRef(), 0, aad.getDataRef(), 0, aad.size(), buf, 3, len, buf, 3, outTag, 0 );
+		MUST( crypt.equals( Bin( buf ).slice( 3, len ) ) && tag.equals( outTag ), "Wrong in-place encrypt" );
+		MUST( aead.decrypt( nonce.getDataRef(), 0, aad.getDataRef(), 0, aad.size(), buf, 3, len, buf, 3, outTag, 0 ),
+			"Wrong in-place tag" );
+		MUST( Bin( buf ).slice( 3, len ).equals( SUNSCREEN ), "Wrong in-place decrypt" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static void main( String[] args )
+	{
+		new TestPoly1305();
+	}
+}
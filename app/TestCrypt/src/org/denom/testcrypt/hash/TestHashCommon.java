@@ -3,6 +3,9 @@
 
 package org.denom.testcrypt.hash;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.*;
 
 import org.denom.crypt.hash.IHash;
@@ -94,6 +97,81 @@ class TestHashCommon
 		log.writeln( "OK" );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IHash.process( ByteBuffer ) - heap и direct буферы, с ненулевой позицией, с порядком байт LITTLE_ENDIAN,
+	 * вперемешку с process( Binary ) - даёт тот же результат, что и IHash.calc.
+	 * calcFileHashMapped и calcFileHash для файла совпадают с calc от его содержимого.
+	 */
+	static void checkByteBuffer( IHash hashAlg, ILog log )
+	{
+		log.write( "ByteBuffer check '" + hashAlg.name() + "'... " );
+
+		for( int i = 0; i < 100; ++i )
+		{
+			Binary data = Bin().random( i * 37 );
+			Binary expected = hashAlg.calc( data );
+			int split = data.size() / 3 + i % 5;
+			split = Math.min( split, data.size() );
+
+			// heap, данные со смещением в массиве
+			ByteBuffer heap = ByteBuffer.allocate( data.size() + 10 ).order( ByteOrder.LITTLE_ENDIAN );
+			heap.position( 7 );
+			heap.put( data.getDataRef(), 0, data.size() );
+			heap.position( 7 ).limit( 7 + data.size() );
+			hashAlg.reset();
+			hashAlg.process( heap );
+			MUST( heap.remaining() == 0, "process( ByteBuffer ) must move position to limit" );
+			MUST( hashAlg.getHash().equals( expected ), "Heap ByteBuffer hash failed: " + hashAlg.name() );
+
+			// direct, по частям вперемешку с Binary
+			ByteBuffer direct = ByteBuffer.allocateDirect( data.size() );
+			direct.put( data.getDataRef(), 0, data.size() );
+			direct.flip();
+			hashAlg.reset();
+			direct.limit( split );
+			hashAlg.process( direct );
+			hashAlg.process( data.slice( split, data.size() - split ) );
+			MUST( direct.position() == split, "process( ByteBuffer ) must move position to limit" );
+			MUST( hashAlg.getHash().equals( expected ), "Direct ByteBuffer hash failed: " + hashAlg.name() );
+
+			hashAlg.reset();
+			hashAlg.process( data.slice( 0, split ) );
+			direct.limit( data.size() );
+			direct.position( split );
+			hashAlg.process( direct );
+			MUST( hashAlg.getHash().equals( expected ), "Direct ByteBuffer hash failed: " + hashAlg.name() );
+		}
+
+		File file = null;
+		try
+		{
+			file = File.createTempFile( "hash", ".bin" );
+			String fileName = file.getAbsolutePath();
+
+			Binary data = Bin();
+			data.saveToFile( fileName );
+			MUST( hashAlg.calcFileHashMapped( fileName ).equals( hashAlg.calc( data ) ), "Mapped file hash failed: " + hashAlg.name() );
+
+			data = Bin().random( 300 * 1024 + 17 );
+			data.saveToFile( fileName );
+			Binary expected = hashAlg.calc( data );
+			MUST( hashAlg.calcFileHash( fileName ).equals( expected ), "File hash failed: " + hashAlg.name() );
+			MUST( hashAlg.calcFileHashMapped( fileName ).equals( expected ), "Mapped file hash failed: " + hashAlg.name() );
+		}
+		catch( java.io.IOException ex )
+		{
+			THROW( ex.toString() );
+		}
+		finally
+		{
+			if( file != null )
+				file.delete();
+		}
+
+		log.writeln( "OK" );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	// Сравнение скорости вычисления хеша
 	static void compareSpeed( IHash hashAlg, String algName, ILog log )
@@ -53,6 +53,7 @@ class TestHashes
 		checkMsgHash( alg, "The quick brown fox jumps over the lazy dog.", "e4d909c290d0fb1ca068ffaddf22cbd0" );
 		crossCheckStd( alg, "MD5", log );
 		checkStream( alg, "MD5", log );
+		checkByteBuffer( alg, log );
 		compareSpeed( alg, "MD5", log );
 		log.writeln( "" );
 	}
@@ -121,6 +122,7 @@ class TestHashes
 
 		crossCheckStd( alg, "SHA-256", log );
 		checkStream( alg, "SHA-256", log );
+		checkByteBuffer( alg, log );
 		compareSpeed( alg, "SHA-256", log );
 		log.writeln( "" );
 	}
@@ -138,6 +140,7 @@ class TestHashes
 		check1millionA( alg, "9d0e1809716474cb086e834e310a4a1ced149e9c00f248527972cec5704c2a5b07b8b3dc38ecc4ebae97ddd87f3d8985" );
 		crossCheckStd( alg, "SHA-384", log );
 		checkStream( alg, "SHA-384", log );
+		checkByteBuffer( alg, log );
 		log.writeln( "" );
 	}
 
@@ -154,6 +157,7 @@ class TestHashes
 		check1millionA( hash, "e718483d0ce769644e2e42c7bc15b4638e1f98b13b2044285632a803afa973ebde0ff244877ea60a4cb0432ce577c31beb009c5c2c49aa2e4eadb217ad8cc09b" );
 		crossCheckStd( hash, "SHA-512", log );
 		checkStream( hash, "SHA-512", log );
+		checkByteBuffer( hash, log );
 		compareSpeed( hash, "SHA-512", log );
 		log.writeln( "" );
 	}
@@ -248,6 +252,7 @@ class TestHashes
 		checkHash( alg, data, "79f38adec5c20307a98ef76e8324afbfd46cfd81b22e3973c65fa1bd9de31787" );
 		checkMsgHash( alg, "The quick brown fox jumps over the lazy dog", "69070dda01975c8c120c3aada1b282394e7f032fa9cf32f4cb2259a0897dfc04" );
 		checkMsgHash( alg, "The quick brown fox jumps over the lazy dog.", "a80f839cd4f83f6c3dafc87feae470045e4eb0d366397d5c6ce34ba1739f734d" );
+		checkByteBuffer( alg, log );
 
 		alg = new SHA3( 384 );
 		checkHash( alg, "", "0c63a75b845e4f7d01107d852e4c2485c51a50aaaa94fc61995e71bbee983a2ac3713831264adb47fb6bd1e058d5f004" );
@@ -260,6 +265,7 @@ class TestHashes
 		checkHash( alg, data, "e76dfad22084a8b1467fcf2ffa58361bec7628edf5f3fdc0e4805dc48caeeca81b7c13c30adf52a3659584739a2df46be589c51ca1a4a8416df6545a1ce8ba00" );
 		checkMsgHash( alg, "The quick brown fox jumps over the lazy dog", "01dedd5de4ef14642445ba5f5b97c15e47b9ad931326e4b0727cd94cefc44fff23f07bf543139939b49128caf436dc1bdee54fcb24023a08d9403f9b4bf0d450" );
 		checkMsgHash( alg, "The quick brown fox jumps over the lazy dog.", "18f4f4bd419603f95538837003d9d254c26c23765565162247483f65c50303597bc9ce4d289f21d1c2f1f458828e33dc442100331b35e7eb031b5d38ba6460f8" );
+		checkByteBuffer( alg, log );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -296,6 +302,7 @@ class TestHashes
 		checkHash( alg, data0, "df1fda9ce83191390537358031db2ecaa6aa54cd0eda241dc107105e13636b95" );
 		checkHash( alg, data1, "9d151eefd8590b89daa6ba6cb74af9275dd051026bb149a452fd84e5e57b5500" );
 		checkHash( alg, data2, "9dd2fe4e90409e5da87f53976d7405b0c0cac628fc669a741d50063c557e8f50" );
+		checkByteBuffer( alg, log );
 
 		alg = new GOST3411_2012_512();
 		checkHash( alg, "", "8e945da209aa869f0455928529bcae4679e9873ab707b55315f56ceb98bef0a7362f715528356ee83cda5f2aac4c6ad2ba3a715c1bcd81cb8e9f90bf4c1c1a8a" );
@@ -0,0 +1,362 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Справедливое распределение общего Executor-а между источниками задач (например, сессиями).
+ * У каждого источника - своя очередь (Lane). Задачи из очередей передаются в общий Executor
+ * по алгоритму Deficit Round Robin: за один обход очередь получает quantum * weight единиц стоимости
+ * и передаёт задачи, пока их стоимость укладывается в накопленный остаток.
+ * Если стоимость задачи не указана, она равна quantum - получается Weighted Round Robin по количеству задач.
+ *
+ * В общем Executor-е одновременно не более parallelism задач, остальные ждут в своих очередях.
+ * Поэтому источник, отправивший много задач, не задерживает задачи других источников дольше одного обхода.
+ *
+ * Задачи одной очереди начинают выполняться в порядке поступления, одновременно - не более maxConcurrency
+ * (при maxConcurrency == 1 - строго по очереди).
+ * Собственных потоков не имеет. Потокобезопасен.
+ */
+public class FairExecutor
+{
+	private final Executor executor;
+	private final int parallelism;
+	private final int quantum;
+
+	// Очереди, в которых есть задачи, готовые к запуску. Голова - очередь, которая сейчас передаёт задачи.
+	private final ArrayDeque<Lane> active = new ArrayDeque<>();
+
+	// Задач передано в общий Executor и ещё не завершено
+	private int inFlight = 0;
+	// Задач во всех очередях
+	private int queued = 0;
+
+	// =================================================================================================================
+	private static final class Task
+	{
+		final Runnable runnable;
+		final int cost;
+
+		Task( Runnable runnable, int cost )
+		{
+			this.runnable = runnable;
+			this.cost = cost;
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Задача, переданная в общий Executor.
+	 */
+	private final class Job implements Runnable
+	{
+		final Lane lane;
+		final Runnable task;
+
+		Job( Lane lane, Runnable task )
+		{
+			this.lane = lane;
+			this.task = task;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				onDone( lane );
+			}
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Очередь задач одного источника.
+	 */
+	public final class Lane implements Executor
+	{
+		private final int weight;
+		private final int maxConcurrency;
+
+		private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		private int running = 0;
+		private long deficit = 0;
+		// Очередь в списке active
+		private boolean isActive = false;
+		// В текущем обходе очередь уже получила свой quantum
+		private boolean granted = false;
+		private boolean closed = false;
+
+		// -------------------------------------------------------------------------------------------------------------
+		private Lane( int weight, int maxConcurrency )
+		{
+			this.weight = weight;
+			this.maxConcurrency = maxConcurrency;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Задача стоимостью quantum.
+		 */
+		@Override
+		public void execute( Runnable task )
+		{
+			execute( task, quantum );
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * @param cost - стоимость задачи в тех же единицах, что и quantum, например, размер данных в байтах.
+		 */
+		public void execute( Runnable task, int cost )
+		{
+			MUST( task != null, "Null task" );
+			List<Job> toRun;
+			synchronized( FairExecutor.this )
+			{
+				if( closed )
+					throw new RejectedExecutionException( "Lane closed" );
+
+				tasks.addLast( new Task( task, Math.max( cost, 1 ) ) );
+				++queued;
+				activate( this );
+				toRun = pump();
+			}
+			submit( toRun );
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Сколько задач ждут в очереди.
+		 */
+		public int getQueueSize()
+		{
+			synchronized( FairExecutor.this )
+			{
+				return tasks.size();
+			}
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Сколько задач очереди выполняется сейчас.
+		 */
+		public int getRunning()
+		{
+			synchronized( FairExecutor.this )
+			{
+				return running;
+			}
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * В очереди нет ни ожидающих, ни выполняемых задач.
+		 */
+		public boolean isIdle()
+		{
+			synchronized( FairExecutor.this )
+			{
+				return tasks.isEmpty() && (running == 0);
+			}
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Отбросить задачи, ожидающие в очереди, и больше не принимать новые. Выполняемые задачи завершатся.
+		 */
+		public void close()
+		{
+			synchronized( FairExecutor.this )
+			{
+				closed = true;
+				queued -= tasks.size();
+				tasks.clear();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param executor - общий Executor, в котором выполняются задачи.
+	 * @param parallelism - сколько задач может быть в общем Executor-е одновременно; обычно - число его потоков.
+	 * @param quantum - сколько единиц стоимости получает очередь с весом 1 за один обход.
+	 */
+	public FairExecutor( Executor executor, int parallelism, int quantum )
+	{
+		MUST( (executor != null) && (parallelism > 0) && (quantum > 0), "Wrong FairExecutor params" );
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.quantum = quantum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param weight - доля очереди относительно других, >= 1.
+	 * @param maxConcurrency - сколько задач очереди может выполняться одновременно, 1 - строго по порядку.
+	 */
+	public Lane newLane( int weight, int maxConcurrency )
+	{
+		MUST( (weight > 0) && (maxConcurrency > 0), "Wrong Lane params" );
+		return new Lane( weight, maxConcurrency );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Очередь с весом 1, задачи - строго по порядку.
+	 */
+	public Lane newLane()
+	{
+		return newLane( 1, 1 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько задач ждут во всех очередях.
+	 */
+	public synchronized int getQueueSize()
+	{
+		return queued;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько очередей ждут своей очереди на выполнение задач.
+	 */
+	public synchronized int getActiveLanes()
+	{
+		return active.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Нет задач ни в очередях, ни в общем Executor-е.
+	 */
+	public synchronized boolean isIdle()
+	{
+		return (queued == 0) && (inFlight == 0);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Под блокировкой. Поставить очередь в конец обхода, если в ней есть задачи, которые можно запустить.
+	 */
+	private void activate( Lane lane )
+	{
+		if( !lane.isActive && !lane.tasks.isEmpty() && (lane.running < lane.maxConcurrency) )
+		{
+			lane.isActive = true;
+			lane.granted = false;
+			active.addLast( lane );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Под блокировкой. Выбрать задачи для запуска, пока в общем Executor-е есть место.
+	 */
+	private List<Job> pump()
+	{
+		List<Job> toRun = null;
+
+		while( (inFlight < parallelism) && !active.isEmpty() )
+		{
+			Lane lane = active.peekFirst();
+			if( !lane.granted )
+			{
+				lane.deficit += (long)quantum * lane.weight;
+				lane.granted = true;
+			}
+
+			Task task = lane.tasks.peekFirst();
+			if( (task != null) && (task.cost <= lane.deficit) && (lane.running < lane.maxConcurrency) )
+			{
+				lane.tasks.pollFirst();
+				--queued;
+				lane.deficit -= task.cost;
+				++lane.running;
+				++inFlight;
+				if( toRun == null )
+					toRun = new ArrayList<>();
+				toRun.add( new Job( lane, task.runnable ) );
+				continue;
+			}
+
+			// Очередь исчерпала свой quantum, опустела или упёрлась в maxConcurrency - переходим к следующей.
+			active.pollFirst();
+			lane.isActive = false;
+			lane.granted = false;
+			if( (task == null) || (lane.running >= lane.maxConcurrency) )
+			{
+				// Остаток переносится на следующий обход, только если задача дороже остатка.
+				// Иначе пустая или занятая очередь накопила бы больше других.
+				lane.deficit = 0;
+			}
+
+			if( !lane.tasks.isEmpty() && (lane.running < lane.maxConcurrency) )
+			{
+				lane.isActive = true;
+				active.addLast( lane );
+			}
+			// Иначе очередь вернётся в обход с новой задачей или когда завершится одна из её задач.
+		}
+
+		return toRun;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void onDone( Lane lane )
+	{
+		List<Job> toRun;
+		synchronized( this )
+		{
+			--lane.running;
+			--inFlight;
+			activate( lane );
+			toRun = pump();
+		}
+		submit( toRun );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вне блокировки - общий Executor может выполнить задачу в вызывающем потоке.
+	 */
+	private void submit( List<Job> toRun )
+	{
+		if( toRun == null )
+			return;
+
+		for( int i = 0; i < toRun.size(); ++i )
+		{
+			try
+			{
+				executor.execute( toRun.get( i ) );
+			}
+			catch( RejectedExecutionException ex )
+			{
+				// Общий Executor остановлен - задача не выполнится, освобождаем её место.
+				synchronized( this )
+				{
+					for( int j = i; j < toRun.size(); ++j )
+					{
+						--toRun.get( j ).lane.running;
+						--inFlight;
+					}
+				}
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.*;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Потокобезопасная хеш-таблица с ключами типа long - без упаковки ключей в Long.
+ * Чтение (get) выполняется без блокировок, изменения - под монитором таблицы.
+ * Предназначена для реестров, в которых чтений намного больше, чем изменений,
+ * например, handle -> сессия в Relay-е.
+ * Открытая адресация, линейное пробирование. Ключ 0 не допускается - означает пустую ячейку.
+ */
+public class LongConcurrentMap<V>
+{
+	private final static class Table
+	{
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Table( int capacity )
+		{
+			keys = new AtomicLongArray( capacity );
+			values = new AtomicReferenceArray<>( capacity );
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table;
+
+	/**
+	 * Количество занятых ячеек, включая удалённые (ключ записан, значение null).
+	 * Изменяется под монитором.
+	 */
+	private int usedSlots = 0;
+	private volatile int size = 0;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public LongConcurrentMap()
+	{
+		this( 16 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param initialCapacity - ожидаемое количество элементов.
+	 */
+	public LongConcurrentMap( int initialCapacity )
+	{
+		table = new Table( capacityFor( initialCapacity ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int capacityFor( int numElements )
+	{
+		int cap = 16;
+		while( cap < numElements * 2 )
+			cap <<= 1;
+		return cap;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int hash( long key )
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Без блокировок.
+	 * @return null, если ключа нет.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get( long key )
+	{
+		Table t = table;
+		for( int i = hash( key ) & t.mask; ; i = (i + 1) & t.mask )
+		{
+			long k = t.keys.get( i );
+			if( k == key )
+				return (V)t.values.get( i );
+			if( k == 0 )
+				return null;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public synchronized V put( long key, V value )
+	{
+		return putImpl( key, value, false );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return текущее значение, если ключ уже есть, иначе null.
+	 */
+	public V putIfAbsent( long key, V value )
+	{
+		V cur = get( key );
+		if( cur != null )
+			return cur;
+
+		synchronized( this )
+		{
+			return putImpl( key, value, true );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	private V putImpl( long key, V value, boolean onlyIfAbsent )
+	{
+		MUST( (key != 0) && (value != null), "LongConcurrentMap: zero key or null value" );
+
+		Table t = table;
+		int i = hash( key ) & t.mask;
+		while( true )
+		{
+			long k = t.keys.get( i );
+			if( k == key )
+			{
+				Object old = t.values.get( i );
+				if( (old == null) || !onlyIfAbsent )
+				{
+					t.values.set( i, value );
+					if( old == null )
+						size = size + 1;
+				}
+				return (V)old;
+			}
+			if( k == 0 )
+				break;
+			i = (i + 1) & t.mask;
+		}
+
+		// Ключ записывается раньше значения - читатель, увидевший ключ без значения, считает, что ключа нет.
+		t.keys.set( i, key );
+		t.values.set( i, value );
+		++usedSlots;
+		size = size + 1;
+
+		if( usedSlots * 2 > t.mask + 1 )
+			rehash();
+
+		return null;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return удалённое значение или null.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove( long key )
+	{
+		Table t = table;
+		for( int i = hash( key ) & t.mask; ; i = (i + 1) & t.mask )
+		{
+			long k = t.keys.get( i );
+			if( k == key )
+			{
+				// Ячейка остаётся занятой ключом, чтобы не разрывать цепочки пробирования.
+				Object old = t.values.getAndSet( i, null );
+				if( old != null )
+					size = size - 1;
+				return (V)old;
+			}
+			if( k == 0 )
+				return null;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Удалить, только если ключу соответствует именно это значение.
+	 */
+	public synchronized boolean remove( long key, V value )
+	{
+		if( get( key ) != value )
+			return false;
+		remove( key );
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Новая таблица строится из живых элементов и публикуется одной записью volatile-ссылки.
+	 * Старая таблица после этого не изменяется, читатели, успевшие её взять, видят согласованное состояние.
+	 */
+	private void rehash()
+	{
+		Table old = table;
+		Table t = new Table( capacityFor( Math.max( size * 2, 8 ) ) );
+		int used = 0;
+		for( int j = 0; j <= old.mask; ++j )
+		{
+			Object v = old.values.get( j );
+			if( v == null )
+				continue;
+
+			long key = old.keys.get( j );
+			int i = hash( key ) & t.mask;
+			while( t.keys.get( i ) != 0 )
+				i = (i + 1) & t.mask;
+			t.keys.set( i, key );
+			t.values.set( i, v );
+			++used;
+		}
+		usedSlots = used;
+		table = t;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public synchronized void clear()
+	{
+		table = new Table( 16 );
+		usedSlots = 0;
+		size = 0;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int size()
+	{
+		return size;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Добавить в коллекцию все значения. Без блокировок, слабо согласованный снимок.
+	 */
+	@SuppressWarnings("unchecked")
+	public void collectValues( Collection<? super V> out )
+	{
+		Table t = table;
+		for( int i = 0; i <= t.mask; ++i )
+		{
+			Object v = t.values.get( i );
+			if( v != null )
+				out.add( (V)v );
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Создание пулов рабочих потоков для серверов и клиентов.
+ * Режимы:
+ *   MODE_FIXED   - фиксированное число потоков; блокирующиеся обработчики ограничивают параллельность.
+ *   MODE_VIRTUAL - поток на задачу. На Java 21+ - виртуальные потоки,
+ *                  на более старых JVM и Android - эластичный пул платформенных потоков, ограниченный по количеству
+ *                  потоков и по длине очереди.
+ */
+public final class WorkerExecutors
+{
+	public final static String MODE_FIXED = "Fixed";
+	public final static String MODE_VIRTUAL = "Virtual";
+
+	/**
+	 * Ограничения пула платформенных потоков, заменяющего виртуальные на старых JVM.
+	 */
+	public final static int DEFAULT_MAX_PLATFORM_THREADS = 256;
+	public final static int DEFAULT_MAX_QUEUED_TASKS = 10_000;
+
+	private static final Method newVirtualThreadPerTaskExecutor = findVirtualFactory();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private WorkerExecutors() {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static Method findVirtualFactory()
+	{
+		try
+		{
+			return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+		}
+		catch( Throwable ex )
+		{
+			return null;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @return true, если JVM поддерживает виртуальные потоки.
+	 */
+	public static boolean isVirtualThreadsSupported()
+	{
+		return newVirtualThreadPerTaskExecutor != null;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param mode - MODE_FIXED или MODE_VIRTUAL, регистр не важен.
+	 * @param numThreads - количество потоков для MODE_FIXED.
+	 * @param threadsName - префикс имён потоков.
+	 */
+	public static ExecutorService create( String mode, int numThreads, String threadsName )
+	{
+		if( MODE_FIXED.equalsIgnoreCase( mode ) )
+			return newFixed( numThreads, threadsName );
+
+		MUST( MODE_VIRTUAL.equalsIgnoreCase( mode ), "Wrong worker executor mode: " + mode );
+		return newVirtual( threadsName );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public static ExecutorService newFixed( int numThreads, String threadsName )
+	{
+		MUST( numThreads > 0, "Wrong number of worker threads" );
+		return Executors.newFixedThreadPool( numThreads,
+				new ThreadFactoryNamed( threadsName, Thread.NORM_PRIORITY, 0, false ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Поток на задачу: виртуальный, если JVM поддерживает, иначе - из эластичного пула
+	 * не более чем DEFAULT_MAX_PLATFORM_THREADS потоков.
+	 */
+	public static ExecutorService newVirtual( String threadsName )
+	{
+		return newVirtual( threadsName, DEFAULT_MAX_PLATFORM_THREADS, DEFAULT_MAX_QUEUED_TASKS );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Поток на задачу: виртуальный, если JVM поддерживает, иначе - из эластичного пула.
+	 * @param maxPlatformThreads - сколько платформенных потоков может быть в пуле одновременно;
+	 * простаивающие потоки завершаются через 60 секунд.
+	 * @param maxQueuedTasks - сколько задач может ждать свободного потока. Сверх этого execute
+	 * выбрасывает RejectedExecutionException - задачи не копятся без ограничения.
+	 */
+	public static ExecutorService newVirtual( String threadsName, int maxPlatformThreads, int maxQueuedTasks )
+	{
+		MUST( (maxPlatformThreads > 0) && (maxQueuedTasks > 0), "Wrong worker executor params" );
+
+		if( newVirtualThreadPerTaskExecutor != null )
+		{
+			try
+			{
+				return (ExecutorService)newVirtualThreadPerTaskExecutor.invoke( null );
+			}
+			catch( Throwable ex ) {}
+		}
+
+		// core == max: новые потоки создаются, пока их меньше максимума, и только затем задачи ставятся в очередь.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor( maxPlatformThreads, maxPlatformThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>( maxQueuedTasks ),
+				new ThreadFactoryNamed( threadsName, Thread.NORM_PRIORITY, 0, false ),
+				new ThreadPoolExecutor.AbortPolicy() );
+		pool.allowCoreThreadTimeOut( true );
+		return pool;
+	}
+
+}
@@ -41,6 +41,31 @@ public class BinParser
 		return offset;
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Разбираемый массив (не копия).
+	 */
+	public Binary getBin()
+	{
+		return bin;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Пропустить сериализованный Binary, не копируя его.
+	 * @return смещение данных Binary в разбираемом массиве; длина - bin.getIntBE( смещение - 4 ).
+	 */
+	public int skipBinary()
+	{
+		int size = bin.getIntBE( offset );
+		MUST( (size >= 0) && (offset + 4 + size <= bin.size()), "Wrong Binary length while parsing" );
+
+		offset += 4;
+		int dataOffset = offset;
+		offset += size;
+		return dataOffset;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	public void reset( final Binary bin, int offset )
 	{
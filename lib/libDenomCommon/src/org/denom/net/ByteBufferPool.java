@@ -0,0 +1,157 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.denom.Ex.*;
+
+/**
+ * Пул direct ByteBuffer-ов, разбитый на классы размеров (степени двойки от minSize до maxSize).
+ * Буфер берётся методом lease и возвращается методом release после того, как он больше не нужен,
+ * например, в TCPServerSession.onWritten.
+ * Буферы больше maxSize не пулятся - выделяются в куче и при release отбрасываются.
+ * Потокобезопасен.
+ */
+public class ByteBufferPool
+{
+	private static final ByteBufferPool shared = new ByteBufferPool();
+
+	private final int minShift;
+	private final int maxShift;
+	private final int maxBytesPerClass;
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param minSize - размер наименьшего класса, округляется вверх до степени двойки.
+	 * @param maxSize - размер наибольшего класса, округляется вверх до степени двойки.
+	 * @param maxBytesPerClass - сколько байт свободных буферов хранить в каждом классе размеров.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ByteBufferPool( int minSize, int maxSize, int maxBytesPerClass )
+	{
+		MUST( (minSize > 0) && (minSize <= maxSize) && (maxSize <= (1 << 30)), "Wrong ByteBufferPool params" );
+
+		this.minShift = shiftFor( minSize );
+		this.maxShift = shiftFor( maxSize );
+		this.maxBytesPerClass = maxBytesPerClass;
+
+		int numClasses = maxShift - minShift + 1;
+		free = new ConcurrentLinkedQueue[ numClasses ];
+		freeCount = new AtomicInteger[ numClasses ];
+		for( int i = 0; i < numClasses; ++i )
+		{
+			free[ i ] = new ConcurrentLinkedQueue<>();
+			freeCount[ i ] = new AtomicInteger();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Пул по умолчанию: классы от 512 байт до 1 МБ, не более 4 МБ свободных буферов на класс.
+	 */
+	public ByteBufferPool()
+	{
+		this( 512, 1 << 20, 4 << 20 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Пул по умолчанию, общий для всех TCPServer-ов процесса.
+	 * Буфер, взятый сессией одного сервера, может вернуть в пул сессия другого - например, когда Relay пересылает
+	 * кадр из сессии юзера в сессию ресурса. При раздельных пулах один бы пустел, а другой переполнялся.
+	 */
+	public static ByteBufferPool getShared()
+	{
+		return shared;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int shiftFor( int size )
+	{
+		return 32 - Integer.numberOfLeadingZeros( size - 1 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Взять буфер из пула.
+	 * @return буфер с position = 0, limit = size. Ёмкость может быть больше size.
+	 */
+	public ByteBuffer lease( int size )
+	{
+		int shift = Math.max( shiftFor( Math.max( size, 1 ) ), minShift );
+		if( shift > maxShift )
+		{
+			return ByteBuffer.allocate( size );
+		}
+
+		int cls = shift - minShift;
+		ByteBuffer buf = free[ cls ].poll();
+		if( buf != null )
+		{
+			freeCount[ cls ].decrementAndGet();
+			buf.clear();
+		}
+		else
+		{
+			buf = ByteBuffer.allocateDirect( 1 << shift );
+		}
+
+		buf.limit( size );
+		return buf;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вернуть буфер в пул. После вызова буфер использовать нельзя.
+	 * Буферы, не принадлежащие ни одному классу размеров, игнорируются.
+	 */
+	public void release( ByteBuffer buf )
+	{
+		if( (buf == null) || !buf.isDirect() )
+			return;
+
+		int capacity = buf.capacity();
+		if( Integer.bitCount( capacity ) != 1 )
+			return;
+
+		int shift = Integer.numberOfTrailingZeros( capacity );
+		if( (shift < minShift) || (shift > maxShift) )
+			return;
+
+		int cls = shift - minShift;
+		if( ((long)freeCount[ cls ].get() + 1) * capacity > maxBytesPerClass )
+			return;
+
+		freeCount[ cls ].incrementAndGet();
+		free[ cls ].offer( buf );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Буферы большего размера не пулятся.
+	 */
+	public int getMaxSize()
+	{
+		return 1 << maxShift;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Суммарный размер свободных буферов в пуле.
+	 */
+	public long getFreeBytes()
+	{
+		long total = 0;
+		for( int i = 0; i < free.length; ++i )
+			total += (long)freeCount[ i ].get() << (minShift + i);
+		return total;
+	}
+
+}
@@ -0,0 +1,78 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.util.concurrent.atomic.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Гистограмма задержек с фиксированными границами корзин - от 100 мкс до 10 сек.
+ * Запись - без блокировок, из любых потоков. Выводится в MetricsText.histogram.
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Верхние границы корзин в наносекундах. Последняя корзина (+Inf) - всё, что больше.
+	 */
+	final static long[] BOUNDS_NANOS = {
+		100_000L, 250_000L, 500_000L,
+		1_000_000L, 2_500_000L, 5_000_000L,
+		10_000_000L, 25_000_000L, 50_000_000L,
+		100_000_000L, 250_000_000L, 500_000_000L,
+		1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L };
+
+	private final AtomicLongArray buckets = new AtomicLongArray( BOUNDS_NANOS.length + 1 );
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param nanos - длительность, например: System.nanoTime() - startNanos.
+	 */
+	public void record( long nanos )
+	{
+		if( nanos < 0 )
+			nanos = 0;
+
+		int i = 0;
+		while( (i < BOUNDS_NANOS.length) && (nanos > BOUNDS_NANOS[ i ]) )
+			++i;
+
+		buckets.incrementAndGet( i );
+		sumNanos.addAndGet( nanos );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Записать время, прошедшее с startNanos (System.nanoTime()).
+	 */
+	public void recordSince( long startNanos )
+	{
+		record( System.nanoTime() - startNanos );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Количество значений в корзине i (не накопительное); i == BOUNDS_NANOS.length - корзина +Inf.
+	 */
+	long getBucket( int i )
+	{
+		return buckets.get( i );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public long getCount()
+	{
+		long n = 0;
+		for( int i = 0; i < buckets.length(); ++i )
+			n += buckets.get( i );
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public long getSumNanos()
+	{
+		return sumNanos.get();
+	}
+
+}
@@ -0,0 +1,140 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+import org.denom.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Сессия админ-порта: на каждое подключение отдаёт метрики в текстовом формате (MetricsText) и закрывает соединение.
+ * Понимает HTTP-запросы (curl, Prometheus) - ответ с заголовками HTTP/1.0, путь не важен.
+ * На любую другую строку (например, пустую из 'nc') - только текст метрик.
+ * Запуск: new TCPServer( log, "127.0.0.1", port, new MetricsSession( source ) ).
+ * Метрики собираются в IO-потоке админ-сервера, не в IO-потоках основных серверов.
+ */
+public class MetricsSession extends TCPServerSession
+{
+	private final static int MAX_REQUEST_SIZE = 8192;
+
+	private final Consumer<MetricsText> source;
+	private ByteBuffer request;
+	private boolean answered = false;
+	private boolean http = false;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Creates 'Session creator'.
+	 * @param source - заполняет метрики при каждом запросе.
+	 */
+	public MetricsSession( Consumer<MetricsText> source )
+	{
+		super();
+		this.source = source;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public MetricsSession newInstance( TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		return new MetricsSession( source, tcpServer, clientSocket );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	protected MetricsSession( Consumer<MetricsText> source, TCPServer tcpServer, SocketChannel clientSocket )
+	{
+		super( tcpServer, clientSocket );
+		this.source = source;
+		this.request = ByteBuffer.allocate( MAX_REQUEST_SIZE );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 */
+	@Override
+	protected void readFromSocket()
+	{
+		try
+		{
+			if( (read( request ) < 0) || (!answered && !request.hasRemaining()) )
+			{
+				close();
+				return;
+			}
+
+			if( answered || !isRequestComplete() )
+				return;
+
+			countReadFrame();
+			answered = true;
+			writeToSocket( ByteBuffer.wrap( buildAnswer() ) );
+		}
+		catch( IOException ex )
+		{
+			close();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * HTTP-запрос - до пустой строки после заголовков, остальное - до конца первой строки.
+	 * Дочитываем заголовки HTTP, иначе закрытие сокета с непрочитанными данными оборвёт ответ (RST).
+	 */
+	private boolean isRequestComplete()
+	{
+		String s = new String( request.array(), 0, request.position(), Strings.UTF8 );
+		int lineEnd = s.indexOf( '\n' );
+		if( lineEnd < 0 )
+			return false;
+
+		http = s.substring( 0, lineEnd ).contains( "HTTP/" );
+		if( !http )
+			return true;
+
+		return s.contains( "\r\n\r\n" ) || s.contains( "\n\n" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private byte[] buildAnswer()
+	{
+		MetricsText metrics = new MetricsText();
+		String body;
+		String status;
+		try
+		{
+			source.accept( metrics );
+			body = metrics.toString();
+			status = "200 OK";
+		}
+		catch( Throwable ex )
+		{
+			body = ex.toString() + "\n";
+			status = "500 Internal Server Error";
+		}
+
+		if( http )
+		{
+			body = "HTTP/1.0 " + status + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Connection: close\r\n\r\n" + body;
+		}
+		return body.getBytes( Strings.UTF8 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread. Метрики переданы целиком - закрываем соединение.
+	 */
+	@Override
+	protected void onWritten( ByteBuffer buf )
+	{
+		close();
+	}
+
+}
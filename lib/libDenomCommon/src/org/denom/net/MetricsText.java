@@ -0,0 +1,156 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.util.*;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Метрики в текстовом формате для сборщиков (Prometheus exposition format, version 0.0.4):
+ *   # HELP name описание
+ *   # TYPE name counter|gauge|histogram
+ *   name{label="value",...} число
+ * Значения одной метрики с разными метками группируются под одним заголовком, в порядке первого добавления.
+ * Не thread-safe: заполняется одним потоком при каждом запросе метрик.
+ */
+public class MetricsText
+{
+	private final static class Family
+	{
+		final String type;
+		final String help;
+		final StringBuilder samples = new StringBuilder();
+
+		Family( String type, String help )
+		{
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	private final Map<String, Family> families = new LinkedHashMap<>();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Монотонно растущий счётчик.
+	 * @param labels - пары: имя метки, значение.
+	 */
+	public MetricsText counter( String name, String help, long value, String... labels )
+	{
+		sample( family( name, "counter", help ), name, labels, null, null ).append( value ).append( '\n' );
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Текущее значение: размер очереди, число соединений и т.п.
+	 */
+	public MetricsText gauge( String name, String help, long value, String... labels )
+	{
+		sample( family( name, "gauge", help ), name, labels, null, null ).append( value ).append( '\n' );
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public MetricsText gauge( String name, String help, double value, String... labels )
+	{
+		sample( family( name, "gauge", help ), name, labels, null, null ).append( value ).append( '\n' );
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Гистограмма задержек, в секундах: name_bucket{le="..."} (накопительно), name_sum, name_count.
+	 */
+	public MetricsText histogram( String name, String help, LatencyHistogram h, String... labels )
+	{
+		Family f = family( name, "histogram", help );
+
+		long cumulative = 0;
+		for( int i = 0; i <= LatencyHistogram.BOUNDS_NANOS.length; ++i )
+		{
+			cumulative += h.getBucket( i );
+			String le = (i < LatencyHistogram.BOUNDS_NANOS.length) ? seconds( LatencyHistogram.BOUNDS_NANOS[ i ] ) : "+Inf";
+			sample( f, name + "_bucket", labels, "le", le ).append( cumulative ).append( '\n' );
+		}
+		sample( f, name + "_sum", labels, null, null ).append( seconds( h.getSumNanos() ) ).append( '\n' );
+		sample( f, name + "_count", labels, null, null ).append( cumulative ).append( '\n' );
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private Family family( String name, String type, String help )
+	{
+		Family f = families.get( name );
+		if( f == null )
+		{
+			f = new Family( type, help );
+			families.put( name, f );
+		}
+		MUST( f.type.equals( type ), "Metric " + name + " already added with other type" );
+		return f;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static StringBuilder sample( Family f, String name, String[] labels, String extraLabel, String extraValue )
+	{
+		MUST( (labels.length & 1) == 0, "Labels must be pairs: name, value" );
+
+		StringBuilder sb = f.samples;
+		sb.append( name );
+		if( (labels.length != 0) || (extraLabel != null) )
+		{
+			sb.append( '{' );
+			for( int i = 0; i < labels.length; i += 2 )
+				appendLabel( sb, labels[ i ], labels[ i + 1 ] ).append( ',' );
+			if( extraLabel != null )
+				appendLabel( sb, extraLabel, extraValue ).append( ',' );
+			sb.setCharAt( sb.length() - 1, '}' );
+		}
+		sb.append( ' ' );
+		return sb;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static StringBuilder appendLabel( StringBuilder sb, String label, String value )
+	{
+		sb.append( label ).append( "=\"" );
+		for( int i = 0; i < value.length(); ++i )
+		{
+			char c = value.charAt( i );
+			switch( c )
+			{
+				case '\\': sb.append( "\\\\" ); break;
+				case '"':  sb.append( "\\\"" ); break;
+				case '\n': sb.append( "\\n" ); break;
+				default:   sb.append( c );
+			}
+		}
+		return sb.append( '"' );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static String seconds( long nanos )
+	{
+		return Double.toString( nanos / 1e9 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for( Map.Entry<String, Family> e : families.entrySet() )
+		{
+			Family f = e.getValue();
+			sb.append( "# HELP " ).append( e.getKey() ).append( ' ' ).append( f.help.replace( "\n", " " ) ).append( '\n' );
+			sb.append( "# TYPE " ).append( e.getKey() ).append( ' ' ).append( f.type ).append( '\n' );
+			sb.append( f.samples );
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,73 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Паузы между попытками переподключения: экспоненциальный рост со случайным разбросом (full jitter).
+ * Пауза n-й попытки - случайная в [0, min( maxMs, baseMs * 2^n )).
+ * Клиенты, потерявшие соединение одновременно (например, при перезапуске сервера), подключаются снова
+ * в разные моменты, а не все сразу.
+ * Не потокобезопасен.
+ */
+public class ReconnectBackoff
+{
+	private final long baseMs;
+	private final long maxMs;
+	private int attempt = 0;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param baseMs - верхняя граница первой паузы.
+	 * @param maxMs - верхняя граница любой паузы.
+	 */
+	public ReconnectBackoff( long baseMs, long maxMs )
+	{
+		MUST( (baseMs > 0) && (baseMs <= maxMs), "Wrong backoff params" );
+		this.baseMs = baseMs;
+		this.maxMs = maxMs;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Пауза перед следующей попыткой, мс.
+	 */
+	public long nextDelayMs()
+	{
+		long ceiling = maxMs;
+		// Дальше baseMs * 2^attempt заведомо не меньше maxMs или переполняется
+		if( attempt < 32 )
+		{
+			long exp = baseMs << attempt;
+			if( (exp >> attempt) == baseMs )
+				ceiling = Math.min( maxMs, exp );
+		}
+		if( attempt < Integer.MAX_VALUE )
+			++attempt;
+		return ThreadLocalRandom.current().nextLong( ceiling );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Соединение установлено и работает - следующая серия попыток начнётся с короткой паузы.
+	 */
+	public void reset()
+	{
+		attempt = 0;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько попыток подряд без reset().
+	 */
+	public int getAttempt()
+	{
+		return attempt;
+	}
+
+}
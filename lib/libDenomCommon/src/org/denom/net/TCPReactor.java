@@ -0,0 +1,537 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import org.denom.log.*;
+
+/**
+ * Селектор и его IO-поток.
+ * Все операции чтения и записи для закреплённых за реактором сессий выполняются только в его потоке.
+ * Реактор, на котором зарегистрирован серверный сокет, также принимает новые соединения.
+ */
+final class TCPReactor
+{
+	private final TCPServer tcpServer;
+	private final ILog log;
+
+	private Selector selector;
+
+	/**
+	 * Сессии, принятые другим реактором и ожидающие регистрации в селекторе этого реактора.
+	 */
+	private final Queue<TCPServerSession> newSessions = new ConcurrentLinkedQueue<>();
+
+	private final Queue<TCPServerSession> flushingSessions = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Сессии, у которых нужно включить или выключить OP_READ (suspendReading / resumeReading).
+	 */
+	private final Queue<TCPServerSession> interestSessions = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Сессии, отправка данных которых отложена для объединения мелких кадров.
+	 * Используется только в IO-потоке.
+	 */
+	private final ArrayList<TCPServerSession> delayedSessions = new ArrayList<>();
+
+	/**
+	 * Таймеры простоя сессий (TCPServer.setIdleTimeout). Используется только в IO-потоке.
+	 * Тик 250 мс, оборот 128 сек - обычные таймауты укладываются в один оборот.
+	 */
+	private final TimingWheel<TCPServerSession> idleWheel;
+	private static final long IDLE_TICK_MS = 250;
+	private static final int IDLE_SLOTS = 512;
+	private final Consumer<TCPServerSession> onIdleTimer = this::onIdleTimer;
+
+	/**
+	 * Время (System.nanoTime) после последнего select-а. Используется только в IO-потоке.
+	 */
+	private long loopNanos = System.nanoTime();
+
+	private AtomicBoolean wakeupCalled = new AtomicBoolean( false );
+
+	/**
+	 * Максимальное число буферов в одной gathering-записи.
+	 */
+	private static final int MAX_GATHER = 64;
+	private final ByteBuffer[] gather = new ByteBuffer[ MAX_GATHER ];
+
+	// Счётчики. Изменяются только в IO-потоке.
+	volatile long flushes = 0;
+	volatile long writeSyscalls = 0;
+	volatile long writtenBytes = 0;
+	volatile long writtenFrames = 0;
+	volatile long readBytes = 0;
+	volatile long readFrames = 0;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	TCPReactor( TCPServer tcpServer, ILog log ) throws IOException
+	{
+		this.tcpServer = tcpServer;
+		this.log = log;
+		this.selector = Selector.open();
+		this.idleWheel = new TimingWheel<>( IDLE_TICK_MS, IDLE_SLOTS, loopNanos / 1_000_000 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается до запуска IO-потока.
+	 */
+	void registerServerSocket( ServerSocketChannel serverSocket ) throws IOException
+	{
+		serverSocket.register( selector, SelectionKey.OP_ACCEPT );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void recreateSelector() throws IOException
+	{
+		// log.writeln( "Recreate Selector" );
+
+		Set<SelectionKey> keys = selector.keys();
+		Selector newSelector = Selector.open();
+
+		for( SelectionKey key : keys )
+		{
+			if( !key.isValid() )
+				continue;
+
+			SelectableChannel ch = key.channel();
+			if( ch instanceof ServerSocketChannel )
+			{
+				ch.register( newSelector,  key.interestOps(), key.attachment() );
+			}
+			else
+			{
+				TCPServerSession session = (TCPServerSession)key.attachment();
+				SelectionKey newKey = ch.register( newSelector, key.interestOps(), session );
+				session.selectionKey = newKey;
+			}
+		}
+
+		selector.close();
+		selector = newSelector;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в различных потоках.
+	 * Сессия будет зарегистрирована в селекторе этого реактора в его IO-потоке.
+	 */
+	void addSession( TCPServerSession session )
+	{
+		newSessions.offer( session );
+		wakeup();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке этого реактора.
+	 */
+	void registerSession( TCPServerSession session ) throws IOException
+	{
+		int ops = (session.readSuspends.get() > 0) ? 0 : SelectionKey.OP_READ;
+		SelectionKey clientKey = session.socket.register( selector, ops );
+		clientKey.attach( session );
+		session.selectionKey = clientKey;
+
+		long idleTimeoutMs = tcpServer.idleTimeoutMs;
+		if( idleTimeoutMs > 0 )
+		{
+			session.idleTimer = idleWheel.newTimer( session );
+			idleWheel.schedule( session.idleTimer, idleTimeoutMs );
+		}
+
+		// Данные могли быть поставлены в очередь до регистрации сессии в селекторе
+		if( !session.writeQueue.isEmpty() )
+			flushingSessions.offer( session );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void registerNewSessions()
+	{
+		TCPServerSession session;
+		while( (session = newSessions.poll()) != null )
+		{
+			try
+			{
+				registerSession( session );
+			}
+			catch( Throwable ex )
+			{
+				session.close();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в различных потоках.
+	 */
+	void needToFlush( TCPServerSession session )
+	{
+		flushingSessions.offer( session );
+		wakeup();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в различных потоках.
+	 */
+	void needToUpdateInterest( TCPServerSession session )
+	{
+		interestSessions.offer( session );
+		wakeup();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке.
+	 * Включить или выключить OP_READ в соответствии со счётчиком приостановок чтения.
+	 */
+	private void updateInterestOps()
+	{
+		TCPServerSession session;
+		while( (session = interestSessions.poll()) != null )
+		{
+			SelectionKey key = session.selectionKey;
+			if( (key == null) || !key.isValid() )
+				continue;
+
+			try
+			{
+				if( session.readSuspends.get() > 0 )
+					key.interestOps( key.interestOps() & ~SelectionKey.OP_READ );
+				else
+					key.interestOps( key.interestOps() | SelectionKey.OP_READ );
+			}
+			catch( CancelledKeyException ex ) {}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке.
+	 * Буферы из начала очереди сессии передаются в сокет одним вызовом write( ByteBuffer[] ).
+	 */
+	private void flush( TCPServerSession session )
+	{
+		try
+		{
+			if( !session.socket.isOpen() )
+			{
+				releaseClosed( session );
+				return;
+			}
+
+			SelectionKey key = session.selectionKey;
+			// Сессия ещё не зарегистрирована в селекторе, данные будут отправлены после регистрации.
+			if( key == null )
+				return;
+
+			if( !session.writeQueue.isEmpty() )
+				++flushes;
+
+			while( true )
+			{
+				int n = 0;
+				for( ByteBuffer buf : session.writeQueue )
+				{
+					gather[ n++ ] = buf;
+					if( n == MAX_GATHER )
+						break;
+				}
+				if( n == 0 )
+					break;
+
+				long written = session.socket.write( gather, 0, n );
+				++writeSyscalls;
+				writtenBytes += written;
+				session.writtenBytes += written;
+				if( written > 0 )
+					session.lastWriteNanos = loopNanos;
+				session.queuedBytes.addAndGet( -written );
+
+				// Удаляем из очереди полностью переданные буферы
+				int i = 0;
+				for( ; (i < n) && (gather[ i ].remaining() == 0); ++i )
+				{
+					session.writeQueue.remove();
+					++writtenFrames;
+					++session.writtenFrames;
+					session.onWritten( gather[ i ] );
+				}
+				Arrays.fill( gather, 0, n, null );
+
+				if( i < n )
+				{
+					// TCP-буфер заполнен, ждём, когда появится место.
+					key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+					session.checkLowWatermark();
+					return;
+				}
+			}
+
+			// все данные отправлены, выходим из ожидания
+			key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
+			session.checkLowWatermark();
+		}
+		catch( Exception ex ) // IOException + возможно CancelledKeyException
+		{
+			Arrays.fill( gather, null );
+			session.close();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке для закрытой сессии (TCPServerSession.close ставит её в очередь на отправку):
+	 * освободить неотправленные буферы и снять таймер простоя - колесо таймеров доступно только в IO-потоке.
+	 */
+	private void releaseClosed( TCPServerSession session )
+	{
+		session.discardWriteQueue();
+		if( session.idleTimer != null )
+			idleWheel.cancel( session.idleTimer );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке.
+	 * @return true - если отправку данных сессии можно ещё отложить, чтобы объединить мелкие кадры.
+	 */
+	private boolean canDelayFlush( TCPServerSession session, long now )
+	{
+		long maxDelayNanos = tcpServer.coalesceMaxDelayNanos;
+		return (maxDelayNanos > 0)
+			&& (session.queuedBytes.get() < tcpServer.coalesceMaxBytes)
+			&& ((now - session.firstQueuedNanos) < maxDelayNanos)
+			&& session.socket.isOpen();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке.
+	 */
+	private void flushSessions()
+	{
+		long now = System.nanoTime();
+
+		// Есть сессии с готовыми ответами, отправляем ответ
+		TCPServerSession session;
+		while( (session = flushingSessions.poll()) != null )
+		{
+			if( canDelayFlush( session, now ) )
+			{
+				if( !session.flushDelayed )
+				{
+					session.flushDelayed = true;
+					delayedSessions.add( session );
+				}
+				continue;
+			}
+			flush( session );
+		}
+
+		// Отложенные сессии, у которых истекло время ожидания или накопилось достаточно данных
+		for( int i = delayedSessions.size() - 1; i >= 0; --i )
+		{
+			session = delayedSessions.get( i );
+			if( !canDelayFlush( session, now ) )
+			{
+				delayedSessions.remove( i );
+				session.flushDelayed = false;
+				flush( session );
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке.
+	 * Сработал таймер простоя сессии. Если из сессии читали - таймер переставляется на оставшееся время.
+	 * Сессии с приостановленным чтением не читают не по своей вине - их таймер просто продлевается.
+	 */
+	private void onIdleTimer( TCPServerSession session )
+	{
+		if( !session.socket.isOpen() )
+			return;
+
+		long timeoutMs = tcpServer.idleTimeoutMs;
+		if( timeoutMs == 0 )
+			return;
+
+		long idleMs = (loopNanos - session.lastReadNanos) / 1_000_000;
+		if( session.isReadingSuspended() || (idleMs < timeoutMs) )
+		{
+			idleWheel.schedule( session.idleTimer, session.isReadingSuspended() ? timeoutMs : timeoutMs - idleMs );
+			return;
+		}
+
+		boolean keep = false;
+		try
+		{
+			keep = session.onIdle();
+		}
+		catch( Throwable ex ) {}
+
+		if( keep )
+			idleWheel.schedule( session.idleTimer, timeoutMs );
+		else
+			session.close();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Таймаут select-а: 1 сек или до истечения задержки ближайшей отложенной сессии,
+	 * если есть таймеры простоя - не дольше следующего тика колеса.
+	 */
+	private long selectTimeoutMs()
+	{
+		if( idleWheel.size() > 0 )
+			return Math.min( selectDelayTimeoutMs(), Math.max( 1, idleWheel.msToNextTick( System.nanoTime() / 1_000_000 ) ) );
+		return selectDelayTimeoutMs();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private long selectDelayTimeoutMs()
+	{
+		if( delayedSessions.isEmpty() )
+			return 1000;
+
+		long now = System.nanoTime();
+		long minNanos = Long.MAX_VALUE;
+		for( TCPServerSession session : delayedSessions )
+			minNanos = Math.min( minNanos, session.firstQueuedNanos + tcpServer.coalesceMaxDelayNanos - now );
+
+		return Math.max( 1, Math.min( 1000, (minNanos + 999_999) / 1_000_000 ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в различных потоках.
+	 */
+	void wakeup()
+	{
+		wakeupCalled.getAndSet( true );
+		selector.wakeup();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	void ioLoop()
+	{
+		try
+		{
+			Thread.currentThread().setPriority( 8 );
+
+			int tries = 5;
+
+			while( tcpServer.isOpen() && !Thread.currentThread().isInterrupted() )
+			{
+				long timeout = selectTimeoutMs();
+				long t0 = System.currentTimeMillis();
+				int selected = selector.select( timeout );
+				long t1 = System.currentTimeMillis();
+				long delta = t1 - t0;
+				loopNanos = System.nanoTime();
+
+				if( !wakeupCalled.getAndSet( false ) && (selected == 0) && (delta < 100) && (timeout == 1000) )
+				{
+					// Work around infamous epoll BUG
+					if( tries == 0 )
+					{
+						recreateSelector();
+						tries = 5;
+					}
+					else
+					{
+						tries--;
+					}
+					continue;
+				}
+				else
+				{
+					tries = 5;
+				}
+
+				// Сессии, принятые boss-реактором
+				registerNewSessions();
+				updateInterestOps();
+
+				if( selected > 0 )
+				{
+					for( Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); )
+					{
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						try
+						{
+							if( key.isAcceptable() )
+							{
+								// Новый клиент хочет установить соединение
+								ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
+								tcpServer.acceptClient( this, serverChannel.accept() );
+							}
+
+							if( key.isWritable() )
+							{
+								flush( (TCPServerSession)key.attachment() );
+							}
+
+							if( key.isReadable() )
+							{
+								TCPServerSession session = (TCPServerSession)key.attachment();
+								session.lastReadNanos = loopNanos;
+								session.readFromSocket();
+							}
+						}
+						catch( IOException ex )
+						{
+							if( key.attachment() instanceof TCPServerSession )
+							{
+								((TCPServerSession)key.attachment()).close();
+							}
+							else
+							{
+								try { key.cancel(); } catch( Throwable ex2 ) {}
+								try { key.channel().close(); } catch( Throwable ex2 ) {}
+							}
+						}
+					}
+				}
+
+				flushSessions();
+
+				// Колесо продвигается всегда, чтобы новые таймеры отсчитывались от текущего времени
+				idleWheel.advance( loopNanos / 1_000_000, onIdleTimer );
+			}
+		}
+		catch( ClosedByInterruptException ex )
+		{
+			return;
+		}
+		catch( Throwable ex )
+		{
+			log.writeln( Colors.RED_I, ex.toString() );
+		}
+		finally
+		{
+			try
+			{
+				selector.close();
+			}
+			catch( Throwable ex ) {}
+			tcpServer.closeServerSocket();
+		}
+	}
+
+}
@@ -6,10 +6,9 @@ package org.denom.net;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.*;
 import java.nio.channels.*;
 
 import org.denom.*;
@@ -20,257 +19,508 @@ import static org.denom.Ex.*;
 /**
  * Открывает серверный сокет, создаёт селектор на сетевые события в этом сокете, принимает и передаёт данные.
  * Логика обработки данных - в наследниках TCPServerSession.
+ * 
+ * Если numIOThreads == 1, то приём соединений, чтение и запись для всех сессий выполняются в одном IO-потоке.
+ * Если numIOThreads > 1, то работает схема multi-reactor: отдельный boss-селектор только принимает соединения,
+ * а сессии равномерно распределяются между numIOThreads worker-селекторами, каждый в своём потоке.
+ * Сессия закреплена за своим worker-ом на всё время жизни.
  */
 public class TCPServer
 {
-	private final ILog log;
-
 	private final ServerSocketChannel serverSocket;
-	private Selector selector;
 	private final ExecutorService ioExecutor;
 	private final TCPServerSession sessionConstructor;
 
-	private final Queue<TCPServerSession> flushingSessions = new ConcurrentLinkedQueue<>();
+	/**
+	 * Принимает соединения. При numIOThreads == 1 - он же обслуживает все сессии.
+	 */
+	private final TCPReactor bossReactor;
+
+	/**
+	 * Обслуживают сессии. При numIOThreads == 1 - массив из одного bossReactor.
+	 */
+	private final TCPReactor[] workerReactors;
+
+	private final AtomicInteger nextWorker = new AtomicInteger( 0 );
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Буферы для чтения и записи, которые сессии берут на время операции.
+	 * Общий для всех серверов процесса, см. ByteBufferPool.getShared.
+	 */
+	private final ByteBufferPool bufferPool = ByteBufferPool.getShared();
+
+	/**
+	 * Объединение мелких кадров при отправке. Выключено, если coalesceMaxDelayNanos == 0.
+	 */
+	volatile int coalesceMaxBytes = 0;
+	volatile long coalesceMaxDelayNanos = 0;
+
+	/**
+	 * Границы очереди на отправку каждой сессии, в байтах. По умолчанию не ограничена.
+	 */
+	volatile long writeHighWatermark = Long.MAX_VALUE;
+	volatile long writeLowWatermark = Long.MAX_VALUE;
+
+	/**
+	 * Сессия, из которой ничего не читалось дольше этого времени, закрывается (см. TCPServerSession.onIdle).
+	 * 0 - не закрывать.
+	 */
+	volatile long idleTimeoutMs = 0;
+
+	/**
+	 * Открытые сессии - для метрик.
+	 */
+	private final Set<TCPServerSession> sessions = ConcurrentHashMap.newKeySet();
 
-	private AtomicBoolean wakeupCalled = new AtomicBoolean( false );
+	// Счётчики. Изменяются только в IO-потоке boss-реактора.
+	private volatile long acceptedConnections = 0;
+	private volatile long rejectedConnections = 0;
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
+	 * Все сессии обслуживаются одним IO-потоком.
 	 * @param sessionConstructor - на каждый новый клиентский запрос на подключение будет вызван фабричный метод
 	 * sessionConstructor.nеwInstance(...) для создания экземпляра сессии.
 	 */
 	public TCPServer( ILog log, String host, int port, TCPServerSession sessionConstructor )
 	{
-		this.log = log;
+		this( log, host, port, sessionConstructor, 1 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param sessionConstructor - на каждый новый клиентский запрос на подключение будет вызван фабричный метод
+	 * sessionConstructor.nеwInstance(...) для создания экземпляра сессии.
+	 * @param numIOThreads - количество IO-потоков (worker-селекторов), между которыми распределяются сессии.
+	 * Если больше 1, то дополнительно создаётся boss-поток для приёма соединений.
+	 */
+	public TCPServer( ILog log, String host, int port, TCPServerSession sessionConstructor, int numIOThreads )
+	{
+		this( log, host, port, sessionConstructor, numIOThreads, false );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param reusePort - открыть порт с SO_REUSEPORT, чтобы новый процесс сервера мог слушать тот же порт,
+	 * пока старый завершает работу (см. stopAccepting). Поддерживается, начиная с Java 9, и не во всех ОС;
+	 * если не поддерживается - порт открывается как обычно.
+	 */
+	public TCPServer( ILog log, String host, int port, TCPServerSession sessionConstructor, int numIOThreads, boolean reusePort )
+	{
+		this( log, openServerSocket( log, host, port, reusePort ), sessionConstructor, numIOThreads );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сервер на уже открытом серверном сокете, например, унаследованном от родительского процесса
+	 * (System.inheritedChannel()) - порт не закрывается между перезапусками сервера.
+	 */
+	public TCPServer( ILog log, ServerSocketChannel serverSocket, TCPServerSession sessionConstructor, int numIOThreads )
+	{
+		MUST( numIOThreads > 0, "Wrong number of IO threads" );
+
 		this.sessionConstructor = sessionConstructor;
+		this.serverSocket = serverSocket;
 
-		ioExecutor = Executors.newFixedThreadPool( 1, new ThreadFactoryNamed( this.getClass().getSimpleName(), 8, 0, false ) );
+		int numThreads = (numIOThreads == 1) ? 1 : numIOThreads + 1;
+		ioExecutor = Executors.newFixedThreadPool( numThreads, new ThreadFactoryNamed( this.getClass().getSimpleName(), 8, 0, false ) );
 
 		try
 		{
-			serverSocket = ServerSocketChannel.open();
 			serverSocket.configureBlocking( false );
 
-			InetSocketAddress localAddr = host.isEmpty() ? new InetSocketAddress( port ) : new InetSocketAddress( host, port );
-			serverSocket.bind( localAddr, 300 );
+			bossReactor = new TCPReactor( this, log );
+			bossReactor.registerServerSocket( serverSocket );
 
-			selector = Selector.open();
-			serverSocket.register( selector, SelectionKey.OP_ACCEPT );
+			if( numIOThreads == 1 )
+			{
+				workerReactors = new TCPReactor[] { bossReactor };
+			}
+			else
+			{
+				workerReactors = new TCPReactor[ numIOThreads ];
+				for( int i = 0; i < numIOThreads; ++i )
+				{
+					workerReactors[ i ] = new TCPReactor( this, log );
+				}
+			}
 
-			ioExecutor.execute( () -> ioLoop() );
+			ioExecutor.execute( () -> bossReactor.ioLoop() );
+			if( numIOThreads > 1 )
+			{
+				for( TCPReactor reactor : workerReactors )
+					ioExecutor.execute( () -> reactor.ioLoop() );
+			}
 		}
 		catch( IOException ex )
 		{
+			ioExecutor.shutdownNow();
 			throw new Ex( "Can't open server socket" + ex.toString() );
 		}
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	private void recreateSelector() throws IOException
+	private static ServerSocketChannel openServerSocket( ILog log, String host, int port, boolean reusePort )
 	{
-		// log.writeln( "Recreate Selector" );
+		ServerSocketChannel serverSocket = null;
+		try
+		{
+			serverSocket = ServerSocketChannel.open();
+			if( reusePort && !setReusePort( serverSocket ) )
+				log.writeln( Colors.YELLOW, "SO_REUSEPORT not supported, port " + port + " opened without it" );
 
-		Set<SelectionKey> keys = selector.keys();
-		Selector newSelector = Selector.open();
+			InetSocketAddress localAddr = host.isEmpty() ? new InetSocketAddress( port ) : new InetSocketAddress( host, port );
+			serverSocket.bind( localAddr, 300 );
+			return serverSocket;
+		}
+		catch( IOException ex )
+		{
+			if( serverSocket != null )
+				try{ serverSocket.close(); } catch( Throwable ex2 ) {}
+			throw new Ex( "Can't open server socket" + ex.toString() );
+		}
+	}
 
-		for( SelectionKey key : keys )
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT появилась в Java 9 - ищем её по имени, чтобы работать и на Java 8.
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean setReusePort( ServerSocketChannel serverSocket )
+	{
+		try
 		{
-			SelectableChannel ch = key.channel();
-			if( ch instanceof ServerSocketChannel )
-			{
-				ch.register( newSelector,  key.interestOps(), key.attachment() );
-			}
-			else
-			{
-				TCPServerSession session = (TCPServerSession)key.attachment();
-				SelectionKey newKey = ch.register( newSelector, key.interestOps(), session );
-				session.selectionKey = newKey;
-			}
+			SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField( "SO_REUSEPORT" ).get( null );
+			if( !serverSocket.supportedOptions().contains( option ) )
+				return false;
+			serverSocket.setOption( option, true );
+			return true;
+		}
+		catch( NoSuchFieldException | IllegalAccessException | IOException | UnsupportedOperationException ex )
+		{
+			return false;
 		}
+	}
 
-		selector.close();
-		selector = newSelector;
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Количество IO-потоков, обслуживающих сессии.
+	 */
+	public int getNumIOThreads()
+	{
+		return workerReactors.length;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Вызывается в различных потоках.
+	 * Пул буферов, общий для всех сессий сервера и для других серверов процесса.
 	 */
-	void needToFlush( TCPServerSession session )
+	public ByteBufferPool getBufferPool()
 	{
-		flushingSessions.offer( session );
-		wakeup();
+		return bufferPool;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Вызывается в ioThread-е.
+	 * Объединять мелкие кадры перед отправкой.
+	 * Данные сессии отправляются, когда в её очереди накопилось не меньше maxBytes,
+	 * или когда первый кадр в очереди ждёт дольше maxDelayMicros.
+	 * @param maxDelayMicros - 0 - выключить объединение, данные отправляются сразу.
 	 */
-	private void flush( TCPServerSession session )
+	public void setWriteCoalescing( int maxBytes, int maxDelayMicros )
 	{
-		try
-		{
-			SelectionKey key = session.selectionKey;
-			while( !session.writeQueue.isEmpty() )
-			{
-				ByteBuffer buf = session.writeQueue.peek();
+		MUST( (maxBytes >= 0) && (maxDelayMicros >= 0), "Wrong coalescing params" );
+		this.coalesceMaxBytes = maxBytes;
+		this.coalesceMaxDelayNanos = maxDelayMicros * 1000L;
+	}
 
-				session.socket.write( buf );
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Задать границы очереди на отправку для каждой сессии.
+	 * Когда в очереди сессии становится не меньше highBytes, вызывается session.onWritabilityChanged( false ),
+	 * когда очередь опустошается до lowBytes - session.onWritabilityChanged( true ).
+	 */
+	public void setWriteWatermarks( long lowBytes, long highBytes )
+	{
+		MUST( (lowBytes >= 0) && (lowBytes < highBytes), "Wrong watermarks" );
+		this.writeLowWatermark = lowBytes;
+		this.writeHighWatermark = highBytes;
+	}
 
-				if( buf.remaining() != 0 )
-				{
-					// TCP-буфер заполнен, ждём, когда появится место.
-					key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
-					return;
-				}
-				else
-				{
-					session.writeQueue.remove();
-					session.onWritten( buf );
-				}
-			}
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрывать сессии, из которых ничего не прочитано за idleTimeoutMs.
+	 * Таймеры сессий ведёт IO-поток реактора в колесе таймеров (TimingWheel) - O(1) на сессию, без обхода всех сессий.
+	 * Перед закрытием вызывается session.onIdle() - сессия может, например, отправить ping и продлить таймер.
+	 * Пока чтение из сессии приостановлено (suspendReading), она не считается простаивающей.
+	 * Задаётся до подключения сессий: таймеры ставятся при регистрации сессии в реакторе.
+	 * @param idleTimeoutMs - 0 - не закрывать.
+	 */
+	public void setIdleTimeout( long idleTimeoutMs )
+	{
+		MUST( idleTimeoutMs >= 0, "Wrong idle timeout" );
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
 
-			// все данные отправлены, выходим из ожидания 
-			key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
-		}
-		catch( Exception ex ) // IOException + возможно CancelledKeyException
-		{
-			session.close();
-		}
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Количество вызовов flush, в которых были данные для отправки.
+	 */
+	public long getFlushCount()
+	{
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.flushes;
+		return sum;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Вызывается в ioThread-е.
+	 * Количество системных вызовов записи в сокеты.
+	 * getWriteSyscalls() / getFlushCount() - сколько syscall-ов в среднем на один flush.
 	 */
-	private void acceptClient( SocketChannel clientSocket )
+	public long getWriteSyscalls()
 	{
-		try
-		{
-			clientSocket.configureBlocking( false );
-			// По умолчанию, отключаем алгоритм Нейгла.
-			clientSocket.socket().setTcpNoDelay( true );
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.writeSyscalls;
+		return sum;
+	}
 
-			TCPServerSession newSession = sessionConstructor.newInstance( this, clientSocket );
-			MUST( newSession != null );
-			SelectionKey clientKey = clientSocket.register( selector, SelectionKey.OP_READ );
-			clientKey.attach( newSession );
-			newSession.selectionKey = clientKey;
-		}
-		catch( Throwable ex )
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько байт передано в сокеты.
+	 */
+	public long getWrittenBytes()
+	{
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.writtenBytes;
+		return sum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Количество буферов, полностью переданных в сокеты. Для D5 - кадров.
+	 */
+	public long getWrittenFrames()
+	{
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.writtenFrames;
+		return sum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько байт прочитано из сокетов (TCPServerSession.read).
+	 */
+	public long getReadBytes()
+	{
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.readBytes;
+		return sum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько кадров прочитано сессиями (TCPServerSession.countReadFrame).
+	 */
+	public long getReadFrames()
+	{
+		long sum = 0;
+		for( TCPReactor reactor : workerReactors )
+			sum += reactor.readFrames;
+		return sum;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько соединений принято - для них созданы сессии.
+	 */
+	public long getAcceptedConnections()
+	{
+		return acceptedConnections;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько соединений отклонено: sessionConstructor.newInstance вернул null или выбросил исключение.
+	 */
+	public long getRejectedConnections()
+	{
+		return rejectedConnections;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Открытые сессии. Коллекция только для чтения, меняется в других потоках - для обхода при сборе метрик.
+	 */
+	public Collection<TCPServerSession> getSessions()
+	{
+		return Collections.unmodifiableSet( sessions );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается при закрытии сессии.
+	 */
+	void removeSession( TCPServerSession session )
+	{
+		sessions.remove( session );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	boolean isOpen()
+	{
+		return !closed;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается при выходе из IO-цикла любого из реакторов.
+	 */
+	void closeServerSocket()
+	{
+		closed = true;
+		try
 		{
-			try{ clientSocket.close(); } catch( Throwable ex2 ) {}
+			serverSocket.close();
 		}
+		catch( Throwable ex ) {}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в конструкторе сессии.
+	 * Выбирает реактор (round-robin), за которым будет закреплена новая сессия.
+	 */
+	TCPReactor nextReactor()
+	{
+		if( workerReactors.length == 1 )
+			return workerReactors[ 0 ];
+
+		int i = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workerReactors.length;
+		return workerReactors[ i ];
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Вызывается в различных потоках.
+	 * Запрос на отправку направляется в реактор, за которым закреплена сессия.
 	 */
-	void wakeup()
+	void needToFlush( TCPServerSession session )
 	{
-		wakeupCalled.getAndSet( true );
-		selector.wakeup();
+		session.reactor.needToFlush( session );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	private void ioLoop()
+	/**
+	 * Вызывается в IO-потоке boss-реактора.
+	 */
+	void acceptClient( TCPReactor acceptor, SocketChannel clientSocket )
 	{
+		if( clientSocket == null )
+			return;
+
+		TCPServerSession newSession = null;
 		try
 		{
-			Thread.currentThread().setPriority( 8 );
+			clientSocket.configureBlocking( false );
+			// По умолчанию, отключаем алгоритм Нейгла.
+			clientSocket.socket().setTcpNoDelay( true );
 
-			int tries = 5;
+			newSession = sessionConstructor.newInstance( this, clientSocket );
+			MUST( newSession != null );
+			sessions.add( newSession );
+			++acceptedConnections;
 
-			while( serverSocket.isOpen() && !Thread.currentThread().isInterrupted() )
+			if( newSession.reactor == acceptor )
+				acceptor.registerSession( newSession );
+			else
+				newSession.reactor.addSession( newSession );
+		}
+		catch( Throwable ex )
+		{
+			if( newSession != null )
 			{
-				long t0 = System.currentTimeMillis();
-				int selected = selector.select( 1000 );
-				long t1 = System.currentTimeMillis();
-				long delta = t1 - t0;
-
-				if( !wakeupCalled.getAndSet( false ) && (selected == 0) && (delta < 100) )
-				{
-					// Work around infamous epoll BUG
-					if( tries == 0 )
-					{
-						recreateSelector();
-						tries = 5;
-					}
-					else
-					{
-						tries--;
-					}
-					continue;
-				}
-				else
-				{
-					tries = 5;
-				}
-
-				if( selected > 0 )
-				{
-					for( Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); )
-					{
-						SelectionKey key = iterator.next();
-						iterator.remove();
-						try
-						{
-							if( key.isAcceptable() )
-							{
-								// Новый клиент хочет установить соединение
-								ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
-								acceptClient( serverChannel.accept() );
-							}
-
-							if( key.isWritable() )
-							{
-								flush( (TCPServerSession)key.attachment() );
-							}
-
-							if( key.isReadable() )
-							{
-								((TCPServerSession)key.attachment()).readFromSocket();
-							}
-						}
-						catch( IOException ex )
-						{
-							try { key.cancel(); } catch( Throwable ex2 ) {}
-							try { key.channel().close(); } catch( Throwable ex2 ) {}
-						}
-					}
-				}
-
-				// Есть сессии с готовыми ответами, отправляем ответ
-				while( !flushingSessions.isEmpty() )
-				{
-					flush( flushingSessions.poll() );
-				}
+				newSession.close();
+			}
+			else
+			{
+				++rejectedConnections;
+				try{ clientSocket.close(); } catch( Throwable ex2 ) {}
 			}
 		}
-		catch( ClosedByInterruptException ex )
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Установить исходящее соединение и обслуживать его как сессию этого сервера - в тех же IO-потоках.
+	 * Например, для связи узлов кластера: каждый узел и принимает соединения, и подключается к другим.
+	 * Соединение устанавливается блокирующим вызовом в вызывающем потоке.
+	 * @param sessionConstructor - sessionConstructor.newInstance(...) создаёт сессию для нового соединения.
+	 * @return созданная сессия.
+	 */
+	public TCPServerSession connect( String host, int port, int timeoutMs, TCPServerSession sessionConstructor )
+	{
+		SocketChannel socket = null;
+		try
 		{
-			return;
+			socket = SocketChannel.open();
+			socket.socket().connect( new InetSocketAddress( host, port ), timeoutMs );
+			socket.configureBlocking( false );
+			socket.socket().setTcpNoDelay( true );
+
+			TCPServerSession newSession = sessionConstructor.newInstance( this, socket );
+			MUST( newSession != null, "Session not created" );
+			sessions.add( newSession );
+			newSession.reactor.addSession( newSession );
+			return newSession;
 		}
-		catch( Throwable ex )
+		catch( IOException ex )
 		{
-			log.writeln( Colors.RED_I, ex.toString() );
+			if( socket != null )
+				try{ socket.close(); } catch( Throwable ex2 ) {}
+			throw new Ex( "Can't connect to " + host + ":" + port + ": " + ex.toString() );
 		}
-		finally
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть серверный сокет - новые соединения не принимаются, порт освобождается.
+	 * Открытые сессии продолжают работать до close().
+	 */
+	public void stopAccepting()
+	{
+		try
 		{
-			try
-			{
-				selector.close();
-				serverSocket.close();
-			}
-			catch( Throwable ex ) {}
+			serverSocket.close();
 		}
+		catch( IOException ex ) {}
+		// Сокет, зарегистрированный в селекторе, закрывается на следующем select-е
+		bossReactor.wakeup();
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
+	public boolean isAccepting()
+	{
+		return serverSocket.isOpen();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Остановить IO-потоки и закрыть все сессии - клиенты сразу узнают о закрытии сервера.
+	 */
 	public void close()
 	{
+		closed = true;
 		Sys.shutdownNow( ioExecutor, 3 );
+		for( TCPServerSession session : new ArrayList<>( sessions ) )
+			session.close();
 	}
 
 }
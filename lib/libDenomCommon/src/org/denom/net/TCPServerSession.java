@@ -8,6 +8,7 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
 
 import static org.denom.Ex.*;
 
@@ -25,10 +26,64 @@ public abstract class TCPServerSession
 	 */
 	protected SelectionKey selectionKey = null;
 
+	/**
+	 * Реактор (селектор + IO-поток), за которым закреплена сессия.
+	 * Задаётся в конструкторе, все операции ввода-вывода сессии выполняются в потоке этого реактора.
+	 */
+	TCPReactor reactor = null;
+
 	public InetSocketAddress remoteAddress;
 
 	protected volatile ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
 
+	/**
+	 * Сколько байт стоит в очереди на отправку.
+	 * Увеличивается до постановки буфера в очередь, уменьшается только в IO-потоке - на отправленные
+	 * и на отброшенные после закрытия байты, поэтому не становится отрицательным.
+	 */
+	final AtomicLong queuedBytes = new AtomicLong();
+
+	/**
+	 * Время постановки в пустую очередь первого буфера - для объединения мелких кадров.
+	 */
+	volatile long firstQueuedNanos = 0;
+
+	/**
+	 * Отправка отложена реактором. Используется только в IO-потоке.
+	 */
+	boolean flushDelayed = false;
+
+	/**
+	 * Очередь на отправку превысила верхнюю границу и ещё не опустилась ниже нижней.
+	 * Переключается только под writabilityLock.
+	 */
+	private volatile boolean writeBlocked = false;
+	private final Object writabilityLock = new Object();
+
+	/**
+	 * Сколько раз приостановлено чтение из сокета (suspendReading - resumeReading).
+	 * Чтение выполняется, если <= 0.
+	 */
+	final AtomicInteger readSuspends = new AtomicInteger();
+
+	private final AtomicBoolean closed = new AtomicBoolean( false );
+
+	/**
+	 * Время (System.nanoTime) последнего чтения из сокета и последней записи в сокет. Изменяются только в IO-потоке.
+	 */
+	volatile long lastReadNanos = System.nanoTime();
+	volatile long lastWriteNanos = lastReadNanos;
+
+	/**
+	 * Таймер простоя в колесе таймеров реактора, если задан TCPServer.setIdleTimeout. Используется только в IO-потоке.
+	 */
+	TimingWheel.Timer<TCPServerSession> idleTimer = null;
+
+	// Счётчики сессии. Изменяются только в IO-потоке.
+	volatile long readBytes = 0;
+	volatile long readFrames = 0;
+	volatile long writtenBytes = 0;
+	volatile long writtenFrames = 0;
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
@@ -59,6 +114,7 @@ public abstract class TCPServerSession
 	{
 		this.socket = clientSocket;
 		this.tcpServer = tcpServer;
+		this.reactor = tcpServer.nextReactor();
 
 		try
 		{
@@ -79,28 +135,155 @@ public abstract class TCPServerSession
 	// -----------------------------------------------------------------------------------------------------------------
 	public void close()
 	{
-		writeQueue.clear();
+		if( closed.compareAndSet( false, true ) && (tcpServer != null) )
+			tcpServer.removeSession( this );
+
 		try { selectionKey.cancel(); } catch( Throwable ex ) {}
 		try { socket.close(); } catch( Throwable ex ) {}
+
+		// Неотправленные буферы и таймер простоя освобождаются в IO-потоке - он может ещё писать буферы в сокет.
+		if( reactor != null )
+			reactor.needToFlush( this );
+
+		// Снимаем блокировку, чтобы освободить приостановленные из-за этой сессии соединения.
+		checkLowWatermark();
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Вызывается в ioThread-е.
+	 * Вызывается в IO-потоке реактора, за которым закреплена сессия.
 	 * В классе-наследнике необходимо считать из socket-а все имеющиеся данные.
 	 */
 	protected abstract void readFromSocket();
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке, в readFromSocket.
+	 * socket.read с учётом прочитанных байт в счётчиках сессии и сервера.
+	 */
+	protected int read( ByteBuffer dst ) throws IOException
+	{
+		int n = socket.read( dst );
+		if( n > 0 )
+		{
+			readBytes += n;
+			reactor.readBytes += n;
+		}
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке, в readFromSocket, когда из сокета прочитан очередной кадр (сообщение) протокола.
+	 */
+	protected void countReadFrame()
+	{
+		++readFrames;
+		++reactor.readFrames;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Может вызываться в различных потоках.
 	 */
 	public void writeToSocket( ByteBuffer buf )
 	{
+		if( queuedBytes.getAndAdd( buf.remaining() ) == 0 )
+			firstQueuedNanos = System.nanoTime();
 		writeQueue.offer( buf );
+		checkHighWatermark();
 		tcpServer.needToFlush( this );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * false - очередь на отправку превысила верхнюю границу (TCPServer.setWriteWatermarks),
+	 * в сессию не следует отправлять новые данные, пока она не станет снова доступной.
+	 */
+	public boolean isWritable()
+	{
+		return !writeBlocked;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void checkHighWatermark()
+	{
+		if( writeBlocked || (queuedBytes.get() < tcpServer.writeHighWatermark) )
+			return;
+
+		synchronized( writabilityLock )
+		{
+			if( !writeBlocked && (queuedBytes.get() >= tcpServer.writeHighWatermark) && socket.isOpen() )
+			{
+				writeBlocked = true;
+				onWritabilityChanged( false );
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке после отправки данных и при закрытии сессии.
+	 */
+	void checkLowWatermark()
+	{
+		if( !writeBlocked )
+			return;
+
+		synchronized( writabilityLock )
+		{
+			if( writeBlocked && ((queuedBytes.get() <= tcpServer.writeLowWatermark) || !socket.isOpen()) )
+			{
+				writeBlocked = false;
+				onWritabilityChanged( true );
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается, когда очередь на отправку превысила верхнюю границу (writable = false)
+	 * и когда опустилась ниже нижней границы или сессия закрыта (writable = true).
+	 * Вызовы строго чередуются, но могут происходить в разных потоках: false - в потоке, вызвавшем writeToSocket,
+	 * true - в IO-потоке или в потоке, закрывшем сессию.
+	 * В наследниках можно приостановить чтение из соединений, которые отправляют данные в эту сессию.
+	 */
+	protected void onWritabilityChanged( boolean writable ) {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Приостановить чтение из сокета.
+	 * Вызовы suspendReading и resumeReading считаются - чтение возобновится, когда каждому suspendReading
+	 * будет сопоставлен вызов resumeReading. Может вызываться в различных потоках.
+	 */
+	public void suspendReading()
+	{
+		readSuspends.incrementAndGet();
+		reactor.needToUpdateInterest( this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Возобновить чтение из сокета, см. suspendReading.
+	 */
+	public void resumeReading()
+	{
+		readSuspends.decrementAndGet();
+		reactor.needToUpdateInterest( this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке, когда из сессии ничего не прочитано дольше TCPServer.setIdleTimeout.
+	 * Метод не должен блокироваться.
+	 * @return true - сессия остаётся открытой ещё на время таймаута, например, если ей отправлен ping;
+	 * false - сессия будет закрыта.
+	 */
+	protected boolean onIdle()
+	{
+		return false;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Вызывается после передачи всего буфера в сокет.
@@ -111,4 +294,95 @@ public abstract class TCPServerSession
 	 */
 	protected void onWritten( ByteBuffer buf ) {}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке для каждого буфера, оставшегося в очереди на отправку после закрытия сессии.
+	 * buf уже удалён из очереди. В наследниках можно вернуть буфер в пул.
+	 */
+	protected void onDiscarded( ByteBuffer buf ) {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в IO-потоке, когда сокет закрыт: очередь на отправку очищается.
+	 */
+	void discardWriteQueue()
+	{
+		ByteBuffer buf;
+		while( (buf = writeQueue.poll()) != null )
+		{
+			queuedBytes.addAndGet( -buf.remaining() );
+			try
+			{
+				onDiscarded( buf );
+			}
+			catch( Throwable ex ) {}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько байт стоит в очереди на отправку.
+	 */
+	public long getQueuedBytes()
+	{
+		return queuedBytes.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * true - чтение из сокета приостановлено (suspendReading).
+	 */
+	public boolean isReadingSuspended()
+	{
+		return readSuspends.get() > 0;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Время (System.nanoTime) последнего чтения из сокета; до первого чтения - время создания сессии.
+	 */
+	public long getLastReadNanos()
+	{
+		return lastReadNanos;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Время (System.nanoTime) последней записи в сокет; до первой записи - время создания сессии.
+	 */
+	public long getLastWriteNanos()
+	{
+		return lastWriteNanos;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public long getReadBytes()
+	{
+		return readBytes;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько кадров прочитано - см. countReadFrame.
+	 */
+	public long getReadFrames()
+	{
+		return readFrames;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public long getWrittenBytes()
+	{
+		return writtenBytes;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько буферов из очереди полностью передано в сокет. Для D5 - кадров.
+	 */
+	public long getWrittenFrames()
+	{
+		return writtenFrames;
+	}
+
 }
\ No newline at end of file
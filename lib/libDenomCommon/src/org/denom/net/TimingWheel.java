@@ -0,0 +1,170 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import java.util.function.Consumer;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Хешированное колесо таймеров (hashed timing wheel) - для таймаутов многих соединений в одном IO-потоке.
+ * Время разбито на тики по tickMs, таймер попадает в ячейку (номер тика срабатывания) & (slots - 1).
+ * Постановка и отмена таймера - O(1); за тик просматривается одна ячейка. Таймеры длиннее оборота колеса
+ * (slots * tickMs) остаются в ячейке на следующие обороты.
+ * Точность - один тик: таймер срабатывает не раньше заданного времени и не позже, чем через тик после него.
+ *
+ * Не потокобезопасен - все вызовы в одном потоке.
+ */
+public final class TimingWheel<T>
+{
+	private final long tickMs;
+	private final int mask;
+	private final Timer<T>[] wheel;
+	private final long startMs;
+
+	// Последний обработанный тик
+	private long currentTick = 0;
+	private int size = 0;
+
+	// =================================================================================================================
+	/**
+	 * Таймер объекта. Создаётся один раз и переставляется при каждом schedule - без выделения памяти.
+	 */
+	public static final class Timer<T>
+	{
+		public final T owner;
+
+		private long deadlineTick;
+		private int slot = -1;
+		private Timer<T> prev;
+		private Timer<T> next;
+
+		private Timer( T owner )
+		{
+			this.owner = owner;
+		}
+
+		public boolean isScheduled()
+		{
+			return slot >= 0;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param tickMs - длительность тика, точность таймеров.
+	 * @param slots - количество ячеек, степень двойки.
+	 * @param nowMs - текущее время; дальше в advance передаётся время по тем же часам.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel( long tickMs, int slots, long nowMs )
+	{
+		MUST( (tickMs > 0) && (slots > 0) && ((slots & (slots - 1)) == 0), "Wrong TimingWheel params" );
+		this.tickMs = tickMs;
+		this.mask = slots - 1;
+		this.wheel = new Timer[ slots ];
+		this.startMs = nowMs;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public Timer<T> newTimer( T owner )
+	{
+		return new Timer<>( owner );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Поставить таймер на delayMs от текущего тика. Если таймер уже стоит - переставить.
+	 */
+	public void schedule( Timer<T> timer, long delayMs )
+	{
+		cancel( timer );
+
+		long ticks = Math.max( 1, (delayMs + tickMs - 1) / tickMs );
+		timer.deadlineTick = currentTick + ticks;
+		timer.slot = (int)(timer.deadlineTick & mask);
+
+		Timer<T> head = wheel[ timer.slot ];
+		timer.prev = null;
+		timer.next = head;
+		if( head != null )
+			head.prev = timer;
+		wheel[ timer.slot ] = timer;
+		++size;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public void cancel( Timer<T> timer )
+	{
+		if( timer.slot < 0 )
+			return;
+
+		if( timer.prev != null )
+			timer.prev.next = timer.next;
+		else
+			wheel[ timer.slot ] = timer.next;
+		if( timer.next != null )
+			timer.next.prev = timer.prev;
+
+		timer.prev = null;
+		timer.next = null;
+		timer.slot = -1;
+		--size;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Продвинуть колесо до момента nowMs и вызвать onExpired для владельцев сработавших таймеров.
+	 * Сработавший таймер снимается до вызова; onExpired может поставить его снова.
+	 */
+	public void advance( long nowMs, Consumer<T> onExpired )
+	{
+		long targetTick = (nowMs - startMs) / tickMs;
+		if( targetTick <= currentTick )
+			return;
+
+		long fromTick = currentTick;
+		// Новые таймеры из onExpired - относительно targetTick, в этом проходе они не сработают.
+		currentTick = targetTick;
+
+		// После долгой паузы достаточно одного оборота - он просматривает все ячейки.
+		long steps = Math.min( targetTick - fromTick, mask + 1 );
+		for( long i = 1; i <= steps; ++i )
+		{
+			int slot = (int)((fromTick + i) & mask);
+			Timer<T> timer = wheel[ slot ];
+			while( timer != null )
+			{
+				Timer<T> next = timer.next;
+				if( timer.deadlineTick <= targetTick )
+				{
+					cancel( timer );
+					onExpired.accept( timer.owner );
+				}
+				timer = next;
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Через сколько мс наступит следующий тик.
+	 */
+	public long msToNextTick( long nowMs )
+	{
+		long elapsed = nowMs - startMs;
+		return tickMs - (elapsed % tickMs);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько таймеров поставлено.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+}
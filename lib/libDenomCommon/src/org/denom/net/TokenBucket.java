@@ -0,0 +1,81 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.net;
+
+import static org.denom.Ex.*;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Ограничение частоты: корзина на burst токенов, пополняется со скоростью ratePerSec токенов в секунду.
+ * Запрос берёт из корзины столько токенов, сколько "стоит" - 1 на соединение или команду, размер данных на байты.
+ * Пока в корзине есть токены, допускаются всплески до burst, в среднем - не больше ratePerSec.
+ * Потокобезопасен.
+ */
+public class TokenBucket
+{
+	private final double ratePerNano;
+	private final double burst;
+
+	private double tokens;
+	private long lastNanos;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param ratePerSec - сколько токенов добавляется в секунду.
+	 * @param burst - ёмкость корзины; вначале корзина полная.
+	 */
+	public TokenBucket( double ratePerSec, double burst )
+	{
+		MUST( (ratePerSec > 0) && (burst >= 1), "Wrong TokenBucket params" );
+		this.ratePerNano = ratePerSec / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastNanos = System.nanoTime();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void refill()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min( burst, tokens + (now - lastNanos) * ratePerNano );
+		lastNanos = now;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Взять n токенов.
+	 * Запрос дороже ёмкости корзины допускается, когда корзина полная, - недостающее уходит в долг,
+	 * и следующие запросы ждут, пока долг не погасится.
+	 * @return false - токенов не хватает, запрос нужно отклонить; токены не расходуются.
+	 */
+	public synchronized boolean tryTake( long n )
+	{
+		refill();
+		if( tokens < Math.min( n, burst ) )
+			return false;
+		tokens -= n;
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вернуть n токенов, взятых tryTake, - запрос всё же отклонён (например, другой корзиной).
+	 */
+	public synchronized void giveBack( long n )
+	{
+		refill();
+		tokens = Math.min( burst, tokens + n );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Корзина полная - её можно удалить и при необходимости создать заново без изменения поведения.
+	 */
+	public synchronized boolean isFull()
+	{
+		refill();
+		return tokens >= burst;
+	}
+
+}
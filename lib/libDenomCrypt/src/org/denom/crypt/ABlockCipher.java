@@ -31,6 +31,13 @@ public abstract class ABlockCipher
 	public abstract void encryptBlock( Binary block );
 	public abstract void decryptBlock( Binary block );
 
+	/**
+	 * Process one block: getBlockSize() bytes from in[inOff] to out[outOff].
+	 * Arrays are not checked. in and out may be the same array with the same offset.
+	 */
+	public abstract void encryptBlock( byte[] in, int inOff, byte[] out, int outOff );
+	public abstract void decryptBlock( byte[] in, int inOff, byte[] out, int outOff );
+
 
 	public abstract Binary encrypt( final Binary data, CryptoMode cryptMode, AlignMode alignMode );
 	public abstract Binary encrypt( final Binary data, CryptoMode cryptMode, AlignMode alignMode, final Binary iv );
@@ -47,6 +54,131 @@ public abstract class ABlockCipher
 	public abstract void decryptNext( final Binary crypt, Binary data );
 	public abstract void decryptLast( final Binary crypt, Binary data );
 
+	// -----------------------------------------------------------------------------------------------------------------
+	private byte[] chain = null;
+	private byte[] gamma = null;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private byte[] chainBuf()
+	{
+		if( chain == null )
+			chain = new byte[ getBlockSize() ];
+		return chain;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private byte[] gammaBuf()
+	{
+		if( gamma == null )
+			gamma = new byte[ getBlockSize() ];
+		return gamma;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Encrypt len bytes (multiple of block size) from in[inOff] to out[outOff] in ECB, CBC, CFB or OFB mode.
+	 * in and out may be the same array with the same offset.
+	 * @param iv - [getBlockSize()], chaining value; updated so that next call continues the stream.
+	 */
+	protected void encryptBlocks( CryptoMode mode, byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len )
+	{
+		int bs = getBlockSize();
+		int end = inOff + len;
+		int o = outOff;
+
+		switch( mode )
+		{
+			case ECB:
+				for( int i = inOff; i < end; i += bs, o += bs )
+					encryptBlock( in, i, out, o );
+				break;
+
+			case CBC:
+				for( int i = inOff; i < end; i += bs, o += bs )
+				{
+					for( int j = 0; j < bs; ++j )
+						iv[ j ] ^= in[ i + j ];
+					encryptBlock( iv, 0, iv, 0 );
+					System.arraycopy( iv, 0, out, o, bs );
+				}
+				break;
+
+			case CFB:
+				for( int i = inOff; i < end; i += bs, o += bs )
+				{
+					encryptBlock( iv, 0, iv, 0 );
+					for( int j = 0; j < bs; ++j )
+					{
+						iv[ j ] ^= in[ i + j ];
+						out[ o + j ] = iv[ j ];
+					}
+				}
+				break;
+
+			case OFB:
+				for( int i = inOff; i < end; i += bs, o += bs )
+				{
+					encryptBlock( iv, 0, iv, 0 );
+					for( int j = 0; j < bs; ++j )
+						out[ o + j ] = (byte)(in[ i + j ] ^ iv[ j ]);
+				}
+				break;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Decrypt len bytes (multiple of block size), see encryptBlocks.
+	 */
+	protected void decryptBlocks( CryptoMode mode, byte[] iv, byte[] in, int inOff, byte[] out, int outOff, int len )
+	{
+		int bs = getBlockSize();
+		int end = inOff + len;
+		int o = outOff;
+
+		switch( mode )
+		{
+			case ECB:
+				for( int i = inOff; i < end; i += bs, o += bs )
+					decryptBlock( in, i, out, o );
+				break;
+
+			case CBC:
+			{
+				// Cryptogram block is kept before decryption - in and out may be the same block
+				byte[] c = chainBuf();
+				for( int i = inOff; i < end; i += bs, o += bs )
+				{
+					System.arraycopy( in, i, c, 0, bs );
+					decryptBlock( in, i, out, o );
+					for( int j = 0; j < bs; ++j )
+					{
+						out[ o + j ] ^= iv[ j ];
+						iv[ j ] = c[ j ];
+					}
+				}
+				break;
+			}
+
+			case CFB:
+				for( int i = inOff; i < end; i += bs, o += bs )
+				{
+					encryptBlock( iv, 0, iv, 0 );
+					for( int j = 0; j < bs; ++j )
+					{
+						byte c = in[ i + j ];
+						out[ o + j ] = (byte)(c ^ iv[ j ]);
+						iv[ j ] = c;
+					}
+				}
+				break;
+
+			case OFB:
+				encryptBlocks( mode, iv, in, inOff, out, outOff, len );
+				break;
+		}
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Counter (CTR) mode -- ISO 10116:2006.
@@ -61,35 +193,97 @@ public abstract class ABlockCipher
 		int blockSize = getBlockSize();
 		MUST( (JBytes > 0) && (JBytes <= blockSize) && (SV.size() == blockSize), "Wrong params for CTR" );
 
-		Binary Qi = SV.clone();
-		Binary Ei = Bin( blockSize );
 		Binary C = Bin( P.size() );
-		byte[] CArr = C.getDataRef();
-		byte[] PArr = P.getDataRef();
-		byte[] EArr = Ei.getDataRef();
+		byte[] Q = chainBuf();
+		System.arraycopy( SV.getDataRef(), 0, Q, 0, blockSize );
+		cryptCTR( Q, JBytes, P.getDataRef(), 0, C.getDataRef(), 0, P.size() );
+		return C;
+	}
 
-		int PSize = P.size();
-		for( int offset = 0; offset < PSize; offset += JBytes )
-		{
-			Ei.assign( Qi );
-			encryptBlock( Ei );
+	// -----------------------------------------------------------------------------------------------------------------
+	public Binary cryptCTR( final Binary P, final Binary SV )
+	{
+		return cryptCTR( P, SV, getBlockSize() );
+	}
 
-			// Ci = Ei xor Pi
-			int partSize = Math.min( JBytes, PSize - offset );
-			for( int i = 0; i < partSize; ++i )
-			{
-				CArr[ offset + i ] = (byte)(PArr[ offset + i ] ^ EArr[ i ]);
-			}
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * CTR mode, large data is processed by chunks in ForkJoinPool.commonPool() - see ParallelCrypt.
+	 * Each chunk gets its own copy of the cipher and starting counter SV + (number of parts before the chunk).
+	 * Result is the same as cryptCTR( P, SV, JBytes ).
+	 */
+	public Binary cryptCTRParallel( final Binary P, final Binary SV, int JBytes )
+	{
+		int size = P.size();
+		if( !ParallelCrypt.isWorth( size ) )
+			return cryptCTR( P, SV, JBytes );
 
-			Qi.increment();
-		}
+		int blockSize = getBlockSize();
+		MUST( (JBytes > 0) && (JBytes <= blockSize) && (SV.size() == blockSize), "Wrong params for CTR" );
+
+		Binary C = Bin( size );
+		byte[] in = P.getDataRef();
+		byte[] out = C.getDataRef();
+		byte[] sv = SV.getDataRef();
+
+		int chunk = ParallelCrypt.CHUNK_SIZE / JBytes * JBytes;
+		ParallelCrypt.forEach( (size + chunk - 1) / chunk, c ->
+		{
+			byte[] Q = new byte[ blockSize ];
+			System.arraycopy( sv, 0, Q, 0, blockSize );
+			addToCounter( Q, (long)c * (chunk / JBytes) );
 
+			int offset = c * chunk;
+			clone().cryptCTR( Q, JBytes, in, offset, out, offset, Math.min( chunk, size - offset ) );
+		} );
 		return C;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	public Binary cryptCTR( final Binary P, final Binary SV )
+	public Binary cryptCTRParallel( final Binary P, final Binary SV )
 	{
-		return cryptCTR( P, SV, getBlockSize() );
+		return cryptCTRParallel( P, SV, getBlockSize() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Q += n, Q - big-endian number, modulo 2^(8 * Q.length) - same as n increments in cryptCTR.
+	 */
+	static void addToCounter( byte[] Q, long n )
+	{
+		long carry = n;
+		for( int i = Q.length - 1; (i >= 0) && (carry != 0); --i )
+		{
+			long sum = (Q[ i ] & 0xFF) + (carry & 0xFF);
+			Q[ i ] = (byte)sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * CTR mode on arrays: len bytes from in[inOff] to out[outOff], in and out may be the same array with the same offset.
+	 * @param Q - counter [getBlockSize()], incremented (as big-endian number) after each part of JBytes.
+	 */
+	protected void cryptCTR( byte[] Q, int JBytes, byte[] in, int inOff, byte[] out, int outOff, int len )
+	{
+		int blockSize = getBlockSize();
+		byte[] E = gammaBuf();
+
+		for( int offset = 0; offset < len; offset += JBytes )
+		{
+			encryptBlock( Q, 0, E, 0 );
+
+			// Ci = Ei xor Pi
+			int partSize = Math.min( JBytes, len - offset );
+			int i0 = inOff + offset;
+			int o0 = outOff + offset;
+			for( int i = 0; i < partSize; ++i )
+			{
+				out[ o0 + i ] = (byte)(in[ i0 + i ] ^ E[ i ]);
+			}
+
+			for( int i = blockSize - 1; (i >= 0) && (++Q[ i ] == 0); --i ) {}
+		}
 	}
 }
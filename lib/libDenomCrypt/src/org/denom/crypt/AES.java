@@ -193,36 +193,7 @@ public class AES extends ABlockCipher
 		MUST( crypt.size() == data.size(), "data and crypt must be equal size" );
 		MUST( (data.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of BLOCK_SIZE" );
 
-		for( int i = 0; i < data.size(); i += BLOCK_SIZE )
-		{
-			temp_block.assign( data, i, BLOCK_SIZE );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					encryptBlock( temp_block );
-					break;
-
-				case CBC:
-					temp_block.xor( temp_IV );
-					encryptBlock( temp_block );
-					temp_IV.assign( temp_block );
-					break;
-
-				case CFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( temp_block );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			System.arraycopy( temp_block.getDataRef(), 0, crypt.getDataRef(), i, BLOCK_SIZE );
-		}
+		encryptBlocks( crypt_mode, temp_IV.getDataRef(), data.getDataRef(), 0, crypt.getDataRef(), 0, data.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -321,38 +292,7 @@ public class AES extends ABlockCipher
 		MUST( crypt.size() == data.size(), "crypt and data must be equal size" );
 		MUST( (crypt.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of BLOCK_SIZE" );
 
-		for( int i = 0; i < crypt.size(); i += BLOCK_SIZE )
-		{
-			temp_block.assign( crypt, i, BLOCK_SIZE );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					decryptBlock( temp_block );
-					break;
-
-				case CBC:
-					prev_IV.assign( temp_block );
-					decryptBlock( temp_block );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case CFB:
-					prev_IV.assign( temp_block );
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			System.arraycopy( temp_block.getDataRef(), 0, data.getDataRef(), i, BLOCK_SIZE );
-		}
+		decryptBlocks( crypt_mode, temp_IV.getDataRef(), crypt.getDataRef(), 0, data.getDataRef(), 0, crypt.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -459,10 +399,6 @@ public class AES extends ABlockCipher
 	private CryptoMode crypt_mode;
 	// задается в encryptFirst/decryptFirst
 	private AlignMode align_mode;
-	// вынесли из ecnryptNext/decryptNext
-	private Binary temp_block = Bin( BLOCK_SIZE );
-	// вынесли из decryptNext
-	private Binary prev_IV = Bin( BLOCK_SIZE );
 
 	private Binary m_key;
 
@@ -687,14 +623,32 @@ public class AES extends ABlockCipher
 	 * Зашифровать блок ({@link #BLOCK_SIZE} байт) данных.
 	 * @param block блок данных
 	 */
+	@Override
 	public void encryptBlock( Binary block )
 	{
 		MUST( block.size() == BLOCK_SIZE, "Incorrect block size" );
+		byte[] arr = block.getDataRef();
+		encryptBlock( arr, 0, arr, 0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int getIntBE( byte[] b, int offset )
+	{
+		return (b[ offset ] << 24) | ((b[ offset + 1 ] & 0xff) << 16) | ((b[ offset + 2 ] & 0xff) << 8) | (b[ offset + 3 ] & 0xff);
+	}
 
-		int t0 = block.getIntBE( 0 ) ^ rek[ 0 ];
-		int t1 = block.getIntBE( 4 ) ^ rek[ 1 ];
-		int t2 = block.getIntBE( 8 ) ^ rek[ 2 ];
-		int t3 = block.getIntBE( 12 ) ^ rek[ 3 ];
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать блок из in[inOff] в out[outOff]. Массивы могут совпадать.
+	 */
+	@Override
+	public void encryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		int[] rek = this.rek;
+		int t0 = getIntBE( in, inOff      ) ^ rek[ 0 ];
+		int t1 = getIntBE( in, inOff +  4 ) ^ rek[ 1 ];
+		int t2 = getIntBE( in, inOff +  8 ) ^ rek[ 2 ];
+		int t3 = getIntBE( in, inOff + 12 ) ^ rek[ 3 ];
 
 		int k = 0;
 		for( int r = 1; r < Nr; ++r )
@@ -733,29 +687,28 @@ public class AES extends ABlockCipher
 		k += 4;
 
 		int v = rek[ k ];
-		byte[] block_arr = block.getDataRef();
-		block_arr[ 0 ] = (byte)(Se[ (t0 >>> 24)        ] ^ (v >>> 24));
-		block_arr[ 1 ] = (byte)(Se[ (t1 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 2 ] = (byte)(Se[ (t2 >>>  8) & 0xff ] ^ (v >>>  8));
-		block_arr[ 3 ] = (byte)(Se[ (t3       ) & 0xff ] ^ (v));
+		out[ outOff ] = (byte)(Se[ (t0 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 1 ] = (byte)(Se[ (t1 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 2 ] = (byte)(Se[ (t2 >>>  8) & 0xff ] ^ (v >>>  8));
+		out[ outOff + 3 ] = (byte)(Se[ (t3       ) & 0xff ] ^ (v));
 
 		v = rek[ k + 1 ];
-		block_arr[ 4 ] = (byte)(Se[ (t1 >>> 24)       ] ^ (v >>> 24));
-		block_arr[ 5 ] = (byte)(Se[ (t2 >>> 16) & 0xff] ^ (v >>> 16));
-		block_arr[ 6 ] = (byte)(Se[ (t3 >>>  8) & 0xff] ^ (v >>>  8));
-		block_arr[ 7 ] = (byte)(Se[ (t0       ) & 0xff] ^ (v));
+		out[ outOff + 4 ] = (byte)(Se[ (t1 >>> 24)       ] ^ (v >>> 24));
+		out[ outOff + 5 ] = (byte)(Se[ (t2 >>> 16) & 0xff] ^ (v >>> 16));
+		out[ outOff + 6 ] = (byte)(Se[ (t3 >>>  8) & 0xff] ^ (v >>>  8));
+		out[ outOff + 7 ] = (byte)(Se[ (t0       ) & 0xff] ^ (v));
 
 		v = rek[ k + 2 ];
-		block_arr[  8 ] = (byte)(Se[ (t2 >>> 24)        ] ^ (v >>> 24));
-		block_arr[  9 ] = (byte)(Se[ (t3 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 10 ] = (byte)(Se[ (t0 >>>  8) & 0xff ] ^ (v >>>  8));
-		block_arr[ 11 ] = (byte)(Se[ (t1       ) & 0xff ] ^ (v));
+		out[ outOff + 8 ] = (byte)(Se[ (t2 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 9 ] = (byte)(Se[ (t3 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 10 ] = (byte)(Se[ (t0 >>>  8) & 0xff ] ^ (v >>>  8));
+		out[ outOff + 11 ] = (byte)(Se[ (t1       ) & 0xff ] ^ (v));
 
 		v = rek[ k + 3 ];
-		block_arr[ 12 ] = (byte)(Se[ (t3 >>> 24)        ] ^ (v >>> 24));
-		block_arr[ 13 ] = (byte)(Se[ (t0 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 14 ] = (byte)(Se[ (t1 >>>  8) & 0xff ] ^ (v >>>  8));
-		block_arr[ 15 ] = (byte)(Se[ (t2       ) & 0xff ] ^ (v));
+		out[ outOff + 12 ] = (byte)(Se[ (t3 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 13 ] = (byte)(Se[ (t0 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 14 ] = (byte)(Se[ (t1 >>>  8) & 0xff ] ^ (v >>>  8));
+		out[ outOff + 15 ] = (byte)(Se[ (t2       ) & 0xff ] ^ (v));
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -763,14 +716,26 @@ public class AES extends ABlockCipher
 	 * Расшифровать блок ({@link #BLOCK_SIZE} байт) зашифрованных данных.
 	 * @param block блок данных
 	 */
+	@Override
 	public void decryptBlock( Binary block )
 	{
 		MUST( block.size() == BLOCK_SIZE, "Incorrect block size" );
+		byte[] arr = block.getDataRef();
+		decryptBlock( arr, 0, arr, 0 );
+	}
 
-		int t0 = block.getIntBE(  0 ) ^ rdk[ 0 ];
-		int t1 = block.getIntBE(  4 ) ^ rdk[ 1 ];
-		int t2 = block.getIntBE(  8 ) ^ rdk[ 2 ];
-		int t3 = block.getIntBE( 12 ) ^ rdk[ 3 ];
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать блок из in[inOff] в out[outOff]. Массивы могут совпадать.
+	 */
+	@Override
+	public void decryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		int[] rdk = this.rdk;
+		int t0 = getIntBE( in, inOff      ) ^ rdk[ 0 ];
+		int t1 = getIntBE( in, inOff +  4 ) ^ rdk[ 1 ];
+		int t2 = getIntBE( in, inOff +  8 ) ^ rdk[ 2 ];
+		int t3 = getIntBE( in, inOff + 12 ) ^ rdk[ 3 ];
 
 		int k = 0;
 		for( int r = 1; r < Nr; ++r )
@@ -809,29 +774,28 @@ public class AES extends ABlockCipher
 		k += 4;
 
 		int v = rdk[ k ];
-		byte[] block_arr = block.getDataRef();
-		block_arr[ 0 ] = (byte)(Sd[ (t0 >>> 24)        ] ^ (v >>> 24));
-		block_arr[ 1 ] = (byte)(Sd[ (t3 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 2 ] = (byte)(Sd[ (t2 >>>  8) & 0xff ] ^ (v >>> 8));
-		block_arr[ 3 ] = (byte)(Sd[ (t1       ) & 0xff ] ^ (v));
+		out[ outOff ] = (byte)(Sd[ (t0 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 1 ] = (byte)(Sd[ (t3 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 2 ] = (byte)(Sd[ (t2 >>>  8) & 0xff ] ^ (v >>> 8));
+		out[ outOff + 3 ] = (byte)(Sd[ (t1       ) & 0xff ] ^ (v));
 
 		v = rdk[ k + 1 ];
-		block_arr[ 4 ] = (byte)(Sd[ (t1 >>> 24)        ] ^ (v >>> 24));
-		block_arr[ 5 ] = (byte)(Sd[ (t0 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 6 ] = (byte)(Sd[ (t3 >>>  8) & 0xff ] ^ (v >>> 8));
-		block_arr[ 7 ] = (byte)(Sd[ (t2       ) & 0xff ] ^ (v));
+		out[ outOff + 4 ] = (byte)(Sd[ (t1 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 5 ] = (byte)(Sd[ (t0 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 6 ] = (byte)(Sd[ (t3 >>>  8) & 0xff ] ^ (v >>> 8));
+		out[ outOff + 7 ] = (byte)(Sd[ (t2       ) & 0xff ] ^ (v));
 
 		v = rdk[ k + 2 ];
-		block_arr[  8 ] = (byte)(Sd[ (t2 >>> 24)        ] ^ (v >>> 24));
-		block_arr[  9 ] = (byte)(Sd[ (t1 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 10 ] = (byte)(Sd[ (t0 >>>  8) & 0xff ] ^ (v >>> 8));
-		block_arr[ 11 ] = (byte)(Sd[ (t3       ) & 0xff ] ^ (v));
+		out[ outOff + 8 ] = (byte)(Sd[ (t2 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 9 ] = (byte)(Sd[ (t1 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 10 ] = (byte)(Sd[ (t0 >>>  8) & 0xff ] ^ (v >>> 8));
+		out[ outOff + 11 ] = (byte)(Sd[ (t3       ) & 0xff ] ^ (v));
 
 		v = rdk[ k + 3 ];
-		block_arr[ 12 ] = (byte)(Sd[ (t3 >>> 24)        ] ^ (v >>> 24));
-		block_arr[ 13 ] = (byte)(Sd[ (t2 >>> 16) & 0xff ] ^ (v >>> 16));
-		block_arr[ 14 ] = (byte)(Sd[ (t1 >>>  8) & 0xff ] ^ (v >>> 8));
-		block_arr[ 15 ] = (byte)(Sd[ (t0       ) & 0xff ] ^ (v));
+		out[ outOff + 12 ] = (byte)(Sd[ (t3 >>> 24)        ] ^ (v >>> 24));
+		out[ outOff + 13 ] = (byte)(Sd[ (t2 >>> 16) & 0xff ] ^ (v >>> 16));
+		out[ outOff + 14 ] = (byte)(Sd[ (t1 >>>  8) & 0xff ] ^ (v >>> 8));
+		out[ outOff + 15 ] = (byte)(Sd[ (t0       ) & 0xff ] ^ (v));
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -0,0 +1,335 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.crypt;
+
+import org.denom.Binary;
+
+import static org.denom.Binary.*;
+import static org.denom.Ex.*;
+
+/**
+ * AES в режиме CCM (Counter with CBC-MAC) - шифрование с аутентификацией.
+ * NIST SP 800-38C, RFC 3610. https://nvlpubs.nist.gov/nistpubs/Legacy/SP/nistspecialpublication800-38c.pdf
+ * CBC-MAC и CTR вычисляются в одном цикле по блокам данных.
+ * Размер данных входит в первый блок CBC-MAC, поэтому в потоковом режиме он задаётся заранее.
+ * Одну пару (ключ, nonce) нельзя использовать повторно.
+ * Не потокобезопасен.
+ */
+public class AES_CCM
+{
+	public static final int BLOCK_SIZE = AES.BLOCK_SIZE;
+	public static final int TAG_SIZE = 16;
+
+	private final AES aes = new AES();
+	private final int tagSize;
+
+	// Состояние потоковой обработки
+	private final byte[] mac = new byte[ BLOCK_SIZE ];
+	private final byte[] ctr = new byte[ BLOCK_SIZE ];
+	private final byte[] ks = new byte[ BLOCK_SIZE ];
+	private final byte[] S0 = new byte[ BLOCK_SIZE ];
+	private int q;
+	private long expectedSize;
+	private long dataSize;
+	private boolean started = false;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Размер тега - 16 байт.
+	 * @param key Ключ AES [16 или 24 или 32 байт]
+	 */
+	public AES_CCM( final Binary key )
+	{
+		this( key, TAG_SIZE );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param key Ключ AES [16 или 24 или 32 байт]
+	 * @param tagSize Размер тега [4, 6, 8, 10, 12, 14, 16 байт]
+	 */
+	public AES_CCM( final Binary key, int tagSize )
+	{
+		MUST( (tagSize >= 4) && (tagSize <= TAG_SIZE) && ((tagSize & 1) == 0), "Wrong CCM tag size" );
+		this.tagSize = tagSize;
+		setKey( key );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Задать ключ шифрования.
+	 */
+	public AES_CCM setKey( final Binary key )
+	{
+		aes.setKey( key );
+		started = false;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getTagSize()
+	{
+		return tagSize;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные.
+	 * @param data Входные данные, любого размера
+	 * @param nonce Nonce [7..13 байт]
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @return Криптограмма и тег: [data.size() + getTagSize()]
+	 */
+	public Binary encrypt( final Binary data, final Binary nonce, final Binary aad )
+	{
+		Binary crypt = Bin( data.size() );
+		Binary tag = Bin();
+		encryptFirst( Bin(), Bin(), nonce, aad, data.size() );
+		encryptLast( data, crypt, tag );
+		return crypt.add( tag );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Проверить тег и расшифровать данные.
+	 * @param cryptAndTag Криптограмма и тег
+	 * @param nonce Nonce [7..13 байт]
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @return Расшифрованные данные. Если тег неверный - исключение.
+	 */
+	public Binary decrypt( final Binary cryptAndTag, final Binary nonce, final Binary aad )
+	{
+		MUST( cryptAndTag.size() >= tagSize, "Wrong CCM cryptogram size" );
+		int cryptSize = cryptAndTag.size() - tagSize;
+
+		Binary data = Bin( cryptSize );
+		decryptFirst( Bin(), Bin(), nonce, aad, cryptSize );
+		decryptLast( cryptAndTag.first( cryptSize ), data, cryptAndTag.last( tagSize ) );
+		return data;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Первый шаг.
+	 * @param data Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 * @param nonce Nonce [7..13 байт]
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @param totalSize Размер всех данных, которые будут переданы в First, Next и Last
+	 */
+	public void encryptFirst( final Binary data, Binary crypt, final Binary nonce, final Binary aad, long totalSize )
+	{
+		start( nonce, aad, totalSize );
+		encryptNext( data, crypt );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Промежуточные шаги.
+	 * @param data Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 */
+	public void encryptNext( final Binary data, Binary crypt )
+	{
+		checkNext( data, crypt );
+		cryptBlocks( true, data.getDataRef(), crypt.getDataRef(), data.size() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Последний шаг.
+	 * @param data Массив входных данных, любого размера
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 * @param tag Выход - тег [getTagSize()]
+	 */
+	public void encryptLast( final Binary data, Binary crypt, Binary tag )
+	{
+		MUST( started, "CCM: encryptFirst not called" );
+		MUST( crypt.size() == data.size(), "data and crypt must be equal size" );
+		cryptBlocks( true, data.getDataRef(), crypt.getDataRef(), data.size() );
+
+		tag.resize( tagSize );
+		finish( tag.getDataRef() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Первый шаг.
+	 * Расшифрованные данные промежуточных шагов не проверены, пока decryptLast не проверит тег.
+	 * @param crypt Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 * @param nonce Nonce [7..13 байт]
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @param totalSize Размер всей криптограммы (без тега), которая будет передана в First, Next и Last
+	 */
+	public void decryptFirst( final Binary crypt, Binary data, final Binary nonce, final Binary aad, long totalSize )
+	{
+		start( nonce, aad, totalSize );
+		decryptNext( crypt, data );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Промежуточные шаги.
+	 * @param crypt Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 */
+	public void decryptNext( final Binary crypt, Binary data )
+	{
+		checkNext( crypt, data );
+		cryptBlocks( false, crypt.getDataRef(), data.getDataRef(), crypt.size() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Последний шаг, проверка тега.
+	 * @param crypt Массив входных данных, любого размера
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 * @param tag Ожидаемый тег [getTagSize()]. Если тег неверный - исключение.
+	 */
+	public void decryptLast( final Binary crypt, Binary data, final Binary tag )
+	{
+		MUST( started, "CCM: decryptFirst not called" );
+		MUST( crypt.size() == data.size(), "crypt and data must be equal size" );
+		MUST( tag.size() == tagSize, "Wrong CCM tag size" );
+		cryptBlocks( false, crypt.getDataRef(), data.getDataRef(), crypt.size() );
+
+		byte[] calcTag = new byte[ BLOCK_SIZE ];
+		finish( calcTag );
+
+		byte[] t = tag.getDataRef();
+		int diff = 0;
+		for( int i = 0; i < tagSize; ++i )
+			diff |= calcTag[ i ] ^ t[ i ];
+		MUST( diff == 0, "CCM: wrong tag" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void checkNext( final Binary in, final Binary out )
+	{
+		MUST( started, "CCM: First step not called" );
+		MUST( out.size() == in.size(), "Input and output must be equal size" );
+		MUST( (in.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of BLOCK_SIZE" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * CBC-MAC от B0 и AAD, счётчик Ctr0 и S0 = E( Ctr0 ).
+	 */
+	private void start( final Binary nonce, final Binary aad, long totalSize )
+	{
+		int n = nonce.size();
+		MUST( (n >= 7) && (n <= 13), "Wrong CCM nonce size" );
+		q = 15 - n;
+		MUST( (totalSize >= 0) && ((q >= 8) || (totalSize < (1L << (8 * q)))), "CCM: data too long for nonce size" );
+
+		boolean hasAad = (aad != null) && !aad.empty();
+
+		// B0 = Flags || N || Q
+		mac[ 0 ] = (byte)((hasAad ? 0x40 : 0) | (((tagSize - 2) / 2) << 3) | (q - 1));
+		System.arraycopy( nonce.getDataRef(), 0, mac, 1, n );
+		long len = totalSize;
+		for( int i = BLOCK_SIZE - 1; i > n; --i )
+		{
+			mac[ i ] = (byte)len;
+			len >>>= 8;
+		}
+		aes.encryptBlock( mac, 0, mac, 0 );
+
+		if( hasAad )
+			macAad( aad );
+
+		// Ctr0 = Flags || N || 0
+		ctr[ 0 ] = (byte)(q - 1);
+		System.arraycopy( nonce.getDataRef(), 0, ctr, 1, n );
+		for( int i = n + 1; i < BLOCK_SIZE; ++i )
+			ctr[ i ] = 0;
+		aes.encryptBlock( ctr, 0, S0, 0 );
+
+		expectedSize = totalSize;
+		dataSize = 0;
+		started = true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Длина AAD (2, 6 или 10 байт) || AAD, дополненные нулями до блока.
+	 */
+	private void macAad( final Binary aad )
+	{
+		long a = aad.size();
+		Binary header = Bin().reserve( aad.size() + 10 + BLOCK_SIZE );
+		if( a < 0xFF00 )
+		{
+			header.add( (int)(a >>> 8) ).add( (int)a );
+		}
+		else
+		{
+			header.add( 0xFF ).add( 0xFE );
+			for( int sh = 24; sh >= 0; sh -= 8 )
+				header.add( (int)(a >>> sh) );
+		}
+		header.add( aad );
+		header.resize( (header.size() + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1) );
+
+		byte[] h = header.getDataRef();
+		for( int off = 0; off < header.size(); off += BLOCK_SIZE )
+		{
+			for( int i = 0; i < BLOCK_SIZE; ++i )
+				mac[ i ] ^= h[ off + i ];
+			aes.encryptBlock( mac, 0, mac, 0 );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * CBC-MAC от открытых данных и CTR - за один проход. in и out могут совпадать.
+	 */
+	private void cryptBlocks( boolean encrypt, byte[] in, byte[] out, int len )
+	{
+		MUST( dataSize + len <= expectedSize, "CCM: data longer than declared" );
+
+		for( int off = 0; off < len; off += BLOCK_SIZE )
+		{
+			for( int i = BLOCK_SIZE - 1; (i >= BLOCK_SIZE - q) && (++ctr[ i ] == 0); --i ) {}
+			aes.encryptBlock( ctr, 0, ks, 0 );
+
+			int n = Math.min( BLOCK_SIZE, len - off );
+			if( encrypt )
+			{
+				for( int i = 0; i < n; ++i )
+				{
+					byte p = in[ off + i ];
+					mac[ i ] ^= p;
+					out[ off + i ] = (byte)(p ^ ks[ i ]);
+				}
+			}
+			else
+			{
+				for( int i = 0; i < n; ++i )
+				{
+					byte p = (byte)(in[ off + i ] ^ ks[ i ]);
+					out[ off + i ] = p;
+					mac[ i ] ^= p;
+				}
+			}
+			aes.encryptBlock( mac, 0, mac, 0 );
+		}
+		dataSize += len;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * tag = MSB( CBC-MAC ) xor MSB( S0 ); пишется getTagSize() байт.
+	 */
+	private void finish( byte[] tag )
+	{
+		started = false;
+		MUST( dataSize == expectedSize, "CCM: data size differs from declared" );
+
+		for( int i = 0; i < tagSize; ++i )
+			tag[ i ] = (byte)(mac[ i ] ^ S0[ i ]);
+	}
+
+}
@@ -0,0 +1,625 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.crypt;
+
+import java.util.Arrays;
+import org.denom.Binary;
+
+import static org.denom.Binary.*;
+import static org.denom.Ex.*;
+
+/**
+ * AES в режиме GCM (Galois/Counter Mode) - шифрование с аутентификацией за один проход.
+ * NIST SP 800-38D. https://nvlpubs.nist.gov/nistpubs/Legacy/SP/nistspecialpublication800-38d.pdf
+ * GHASH - умножение в GF(2^128) по таблице от ключа (256 * 16 байт), 16 табличных шагов на блок.
+ * Большие данные можно обработать в нескольких потоках - encryptParallel, decryptParallel.
+ * Одну пару (ключ, IV) нельзя использовать повторно.
+ * Не потокобезопасен.
+ */
+public class AES_GCM
+{
+	public static final int BLOCK_SIZE = AES.BLOCK_SIZE;
+	public static final int TAG_SIZE = 16;
+
+	private final AES aes = new AES();
+	private final int tagSize;
+
+	// Таблица умножения на H: M[b] = b * H, b - байт как многочлен степени < 8
+	private final long[] mHi = new long[ 256 ];
+	private final long[] mLo = new long[ 256 ];
+
+	// Редукция по модулю x^128 + x^7 + x^2 + x + 1 для 8 бит, выходящих за x^127 при сдвиге на байт
+	private static final long[] R8 = new long[ 256 ];
+
+	// H = E(0^128) - для возведения в степень при сборке GHASH кусков в encryptParallel
+	private long hHi;
+	private long hLo;
+
+	// Состояние потоковой обработки
+	private final byte[] J0 = new byte[ BLOCK_SIZE ];
+	private final Part main = new Part( aes );
+	private long aadSize;
+	private long dataSize;
+	private boolean started = false;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	static
+	{
+		for( int r = 0; r < 256; ++r )
+		{
+			long hi = 0;
+			long lo = r;
+			for( int i = 0; i < 8; ++i )
+			{
+				long carry = lo & 1;
+				lo = (lo >>> 1) | (hi << 63);
+				hi = (hi >>> 1) ^ (-carry & 0xE100000000000000L);
+			}
+			R8[ r ] = hi;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Размер тега - 16 байт.
+	 * @param key Ключ AES [16 или 24 или 32 байт]
+	 */
+	public AES_GCM( final Binary key )
+	{
+		this( key, TAG_SIZE );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param key Ключ AES [16 или 24 или 32 байт]
+	 * @param tagSize Размер тега [12..16 байт]
+	 */
+	public AES_GCM( final Binary key, int tagSize )
+	{
+		MUST( (tagSize >= 12) && (tagSize <= TAG_SIZE), "Wrong GCM tag size" );
+		this.tagSize = tagSize;
+		setKey( key );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Задать ключ шифрования.
+	 */
+	public AES_GCM setKey( final Binary key )
+	{
+		aes.setKey( key );
+
+		// H = E(0^128); V[j] = H * x^j
+		byte[] h = new byte[ BLOCK_SIZE ];
+		aes.encryptBlock( h, 0, h, 0 );
+		long[] vHi = new long[ 8 ];
+		long[] vLo = new long[ 8 ];
+		hHi = getLongBE( h, 0 );
+		hLo = getLongBE( h, 8 );
+		vHi[ 0 ] = hHi;
+		vLo[ 0 ] = hLo;
+		for( int j = 1; j < 8; ++j )
+		{
+			long carry = vLo[ j - 1 ] & 1;
+			vLo[ j ] = (vLo[ j - 1 ] >>> 1) | (vHi[ j - 1 ] << 63);
+			vHi[ j ] = (vHi[ j - 1 ] >>> 1) ^ (-carry & 0xE100000000000000L);
+		}
+
+		// Старший бит байта - коэффициент при x^0
+		for( int b = 0; b < 256; ++b )
+		{
+			long hi = 0;
+			long lo = 0;
+			for( int j = 0; j < 8; ++j )
+			{
+				if( (b & (0x80 >>> j)) != 0 )
+				{
+					hi ^= vHi[ j ];
+					lo ^= vLo[ j ];
+				}
+			}
+			mHi[ b ] = hi;
+			mLo[ b ] = lo;
+		}
+
+		started = false;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getTagSize()
+	{
+		return tagSize;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные.
+	 * @param data Входные данные, любого размера
+	 * @param iv Начальный вектор, рекомендуется 12 байт
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @return Криптограмма и тег: [data.size() + getTagSize()]
+	 */
+	public Binary encrypt( final Binary data, final Binary iv, final Binary aad )
+	{
+		Binary crypt = Bin( data.size() );
+		Binary tag = Bin();
+		encryptFirst( Bin(), Bin(), iv, aad );
+		encryptLast( data, crypt, tag );
+		return crypt.add( tag );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Проверить тег и расшифровать данные.
+	 * @param cryptAndTag Криптограмма и тег
+	 * @param iv Начальный вектор
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 * @return Расшифрованные данные. Если тег неверный - исключение.
+	 */
+	public Binary decrypt( final Binary cryptAndTag, final Binary iv, final Binary aad )
+	{
+		MUST( cryptAndTag.size() >= tagSize, "Wrong GCM cryptogram size" );
+		int cryptSize = cryptAndTag.size() - tagSize;
+
+		Binary data = Bin( cryptSize );
+		decryptFirst( Bin(), Bin(), iv, aad );
+		decryptLast( cryptAndTag.first( cryptSize ), data, cryptAndTag.last( tagSize ) );
+		return data;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Первый шаг.
+	 * @param data Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 * @param iv Начальный вектор
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 */
+	public void encryptFirst( final Binary data, Binary crypt, final Binary iv, final Binary aad )
+	{
+		start( iv, aad );
+		encryptNext( data, crypt );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Промежуточные шаги.
+	 * @param data Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 */
+	public void encryptNext( final Binary data, Binary crypt )
+	{
+		checkNext( data, crypt );
+		cryptBlocks( true, data.getDataRef(), crypt.getDataRef(), data.size() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные в потоковом режиме: Последний шаг.
+	 * @param data Массив входных данных, любого размера
+	 * @param crypt Массив для выходных данных (того же размера как и data)
+	 * @param tag Выход - тег [getTagSize()]
+	 */
+	public void encryptLast( final Binary data, Binary crypt, Binary tag )
+	{
+		MUST( started, "GCM: encryptFirst not called" );
+		MUST( crypt.size() == data.size(), "data and crypt must be equal size" );
+		cryptBlocks( true, data.getDataRef(), crypt.getDataRef(), data.size() );
+
+		tag.resize( tagSize );
+		finish( tag.getDataRef() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Первый шаг.
+	 * Расшифрованные данные промежуточных шагов не проверены, пока decryptLast не проверит тег.
+	 * @param crypt Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 * @param iv Начальный вектор
+	 * @param aad Дополнительные аутентифицируемые данные или null
+	 */
+	public void decryptFirst( final Binary crypt, Binary data, final Binary iv, final Binary aad )
+	{
+		start( iv, aad );
+		decryptNext( crypt, data );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Промежуточные шаги.
+	 * @param crypt Массив входных данных (может быть нулевого размера, или кратным [16 байт])
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 */
+	public void decryptNext( final Binary crypt, Binary data )
+	{
+		checkNext( crypt, data );
+		cryptBlocks( false, crypt.getDataRef(), data.getDataRef(), crypt.size() );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Расшифровать данные в потоковом режиме: Последний шаг, проверка тега.
+	 * @param crypt Массив входных данных, любого размера
+	 * @param data Массив для выходных данных (того же размера как и crypt)
+	 * @param tag Ожидаемый тег [getTagSize()]. Если тег неверный - исключение.
+	 */
+	public void decryptLast( final Binary crypt, Binary data, final Binary tag )
+	{
+		MUST( started, "GCM: decryptFirst not called" );
+		MUST( crypt.size() == data.size(), "crypt and data must be equal size" );
+		MUST( tag.size() == tagSize, "Wrong GCM tag size" );
+		cryptBlocks( false, crypt.getDataRef(), data.getDataRef(), crypt.size() );
+
+		checkTag( tag.getDataRef(), 0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные; большие данные - по кускам в нескольких потоках (ParallelCrypt).
+	 * Результат тот же, что у encrypt. Потоковое состояние (First/Next/Last) сбрасывается.
+	 */
+	public Binary encryptParallel( final Binary data, final Binary iv, final Binary aad )
+	{
+		if( !ParallelCrypt.isWorth( data.size() ) )
+			return encrypt( data, iv, aad );
+
+		Binary crypt = Bin( data.size() + tagSize );
+		byte[] out = crypt.getDataRef();
+		start( iv, aad );
+		cryptParallel( true, data.getDataRef(), out, data.size() );
+
+		byte[] tag = new byte[ BLOCK_SIZE ];
+		finish( tag );
+		System.arraycopy( tag, 0, out, data.size(), tagSize );
+		return crypt;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Проверить тег и расшифровать данные; большие данные - по кускам в нескольких потоках (ParallelCrypt).
+	 * Результат тот же, что у decrypt. Потоковое состояние (First/Next/Last) сбрасывается.
+	 */
+	public Binary decryptParallel( final Binary cryptAndTag, final Binary iv, final Binary aad )
+	{
+		if( !ParallelCrypt.isWorth( cryptAndTag.size() ) )
+			return decrypt( cryptAndTag, iv, aad );
+
+		int cryptSize = cryptAndTag.size() - tagSize;
+		Binary data = Bin( cryptSize );
+		start( iv, aad );
+		cryptParallel( false, cryptAndTag.getDataRef(), data.getDataRef(), cryptSize );
+		checkTag( cryptAndTag.getDataRef(), cryptSize );
+		return data;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вычислить тег и сравнить с tag[ tagOff ... ] за постоянное время. Если не совпадает - исключение.
+	 */
+	private void checkTag( byte[] tag, int tagOff )
+	{
+		byte[] calcTag = new byte[ BLOCK_SIZE ];
+		finish( calcTag );
+
+		int diff = 0;
+		for( int i = 0; i < tagSize; ++i )
+			diff |= calcTag[ i ] ^ tag[ tagOff + i ];
+		MUST( diff == 0, "GCM: wrong tag" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void checkNext( final Binary in, final Binary out )
+	{
+		MUST( started, "GCM: First step not called" );
+		MUST( out.size() == in.size(), "Input and output must be equal size" );
+		MUST( (in.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of BLOCK_SIZE" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * J0 из IV, GHASH от AAD.
+	 */
+	private void start( final Binary iv, final Binary aad )
+	{
+		MUST( iv.size() > 0, "Wrong GCM IV" );
+		byte[] ivArr = iv.getDataRef();
+
+		main.yHi = 0;
+		main.yLo = 0;
+		if( iv.size() == 12 )
+		{
+			System.arraycopy( ivArr, 0, J0, 0, 12 );
+			J0[ 12 ] = 0;
+			J0[ 13 ] = 0;
+			J0[ 14 ] = 0;
+			J0[ 15 ] = 1;
+		}
+		else
+		{
+			// J0 = GHASH( IV || 0-padding || [0]64 || [len(IV)]64 )
+			main.ghash( ivArr, 0, iv.size() );
+			main.yLo ^= (long)iv.size() << 3;
+			main.mulH();
+			setLongBE( main.yHi, J0, 0 );
+			setLongBE( main.yLo, J0, 8 );
+			main.yHi = 0;
+			main.yLo = 0;
+		}
+		System.arraycopy( J0, 0, main.ctr, 0, BLOCK_SIZE );
+
+		aadSize = 0;
+		if( (aad != null) && !aad.empty() )
+		{
+			main.ghash( aad.getDataRef(), 0, aad.size() );
+			aadSize = aad.size();
+		}
+
+		dataSize = 0;
+		started = true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void cryptBlocks( boolean encrypt, byte[] in, byte[] out, int len )
+	{
+		main.cryptBlocks( encrypt, in, 0, out, 0, len );
+		dataSize += len;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Куски по ParallelCrypt.CHUNK_SIZE шифруются независимо: счётчик куска - J0 + номер первого блока,
+	 * GHASH куска считается с нуля. Затем GHASH собирается по порядку: Y = Y * H^m xor Y_куска, m - блоков в куске.
+	 */
+	private void cryptParallel( boolean encrypt, byte[] in, byte[] out, int len )
+	{
+		final int chunk = ParallelCrypt.CHUNK_SIZE;
+		int count = (len + chunk - 1) / chunk;
+		long[] y = new long[ 2 * count ];
+
+		ParallelCrypt.forEach( count, c ->
+		{
+			Part part = new Part( aes.clone() );
+			System.arraycopy( J0, 0, part.ctr, 0, BLOCK_SIZE );
+			addToCounter32( part.ctr, c * (chunk / BLOCK_SIZE) );
+
+			int offset = c * chunk;
+			part.cryptBlocks( encrypt, in, offset, out, offset, Math.min( chunk, len - offset ) );
+			y[ 2 * c ] = part.yHi;
+			y[ 2 * c + 1 ] = part.yLo;
+		} );
+
+		long[] hChunk = gfPow( hHi, hLo, chunk / BLOCK_SIZE );
+		for( int c = 0; c < count; ++c )
+		{
+			long[] hm = (c < count - 1) ? hChunk : gfPow( hHi, hLo, (len - c * chunk + BLOCK_SIZE - 1) / BLOCK_SIZE );
+			long[] z = gfMul( main.yHi, main.yLo, hm[ 0 ], hm[ 1 ] );
+			main.yHi = z[ 0 ] ^ y[ 2 * c ];
+			main.yLo = z[ 1 ] ^ y[ 2 * c + 1 ];
+		}
+		dataSize += len;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Младшие 32 бита счётчика += n по модулю 2^32 - как n инкрементов в Part.cryptBlocks.
+	 */
+	private static void addToCounter32( byte[] ctr, int n )
+	{
+		int v = ((ctr[ 12 ] & 0xFF) << 24) | ((ctr[ 13 ] & 0xFF) << 16) | ((ctr[ 14 ] & 0xFF) << 8) | (ctr[ 15 ] & 0xFF);
+		v += n;
+		ctr[ 12 ] = (byte)(v >>> 24);
+		ctr[ 13 ] = (byte)(v >>> 16);
+		ctr[ 14 ] = (byte)(v >>> 8);
+		ctr[ 15 ] = (byte)v;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * X * Y в GF(2^128) побитно (SP 800-38D, Algorithm 1). Для редких умножений, в GHASH - mulH по таблице.
+	 */
+	private static long[] gfMul( long xHi, long xLo, long yHi, long yLo )
+	{
+		long zHi = 0;
+		long zLo = 0;
+		for( int i = 0; i < 128; ++i )
+		{
+			long bit = (i < 64) ? (xHi >>> (63 - i)) & 1 : (xLo >>> (127 - i)) & 1;
+			zHi ^= -bit & yHi;
+			zLo ^= -bit & yLo;
+
+			long carry = yLo & 1;
+			yLo = (yLo >>> 1) | (yHi << 63);
+			yHi = (yHi >>> 1) ^ (-carry & 0xE100000000000000L);
+		}
+		return new long[] { zHi, zLo };
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * H^n в GF(2^128).
+	 */
+	private static long[] gfPow( long hHi, long hLo, int n )
+	{
+		// Единица - коэффициент при x^0, старший бит
+		long[] r = { 0x8000000000000000L, 0 };
+		long[] p = { hHi, hLo };
+		for( ; n > 0; n >>>= 1 )
+		{
+			if( (n & 1) != 0 )
+				r = gfMul( r[ 0 ], r[ 1 ], p[ 0 ], p[ 1 ] );
+			p = gfMul( p[ 0 ], p[ 1 ], p[ 0 ], p[ 1 ] );
+		}
+		return r;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * tag = E( J0 ) xor GHASH( ... || [len(A)]64 || [len(C)]64 ); пишется getTagSize() байт.
+	 */
+	private void finish( byte[] tag )
+	{
+		main.yHi ^= aadSize << 3;
+		main.yLo ^= dataSize << 3;
+		main.mulH();
+
+		byte[] ks = main.ks;
+		byte[] y = main.tmp;
+		aes.encryptBlock( J0, 0, ks, 0 );
+		setLongBE( main.yHi, y, 0 );
+		setLongBE( main.yLo, y, 8 );
+		for( int i = 0; i < tagSize; ++i )
+			tag[ i ] = (byte)(y[ i ] ^ ks[ i ]);
+
+		started = false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static long getLongBE( byte[] b, int off )
+	{
+		return ((long)(b[ off     ] & 0xFF) << 56) | ((long)(b[ off + 1 ] & 0xFF) << 48)
+			 | ((long)(b[ off + 2 ] & 0xFF) << 40) | ((long)(b[ off + 3 ] & 0xFF) << 32)
+			 | ((long)(b[ off + 4 ] & 0xFF) << 24) | ((long)(b[ off + 5 ] & 0xFF) << 16)
+			 | ((long)(b[ off + 6 ] & 0xFF) <<  8) |  (long)(b[ off + 7 ] & 0xFF);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static void setLongBE( long v, byte[] b, int off )
+	{
+		for( int i = 7; i >= 0; --i )
+		{
+			b[ off + i ] = (byte)v;
+			v >>>= 8;
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Счётчик CTR и накопитель GHASH для последовательного куска данных.
+	 * Потоковый режим использует один экземпляр, encryptParallel - по экземпляру на кусок.
+	 * Таблицы умножения на H - общие, только для чтения.
+	 */
+	private final class Part
+	{
+		final AES cipher;
+		final byte[] ctr = new byte[ BLOCK_SIZE ];
+		final byte[] ks = new byte[ BLOCK_SIZE ];
+		final byte[] tmp = new byte[ BLOCK_SIZE ];
+		long yHi;
+		long yLo;
+
+		Part( AES cipher )
+		{
+			this.cipher = cipher;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * GHASH от len байт, последний неполный блок дополняется нулями.
+		 */
+		void ghash( byte[] b, int off, int len )
+		{
+			int end = off + len;
+			for( ; off + BLOCK_SIZE <= end; off += BLOCK_SIZE )
+			{
+				yHi ^= getLongBE( b, off );
+				yLo ^= getLongBE( b, off + 8 );
+				mulH();
+			}
+
+			if( off < end )
+				ghashPartial( b, off, end - off );
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		void ghashPartial( byte[] b, int off, int len )
+		{
+			Arrays.fill( tmp, (byte)0 );
+			System.arraycopy( b, off, tmp, 0, len );
+			yHi ^= getLongBE( tmp, 0 );
+			yLo ^= getLongBE( tmp, 8 );
+			mulH();
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Y = Y * H. Схема Горнера по байтам Y от 15-го к 0-му: Z = Z * x^8 + M[ byte ].
+		 */
+		void mulH()
+		{
+			long[] mHi = AES_GCM.this.mHi;
+			long[] mLo = AES_GCM.this.mLo;
+			long zh = 0;
+			long zl = 0;
+
+			long x = yLo;
+			for( int s = 0; s < 64; s += 8 )
+			{
+				int b = (int)(x >>> s) & 0xFF;
+				int r = (int)zl & 0xFF;
+				zl = (zl >>> 8) | (zh << 56);
+				zh = (zh >>> 8) ^ R8[ r ] ^ mHi[ b ];
+				zl ^= mLo[ b ];
+			}
+
+			x = yHi;
+			for( int s = 0; s < 64; s += 8 )
+			{
+				int b = (int)(x >>> s) & 0xFF;
+				int r = (int)zl & 0xFF;
+				zl = (zl >>> 8) | (zh << 56);
+				zh = (zh >>> 8) ^ R8[ r ] ^ mHi[ b ];
+				zl ^= mLo[ b ];
+			}
+
+			yHi = zh;
+			yLo = zl;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * CTR с инкрементом младших 32 бит счётчика и GHASH от криптограммы - за один проход.
+		 * in и out могут совпадать.
+		 */
+		void cryptBlocks( boolean encrypt, byte[] in, int inOff, byte[] out, int outOff, int len )
+		{
+			for( int off = 0; off < len; off += BLOCK_SIZE )
+			{
+				for( int i = BLOCK_SIZE - 1; (i >= 12) && (++ctr[ i ] == 0); --i ) {}
+				cipher.encryptBlock( ctr, 0, ks, 0 );
+
+				int ip = inOff + off;
+				int op = outOff + off;
+				int n = Math.min( BLOCK_SIZE, len - off );
+				if( n == BLOCK_SIZE )
+				{
+					if( !encrypt )
+					{
+						yHi ^= getLongBE( in, ip );
+						yLo ^= getLongBE( in, ip + 8 );
+					}
+					for( int i = 0; i < BLOCK_SIZE; ++i )
+						out[ op + i ] = (byte)(in[ ip + i ] ^ ks[ i ]);
+					if( encrypt )
+					{
+						yHi ^= getLongBE( out, op );
+						yLo ^= getLongBE( out, op + 8 );
+					}
+					mulH();
+				}
+				else
+				{
+					if( !encrypt )
+						ghashPartial( in, ip, n );
+					for( int i = 0; i < n; ++i )
+						out[ op + i ] = (byte)(in[ ip + i ] ^ ks[ i ]);
+					if( encrypt )
+						ghashPartial( out, op, n );
+				}
+			}
+		}
+	}
+
+}
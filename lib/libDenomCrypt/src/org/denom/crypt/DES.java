@@ -205,36 +205,7 @@ public class DES extends ABlockCipher
 		MUST( crypt.size() == data.size(), "data and crypt must be equal size" );
 		MUST( (data.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of 8 bytes" );
 
-		for( int i = 0; i < data.size(); i += BLOCK_SIZE )
-		{
-			temp_block.assign( data, i, BLOCK_SIZE );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					encryptBlock( temp_block );
-					break;
-
-				case CBC:
-					temp_block.xor( temp_IV );
-					encryptBlock( temp_block );
-					temp_IV.assign( temp_block );
-					break;
-
-				case CFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( temp_block );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			System.arraycopy( temp_block.getDataRef(), 0, crypt.getDataRef(), i, BLOCK_SIZE );
-		}
+		encryptBlocks( crypt_mode, temp_IV.getDataRef(), data.getDataRef(), 0, crypt.getDataRef(), 0, data.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -328,38 +299,7 @@ public class DES extends ABlockCipher
 		MUST( crypt.size() == data.size(), "crypt and data must be equal size" );
 		MUST( (crypt.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of 8 bytes" );
 
-		for( int i = 0; i < crypt.size(); i += BLOCK_SIZE )
-		{
-			temp_block.assign( crypt, i, BLOCK_SIZE );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					decryptBlock( temp_block );
-					break;
-
-				case CBC:
-					prev_IV.assign( temp_block );
-					decryptBlock( temp_block );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case CFB:
-					prev_IV.assign( temp_block );
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			data.set( i, temp_block, 0, BLOCK_SIZE );
-		}
+		decryptBlocks( crypt_mode, temp_IV.getDataRef(), crypt.getDataRef(), 0, data.getDataRef(), 0, crypt.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -455,15 +395,35 @@ public class DES extends ABlockCipher
 
 
 	// -----------------------------------------------------------------------------------------------------------------
+	@Override
 	public void encryptBlock( Binary block )
 	{
-		processBlock( kEnc, block, 0, block, 0 );
+		MUST( block.size() >= BLOCK_SIZE, "Incorrect block size" );
+		byte[] arr = block.getDataRef();
+		processBlock( kEnc, arr, 0, arr, 0 );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
+	@Override
 	public void decryptBlock( Binary block )
 	{
-		processBlock( kDec, block, 0, block, 0 );
+		MUST( block.size() >= BLOCK_SIZE, "Incorrect block size" );
+		byte[] arr = block.getDataRef();
+		processBlock( kDec, arr, 0, arr, 0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void encryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		processBlock( kEnc, in, inOff, out, outOff );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void decryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		processBlock( kDec, in, inOff, out, outOff );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -471,8 +431,6 @@ public class DES extends ABlockCipher
 
 	private CryptoMode crypt_mode;
 	private AlignMode align_mode;
-	private Binary temp_block = new Binary( BLOCK_SIZE );
-	private Binary prev_IV = new Binary( BLOCK_SIZE );
 
 	// 8-байтный ключ
 	private Binary mKey = Bin( 8 );
@@ -646,10 +604,10 @@ public class DES extends ABlockCipher
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	private void processBlock( int[] K, Binary data, int dataOffset, Binary result, int resultOffset )
+	private void processBlock( int[] K, byte[] in, int inOff, byte[] out, int outOff )
 	{
-		int l = data.getIntBE( dataOffset );
-		int r = data.getIntBE( dataOffset + 4 );
+		int l = (in[ inOff     ] << 24) | ((in[ inOff + 1 ] & 0xff) << 16) | ((in[ inOff + 2 ] & 0xff) << 8) | (in[ inOff + 3 ] & 0xff);
+		int r = (in[ inOff + 4 ] << 24) | ((in[ inOff + 5 ] & 0xff) << 16) | ((in[ inOff + 6 ] & 0xff) << 8) | (in[ inOff + 7 ] & 0xff);
 
 		{
 			// Initial permutation
@@ -721,8 +679,14 @@ public class DES extends ABlockCipher
 			r ^= (t << 4);
 		}
 
-		result.setInt( resultOffset, r );
-		result.setInt( resultOffset + 4, l );
+		out[ outOff     ] = (byte)(r >>> 24);
+		out[ outOff + 1 ] = (byte)(r >>> 16);
+		out[ outOff + 2 ] = (byte)(r >>> 8);
+		out[ outOff + 3 ] = (byte)r;
+		out[ outOff + 4 ] = (byte)(l >>> 24);
+		out[ outOff + 5 ] = (byte)(l >>> 16);
+		out[ outOff + 6 ] = (byte)(l >>> 8);
+		out[ outOff + 7 ] = (byte)l;
 	}
 
 }
\ No newline at end of file
@@ -28,9 +28,6 @@ public class DES3_EDE extends ABlockCipher
 	private CryptoMode crypt_mode;
 	private AlignMode align_mode;
 
-	private Binary temp_block = Bin( BLOCK_SIZE );
-	private Binary prev_IV = Bin( BLOCK_SIZE );
-
 	// temp_IV - инициализируется через iv; в случае отсутствия iv - через IV0
 	private static final Binary IV0 = new Binary( BLOCK_SIZE );
 
@@ -134,6 +131,24 @@ public class DES3_EDE extends ABlockCipher
 		des1.decryptBlock( block );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void encryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		des1.encryptBlock( in, inOff, out, outOff );
+		des2.decryptBlock( out, outOff, out, outOff );
+		des3.encryptBlock( out, outOff, out, outOff );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public void decryptBlock( byte[] in, int inOff, byte[] out, int outOff )
+	{
+		des3.decryptBlock( in, inOff, out, outOff );
+		des2.encryptBlock( out, outOff, out, outOff );
+		des1.decryptBlock( out, outOff, out, outOff );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Зашифровать данные.
@@ -208,36 +223,7 @@ public class DES3_EDE extends ABlockCipher
 		MUST( crypt.size() == data.size(), "data and crypt must be equal size" );
 		MUST( (data.size() & (BLOCK_SIZE - 1)) == 0, "Wrong data. Must be multiple of 8 bytes" );
 
-		for( int i = 0; i < data.size(); i += BLOCK_SIZE )
-		{
-			temp_block.assign( data, i, BLOCK_SIZE );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					encryptBlock( temp_block );
-					break;
-
-				case CBC:
-					temp_block.xor( temp_IV );
-					encryptBlock( temp_block );
-					temp_IV.assign( temp_block );
-					break;
-
-				case CFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( temp_block );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			System.arraycopy( temp_block.getDataRef(), 0, crypt.getDataRef(), i, 8 );
-		}
+		encryptBlocks( crypt_mode, temp_IV.getDataRef(), data.getDataRef(), 0, crypt.getDataRef(), 0, data.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -332,38 +318,7 @@ public class DES3_EDE extends ABlockCipher
 		MUST( crypt.size() == data.size(), "crypt and data must be equal size" );
 		MUST( (crypt.size() & (BLOCK_SIZE - 1) ) == 0, "Wrong data. Must be multiple of 8 bytes" );
 
-		for( int i = 0; i < crypt.size(); i += 8 )
-		{
-			temp_block.assign( crypt, i, 8 );
-
-			switch( crypt_mode )
-			{
-				case ECB:
-					decryptBlock( temp_block );
-					break;
-
-				case CBC:
-					prev_IV.assign( temp_block );
-					decryptBlock( temp_block );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case CFB:
-					prev_IV.assign( temp_block );
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					temp_IV.assign( prev_IV );
-					break;
-
-				case OFB:
-					encryptBlock( temp_IV );
-					temp_block.xor( temp_IV );
-					break;
-			}
-
-			System.arraycopy( temp_block.getDataRef(), 0, data.getDataRef(), i, 8 );
-		}
+		decryptBlocks( crypt_mode, temp_IV.getDataRef(), crypt.getDataRef(), 0, data.getDataRef(), 0, crypt.size() );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -0,0 +1,84 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.crypt;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Многопоточная обработка больших буферов по кускам в ForkJoinPool.commonPool().
+ * Используется для режимов, в которых куски независимы: CTR, GCM (ABlockCipher.cryptCTRParallel, AES_GCM.encryptParallel).
+ */
+public final class ParallelCrypt
+{
+	/**
+	 * Данные меньше порога (или при одном процессоре) обрабатываются в вызывающем потоке.
+	 */
+	public static final int THRESHOLD = 256 * 1024;
+
+	/**
+	 * Размер куска данных для одной задачи. Кратен размеру блока всех шифров.
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private ParallelCrypt() {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Есть ли смысл делить данные размером size на куски.
+	 */
+	public static boolean isWorth( long size )
+	{
+		return (size >= THRESHOLD) && (Runtime.getRuntime().availableProcessors() > 1);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызвать task( i ) для i = 0 .. count-1 в commonPool и дождаться завершения всех.
+	 * Исключение из задачи пробрасывается вызывающему.
+	 */
+	public static void forEach( int count, IntConsumer task )
+	{
+		if( count == 1 )
+			task.accept( 0 );
+		else if( count > 1 )
+			ForkJoinPool.commonPool().invoke( new Range( 0, count, task ) );
+	}
+
+	// =================================================================================================================
+	/**
+	 * Диапазон номеров кусков, делится пополам до одного куска.
+	 */
+	private static final class Range extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final IntConsumer task;
+
+		Range( int from, int to, IntConsumer task )
+		{
+			this.from = from;
+			this.to = to;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( to - from == 1 )
+			{
+				task.accept( from );
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll( new Range( from, mid, task ), new Range( mid, to, task ) );
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.crypt.blockcipher;
+
+import static org.denom.Ex.MUST;
+
+/**
+ * ChaCha20-Poly1305 AEAD (RFC 8439, section 2.8).
+ * Single-call encryption and authentication over byte[] ranges; input and output may be the same (in-place).
+ * Key is 32 bytes, nonce 12 bytes, tag 16 bytes. Never reuse a nonce with the same key.
+ * Not thread-safe.
+ */
+public class ChaCha20Poly1305
+{
+	public static final int KEY_SIZE = 32;
+	public static final int NONCE_SIZE = 12;
+	public static final int TAG_SIZE = Poly1305.TAG_SIZE;
+
+	private static final byte[] ZERO_BLOCK = new byte[ 64 ];
+
+	private final ChaCha7539 chacha = new ChaCha7539();
+	private final Poly1305 poly = new Poly1305();
+
+	private final byte[] polyKey = new byte[ 64 ];
+	private final byte[] lengths = new byte[ 16 ];
+	private final byte[] calcTag = new byte[ TAG_SIZE ];
+
+	private KeyParameter key;
+
+	public ChaCha20Poly1305( byte[] key )
+	{
+		MUST( key.length == KEY_SIZE, "ChaCha20-Poly1305 requires 256 bit key" );
+		this.key = new KeyParameter( key );
+	}
+
+	public String getAlgorithmName()
+	{
+		return "ChaCha20-Poly1305";
+	}
+
+	/**
+	 * Keystream block 0 is the one-time Poly1305 key, data is encrypted from block 1.
+	 */
+	private void start( byte[] nonce, int nonceOff, byte[] aad, int aadOff, int aadLen )
+	{
+		MUST( nonceOff + NONCE_SIZE <= nonce.length, "ChaCha20-Poly1305 requires 96 bit nonce" );
+
+		// Key is set on the first init only, later only the nonce changes
+		chacha.init( true, new ParametersWithIV( key, nonce, nonceOff, NONCE_SIZE ) );
+		key = null;
+
+		chacha.processBytes( ZERO_BLOCK, 0, 64, polyKey, 0 );
+		poly.init( polyKey, 0 );
+
+		if( aadLen > 0 )
+		{
+			poly.update( aad, aadOff, aadLen );
+			poly.padToBlock();
+		}
+	}
+
+	private void finish( int aadLen, int dataLen, byte[] tag, int tagOff )
+	{
+		poly.padToBlock();
+		Static.intToLittleEndian( aadLen, lengths, 0 );
+		Static.intToLittleEndian( 0, lengths, 4 );
+		Static.intToLittleEndian( dataLen, lengths, 8 );
+		Static.intToLittleEndian( 0, lengths, 12 );
+		poly.update( lengths, 0, 16 );
+		poly.doFinal( tag, tagOff );
+	}
+
+	/**
+	 * Encrypt in[inOff..inOff+len) to out[outOff..) and write the tag to tag[tagOff..tagOff+16).
+	 * in and out may be the same.
+	 * @param aad - additional authenticated data, may be null if aadLen == 0.
+	 */
+	public void encrypt( byte[] nonce, int nonceOff, byte[] aad, int aadOff, int aadLen,
+		byte[] in, int inOff, int len, byte[] out, int outOff, byte[] tag, int tagOff )
+	{
+		start( nonce, nonceOff, aad, aadOff, aadLen );
+		chacha.processBytes( in, inOff, len, out, outOff );
+		poly.update( out, outOff, len );
+		finish( aadLen, len, tag, tagOff );
+	}
+
+	/**
+	 * Check the tag and decrypt in[inOff..inOff+len) to out[outOff..). in and out may be the same.
+	 * Nothing is decrypted if the tag is wrong.
+	 * @return false - wrong tag.
+	 */
+	public boolean decrypt( byte[] nonce, int nonceOff, byte[] aad, int aadOff, int aadLen,
+		byte[] in, int inOff, int len, byte[] out, int outOff, byte[] tag, int tagOff )
+	{
+		MUST( tagOff + TAG_SIZE <= tag.length, "ChaCha20-Poly1305: wrong tag range" );
+
+		start( nonce, nonceOff, aad, aadOff, aadLen );
+		poly.update( in, inOff, len );
+		finish( aadLen, len, calcTag, 0 );
+
+		// Constant-time compare
+		int diff = 0;
+		for( int i = 0; i < TAG_SIZE; ++i )
+			diff |= calcTag[ i ] ^ tag[ tagOff + i ];
+		if( diff != 0 )
+			return false;
+
+		chacha.processBytes( in, inOff, len, out, outOff );
+		return true;
+	}
+}
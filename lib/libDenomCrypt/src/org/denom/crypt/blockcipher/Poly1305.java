@@ -0,0 +1,219 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.crypt.blockcipher;
+
+import static org.denom.Ex.MUST;
+
+/**
+ * Poly1305 one-time authenticator (RFC 8439, section 2.5).
+ * 32-bit implementation with 26-bit limbs, after poly1305-donna.
+ * Key is 32 bytes: r | s. The key must never be used for more than one message.
+ */
+public class Poly1305
+{
+	public static final int KEY_SIZE = 32;
+	public static final int TAG_SIZE = 16;
+
+	private static final int BLOCK_SIZE = 16;
+
+	private final byte[] singleByte = new byte[ 1 ];
+
+	// r, clamped
+	private int r0, r1, r2, r3, r4;
+	// r * 5
+	private int s1, s2, s3, s4;
+	// s
+	private int k0, k1, k2, k3;
+
+	// Accumulator
+	private int h0, h1, h2, h3, h4;
+
+	private final byte[] currentBlock = new byte[ BLOCK_SIZE ];
+	private int currentBlockOffset = 0;
+
+	public Poly1305() {}
+
+	public Poly1305( byte[] key )
+	{
+		init( key, 0 );
+	}
+
+	public String getAlgorithmName()
+	{
+		return "Poly1305";
+	}
+
+	/**
+	 * Set one-time key and reset accumulator.
+	 */
+	public void init( byte[] key, int keyOff )
+	{
+		MUST( (keyOff >= 0) && (keyOff + KEY_SIZE <= key.length), "Poly1305 requires 256 bit key" );
+
+		int t0 = Static.littleEndianToInt( key, keyOff );
+		int t1 = Static.littleEndianToInt( key, keyOff + 4 );
+		int t2 = Static.littleEndianToInt( key, keyOff + 8 );
+		int t3 = Static.littleEndianToInt( key, keyOff + 12 );
+
+		r0 = t0 & 0x03FFFFFF;
+		r1 = ((t0 >>> 26) | (t1 << 6)) & 0x03FFFF03;
+		r2 = ((t1 >>> 20) | (t2 << 12)) & 0x03FFC0FF;
+		r3 = ((t2 >>> 14) | (t3 << 18)) & 0x03F03FFF;
+		r4 = (t3 >>> 8) & 0x000FFFFF;
+
+		s1 = r1 * 5;
+		s2 = r2 * 5;
+		s3 = r3 * 5;
+		s4 = r4 * 5;
+
+		k0 = Static.littleEndianToInt( key, keyOff + 16 );
+		k1 = Static.littleEndianToInt( key, keyOff + 20 );
+		k2 = Static.littleEndianToInt( key, keyOff + 24 );
+		k3 = Static.littleEndianToInt( key, keyOff + 28 );
+
+		reset();
+	}
+
+	public void update( byte in )
+	{
+		singleByte[ 0 ] = in;
+		update( singleByte, 0, 1 );
+	}
+
+	public void update( byte[] in, int inOff, int len )
+	{
+		MUST( (inOff >= 0) && (len >= 0) && (inOff + len <= in.length), "Poly1305: wrong input range" );
+
+		if( currentBlockOffset > 0 )
+		{
+			int n = Math.min( BLOCK_SIZE - currentBlockOffset, len );
+			System.arraycopy( in, inOff, currentBlock, currentBlockOffset, n );
+			currentBlockOffset += n;
+			inOff += n;
+			len -= n;
+
+			if( currentBlockOffset < BLOCK_SIZE )
+				return;
+
+			processBlock( currentBlock, 0, 1 << 24 );
+			currentBlockOffset = 0;
+		}
+
+		// Full blocks straight from the input, no copy
+		while( len >= BLOCK_SIZE )
+		{
+			processBlock( in, inOff, 1 << 24 );
+			inOff += BLOCK_SIZE;
+			len -= BLOCK_SIZE;
+		}
+
+		System.arraycopy( in, inOff, currentBlock, 0, len );
+		currentBlockOffset = len;
+	}
+
+	/**
+	 * Pad message with zeroes up to 16 byte boundary (AEAD construction, RFC 8439, 2.8).
+	 */
+	public void padToBlock()
+	{
+		if( currentBlockOffset == 0 )
+			return;
+
+		for( int i = currentBlockOffset; i < BLOCK_SIZE; ++i )
+			currentBlock[ i ] = 0;
+		processBlock( currentBlock, 0, 1 << 24 );
+		currentBlockOffset = 0;
+	}
+
+	private void processBlock( byte[] in, int off, int hibit )
+	{
+		long t0 = 0xffffffffL & Static.littleEndianToInt( in, off );
+		long t1 = 0xffffffffL & Static.littleEndianToInt( in, off + 4 );
+		long t2 = 0xffffffffL & Static.littleEndianToInt( in, off + 8 );
+		long t3 = 0xffffffffL & Static.littleEndianToInt( in, off + 12 );
+
+		h0 += (int)(t0 & 0x3ffffff);
+		h1 += (int)((((t1 << 32) | t0) >>> 26) & 0x3ffffff);
+		h2 += (int)((((t2 << 32) | t1) >>> 20) & 0x3ffffff);
+		h3 += (int)((((t3 << 32) | t2) >>> 14) & 0x3ffffff);
+		h4 += (int)(t3 >>> 8) | hibit;
+
+		long tp0 = (long)h0 * r0 + (long)h1 * s4 + (long)h2 * s3 + (long)h3 * s2 + (long)h4 * s1;
+		long tp1 = (long)h0 * r1 + (long)h1 * r0 + (long)h2 * s4 + (long)h3 * s3 + (long)h4 * s2;
+		long tp2 = (long)h0 * r2 + (long)h1 * r1 + (long)h2 * r0 + (long)h3 * s4 + (long)h4 * s3;
+		long tp3 = (long)h0 * r3 + (long)h1 * r2 + (long)h2 * r1 + (long)h3 * r0 + (long)h4 * s4;
+		long tp4 = (long)h0 * r4 + (long)h1 * r3 + (long)h2 * r2 + (long)h3 * r1 + (long)h4 * r0;
+
+		h0 = (int)tp0 & 0x3ffffff; tp1 += (tp0 >>> 26);
+		h1 = (int)tp1 & 0x3ffffff; tp2 += (tp1 >>> 26);
+		h2 = (int)tp2 & 0x3ffffff; tp3 += (tp2 >>> 26);
+		h3 = (int)tp3 & 0x3ffffff; tp4 += (tp3 >>> 26);
+		h4 = (int)tp4 & 0x3ffffff;
+		h0 += (int)(tp4 >>> 26) * 5;
+		h1 += (h0 >>> 26);
+		h0 &= 0x3ffffff;
+	}
+
+	/**
+	 * Write 16-byte tag to out and reset accumulator (key stays).
+	 */
+	public int doFinal( byte[] out, int outOff )
+	{
+		MUST( outOff + TAG_SIZE <= out.length, "Poly1305: output buffer too short" );
+
+		if( currentBlockOffset > 0 )
+		{
+			// Last partial block: append 1, no high bit
+			currentBlock[ currentBlockOffset ] = 1;
+			for( int i = currentBlockOffset + 1; i < BLOCK_SIZE; ++i )
+				currentBlock[ i ] = 0;
+			processBlock( currentBlock, 0, 0 );
+		}
+
+		h1 += (h0 >>> 26); h0 &= 0x3ffffff;
+		h2 += (h1 >>> 26); h1 &= 0x3ffffff;
+		h3 += (h2 >>> 26); h2 &= 0x3ffffff;
+		h4 += (h3 >>> 26); h3 &= 0x3ffffff;
+		h0 += (h4 >>> 26) * 5; h4 &= 0x3ffffff;
+		h1 += (h0 >>> 26); h0 &= 0x3ffffff;
+
+		// g = h + 5 - 2^130; select g if it did not underflow
+		int g0, g1, g2, g3, g4, b;
+		g0 = h0 + 5; b = g0 >>> 26; g0 &= 0x3ffffff;
+		g1 = h1 + b; b = g1 >>> 26; g1 &= 0x3ffffff;
+		g2 = h2 + b; b = g2 >>> 26; g2 &= 0x3ffffff;
+		g3 = h3 + b; b = g3 >>> 26; g3 &= 0x3ffffff;
+		g4 = h4 + b - (1 << 26);
+
+		b = (g4 >>> 31) - 1;
+		int nb = ~b;
+		h0 = (h0 & nb) | (g0 & b);
+		h1 = (h1 & nb) | (g1 & b);
+		h2 = (h2 & nb) | (g2 & b);
+		h3 = (h3 & nb) | (g3 & b);
+		h4 = (h4 & nb) | (g4 & b);
+
+		long f0 = (((h0) | (h1 << 26)) & 0xffffffffL) + (0xffffffffL & k0);
+		long f1 = (((h1 >>> 6) | (h2 << 20)) & 0xffffffffL) + (0xffffffffL & k1);
+		long f2 = (((h2 >>> 12) | (h3 << 14)) & 0xffffffffL) + (0xffffffffL & k2);
+		long f3 = (((h3 >>> 18) | (h4 << 8)) & 0xffffffffL) + (0xffffffffL & k3);
+
+		Static.intToLittleEndian( (int)f0, out, outOff );
+		f1 += (f0 >>> 32);
+		Static.intToLittleEndian( (int)f1, out, outOff + 4 );
+		f2 += (f1 >>> 32);
+		Static.intToLittleEndian( (int)f2, out, outOff + 8 );
+		f3 += (f2 >>> 32);
+		Static.intToLittleEndian( (int)f3, out, outOff + 12 );
+
+		reset();
+		return TAG_SIZE;
+	}
+
+	public void reset()
+	{
+		currentBlockOffset = 0;
+		h0 = h1 = h2 = h3 = h4 = 0;
+	}
+}
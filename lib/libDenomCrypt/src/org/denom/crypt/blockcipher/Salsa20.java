@@ -222,7 +222,10 @@ public class Salsa20 implements StreamCipher
 
 		MUST( !limitExceeded( len ), "2^70 byte limit per IV would be exceeded; Change IV" );
 
-		for( int i = 0; i < len; i++ )
+		int i = 0;
+
+		// Rest of the current key stream block
+		for( ; (index != 0) && (i < len); ++i )
 		{
 			out[ i + outOff ] = (byte)(keyStream[ index ] ^ in[ i + inOff ]);
 			index = (index + 1) & 63;
@@ -234,6 +237,26 @@ public class Salsa20 implements StreamCipher
 			}
 		}
 
+		// Whole blocks, index == 0: keyStream holds the next 64 bytes
+		byte[] ks = keyStream;
+		for( ; len - i >= 64; i += 64 )
+		{
+			int ip = inOff + i;
+			int op = outOff + i;
+			for( int j = 0; j < 64; ++j )
+				out[ op + j ] = (byte)(ks[ j ] ^ in[ ip + j ]);
+
+			advanceCounter();
+			generateKeyStream( ks );
+		}
+
+		// Tail
+		for( ; i < len; ++i )
+		{
+			out[ i + outOff ] = (byte)(keyStream[ index ] ^ in[ i + inOff ]);
+			++index;
+		}
+
 		return len;
 	}
 
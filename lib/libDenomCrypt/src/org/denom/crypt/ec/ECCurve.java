@@ -564,13 +564,13 @@ public abstract class ECCurve
 		int widthP = Math.max( 2, Math.min( 16, getWindowSize( k.bitLength() ) ) );
 		int widthQ = Math.max( 2, Math.min( 16, getWindowSize( l.bitLength() ) ) );
 
-		P.precomputeWNaf( widthP );
-		Q.precomputeWNaf( widthQ );
+		WNafPrecomp precompP = P.precomputeWNaf( widthP );
+		WNafPrecomp precompQ = Q.precomputeWNaf( widthQ );
 
-		ECPoint[] preCompP = negK ? P.preCompWNafNeg : P.preCompWNaf;
-		ECPoint[] preCompQ = negL ? Q.preCompWNafNeg : Q.preCompWNaf;
-		ECPoint[] preCompNegP = negK ? P.preCompWNaf : P.preCompWNafNeg;
-		ECPoint[] preCompNegQ = negL ? Q.preCompWNaf : Q.preCompWNafNeg;
+		ECPoint[] preCompP = negK ? precompP.neg : precompP.pos;
+		ECPoint[] preCompQ = negL ? precompQ.neg : precompQ.pos;
+		ECPoint[] preCompNegP = negK ? precompP.pos : precompP.neg;
+		ECPoint[] preCompNegQ = negL ? precompQ.pos : precompQ.neg;
 
 		byte[] wnafP = generateWindowNaf( widthP, k );
 		byte[] wnafQ = generateWindowNaf( widthQ, l );
@@ -637,6 +637,40 @@ public abstract class ECCurve
 	// POINT
 	// =================================================================================================================
 
+	/**
+	 * Fixed-point comb table for ECPoint.multiplyComb.
+	 */
+	private static final class CombPrecomp
+	{
+		final ECPoint[] points;
+		final ECPoint offset;
+		final int width; // number of bits
+
+		CombPrecomp( ECPoint[] points, ECPoint offset, int width )
+		{
+			this.points = points;
+			this.offset = offset;
+			this.width = width;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Odd multiples of point for Window NAF: pos[i] = (2i+1)*P, neg[i] = -(2i+1)*P.
+	 */
+	private static final class WNafPrecomp
+	{
+		final ECPoint[] pos;
+		final ECPoint[] neg;
+
+		WNafPrecomp( ECPoint[] pos, ECPoint[] neg )
+		{
+			this.pos = pos;
+			this.neg = neg;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * base class for points on elliptic curves.
 	 */
@@ -646,12 +680,10 @@ public abstract class ECCurve
 		public final ECElement y;
 		public final ECElement[] zs;
 
-		private ECPoint[] preComputedComb = null;
-		private ECPoint preComputedCombOffset = null;
-		private int preComputedCombWidth = 0; // number of bits
-
-		private ECPoint[] preCompWNaf = null;
-		private ECPoint[] preCompWNafNeg = null;
+		// Precomputed tables are built on first multiplication and never modified after publishing,
+		// so one point (e.g. G or a public key) can be multiplied from several threads.
+		private volatile CombPrecomp combPrecomp = null;
+		private volatile WNafPrecomp wnafPrecomp = null;
 
 
 		protected ECPoint( ECElement x, ECElement y, ECElement[] zs )
@@ -962,10 +994,11 @@ public abstract class ECCurve
 		}
 
 		// -----------------------------------------------------------------------------------------------------------------
-		private void precomputeMultComb()
+		private CombPrecomp precomputeMultComb()
 		{
-			if( preComputedComb != null )
-				return;
+			CombPrecomp comb = combPrecomp;
+			if( comb != null )
+				return comb;
 
 			int bits = getCombSize();
 			int width = bits > 257 ? 6 : 5;
@@ -993,9 +1026,10 @@ public abstract class ECCurve
 				}
 			}
 
-			preComputedComb = points;
-			preComputedCombWidth = width;
-			preComputedCombOffset = pow2Table[ width ];
+			// Several threads may build the table at once - the result is the same, the last one is kept.
+			comb = new CombPrecomp( points, pow2Table[ width ], width );
+			combPrecomp = comb;
+			return comb;
 		}
 
 		// -----------------------------------------------------------------------------------------------------------------
@@ -1015,13 +1049,13 @@ public abstract class ECCurve
 			int size = getCombSize();
 			MUST( k.bitLength() <= size, "fixed-point comb doesn't support scalars larger than the curve order" );
 
-			precomputeMultComb();
+			CombPrecomp comb = precomputeMultComb();
 
-			int d = (size + preComputedCombWidth - 1) / preComputedCombWidth;
+			int d = (size + comb.width - 1) / comb.width;
 
 			ECPoint R = getInfinity();
 
-			int fullComb = d * preComputedCombWidth;
+			int fullComb = d * comb.width;
 			int[] K = Nat.fromBigInteger( fullComb, k );
 
 			int top = fullComb - 1;
@@ -1033,11 +1067,11 @@ public abstract class ECCurve
 					index <<= 1;
 					index |= Nat.getBit( K, j );
 				}
-				ECPoint add = preComputedComb[ index ]; 
+				ECPoint add = comb.points[ index ];
 				R = R.twicePlus( add );
 			}
 
-			R = R.add( preComputedCombOffset );
+			R = R.add( comb.offset );
 			return (sign > 0) ? R : R.negate();
 		}
 
@@ -1057,7 +1091,7 @@ public abstract class ECCurve
 			// Clamp the window width in the range [2, 16]
 			int width = Math.max( 2, Math.min( 16, getWindowSize( k.bitLength() ) ) );
 
-			precomputeWNaf( width );
+			WNafPrecomp precomp = precomputeWNaf( width );
 			int[] wnaf = generateCompactWindowNaf( width, k );
 
 			ECPoint R = getInfinity();
@@ -1072,7 +1106,7 @@ public abstract class ECCurve
 				int digit = wi >> 16, zeroes = wi & 0xFFFF;
 
 				int n = Math.abs( digit );
-				ECPoint[] table = digit < 0 ? preCompWNafNeg : preCompWNaf;
+				ECPoint[] table = digit < 0 ? precomp.neg : precomp.pos;
 
 				// Optimization can only be used for values in the lower half of the table
 				if( (n << 2) < (1 << width) )
@@ -1102,7 +1136,7 @@ public abstract class ECCurve
 				int digit = wi >> 16, zeroes = wi & 0xFFFF;
 
 				int n = Math.abs( digit );
-				ECPoint[] table = digit < 0 ? preCompWNafNeg : preCompWNaf;
+				ECPoint[] table = digit < 0 ? precomp.neg : precomp.pos;
 				ECPoint r = table[ n >>> 1 ];
 
 				R = R.twicePlus( r );
@@ -1113,83 +1147,61 @@ public abstract class ECCurve
 		}
 
 		// -----------------------------------------------------------------------------------------------------------------
-		private void precomputeWNaf( final int width )
+		private WNafPrecomp precomputeWNaf( final int width )
 		{
 			int reqPreCompLen = 1 << Math.max( 0, width - 2 );
 
-			if( (preCompWNaf != null) && (preCompWNaf.length >= reqPreCompLen)
-				&& (preCompWNafNeg != null) && (preCompWNafNeg.length >= reqPreCompLen) )
+			WNafPrecomp cur = wnafPrecomp;
+			if( (cur != null) && (cur.pos.length >= reqPreCompLen) )
 			{
-				return;
+				return cur;
 			}
 
-			int iniPreCompLen = 0;
-			if( preCompWNaf == null )
+			// Published tables are not modified - extend copies of them.
+			int iniPreCompLen = (cur == null) ? 0 : cur.pos.length;
+			ECPoint[] pos = (cur == null) ? new ECPoint[ reqPreCompLen ] : resizeTable( cur.pos, reqPreCompLen );
+			ECPoint[] neg = (cur == null) ? new ECPoint[ reqPreCompLen ] : resizeTable( cur.neg, reqPreCompLen );
+
+			if( reqPreCompLen == 1 )
 			{
-				preCompWNaf = new ECPoint[0];
+				pos[ 0 ] = normalize();
 			}
 			else
 			{
-				iniPreCompLen = preCompWNaf.length;
-			}
-
-			if( iniPreCompLen < reqPreCompLen )
-			{
-				preCompWNaf = resizeTable( preCompWNaf, reqPreCompLen );
+				int curPreCompLen = iniPreCompLen;
+				if( curPreCompLen == 0 )
+				{
+					pos[ 0 ] = normalize();
+					curPreCompLen = 1;
+				}
 
-				if( reqPreCompLen == 1 )
+				ECPoint twiceP = pos[ 0 ].twice();
+				
+				if( reqPreCompLen == 2 )
 				{
-					preCompWNaf[ 0 ] = normalize();
+					pos[ 1 ] = twiceP.add( this ).normalize();
 				}
 				else
 				{
-					int curPreCompLen = iniPreCompLen;
-					if( curPreCompLen == 0 )
+					ECPoint last = pos[ curPreCompLen - 1 ];
+					while( curPreCompLen < reqPreCompLen )
 					{
-						preCompWNaf[ 0 ] = normalize();
-						curPreCompLen = 1;
-					}
-
-					ECPoint twiceP = preCompWNaf[ 0 ].twice();
-					
-					if( reqPreCompLen == 2 )
-					{
-						preCompWNaf[ 1 ] = twiceP.add( this ).normalize();
-					}
-					else
-					{
-						ECPoint last = preCompWNaf[ curPreCompLen - 1 ];
-						while( curPreCompLen < reqPreCompLen )
-						{
-							// Compute the new ECPoints for the precomputation array. The values
-							// 1, 3, 5, ..., 2^(width-1)-1 times p are computed
-							last = last.add( twiceP ).normalize();
-							preCompWNaf[ curPreCompLen++ ] = last;
-						}
+						// Compute the new ECPoints for the precomputation array. The values
+						// 1, 3, 5, ..., 2^(width-1)-1 times p are computed
+						last = last.add( twiceP ).normalize();
+						pos[ curPreCompLen++ ] = last;
 					}
 				}
 			}
 
-			int pos;
-			if( preCompWNafNeg == null )
+			for( int i = iniPreCompLen; i < reqPreCompLen; ++i )
 			{
-				pos = 0;
-				preCompWNafNeg = new ECPoint[ reqPreCompLen ];
-			}
-			else
-			{
-				pos = preCompWNafNeg.length;
-				if( pos < reqPreCompLen )
-				{
-					preCompWNafNeg = resizeTable( preCompWNafNeg, reqPreCompLen );
-				}
+				neg[ i ] = pos[ i ].negate();
 			}
 
-			while( pos < reqPreCompLen )
-			{
-				preCompWNafNeg[ pos ] = preCompWNaf[ pos ].negate();
-				++pos;
-			}
+			cur = new WNafPrecomp( pos, neg );
+			wnafPrecomp = cur;
+			return cur;
 		}
 
 	} // ECPoint
@@ -5,6 +5,9 @@ package org.denom.crypt.hash;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import org.denom.Binary;
 
 import static org.denom.Ex.*;
@@ -19,14 +22,25 @@ import static org.denom.Ex.*;
  *      alg.process( part1 );
  *      alg.process( partN );
  *      Binary hash = alg.getHash();
+ * 3. Data in ByteBuffer (heap, direct or memory-mapped) is hashed without copying to byte[]:
+ *      alg.process( byteBuffer );
+ *      Binary hash = alg.calcFileHashMapped( fileName );
  */
 public abstract class IHash implements Cloneable
 {
+	/**
+	 * Size of file region mapped into memory at once in calcFileHashMapped.
+	 */
+	public static final int MAP_REGION_SIZE = 64 << 20;
+
 	// -----------------------------------------------------------------------------------------------------------------
 	final int blockSize;
 	Binary tail;
 	long processedBytes = 0;
 
+	// Block copy for default processBlock( ByteBuffer, int ). Created on first use.
+	private Binary block;
+
 	// -----------------------------------------------------------------------------------------------------------------
 	protected IHash( int blockSize )
 	{
@@ -118,6 +132,71 @@ public abstract class IHash implements Cloneable
 		}
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Process block of data from buffer, starting from absolute offset. Byte order of data - BIG_ENDIAN.
+	 * Default implementation copies block and calls processBlock( Binary, int ).
+	 * Algorithms override it to read data directly from buffer.
+	 */
+	protected void processBlock( ByteBuffer data, int offset )
+	{
+		if( block == null )
+			block = new Binary( blockSize );
+
+		data.position( offset );
+		data.get( block.getDataRef(), 0, blockSize );
+		processBlock( block, 0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Process all remaining bytes of buffer (from position to limit).
+	 * Position of data is moved to limit, byte order of data is not changed.
+	 * Whole blocks are processed directly from buffer; only remainder is copied into tail.
+	 */
+	public void process( ByteBuffer data )
+	{
+		int length = data.remaining();
+		if( length == 0 )
+			return;
+
+		processedBytes += length;
+
+		ByteBuffer buf = data.duplicate().order( ByteOrder.BIG_ENDIAN );
+		int offset = buf.position();
+
+		if( !tail.empty() )
+		{	// concatenate remainder with new data
+			int part1 = Math.min( blockSize - tail.size(), length );
+			int tailSize = tail.size();
+			tail.resize( tailSize + part1 );
+			buf.position( offset );
+			buf.get( tail.getDataRef(), tailSize, part1 );
+			offset += part1;
+			length -= part1;
+
+			if( tail.size() == blockSize )
+			{
+				processBlock( tail, 0 );
+				tail.clear();
+			}
+		}
+
+		for( ; length >= blockSize; offset += blockSize, length -= blockSize )
+		{
+			processBlock( buf, offset );
+		}
+
+		if( length != 0 )
+		{	// save remainder
+			tail.resize( length );
+			buf.position( offset );
+			buf.get( tail.getDataRef(), 0, length );
+		}
+
+		data.position( data.limit() );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Convenience.
@@ -148,6 +227,32 @@ public abstract class IHash implements Cloneable
 		return getHash();
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Calc hash of file body, mapping file into memory by regions of MAP_REGION_SIZE.
+	 * File data is not copied into Java heap - faster than calcFileHash for large files.
+	 * Mapped regions are released by GC, on Windows file can stay locked until then.
+	 */
+	public Binary calcFileHashMapped( String fileName )
+	{
+		reset();
+
+		try( RandomAccessFile file = new RandomAccessFile( fileName, "r" );
+			FileChannel channel = file.getChannel() )
+		{
+			long size = channel.size();
+			for( long pos = 0; pos < size; pos += MAP_REGION_SIZE )
+			{
+				process( channel.map( FileChannel.MapMode.READ_ONLY, pos, Math.min( MAP_REGION_SIZE, size - pos ) ) );
+			}
+		}
+		catch( IOException ex )
+		{
+			THROW( ex.toString() );
+		}
+		return getHash();
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Resets state.
@@ -3,6 +3,7 @@
 
 package org.denom.crypt.hash;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.denom.Binary;
 
@@ -131,6 +132,20 @@ public class Keccak extends IHash
 		permutation();
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Absorb block directly from buffer, without copying. Byte order of data - BIG_ENDIAN.
+	 */
+	@Override
+	protected void processBlock( ByteBuffer data, int offset )
+	{
+		for( int i = 0; i < (blockSize >>> 3); ++i, offset += 8 )
+		{
+			state[ i ] ^= Long.reverseBytes( data.getLong( offset ) );
+		}
+		permutation();
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary squeeze( int wantHashSize )
 	{
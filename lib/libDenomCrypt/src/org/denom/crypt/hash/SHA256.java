@@ -3,6 +3,7 @@
 
 package org.denom.crypt.hash;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.denom.Binary;
 
@@ -119,6 +120,37 @@ public class SHA256 extends IHash
 	 * Будет обработано данных размером кратным BLOCK_SIZE и не более size.
 	 */
 	protected void processBlock( Binary data, int offset )
+	{
+		byte[] buf = data.getDataRef();
+		for( int j = 0; j < 16; ++j, offset += 4 )
+		{
+			W[ j ] =   (buf[ offset     ] << 24)
+					| ((buf[ offset + 1 ] & 0xFF) << 16)
+					| ((buf[ offset + 2 ] & 0xFF) << 8)
+					|  (buf[ offset + 3 ] & 0xFF);
+		}
+		compress();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Обработать блок прямо из буфера, без копирования. Порядок байт в data - BIG_ENDIAN.
+	 */
+	@Override
+	protected void processBlock( ByteBuffer data, int offset )
+	{
+		for( int j = 0; j < 16; ++j, offset += 4 )
+		{
+			W[ j ] = data.getInt( offset );
+		}
+		compress();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Раунды сжатия над блоком, загруженным в W[ 0..15 ].
+	 */
+	private void compress()
 	{
 		int a = H[0];
 		int b = H[1];
@@ -129,14 +161,8 @@ public class SHA256 extends IHash
 		int g = H[6];
 		int h = H[7];
 
-		byte[] buf = data.getDataRef();
-		for( int j = 0; j < 16; ++j, offset += 4 )
+		for( int j = 0; j < 16; ++j )
 		{
-			W[ j ] =   (buf[ offset     ] << 24)
-					| ((buf[ offset + 1 ] & 0xFF) << 16)
-					| ((buf[ offset + 2 ] & 0xFF) << 8)
-					|  (buf[ offset + 3 ] & 0xFF);
-
 			int s0 = rotateRight( a, 2 ) ^ rotateRight( a, 13 ) ^ rotateRight( a, 22 );
 			int ma = (a & b) ^ (a & c) ^ (b & c);
 			int t2 = s0 + ma;
@@ -3,6 +3,7 @@
 
 package org.denom.crypt.hash;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.denom.Binary;
 
@@ -136,6 +137,33 @@ public class SHA512 extends IHash
 
 	// -----------------------------------------------------------------------------------------------------------------
 	protected void processBlock( Binary data, int offset )
+	{
+		for( int j = 0; j < 16; ++j, offset += 8 )
+		{
+			W[ j ] = data.getLong( offset );
+		}
+		compress();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Обработать блок прямо из буфера, без копирования. Порядок байт в data - BIG_ENDIAN.
+	 */
+	@Override
+	protected void processBlock( ByteBuffer data, int offset )
+	{
+		for( int j = 0; j < 16; ++j, offset += 8 )
+		{
+			W[ j ] = data.getLong( offset );
+		}
+		compress();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Раунды сжатия над блоком, загруженным в W[ 0..15 ].
+	 */
+	private void compress()
 	{
 		long a = H[0];
 		long b = H[1];
@@ -146,10 +174,8 @@ public class SHA512 extends IHash
 		long g = H[6];
 		long h = H[7];
 
-		for( int j = 0; j < 16; ++j, offset += 8 )
+		for( int j = 0; j < 16; ++j )
 		{
-			W[ j ] = data.getLong( offset );
-
 			long s0 = rotateRight( a, 28 ) ^ rotateRight( a, 34 ) ^ rotateRight( a, 39 );
 			long ma = (a & b) ^ (a & c) ^ (b & c);
 			long t2 = s0 + ma;
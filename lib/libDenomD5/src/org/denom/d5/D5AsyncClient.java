@@ -0,0 +1,316 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.net.SocketClient;
+
+import static org.denom.Ex.*;
+
+// ----------------------------------------------------------------------------------------------------------------
+/**
+ * Client, that sends commands to server according to 'D5 Protocol' without waiting for responses.
+ * Many commands can be in flight on one socket, responses are matched to commands by D5 index
+ * and can arrive in any order.
+ * Separate thread reads responses and completes futures.
+ * Number of commands in flight is limited by 'window' - commandAsync blocks while window is full.
+ * Thread-safe.
+ */
+public class D5AsyncClient implements AutoCloseable
+{
+	private static final int DEFAULT_RESPONSE_DATA_LIMIT = 100_000_000;
+
+	private final SocketClient socketClient;
+	private int responseDataLimit = DEFAULT_RESPONSE_DATA_LIMIT;
+
+	private final Semaphore window;
+	private final int maxInFlight;
+
+	private final AtomicInteger commandIndex = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, CompletableFuture<D5Response>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Лок на запись в сокет. Кадры команд не должны перемешиваться.
+	 */
+	private final Object writeLock = new Object();
+
+	private ExecutorService readerExecutor;
+	private volatile boolean closed = false;
+
+	protected ILog log = null;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public D5AsyncClient( String host, int port )
+	{
+		this( host, port, 10, 64 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param maxInFlight - сколько команд может ожидать ответа одновременно.
+	 */
+	public D5AsyncClient( String host, int port, int connectTimeoutSec, int maxInFlight )
+	{
+		this( connect( host, port, connectTimeoutSec ), maxInFlight );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param socketClient - подключённый сокет. Закрывается в close().
+	 */
+	public D5AsyncClient( SocketClient socketClient, int maxInFlight )
+	{
+		MUST( (socketClient != null) && (maxInFlight > 0), "Wrong D5AsyncClient params" );
+		this.socketClient = socketClient;
+		this.maxInFlight = maxInFlight;
+		this.window = new Semaphore( maxInFlight );
+
+		readerExecutor = Executors.newSingleThreadExecutor(
+				new ThreadFactoryNamed( "D5AsyncClient-Reader", Thread.NORM_PRIORITY + 2, 0, true ) );
+		readerExecutor.execute( this::readResponses );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static SocketClient connect( String host, int port, int connectTimeoutSec )
+	{
+		SocketClient socket = new SocketClient( connectTimeoutSec );
+		socket.connectHard( host, port );
+		return socket;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Set log for printing Commands and Responses. Can be 'null'.
+	 */
+	public D5AsyncClient setLog( ILog log )
+	{
+		this.log = log;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Set new data limit for server responses.
+	 */
+	public void setResponseDataLimit( int newLimit )
+	{
+		this.responseDataLimit = newLimit;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public SocketClient getSocketClient()
+	{
+		return socketClient;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько команд сейчас ожидают ответа.
+	 */
+	public int getInFlight()
+	{
+		return pending.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Send D5Command, don't wait for response.
+	 * Blocks while 'window' is full.
+	 * @return future, completed by reader thread. If response status is not STATUS_OK,
+	 * future completes exceptionally with Ex( status, message ).
+	 */
+	public CompletableFuture<D5Response> commandAsync( int commandCode, final Binary commandData )
+	{
+		CompletableFuture<D5Response> future = new CompletableFuture<>();
+		if( closed )
+		{
+			future.completeExceptionally( new Ex( "D5AsyncClient closed" ) );
+			return future;
+		}
+
+		try
+		{
+			window.acquire();
+		}
+		catch( InterruptedException ex )
+		{
+			Thread.currentThread().interrupt();
+			future.completeExceptionally( new Ex( "Interrupted" ) );
+			return future;
+		}
+
+		D5Command cmd = new D5Command();
+		cmd.index = commandIndex.incrementAndGet();
+		cmd.code = commandCode;
+		cmd.data = commandData;
+		Binary bin = new Binary().reserve( 12 + commandData.size() );
+		cmd.encode( bin );
+
+		pending.put( cmd.index, future );
+
+		try
+		{
+			synchronized( writeLock )
+			{
+				if( (log != null) && !(log instanceof LogDummy) )
+				{
+					log.writeln( "D5 Command : " + bin.Hex( 4, 0, 0, 0 ) );
+				}
+				socketClient.write( bin );
+			}
+		}
+		catch( Throwable ex )
+		{
+			if( pending.remove( cmd.index ) != null )
+				window.release();
+			future.completeExceptionally( ex );
+		}
+
+		// Сокет мог закрыться, пока команда ставилась в очередь ожидания
+		if( closed && (pending.remove( cmd.index ) != null) )
+		{
+			window.release();
+			future.completeExceptionally( new Ex( "D5AsyncClient closed" ) );
+		}
+
+		return future;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Send D5Command and wait for D5Response.
+	 */
+	public D5Response command( int commandCode, final Binary commandData )
+	{
+		return await( commandAsync( commandCode, commandData ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Дождаться завершения future; Ex из future выбрасывается как есть.
+	 */
+	public static <T> T await( CompletableFuture<T> future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch( ExecutionException ex )
+		{
+			Throwable cause = ex.getCause();
+			if( cause instanceof Ex )
+				throw (Ex)cause;
+			throw new Ex( cause.toString() );
+		}
+		catch( InterruptedException ex )
+		{
+			Thread.currentThread().interrupt();
+			throw new Ex( "Interrupted" );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Цикл чтения ответов из сокета, выполняется в readerExecutor.
+	 */
+	private void readResponses()
+	{
+		Throwable reason = null;
+		try
+		{
+			socketClient.getSocket().setSoTimeout( 0 );
+			Binary buf = new Binary().reserve( 512 );
+
+			while( !closed )
+			{
+				buf.clear();
+				socketClient.read( buf, 16 );
+				int respSize = buf.getIntBE( 12 );
+				MUST( (respSize >= 0) && (respSize <= responseDataLimit), "D5Response from server exceeds client limit" );
+				socketClient.read( buf, respSize );
+
+				if( (log != null) && !(log instanceof LogDummy) )
+				{
+					log.writeln( "D5 Response: " + buf.Hex( 4, 0, 0, 0 ) );
+				}
+
+				D5Response response = new D5Response();
+				MUST( response.decode( buf ), "Wrong D5Response syntax" );
+
+				CompletableFuture<D5Response> future = pending.remove( response.index );
+				if( future == null )
+					continue; // Ответ на неизвестную команду, например, KEEP ALIVE
+				window.release();
+
+				if( response.status == D5Response.STATUS_OK )
+				{
+					future.complete( response );
+				}
+				else
+				{
+					future.completeExceptionally( new Ex( response.status,
+							String.format( "(0x%08X) %s", response.status, response.data.asUTF8() ) ) );
+				}
+			}
+		}
+		catch( Throwable ex )
+		{
+			reason = ex;
+		}
+
+		close();
+		failPending( (reason != null) ? reason : new Ex( "D5AsyncClient closed" ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void failPending( Throwable reason )
+	{
+		for( Integer index : pending.keySet() )
+		{
+			CompletableFuture<D5Response> future = pending.remove( index );
+			if( future != null )
+			{
+				window.release();
+				future.completeExceptionally( reason );
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть сокет. Все ожидающие ответа команды завершаются с ошибкой.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if( closed )
+			return;
+		closed = true;
+
+		socketClient.close();
+		if( readerExecutor != null )
+		{
+			readerExecutor.shutdownNow();
+			readerExecutor = null;
+		}
+		failPending( new Ex( "D5AsyncClient closed" ) );
+	}
+
+}
@@ -3,6 +3,8 @@
 
 package org.denom.d5;
 
+import java.nio.ByteBuffer;
+
 import org.denom.*;
 
 // ----------------------------------------------------------------------------------------------------------------
@@ -113,6 +115,20 @@ public class D5Command
 		bin.set( 12, this.data, 0, length );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Serialize D5 Command into buffer, starting from its current position.
+	 * @param buf - [out] must have at least 12 + data.size() bytes remaining.
+	 */
+	public void encode( ByteBuffer buf )
+	{
+		int length = data.size();
+		buf.putInt( this.index );
+		buf.putInt( this.code );
+		buf.putInt( length );
+		buf.put( data.getDataRef(), 0, length );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	@Override
 	public boolean equals( Object obj )
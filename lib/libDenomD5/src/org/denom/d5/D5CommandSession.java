@@ -20,6 +20,7 @@ public abstract class D5CommandSession extends TCPServerSession
 	protected final ILog log;
 
 	private ByteBuffer headerBuf;
+	private ByteBufferPool bufferPool;
 	private Binary dataBin = null;
 	private ByteBuffer dataBuf = null;
 
@@ -43,6 +44,7 @@ public abstract class D5CommandSession extends TCPServerSession
 		this.log = log;
 
 		headerBuf = ByteBuffer.allocate( 12 );
+		bufferPool = tcpProcessor.getBufferPool();
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -58,7 +60,7 @@ public abstract class D5CommandSession extends TCPServerSession
 			// Waiting D5Command Header
 			if( headerBuf.remaining() != 0 )
 			{
-				long readBytes = socket.read( headerBuf );
+				long readBytes = read( headerBuf );
 				if( readBytes <= 0 )
 				{
 					close();
@@ -74,11 +76,22 @@ public abstract class D5CommandSession extends TCPServerSession
 			if( dataBuf == null )
 			{
 				MUST( (dataLen >= 0) && (dataLen <= bufSize), "Too large D5Command" );
-				dataBin = new Binary( dataLen );
-				dataBuf = ByteBuffer.wrap( dataBin.getDataRef() );
+				if( (12 + dataLen) <= bufferPool.getMaxSize() )
+				{
+					// Кадр целиком (заголовок + данные) читается в direct-буфер из пула,
+					// чтобы JDK не копировал через свой временный буфер, а наследник мог переслать кадр без копирования.
+					dataBuf = bufferPool.lease( 12 + dataLen );
+					headerBuf.flip();
+					dataBuf.put( headerBuf );
+				}
+				else
+				{
+					dataBin = new Binary( dataLen );
+					dataBuf = ByteBuffer.wrap( dataBin.getDataRef() );
+				}
 			}
 
-			long readBytes = socket.read( dataBuf );
+			long readBytes = read( dataBuf );
 			if( readBytes < 0 )
 			{
 				close();
@@ -90,15 +103,36 @@ public abstract class D5CommandSession extends TCPServerSession
 				return;
 			
 			// D5Command recieved completely
+			countReadFrame();
 			D5Command command = new D5Command();
 			command.index = headerBuf.getInt( 0 );
 			command.code = headerBuf.getInt( 4 );
 			command.data = dataBin;
 
+			ByteBuffer frame = dataBuf;
 			headerBuf.clear();
 			dataBin = null;
 			dataBuf = null;
 
+			if( !admitCommand( command.index, command.code, dataLen ) )
+			{
+				if( command.data == null )
+					bufferPool.release( frame );
+				return;
+			}
+
+			if( command.data == null )
+			{
+				frame.flip();
+				if( forwardCommand( frame ) )
+					return;
+
+				command.data = new Binary( dataLen );
+				frame.position( 12 );
+				frame.get( command.data.getDataRef(), 0, dataLen );
+				bufferPool.release( frame );
+			}
+
 			processCommand( command );
 		}
 		catch( IOException ex )
@@ -120,14 +154,71 @@ public abstract class D5CommandSession extends TCPServerSession
 	protected abstract void processCommand( D5Command command );
 
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Called in IO Thread, when command is received completely, before forwardCommand and processCommand.
+	 * Subclass can reject the command without passing it to other threads, e.g. by rate limit;
+	 * then it sends the response itself.
+	 * @return false - command is dropped.
+	 */
+	protected boolean admitCommand( int commandIndex, int commandCode, int dataLen )
+	{
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Called in IO Thread, before processCommand, for every command that fits in pooled buffer.
+	 * Subclass can forward the frame to another session as-is, rewriting only header bytes in place.
+	 * @param frame - whole D5Command frame: 12 bytes header + data; position = 0, limit = frame length.
+	 * @return true - frame is consumed, the buffer belongs to subclass now and processCommand won't be called.
+	 */
+	protected boolean forwardCommand( ByteBuffer frame )
+	{
+		return false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Response is encoded into buffer leased from TCPServer's pool.
+	 * Buffer returns to pool in onWritten.
+	 */
 	public void sendResponse( D5Response response )
 	{
-		Binary bin = new Binary();
-		response.encode( bin );
-		ByteBuffer buf = ByteBuffer.wrap( bin.getDataRef() );
-		buf.limit( bin.size() );
+		ByteBuffer buf = bufferPool.lease( 16 + response.data.size() );
+		response.encode( buf );
+		buf.flip();
 
 		super.writeToSocket( buf );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Send ready D5Response frame (16 bytes header + data) without re-encoding, e.g. forwarded from other session.
+	 * Buffer must be direct buffer from TCPServer's pool or heap buffer; it belongs to this session now.
+	 */
+	public void sendResponseFrame( ByteBuffer frame )
+	{
+		super.writeToSocket( frame );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Called in IO Thread.
+	 */
+	@Override
+	protected void onWritten( ByteBuffer buf )
+	{
+		bufferPool.release( buf );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread. Unsent buffers of closed session return to pool too.
+	 */
+	@Override
+	protected void onDiscarded( ByteBuffer buf )
+	{
+		bufferPool.release( buf );
+	}
+
 }
\ No newline at end of file
@@ -3,6 +3,8 @@
 
 package org.denom.d5;
 
+import java.nio.ByteBuffer;
+
 import org.denom.*;
 
 import static org.denom.Ex.MUST;
@@ -131,6 +133,21 @@ public class D5Response
 		resp.set( 16, this.data, 0, dataLen );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Serialize D5 Response into buffer, starting from its current position.
+	 * @param buf - [out] must have at least 16 + data.size() bytes remaining.
+	 */
+	public void encode( ByteBuffer buf )
+	{
+		int dataLen = this.data.size();
+		buf.putInt( this.index );
+		buf.putInt( this.code );
+		buf.putInt( this.status );
+		buf.putInt( dataLen );
+		buf.put( this.data.getDataRef(), 0, dataLen );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	@Override
 	public boolean equals( Object obj )
@@ -24,10 +24,14 @@ public abstract class D5ResponseSession extends TCPServerSession
 	public final ILog log;
 
 	private ByteBuffer headerBuf;
+	private ByteBufferPool bufferPool;
 	private Binary dataBin = null;
 	private ByteBuffer dataBuf = null;
 	private final AtomicInteger index = new AtomicInteger( 1 );
 
+	// Команд отправлено, ответ на которые ещё не получен
+	private final AtomicInteger awaitingResponses = new AtomicInteger();
+
 	public long lastActivity;
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -51,18 +55,26 @@ public abstract class D5ResponseSession extends TCPServerSession
 		this.lastActivity = System.nanoTime();
 
 		headerBuf = ByteBuffer.allocate( 16 );
+		bufferPool = tcpServer.getBufferPool();
 	}
 	
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Command is encoded into buffer leased from TCPServer's pool.
+	 * Buffer returns to pool in onWritten.
+	 */
 	public void sendCommand( int commandCode, final Binary commandData )
 	{
-		Binary bin = new Binary().reserve( commandData.size() + 12 );
-		bin.addInt( index.getAndIncrement() );
-		bin.addInt( commandCode );
-		bin.addInt( commandData.size() );
-		bin.add( commandData );
+		int dataLen = commandData.size();
+		int commandIndex = index.getAndIncrement();
+		ByteBuffer buf = bufferPool.lease( 12 + dataLen );
+		buf.putInt( commandIndex );
+		buf.putInt( commandCode );
+		buf.putInt( dataLen );
+		buf.put( commandData.getDataRef(), 0, dataLen );
+		buf.flip();
 
-		ByteBuffer buf = ByteBuffer.wrap( bin.getDataRef(), 0, bin.size() );
+		commandQueued( commandIndex );
 		writeToSocket( buf );
 	}
 
@@ -71,13 +83,82 @@ public abstract class D5ResponseSession extends TCPServerSession
 	{
 		command.index = index.getAndIncrement();
 
-		Binary bin = new Binary();
-		command.encode( bin );
-		ByteBuffer buf = ByteBuffer.wrap( bin.getDataRef(), 0, bin.size() );
+		ByteBuffer buf = bufferPool.lease( 12 + command.data.size() );
+		command.encode( buf );
+		buf.flip();
 
+		commandQueued( command.index );
 		writeToSocket( buf );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Send ready D5Command frame (12 bytes header + data) without re-encoding, e.g. forwarded from other session.
+	 * Only command index in header is replaced.
+	 * Buffer must be direct buffer from TCPServer's pool or heap buffer; it belongs to this session now.
+	 */
+	public void sendCommandFrame( ByteBuffer frame )
+	{
+		int commandIndex = index.getAndIncrement();
+		frame.putInt( 0, commandIndex );
+		commandQueued( commandIndex );
+		writeToSocket( frame );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Called in sending thread, after command index is assigned and before the frame is queued,
+	 * so response to the command can't arrive earlier. E.g. for measuring response latency.
+	 */
+	protected void onCommandQueued( int commandIndex ) {}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void commandQueued( int commandIndex )
+	{
+		awaitingResponses.incrementAndGet();
+		onCommandQueued( commandIndex );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * After response is forwarded or processed - so getAwaitingResponses() and queues of other sessions
+	 * never show zero at the same time while the response is in transit.
+	 */
+	private void responseDone( int responseIndex )
+	{
+		if( responseIndex != 0 )
+			awaitingResponses.decrementAndGet();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * How many commands were sent without response yet. Responses with index 0 (e.g. keep alive) are not counted.
+	 */
+	public int getAwaitingResponses()
+	{
+		return Math.max( awaitingResponses.get(), 0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread.
+	 */
+	@Override
+	protected void onWritten( ByteBuffer buf )
+	{
+		bufferPool.release( buf );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * IO Thread. Unsent buffers of closed session return to pool too.
+	 */
+	@Override
+	protected void onDiscarded( ByteBuffer buf )
+	{
+		bufferPool.release( buf );
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * IO Thread.
@@ -91,7 +172,7 @@ public abstract class D5ResponseSession extends TCPServerSession
 			// Waiting D5 header
 			if( headerBuf.remaining() != 0 )
 			{
-				long readBytes = socket.read( headerBuf );
+				long readBytes = read( headerBuf );
 				if( readBytes <= 0 )
 				{
 					close();
@@ -107,11 +188,22 @@ public abstract class D5ResponseSession extends TCPServerSession
 			if( dataBuf == null )
 			{
 				MUST( (dataLen >= 0) && (dataLen <= bufSize), "Too large D5Response" );
-				dataBin = new Binary( dataLen );
-				dataBuf = ByteBuffer.wrap( dataBin.getDataRef() );
+				if( (16 + dataLen) <= bufferPool.getMaxSize() )
+				{
+					// Кадр целиком (заголовок + данные) читается в direct-буфер из пула,
+					// чтобы JDK не копировал через свой временный буфер, а наследник мог переслать кадр без копирования.
+					dataBuf = bufferPool.lease( 16 + dataLen );
+					headerBuf.flip();
+					dataBuf.put( headerBuf );
+				}
+				else
+				{
+					dataBin = new Binary( dataLen );
+					dataBuf = ByteBuffer.wrap( dataBin.getDataRef() );
+				}
 			}
 
-			long readBytes = socket.read( dataBuf );
+			long readBytes = read( dataBuf );
 			if( readBytes < 0 )
 			{
 				close();
@@ -123,17 +215,35 @@ public abstract class D5ResponseSession extends TCPServerSession
 				return;
 
 			// D5Response recieved completely
+			countReadFrame();
 			D5Response response = new D5Response();
 			response.index = headerBuf.getInt( 0 );
 			response.code = headerBuf.getInt( 4 );
 			response.status = headerBuf.getInt( 8 );
 			response.data = dataBin;
 
+			ByteBuffer frame = dataBuf;
 			headerBuf.clear();
 			dataBin = null;
 			dataBuf = null;
 
+			if( response.data == null )
+			{
+				frame.flip();
+				if( forwardResponse( frame ) )
+				{
+					responseDone( response.index );
+					return;
+				}
+
+				response.data = new Binary( dataLen );
+				frame.position( 16 );
+				frame.get( response.data.getDataRef(), 0, dataLen );
+				bufferPool.release( frame );
+			}
+
 			processResponse( response );
+			responseDone( response.index );
 		}
 		catch( IOException ex )
 		{
@@ -146,6 +256,18 @@ public abstract class D5ResponseSession extends TCPServerSession
 		}
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Called in IO Thread, before processResponse, for every response that fits in pooled buffer.
+	 * Subclass can forward the frame to another session as-is, rewriting only header bytes in place.
+	 * @param frame - whole D5Response frame: 16 bytes header + data; position = 0, limit = frame length.
+	 * @return true - frame is consumed, the buffer belongs to subclass now and processResponse won't be called.
+	 */
+	protected boolean forwardResponse( ByteBuffer frame )
+	{
+		return false;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Called in IO Thread.
@@ -3,12 +3,18 @@
 
 package org.denom.d5;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.denom.*;
 import org.denom.log.*;
 import org.denom.net.SocketClient;
+import org.denom.net.TimingWheel;
 
 import static org.denom.Ex.*;
 
@@ -20,6 +26,10 @@ import static org.denom.Ex.*;
  * Запускает несколько потоков: 1 поток для считывания команд; N потоков для обработки команд и отправки ответов.
  * Для остановки потоков, следует вызвать метод 'close'.
  * Поддерживает соединение живым, раз в keepAliveIntervalSec секунд
+ * 
+ * Если клиент создан с D5ReverseReactor, то своих потоков не запускает: команды читаются IO-потоком реактора,
+ * обрабатываются в общем пуле реактора, ответы ставятся в очередь соединения и отправляются IO-потоком.
+ * Так много соединений обслуживаются несколькими потоками, и медленная запись не блокирует рабочие потоки.
  */
 public abstract class D5ReverseClient implements AutoCloseable
 {
@@ -52,6 +62,38 @@ public abstract class D5ReverseClient implements AutoCloseable
 	private int keepAliveIntervalSec = 20;
 	ScheduledExecutorService keepAliveExecutor;
 
+	private volatile boolean closed = false;
+
+	/**
+	 * Реактор, если клиент работает без своих потоков. null - блокирующий режим.
+	 */
+	private final D5ReverseReactor reactor;
+
+	// Состояние соединения в режиме реактора. Чтение и запись в сокет - только в IO-потоке реактора.
+	D5ReverseReactor.Loop loop;
+	SocketChannel channel;
+	SelectionKey selectionKey;
+
+	private final ByteBuffer headerBuf = ByteBuffer.allocate( 12 );
+	private Binary dataBin = null;
+	private ByteBuffer dataBuf = null;
+
+	/**
+	 * Ответы, ожидающие отправки. Ставятся в очередь рабочими потоками, отправляются IO-потоком.
+	 */
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean flushRequested = new AtomicBoolean( false );
+
+	/**
+	 * Таймер KEEP ALIVE в колесе таймеров IO-потока реактора. Используется только в IO-потоке.
+	 */
+	TimingWheel.Timer<D5ReverseClient> keepAliveTimer;
+
+	/**
+	 * Сколько команд читать из сокета за одно событие, чтобы не задерживать другие соединения.
+	 */
+	private static final int MAX_COMMANDS_PER_READ = 64;
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * @param numWorkerThreads - количество рабочих поток для обработки команд.
@@ -59,15 +101,41 @@ public abstract class D5ReverseClient implements AutoCloseable
 	 */
 	public D5ReverseClient( int numWorkerThreads, String prefixNameForThreads )
 	{
+		this( WorkerExecutors.newFixed( numWorkerThreads, prefixNameForThreads + "-Worker" ), prefixNameForThreads );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param workersExecutor - потоки для обработки команд, например, WorkerExecutors.newVirtual(...),
+	 *   если обработчики блокируются на вводе-выводе. Останавливается в методе close.
+	 * @param prefixNameForThreads - префикс для имен потоков.
+	 */
+	public D5ReverseClient( ExecutorService workersExecutor, String prefixNameForThreads )
+	{
+		MUST( workersExecutor != null, "Null params" );
+
 		readSocketExecutor = Executors.newFixedThreadPool( 1,
 				new ThreadFactoryNamed( prefixNameForThreads + "-SocketReader", Thread.NORM_PRIORITY + 2, 0, false ) );
 
-		workersExecutor = Executors.newFixedThreadPool( numWorkerThreads,
-				new ThreadFactoryNamed( prefixNameForThreads + "-Worker", Thread.NORM_PRIORITY, 0, false ) );
+		this.workersExecutor = workersExecutor;
+		this.reactor = null;
 
 		keepAliveExecutor = Executors.newScheduledThreadPool( 1 );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Клиент без своих потоков: чтение, запись и KEEP ALIVE - в IO-потоках реактора,
+	 * обработка команд - в рабочих потоках реактора.
+	 * Реактор не останавливается в методе close, его можно использовать для многих клиентов.
+	 */
+	public D5ReverseClient( D5ReverseReactor reactor )
+	{
+		MUST( reactor != null, "Null params" );
+		this.reactor = reactor;
+		this.workersExecutor = reactor.getWorkersExecutor();
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Задать лог для вывода сообщений об ошибках. Если вызвать метод setPrintD5, то будут выводиться все команды.
@@ -82,6 +150,7 @@ public abstract class D5ReverseClient implements AutoCloseable
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * С этим интервалом отправлять на сервер ответ на ENUM COMMANDS, чтобы соединение не разрывалось.
+	 * 0 - не отправлять. Задаётся до connect.
 	 */
 	public void setKeepAliveInterval( int intervalSec )
 	{
@@ -127,15 +196,33 @@ public abstract class D5ReverseClient implements AutoCloseable
 		socket.connectHard( host, port );
 		this.socketClient = socket;
 
+		if( reactor != null )
+		{
+			try
+			{
+				channel = socket.getChannel();
+				channel.configureBlocking( false );
+			}
+			catch( IOException ex )
+			{
+				socket.close();
+				THROW( "Can't connect to " + host + ":" + port + " - " + ex.toString() );
+			}
+			reactor.register( this );
+			return;
+		}
+
 		// Запуск цикла считывания команд
 		readSocketExecutor.execute( this::readCommands );
 
-		keepAliveExecutor.scheduleAtFixedRate( this::sendKeepAlive, keepAliveIntervalSec, keepAliveIntervalSec, TimeUnit.SECONDS );
+		if( keepAliveIntervalSec > 0 )
+			keepAliveExecutor.scheduleAtFixedRate( this::sendKeepAlive, keepAliveIntervalSec, keepAliveIntervalSec, TimeUnit.SECONDS );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * @return ссылка на сокет для управления соединением снаружи.
+	 * В режиме реактора сокет неблокирующий, читать из него и писать в него нельзя.
 	 */
 	public SocketClient getSocketClient()
 	{
@@ -145,7 +232,7 @@ public abstract class D5ReverseClient implements AutoCloseable
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary keepAliveBin = null;
 	// -----------------------------------------------------------------------------------------------------------------
-	private synchronized void sendKeepAlive()
+	private synchronized Binary getKeepAliveBin()
 	{
 		if( keepAliveBin == null )
 		{
@@ -158,7 +245,13 @@ public abstract class D5ReverseClient implements AutoCloseable
 			keepAliveBin = new Binary();
 			response.encode( keepAliveBin );
 		}
+		return keepAliveBin;
+	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	private synchronized void sendKeepAlive()
+	{
+		getKeepAliveBin();
 		if( printD5 )
 		{
 			log.writeln( "D5 Response: " + keepAliveBin.Hex( 4, 0, 0, 0 ) );
@@ -204,7 +297,8 @@ public abstract class D5ReverseClient implements AutoCloseable
 		}
 		catch( Throwable ex )
 		{
-			if( !Thread.interrupted() )
+			// Сокет закрыт в close() - это не ошибка
+			if( !closed && !Thread.interrupted() )
 			{
 				log.writeln( Colors.YELLOW_I, ex.toString() );
 			}
@@ -275,9 +369,23 @@ public abstract class D5ReverseClient implements AutoCloseable
 			Binary bin = new Binary();
 			response.encode( bin );
 
+			if( reactor != null )
+			{
+				if( printD5 )
+				{
+					log.writeln( "D5 Response: " + bin.Hex( 4, 0, 0, 0 ) );
+				}
+				enqueue( ByteBuffer.wrap( bin.getDataRef(), 0, bin.size() ) );
+				return;
+			}
+
 			// Отправка ответов по очереди
 			synchronized( this )
 			{
+				if( closed )
+				{
+					return;
+				}
 				if( printD5 )
 				{
 					log.writeln( "D5 Response: " + bin.Hex( 4, 0, 0, 0 ) );
@@ -288,46 +396,269 @@ public abstract class D5ReverseClient implements AutoCloseable
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	public synchronized boolean isClosed()
+	/**
+	 * Режим реактора. Вызывается в различных потоках.
+	 * Поставить кадр в очередь на отправку и, если IO-поток ещё не знает о ней, разбудить его.
+	 */
+	private void enqueue( ByteBuffer frame )
+	{
+		if( closed )
+			return;
+
+		writeQueue.offer( frame );
+		if( flushRequested.compareAndSet( false, true ) )
+		{
+			loop.needToFlush( this );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим реактора. Вызывается в IO-потоке.
+	 * Буферы из начала очереди передаются в сокет одним вызовом write( ByteBuffer[] ).
+	 */
+	void flush( ByteBuffer[] gather )
+	{
+		flushRequested.set( false );
+
+		SelectionKey key = selectionKey;
+		// Ещё не зарегистрирован в селекторе, данные будут отправлены после регистрации.
+		if( (key == null) || !channel.isOpen() )
+			return;
+
+		try
+		{
+			while( true )
+			{
+				int n = 0;
+				for( ByteBuffer buf : writeQueue )
+				{
+					gather[ n++ ] = buf;
+					if( n == gather.length )
+						break;
+				}
+				if( n == 0 )
+					break;
+
+				channel.write( gather, 0, n );
+
+				int i = 0;
+				for( ; (i < n) && (gather[ i ].remaining() == 0); ++i )
+					writeQueue.remove();
+				Arrays.fill( gather, 0, n, null );
+
+				if( i < n )
+				{
+					// TCP-буфер заполнен, ждём, когда появится место.
+					key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+					return;
+				}
+			}
+
+			key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
+		}
+		catch( Exception ex ) // IOException + возможно CancelledKeyException
+		{
+			Arrays.fill( gather, null );
+			closeAsync();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим реактора. Вызывается в IO-потоке, когда в сокете есть данные.
+	 * Читает команды и передаёт их рабочим потокам.
+	 */
+	void readFromChannel()
+	{
+		try
+		{
+			for( int i = 0; i < MAX_COMMANDS_PER_READ; ++i )
+			{
+				// Waiting D5 Command header (12 bytes)
+				if( dataBuf == null )
+				{
+					if( channel.read( headerBuf ) < 0 )
+					{
+						closeAsync();
+						return;
+					}
+					if( headerBuf.remaining() != 0 )
+						return;
+
+					int dataSize = headerBuf.getInt( 8 );
+					MUST( (dataSize >= 0) && (dataSize <= commandDataLimit), "Too large D5Command from server" );
+					dataBin = new Binary( dataSize );
+					dataBuf = ByteBuffer.wrap( dataBin.getDataRef(), 0, dataSize );
+				}
+
+				// Read Command data
+				if( dataBuf.remaining() != 0 )
+				{
+					if( channel.read( dataBuf ) < 0 )
+					{
+						closeAsync();
+						return;
+					}
+					if( dataBuf.remaining() != 0 )
+						return;
+				}
+
+				// D5 Command recieved
+				D5Command command = new D5Command();
+				command.index = headerBuf.getInt( 0 );
+				command.code = headerBuf.getInt( 4 );
+				command.data = dataBin;
+
+				headerBuf.clear();
+				dataBin = null;
+				dataBuf = null;
+
+				if( printD5 )
+				{
+					Binary bin = new Binary();
+					command.encode( bin );
+					log.writeln( "D5 Command : " + bin.Hex( 4, 0, 0, 0 ) );
+				}
+
+				workersExecutor.execute( () -> onCommand( command ) );
+			}
+		}
+		catch( Throwable ex )
+		{
+			if( !closed )
+			{
+				log.writeln( Colors.YELLOW_I, ex.toString() );
+			}
+			closeAsync();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим реактора. Период KEEP ALIVE в мс, 0 - не отправлять.
+	 */
+	long getKeepAliveIntervalMs()
+	{
+		return Math.max( 0, keepAliveIntervalSec * 1000L );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим реактора. Вызывается в IO-потоке, когда сработал таймер KEEP ALIVE.
+	 * @return false - клиент закрыт, таймер больше не нужен.
+	 */
+	boolean onKeepAlive()
+	{
+		if( closed )
+			return false;
+
+		Binary bin = getKeepAliveBin();
+		if( printD5 )
+		{
+			log.writeln( "D5 Response: " + bin.Hex( 4, 0, 0, 0 ) );
+		}
+		enqueue( ByteBuffer.wrap( bin.getDataRef(), 0, bin.size() ) );
+		return true;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим реактора. Вызывается в IO-потоке.
+	 * Сокет закрывается сразу, чтобы селектор не сообщал о нём снова,
+	 * остальное (и onClosed) - в рабочем потоке, чтобы не задерживать IO-поток.
+	 */
+	void closeAsync()
+	{
+		if( closed )
+			return;
+
+		SelectionKey key = selectionKey;
+		if( key != null )
+			key.cancel();
+		socketClient.close();
+
+		try
+		{
+			workersExecutor.execute( this::close );
+		}
+		catch( RejectedExecutionException ex )
+		{
+			close();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public boolean isClosed()
 	{
-		return readSocketExecutor == null;
+		return closed;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	@Override
-	public synchronized void close()
+	public void close()
 	{
 		// Этот метод вызывается либо снаружи, либо из блока finally цикла чтения,
 		// поэтому обеспечиваем работу этого метода при повторных вызовах.
 		// Также даёт возможность вызывать close() пользователям
-
-		if( keepAliveExecutor != null )
+		ExecutorService keepAlive;
+		ExecutorService reader;
+		ExecutorService workers = null;
+		Runnable onClosedCallback;
+		synchronized( this )
 		{
-			Sys.shutdownNow( keepAliveExecutor, 3 );
+			boolean first = !closed;
+			closed = true;
+
+			// Сначала сокет - поток чтения выйдет из блокирующего read, и его остановка не зависит от прерывания.
+			if( socketClient != null )
+			{
+				socketClient.close();
+			}
+
+			keepAlive = keepAliveExecutor;
 			keepAliveExecutor = null;
+			reader = readSocketExecutor;
+			readSocketExecutor = null;
+
+			// Рабочие потоки реактора общие, их останавливает реактор
+			if( first && (reactor == null) )
+			{
+				workers = workersExecutor;
+			}
+
+			if( loop != null )
+			{
+				SelectionKey key = selectionKey;
+				if( key != null )
+					key.cancel();
+				loop.unregister( this );
+				writeQueue.clear();
+			}
+
+			onClosedCallback = onClosed;
+			onClosed = null;
 		}
 
-		if( readSocketExecutor != null )
+		// Потоки останавливаем без блокировки - рабочий поток может ждать её, чтобы отправить ответ.
+		if( keepAlive != null )
 		{
-			Sys.shutdownNow( readSocketExecutor, 3 );
-			readSocketExecutor = null;
+			Sys.shutdownNow( keepAlive, 3 );
 		}
 
-		if( workersExecutor != null )
+		if( reader != null )
 		{
-			Sys.shutdownNow( workersExecutor, 10 );
-			workersExecutor = null;
+			Sys.shutdownNow( reader, 3 );
 		}
 
-		if( socketClient != null )
+		if( workers != null )
 		{
-			socketClient.close();
+			Sys.shutdownNow( workers, 10 );
 		}
 
-		if( onClosed != null )
+		if( onClosedCallback != null )
 		{
-			onClosed.run();
-			onClosed = null;
+			onClosedCallback.run();
 		}
 	}
-}
\ No newline at end of file
+}
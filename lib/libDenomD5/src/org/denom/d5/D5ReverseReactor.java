@@ -0,0 +1,293 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.net.TimingWheel;
+
+import static org.denom.Ex.*;
+
+// ----------------------------------------------------------------------------------------------------------------
+/**
+ * Общие потоки для многих D5ReverseClient-ов.
+ * Несколько IO-потоков с селекторами читают команды из всех соединений и отправляют ответы из их очередей,
+ * общий пул рабочих потоков обрабатывает команды.
+ * Клиент работает через реактор, если создан конструктором D5ReverseClient( D5ReverseReactor ).
+ * Для остановки потоков и закрытия всех соединений следует вызвать метод 'close'.
+ */
+public class D5ReverseReactor implements AutoCloseable
+{
+	private final ExecutorService workersExecutor;
+	private final Loop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	private volatile boolean closed = false;
+	private ILog log = new LogDummy();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param numIOThreads - количество IO-потоков (селекторов).
+	 * @param numWorkerThreads - количество рабочих потоков для обработки команд всех соединений.
+	 * @param prefixNameForThreads - префикс для имен потоков.
+	 */
+	public D5ReverseReactor( int numIOThreads, int numWorkerThreads, String prefixNameForThreads )
+	{
+		this( numIOThreads, WorkerExecutors.newFixed( numWorkerThreads, prefixNameForThreads + "-Worker" ),
+				prefixNameForThreads );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param workersExecutor - потоки для обработки команд всех соединений. Останавливается в методе close.
+	 */
+	public D5ReverseReactor( int numIOThreads, ExecutorService workersExecutor, String prefixNameForThreads )
+	{
+		MUST( (numIOThreads > 0) && (workersExecutor != null), "Wrong D5ReverseReactor params" );
+		this.workersExecutor = workersExecutor;
+
+		loops = new Loop[ numIOThreads ];
+		try
+		{
+			for( int i = 0; i < numIOThreads; ++i )
+			{
+				loops[ i ] = new Loop();
+				Thread thread = new ThreadFactoryNamed( prefixNameForThreads + "-IO", Thread.NORM_PRIORITY + 2, 0, false )
+						.newThread( loops[ i ] );
+				thread.start();
+			}
+		}
+		catch( IOException ex )
+		{
+			close();
+			THROW( "Can't open selector: " + ex );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public void setLog( ILog log )
+	{
+		MUST( log != null, "Null params" );
+		this.log = log;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	ExecutorService getWorkersExecutor()
+	{
+		return workersExecutor;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Количество соединений, обслуживаемых реактором.
+	 */
+	public int getConnectionCount()
+	{
+		int n = 0;
+		for( Loop loop : loops )
+		{
+			if( loop != null )
+				n += loop.clients.size();
+		}
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в D5ReverseClient.connect. Клиент закрепляется за одним из IO-потоков.
+	 */
+	void register( D5ReverseClient client )
+	{
+		MUST( !closed, "D5ReverseReactor closed" );
+		Loop loop = loops[ Math.floorMod( nextLoop.getAndIncrement(), loops.length ) ];
+		client.loop = loop;
+		loop.newClients.offer( client );
+		loop.selector.wakeup();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть все соединения и остановить потоки.
+	 */
+	@Override
+	public void close()
+	{
+		if( closed )
+			return;
+		closed = true;
+
+		for( Loop loop : loops )
+		{
+			if( loop != null )
+				loop.selector.wakeup();
+		}
+
+		Sys.shutdownNow( workersExecutor, 10 );
+	}
+
+	// =================================================================================================================
+	/**
+	 * Селектор и его IO-поток.
+	 * Чтение из сокетов и запись в них для закреплённых клиентов выполняются только в этом потоке.
+	 */
+	final class Loop implements Runnable
+	{
+		final Selector selector;
+
+		final Queue<D5ReverseClient> newClients = new ConcurrentLinkedQueue<>();
+		final Queue<D5ReverseClient> flushingClients = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Клиенты, зарегистрированные в селекторе. Используется в IO-потоке, size() - в любом.
+		 */
+		final Set<D5ReverseClient> clients = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Максимальное число буферов в одной gathering-записи.
+		 */
+		private final ByteBuffer[] gather = new ByteBuffer[ 64 ];
+
+		/**
+		 * Таймеры KEEP ALIVE клиентов. Используется только в IO-потоке.
+		 * За тик обрабатываются только сработавшие таймеры, а не все клиенты.
+		 */
+		private final TimingWheel<D5ReverseClient> keepAliveWheel;
+		private final Consumer<D5ReverseClient> onKeepAliveTimer = this::onKeepAliveTimer;
+
+		// -------------------------------------------------------------------------------------------------------------
+		Loop() throws IOException
+		{
+			selector = Selector.open();
+			keepAliveWheel = new TimingWheel<>( 250, 256, nowMs() );
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		private long nowMs()
+		{
+			return System.nanoTime() / 1_000_000;
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		private void onKeepAliveTimer( D5ReverseClient client )
+		{
+			if( client.onKeepAlive() )
+				keepAliveWheel.schedule( client.keepAliveTimer, client.getKeepAliveIntervalMs() );
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Вызывается в различных потоках, когда в очереди клиента появились ответы.
+		 */
+		void needToFlush( D5ReverseClient client )
+		{
+			flushingClients.offer( client );
+			selector.wakeup();
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		@Override
+		public void run()
+		{
+			try
+			{
+				while( !closed )
+				{
+					long timeout = 1000;
+					if( keepAliveWheel.size() > 0 )
+						timeout = Math.min( timeout, Math.max( 1, keepAliveWheel.msToNextTick( nowMs() ) ) );
+					selector.select( timeout );
+
+					registerNewClients();
+
+					D5ReverseClient client;
+					while( (client = flushingClients.poll()) != null )
+						client.flush( gather );
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while( it.hasNext() )
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						client = (D5ReverseClient)key.attachment();
+
+						if( key.isValid() && key.isWritable() )
+							client.flush( gather );
+
+						if( key.isValid() && key.isReadable() )
+							client.readFromChannel();
+					}
+
+					keepAliveWheel.advance( nowMs(), onKeepAliveTimer );
+				}
+			}
+			catch( Throwable ex )
+			{
+				log.writeln( Colors.RED_I, "D5ReverseReactor: " + ex.toString() );
+			}
+
+			// Рабочие потоки останавливаются вместе с реактором, поэтому закрываем клиентов здесь же
+			registerNewClients();
+			for( D5ReverseClient c : clients )
+				c.close();
+			clients.clear();
+
+			try
+			{
+				selector.close();
+			}
+			catch( IOException ex ) {}
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		private void registerNewClients()
+		{
+			D5ReverseClient client;
+			while( (client = newClients.poll()) != null )
+			{
+				try
+				{
+					client.selectionKey = client.channel.register( selector, SelectionKey.OP_READ, client );
+					clients.add( client );
+					long keepAliveMs = client.getKeepAliveIntervalMs();
+					if( keepAliveMs > 0 )
+					{
+						client.keepAliveTimer = keepAliveWheel.newTimer( client );
+						keepAliveWheel.schedule( client.keepAliveTimer, keepAliveMs );
+					}
+					// Ответы могли быть поставлены в очередь до регистрации
+					client.flush( gather );
+				}
+				catch( Throwable ex )
+				{
+					client.closeAsync();
+				}
+			}
+		}
+
+		// -------------------------------------------------------------------------------------------------------------
+		/**
+		 * Вызывается при закрытии клиента.
+		 */
+		void unregister( D5ReverseClient client )
+		{
+			clients.remove( client );
+		}
+	}
+
+}
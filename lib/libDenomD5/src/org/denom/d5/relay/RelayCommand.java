@@ -34,6 +34,36 @@ public final class RelayCommand
 	// User -> Relay -> Resource
 	public final static int SEND_ENCRYPTED      = 0xCD000003;
 
+	// -----------------------------------------------------------------------------------------------------------------
+	// Relay -> Relay (узлы кластера)
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Первая команда по связи между узлами: имя узла и случайное число.
+	 * В ответе - имя узла, его случайное число и подпись обоих чисел ключом Relay-а (общим для узлов кластера).
+	 */
+	public final static int PEER_HELLO          = 0xCD000201;
+
+	/**
+	 * Подпись случайных чисел из PEER_HELLO - узел, принявший соединение, аутентифицирует подключившийся.
+	 */
+	public final static int PEER_AUTH           = 0xCD000202;
+
+	/**
+	 * Обмен справочниками ресурсов: в команде - ресурсы, подключённые к узлу-отправителю, в ответе - к получателю.
+	 */
+	public final static int PEER_DIRECTORY      = 0xCD000203;
+
+	/**
+	 * Маршрут от юзера одного узла к ресурсу другого: Route ID и публичный ключ ресурса.
+	 * Далее SEND и SEND_ENCRYPTED передаются по связи между узлами с Route ID вместо Resource ID.
+	 */
+	public final static int PEER_BIND           = 0xCD000204;
+
+	/**
+	 * Удалить маршрут - юзер отключился.
+	 */
+	public final static int PEER_UNBIND         = 0xCD000205;
+
 
 	// -----------------------------------------------------------------------------------------------------------------
 	// User -> Relay -> Resource
@@ -41,4 +71,9 @@ public final class RelayCommand
 	// -----------------------------------------------------------------------------------------------------------------
 	public final static int INIT_SM             = 0xCDD00001;
 
+	/**
+	 * Возобновление SM-сессии по билету предыдущей сессии, без ECDH. См. RelaySM.Ticket.
+	 */
+	public final static int RESUME_SM           = 0xCDD00002;
+
 }
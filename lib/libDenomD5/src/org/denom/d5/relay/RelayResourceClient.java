@@ -3,7 +3,7 @@
 
 package org.denom.d5.relay;
 
-import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import org.denom.*;
 import org.denom.d5.*;
@@ -25,7 +25,10 @@ public abstract class RelayResourceClient extends D5ReverseClient
 
 	private RelayAuth relayAuth;
 
-	protected Map<Long, RelaySM> userSMSesions = new HashMap<>();
+	protected RelaySMCache smSessions = new RelaySMCache();
+
+	// Режим SM, который ресурс принимает, если его предлагает User
+	private int smMode = RelaySM.MODE_CLASSIC;
 
 	// -----------------------------------------------------------------------------------------------------------------
 	public RelayResourceClient( RelaySigner resourceKey, String resourceName, String resourceDescription,
@@ -37,6 +40,73 @@ public abstract class RelayResourceClient extends D5ReverseClient
 		this.resourceDescription = resourceDescription;
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param workersExecutor - см. D5ReverseClient.
+	 */
+	public RelayResourceClient( RelaySigner resourceKey, String resourceName, String resourceDescription,
+		ExecutorService workersExecutor, String prefixNameForThreads )
+	{
+		super( workersExecutor, prefixNameForThreads );
+		this.resourceKey = resourceKey;
+		this.resourceName = resourceName;
+		this.resourceDescription = resourceDescription;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param reactor - общие IO-потоки и рабочие потоки для многих соединений, см. D5ReverseClient.
+	 */
+	public RelayResourceClient( RelaySigner resourceKey, String resourceName, String resourceDescription,
+		D5ReverseReactor reactor )
+	{
+		super( reactor );
+		this.resourceKey = resourceKey;
+		this.resourceName = resourceName;
+		this.resourceDescription = resourceDescription;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Заменить кэш SM-сессий, например, с другими ограничениями. Вызывать до подключения к Relay-ю.
+	 */
+	public void setSMSessions( RelaySMCache smSessions )
+	{
+		MUST( smSessions != null, "Null params" );
+		this.smSessions = smSessions;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Разрешить режим SM, который User может предложить в INIT_SM. По умолчанию - только RelaySM.MODE_CLASSIC.
+	 * @param smMode - RelaySM.MODE_CHACHA20_POLY1305 - принимать режим AEAD.
+	 */
+	public void setSMMode( int smMode )
+	{
+		MUST( (smMode == RelaySM.MODE_CLASSIC) || (smMode == RelaySM.MODE_CHACHA20_POLY1305), "Wrong SM mode" );
+		this.smMode = smMode;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Кэш SM-сессий и его счётчики.
+	 */
+	public RelaySMCache getSMSessions()
+	{
+		return smSessions;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Публичный ключ юзера, инициализировавшего SM. Для проверки прав в dispatchSend.
+	 */
+	protected Binary getUserPublicKey( long userHandle )
+	{
+		RelaySM sm = smSessions.peek( userHandle );
+		MUST( sm != null, "SM Error: not initialized" );
+		return sm.otherStaticPublic;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Вызывается в одном из рабочих потоков.
@@ -95,26 +165,40 @@ public abstract class RelayResourceClient extends D5ReverseClient
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * User инициализирует SM.
+	 * Старая сессия с тем же User Handle вытесняется: после перезапуска Relay хэндлы выдаются заново,
+	 * и новый юзер может получить хэндл, сессия которого ещё в кэше.
 	 * @return
 	 */
 	private Binary processInitSM( long userHandle, final Binary commandData )
 	{
-		RelaySM sm = null;
-		synchronized( userSMSesions )
-		{
-			sm = userSMSesions.get( userHandle );
-		}
-		MUST( sm == null, "SM already inited" );
-
-		sm = new RelaySM( resourceKey );
+		smSessions.remove( userHandle );
 
+		RelaySM sm = new RelaySM( resourceKey, smMode );
 		Binary resp  = sm.parseRequestInitSM( commandData );
 
-		synchronized( userSMSesions )
-		{
-			userSMSesions.put( userHandle, sm );
-		}
-		
+		smSessions.put( userHandle, sm );
+		smSessions.putTicket( sm.getTicket() );
+		return resp;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * User возобновляет SM по билету предыдущей сессии - без ECDH.
+	 */
+	private Binary processResumeSM( long userHandle, final Binary commandData )
+	{
+		smSessions.remove( userHandle );
+
+		// Билет забирается, только если запрос подписан его секретом
+		RelaySM.Ticket ticket = smSessions.takeTicket( RelaySM.parseTicketId( commandData ),
+				t -> RelaySM.checkResumeRequest( commandData, t ) );
+		MUST( ticket != null, "SM Error: Unknown ticket" );
+
+		RelaySM sm = new RelaySM( resourceKey );
+		Binary resp = sm.parseRequestResumeSM( commandData, ticket );
+
+		smSessions.put( userHandle, sm );
+		smSessions.putTicket( sm.getTicket() );
 		return resp;
 	}
 
@@ -158,6 +242,10 @@ public abstract class RelayResourceClient extends D5ReverseClient
 			{
 				dataToUser = processInitSM( userHandle, commandData );
 			}
+			else if( commandCode == RelayCommand.RESUME_SM )
+			{
+				dataToUser = processResumeSM( userHandle, commandData );
+			}
 			else
 			{
 				dataToUser = dispatchSend( userHandle, userToResourceIndex, commandCode, commandData );
@@ -218,11 +306,7 @@ public abstract class RelayResourceClient extends D5ReverseClient
 		int userCommandIndex = parser.getInt();
 		int userToResourceIndex = parser.getInt();
 
-		RelaySM sm = null;
-		synchronized( userSMSesions )
-		{
-			sm = userSMSesions.get( userHandle );
-		}
+		RelaySM sm = smSessions.get( userHandle );
 		MUST( sm != null, "SM Error: not initialized" );
 
 		Int commandCode = new Int();
@@ -257,8 +341,7 @@ public abstract class RelayResourceClient extends D5ReverseClient
 		resp.addInt( userCommandIndex );
 		resp.addInt( userToResourceIndex );
 
-		Binary encrypted = sm.encryptResponse( userToResourceIndex, commandCode.val - 0x20000000, status, dataToUser );
-		resp.add( encrypted );
+		sm.encryptResponse( userToResourceIndex, commandCode.val - 0x20000000, status, dataToUser, resp );
 
 		return resp;
 	}
@@ -0,0 +1,192 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5.relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.denom.*;
+import org.denom.log.*;
+import org.denom.net.ReconnectBackoff;
+
+import static org.denom.Ex.MUST;
+
+// -----------------------------------------------------------------------------------------------------------------
+/**
+ * Держит ресурс подключённым к Relay-ю. RelayResourceClient подключается только один раз,
+ * поэтому после разрыва соединения создаётся новый клиент (clientFactory) и подключается снова.
+ *
+ * Паузы между попытками - ReconnectBackoff: растут экспоненциально, со случайным разбросом.
+ * Когда Relay перезапускается, его ресурсы теряют соединение одновременно; без разброса они подключились бы
+ * все сразу, и Relay был бы перегружен EC-вычислениями WHO_ARE_YOU / RELAY_SIGN.
+ * Если соединение проработало дольше maxMs, следующая серия попыток начинается с короткой паузы.
+ */
+public class RelayResourceConnector implements AutoCloseable
+{
+	private final String host;
+	private final int port;
+	private final Supplier<? extends RelayResourceClient> clientFactory;
+
+	private int connectTimeoutSec = 5;
+	private long maxMs = 60_000;
+	private ReconnectBackoff backoff = new ReconnectBackoff( 1000, maxMs );
+	private ILog log = new LogDummy();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryNamed( "RelayResourceConnector", Thread.NORM_PRIORITY, 0, true ) );
+
+	private volatile RelayResourceClient client = null;
+	private long connectedAtMs = 0;
+	private volatile boolean closed = false;
+
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param clientFactory - создаёт новый, ещё не подключённый клиент для каждой попытки.
+	 */
+	public RelayResourceConnector( String host, int port, Supplier<? extends RelayResourceClient> clientFactory )
+	{
+		MUST( (host != null) && (clientFactory != null), "Null params" );
+		this.host = host;
+		this.port = port;
+		this.clientFactory = clientFactory;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param baseMs - верхняя граница первой паузы после разрыва соединения.
+	 * @param maxMs - верхняя граница любой паузы.
+	 */
+	public RelayResourceConnector setBackoff( long baseMs, long maxMs )
+	{
+		this.backoff = new ReconnectBackoff( baseMs, maxMs );
+		this.maxMs = maxMs;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public RelayResourceConnector setConnectTimeout( int connectTimeoutSec )
+	{
+		this.connectTimeoutSec = connectTimeoutSec;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public RelayResourceConnector setLog( ILog log )
+	{
+		MUST( log != null, "Null params" );
+		this.log = log;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Первая попытка - сразу, в потоке таймера.
+	 */
+	public void start()
+	{
+		timer.execute( this::attempt );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Текущий клиент или null, если соединения сейчас нет.
+	 */
+	public RelayResourceClient getClient()
+	{
+		return client;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз соединение было установлено.
+	 */
+	public long getConnects()
+	{
+		return connects.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько попыток подключения не удалось.
+	 */
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Поток таймера.
+	 */
+	private synchronized void attempt()
+	{
+		if( closed )
+			return;
+
+		RelayResourceClient c = clientFactory.get();
+		c.setOnClosed( () -> onClosed( c ) );
+		try
+		{
+			c.connect( host, port, connectTimeoutSec );
+			client = c;
+			connectedAtMs = System.currentTimeMillis();
+			connects.incrementAndGet();
+			log.writeln( "Resource connected to Relay " + host + ":" + port );
+		}
+		catch( Throwable ex )
+		{
+			failures.incrementAndGet();
+			c.close();
+			scheduleNext( ex.toString() );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вызывается в потоке, закрывшем клиента.
+	 */
+	private synchronized void onClosed( RelayResourceClient c )
+	{
+		if( closed || (c != client) )
+			return;
+
+		client = null;
+		if( (System.currentTimeMillis() - connectedAtMs) >= maxMs )
+			backoff.reset();
+		scheduleNext( "connection closed" );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private void scheduleNext( String reason )
+	{
+		long delayMs = backoff.nextDelayMs();
+		log.writeln( Colors.YELLOW, "Relay " + host + ":" + port + " - " + reason + ". Reconnect in " + delayMs + " ms" );
+		try
+		{
+			timer.schedule( this::attempt, delayMs, TimeUnit.MILLISECONDS );
+		}
+		catch( RejectedExecutionException ex ) {}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Остановить переподключение и закрыть текущего клиента.
+	 * Клиент закрывается без блокировки этого объекта - он сам может вызывать onClosed из своего потока.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		Sys.shutdownNow( timer, 3 );
+		RelayResourceClient c = client;
+		client = null;
+		if( c != null )
+			c.close();
+	}
+
+}
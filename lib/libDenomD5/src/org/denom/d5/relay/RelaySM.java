@@ -3,9 +3,13 @@
 
 package org.denom.d5.relay;
 
+import java.util.Arrays;
+
 import org.denom.*;
 import org.denom.crypt.*;
+import org.denom.crypt.blockcipher.ChaCha20Poly1305;
 import org.denom.crypt.ec.ECAlg;
+import org.denom.crypt.hash.HMAC;
 import org.denom.crypt.hash.SHA256;
 import org.denom.format.*;
 
@@ -15,13 +19,41 @@ import static org.denom.Ex.MUST;
 /**
  * Secure Messaging между User-ом и Resource-ом.
  * Шифрование/расшифровывание команд.
+ * Режим согласуется в INIT_SM: User предлагает режим, Resource выбирает MODE_CHACHA20_POLY1305, если он разрешён
+ * и у него, иначе - MODE_CLASSIC. По умолчанию обе стороны используют MODE_CLASSIC, AEAD включается явно.
+ * Старые клиенты не передают режим и работают в MODE_CLASSIC.
+ * Формат данных в обоих режимах одинаковый: [Len]Crypt | [Len]CCS, в режиме AEAD CCS - тег Poly1305.
  */
 public class RelaySM
 {
+	/**
+	 * AES-CFB + отдельный проход CBC-MAC (CCS).
+	 */
+	public final static int MODE_CLASSIC = 0;
+
+	/**
+	 * ChaCha20-Poly1305 (RFC 8439) - шифрование и аутентификация за один проход, без выравнивания данных.
+	 */
+	public final static int MODE_CHACHA20_POLY1305 = 1;
+
+	/**
+	 * Сколько раз подряд можно возобновить сессию по билету после одного полного INIT_SM (ECDH).
+	 */
+	public final static int MAX_RESUMPTIONS = 8;
+
+	/**
+	 * Сколько времени после полного INIT_SM можно возобновлять сессии по билетам, мс.
+	 */
+	public final static long MAX_TICKET_CHAIN_MS = 24 * 3600_000L;
+
 	private final RelaySigner myStaticKey;
 	private ECAlg myEphemeralKey;
 	public Binary otherStaticPublic;
 
+	// Режим, предлагаемый (User) или допустимый (Resource) этой стороной
+	private final int preferredMode;
+	private int mode = MODE_CLASSIC;
+
 	// Сессионные ключи
 	private AES sessionKeyRequestEncrypt;
 	private AES sessionKeyRequestCCS;
@@ -29,10 +61,158 @@ public class RelaySM
 	private AES sessionKeyResponseCCS;
 	public Binary iv;
 
+	// Сессионные ключи в режиме AEAD
+	private ChaCha20Poly1305 aeadRequest;
+	private ChaCha20Poly1305 aeadResponse;
+	private byte[] nonceBase;
+	// Использованные индексы команд в каждом направлении - nonce выводится из индекса и не должен повторяться
+	private final ReplayWindow requestIndexes = new ReplayWindow();
+	private final ReplayWindow responseIndexes = new ReplayWindow();
+
+	// Билет для возобновления этой сессии
+	private Ticket ticket;
+	// Билет, по которому User возобновляет сессию, и случайка User-а
+	private Ticket resumeTicket;
+	private Binary resumeRandom;
+
+	// =================================================================================================================
+	/**
+	 * Билет для возобновления сессии после переподключения без ECDH (команда RESUME_SM).
+	 * Выводится из секрета сессии одинаково у User-а и Resource-а, поэтому по сети не передаётся - передаётся только id
+	 * и binder - MAC на секрете билета, доказывающий, что User знает секрет.
+	 * Одноразовый: у возобновлённой сессии будет свой билет.
+	 * Возобновлённая сессия не даёт forward secrecy относительно исходной: её ключи выводятся из секрета исходной.
+	 * Поэтому цепочка возобновлений ограничена - MAX_RESUMPTIONS раз и MAX_TICKET_CHAIN_MS после ECDH,
+	 * дальше нужен полный INIT_SM.
+	 */
+	public static final class Ticket
+	{
+		/**
+		 * 16 байт, идентификатор билета.
+		 */
+		public final Binary id;
+		final Binary secret;
+		final Binary otherStaticPublic;
+		final int mode;
+
+		/**
+		 * Сколько раз возобновлялась цепочка сессий от полного INIT_SM до сессии, выдавшей билет.
+		 */
+		public final int resumeCount;
+
+		/**
+		 * Время полного INIT_SM, с которого началась цепочка, по часам этой стороны.
+		 */
+		public final long chainStartMs;
+
+		Ticket( Binary id, Binary secret, Binary otherStaticPublic, int mode, int resumeCount, long chainStartMs )
+		{
+			this.id = id;
+			this.secret = secret;
+			this.otherStaticPublic = otherStaticPublic;
+			this.mode = mode;
+			this.resumeCount = resumeCount;
+			this.chainStartMs = chainStartMs;
+		}
+
+		/**
+		 * По билету ещё можно возобновить сессию.
+		 */
+		boolean isResumable( long now )
+		{
+			return (resumeCount < MAX_RESUMPTIONS) && (now - chainStartMs <= MAX_TICKET_CHAIN_MS);
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * Окно индексов сообщений одного направления в режиме AEAD.
+	 * Индекс принимается один раз и, если он не старше наибольшего принятого более чем на WINDOW_SIZE, - в любом порядке.
+	 * Поэтому ответы и команды могут приходить не в том порядке, в каком отправлены (рабочие потоки, конвейер команд),
+	 * а повтор перехваченного сообщения отвергается.
+	 */
+	static final class ReplayWindow
+	{
+		static final int WINDOW_SIZE = 1024;
+
+		private final long[] bits = new long[ WINDOW_SIZE / 64 ];
+		private long highest = -1;
+
+		/**
+		 * Индекс ещё не использовался и не вышел за окно. Состояние не меняет.
+		 */
+		synchronized boolean isNew( long index )
+		{
+			if( index > highest )
+				return true;
+			if( highest - index >= WINDOW_SIZE )
+				return false;
+			int pos = (int)(index % WINDOW_SIZE);
+			return (bits[ pos >>> 6 ] & (1L << pos)) == 0;
+		}
+
+		/**
+		 * Отметить индекс как использованный.
+		 * @return false - индекс уже использован или вышел за окно.
+		 */
+		synchronized boolean accept( long index )
+		{
+			if( !isNew( index ) )
+				return false;
+
+			if( index > highest )
+			{
+				if( index - highest >= WINDOW_SIZE )
+				{
+					Arrays.fill( bits, 0 );
+				}
+				else
+				{
+					// Позиции, перешедшие к новым индексам, освобождаются
+					for( long i = highest + 1; i <= index; ++i )
+					{
+						int pos = (int)(i % WINDOW_SIZE);
+						bits[ pos >>> 6 ] &= ~(1L << pos);
+					}
+				}
+				highest = index;
+			}
+
+			int pos = (int)(index % WINDOW_SIZE);
+			bits[ pos >>> 6 ] |= 1L << pos;
+			return true;
+		}
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * SM в режиме MODE_CLASSIC.
+	 * @param myStaticKey - не копируется: RelaySigner потокобезопасен, а SM только читает ключ.
+	 */
 	public RelaySM( RelaySigner myStaticKey )
 	{
-		this.myStaticKey = myStaticKey.clone();
+		this( myStaticKey, MODE_CLASSIC );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param preferredMode - MODE_CHACHA20_POLY1305 - предлагать (User) или принимать (Resource) режим AEAD;
+	 * MODE_CLASSIC - только старый режим.
+	 */
+	public RelaySM( RelaySigner myStaticKey, int preferredMode )
+	{
+		MUST( (preferredMode == MODE_CLASSIC) || (preferredMode == MODE_CHACHA20_POLY1305), "Wrong SM mode" );
+		this.myStaticKey = myStaticKey;
+		this.preferredMode = preferredMode;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим, согласованный в INIT_SM.
+	 */
+	public int getMode()
+	{
+		return mode;
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -45,12 +225,13 @@ public class RelaySM
 	 * {
 	 *     Binary userStaticPublicKey;
 	 *     Binary userEphemeralPublicKey;
+	 *     int    smMode; // Необязательное поле, только если предлагается не MODE_CLASSIC
 	 * }</pre>
 	 */
 	public Binary requestInitSM( final Binary otherPublicKey )
 	{
-		MUST( myEphemeralKey == null, "SM already inited" );
-		
+		MUST( !isStarted(), "SM already inited" );
+
 		this.otherStaticPublic = Bin( Bin("02"), otherPublicKey );
 
 		BinBuilder bb = new BinBuilder();
@@ -62,19 +243,47 @@ public class RelaySM
 		Binary pubKey = myEphemeralKey.getPublic();
 		bb.append( pubKey );
 
+		if( preferredMode != MODE_CLASSIC )
+			bb.append( preferredMode );
+
 		return bb.getResult();
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Генерация общего секрета и сессионных ключей.
+	 * Генерация общего секрета и сессионных ключей для согласованного режима.
 	 */
 	private void generateSessionKeys( final Binary otherEphemeralPublic )
 	{
 		Binary ecdh = myStaticKey.getAlgorithm().calcECDHCUnified( myEphemeralKey, otherStaticPublic, otherEphemeralPublic );
+		deriveSessionKeys( ecdh, 0, System.currentTimeMillis() );
+	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сессионные ключи и билет для возобновления - из общего секрета.
+	 * @param resumeCount - сколько раз возобновлялась цепочка до этой сессии, 0 - после полного INIT_SM.
+	 * @param chainStartMs - время полного INIT_SM.
+	 * Если цепочка достигла предела, билет не выдаётся.
+	 */
+	private void deriveSessionKeys( final Binary ecdh, int resumeCount, long chainStartMs )
+	{
 		SHA256 hashAlg = new SHA256();
 
+		ticket = new Ticket( hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "ticket" ) ) ).first( 16 ),
+				hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "resumption" ) ) ), otherStaticPublic, mode,
+				resumeCount, chainStartMs );
+		if( !ticket.isResumable( System.currentTimeMillis() ) )
+			ticket = null;
+
+		if( mode == MODE_CHACHA20_POLY1305 )
+		{
+			aeadRequest = new ChaCha20Poly1305( hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "requestaead" ) ) ).getBytes() );
+			aeadResponse = new ChaCha20Poly1305( hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "responseaead" ) ) ).getBytes() );
+			nonceBase = hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "aeadnonce" ) ) ).first( ChaCha20Poly1305.NONCE_SIZE ).getBytes();
+			return;
+		}
+
 		Binary key = hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "requestencrypt" ) ) );
 		sessionKeyRequestEncrypt = new AES( key );
 		key = hashAlg.calc( Bin( ecdh, new Binary().fromUTF8( "requestccs" ) ) );
@@ -97,12 +306,16 @@ public class RelaySM
 	 */
 	public Binary parseRequestInitSM( final Binary requestData )
 	{
-		MUST( myEphemeralKey == null, "SM already inited" );
+		MUST( !isStarted(), "SM already inited" );
 
 		BinParser parser = new BinParser( requestData );
 		this.otherStaticPublic = Bin( Bin("02"), parser.getBinary() );
 		Binary otherEphemeralPublic = parser.getBinary();
 
+		boolean modeOffered = parser.getOffset() < requestData.size();
+		if( modeOffered && (parser.getInt() == MODE_CHACHA20_POLY1305) && (preferredMode == MODE_CHACHA20_POLY1305) )
+			mode = MODE_CHACHA20_POLY1305;
+
 		// Временная ключевая пара для генерации сессионного секрета
 		myEphemeralKey = myStaticKey.getAlgorithm().clone();
 		myEphemeralKey.generateKeyPair();
@@ -111,10 +324,12 @@ public class RelaySM
 
 		BinBuilder bb = new BinBuilder();
 		bb.append( myEphemeralKey.getPublic() );
+		if( modeOffered )
+			bb.append( mode );
 		return bb.getResult();
 	}
 
-	
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Метод для User-а.
@@ -123,6 +338,7 @@ public class RelaySM
 	 * struct ResponseSendInitSM
 	 * {
 	 *     Binary resourceEphemeralPublicKey;
+	 *     int    smMode; // Необязательное поле, только если User предлагал режим
 	 * }</pre>
 	 */
 	public void onResponseInitSM( final Binary resp )
@@ -130,9 +346,182 @@ public class RelaySM
 		MUST( myEphemeralKey != null, "command INIT SM not called" );
 		BinParser parser = new BinParser( resp );
 		Binary otherEphemeralPublic = parser.getBinary();
+
+		if( parser.getOffset() < resp.size() )
+		{
+			mode = parser.getInt();
+			MUST( (mode == MODE_CLASSIC) || (mode == preferredMode), "SM Error: Wrong SM mode in response" );
+		}
+
 		generateSessionKeys( otherEphemeralPublic );
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Билет для возобновления сессии. null - SM не инициализирован или цепочка возобновлений исчерпана.
+	 */
+	public Ticket getTicket()
+	{
+		return ticket;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private boolean isStarted()
+	{
+		return (myEphemeralKey != null) || (resumeTicket != null) || (sessionKeyRequestEncrypt != null);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Секрет возобновлённой сессии.
+	 */
+	private static Binary resumedSecret( final Ticket ticket, final Binary userRandom, final Binary resourceRandom )
+	{
+		return new SHA256().calc( Bin( ticket.secret, userRandom, resourceRandom, new Binary().fromUTF8( "resumed" ) ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * User доказывает знание секрета билета: binder = HMAC( ticket.secret, "binder" | ticketId | userRandom ).
+	 */
+	private static Binary calcBinder( final Ticket ticket, final Binary userRandom )
+	{
+		return new HMAC( new SHA256(), ticket.secret ).calc( Bin( new Binary().fromUTF8( "binder" ), ticket.id, userRandom ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Resource подтверждает, что вывел те же ключи:
+	 * confirm = HMAC( resumedSecret, "confirm" | ticketId | userRandom | resourceRandom | mode ).
+	 */
+	private static Binary calcConfirm( final Binary secret, final Ticket ticket, final Binary userRandom,
+		final Binary resourceRandom )
+	{
+		Binary data = Bin( new Binary().fromUTF8( "confirm" ), ticket.id, userRandom, resourceRandom );
+		data.addInt( ticket.mode );
+		return new HMAC( new SHA256(), secret ).calc( data );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Метод для User-а.
+	 * Данные для команды SEND__RESUME_SM - возобновление сессии по билету предыдущей сессии с тем же ресурсом.
+	 * @return <pre>
+	 * struct RequestSendResumeSM
+	 * {
+	 *     Binary ticketId;
+	 *     Binary userRandom;
+	 *     Binary binder;
+	 * }</pre>
+	 */
+	public Binary requestResumeSM( final Ticket ticket )
+	{
+		MUST( ticket != null, "Null params" );
+		MUST( !isStarted(), "SM already inited" );
+
+		this.resumeTicket = ticket;
+		this.resumeRandom = new Binary().randomSecure( 16 );
+
+		BinBuilder bb = new BinBuilder();
+		bb.append( ticket.id );
+		bb.append( resumeRandom );
+		bb.append( calcBinder( ticket, resumeRandom ) );
+		return bb.getResult();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Метод для Resource-а.
+	 * Прочитать id билета из данных команды RESUME_SM, чтобы найти билет.
+	 */
+	public static Binary parseTicketId( final Binary requestData )
+	{
+		return new BinParser( requestData ).getBinary( 16 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Метод для Resource-а.
+	 * Проверить запрос RESUME_SM для билета, не меняя состояния: id билета, binder и предел цепочки возобновлений.
+	 * Вызывается до того, как билет забран из кэша, - чужой или испорченный запрос не расходует билет.
+	 */
+	public static boolean checkResumeRequest( final Binary requestData, final Ticket ticket )
+	{
+		try
+		{
+			BinParser parser = new BinParser( requestData );
+			if( !parser.getBinary( 16 ).equals( ticket.id ) )
+				return false;
+			Binary userRandom = parser.getBinary( 16 );
+			Binary binder = parser.getBinary();
+			return (userRandom.size() == 16) && ticket.isResumable( System.currentTimeMillis() )
+				&& binder.equals( calcBinder( ticket, userRandom ) );
+		}
+		catch( Ex ex )
+		{
+			return false;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Метод для Resource-а.
+	 * Возобновить сессию по билету, найденному по id из запроса.
+	 * @return <pre>
+	 * struct ResponseSendResumeSM
+	 * {
+	 *     Binary resourceRandom;
+	 *     int    smMode;
+	 *     Binary confirm;
+	 * }</pre>
+	 */
+	public Binary parseRequestResumeSM( final Binary requestData, final Ticket ticket )
+	{
+		MUST( !isStarted(), "SM already inited" );
+		MUST( checkResumeRequest( requestData, ticket ), "SM Error: Wrong ticket" );
+
+		BinParser parser = new BinParser( requestData );
+		parser.getBinary( 16 );
+		Binary userRandom = parser.getBinary( 16 );
+
+		Binary resourceRandom = new Binary().randomSecure( 16 );
+		Binary secret = resumedSecret( ticket, userRandom, resourceRandom );
+		this.otherStaticPublic = ticket.otherStaticPublic;
+		this.mode = ticket.mode;
+		deriveSessionKeys( secret, ticket.resumeCount + 1, ticket.chainStartMs );
+
+		BinBuilder bb = new BinBuilder();
+		bb.append( resourceRandom );
+		bb.append( mode );
+		bb.append( calcConfirm( secret, ticket, userRandom, resourceRandom ) );
+		return bb.getResult();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Метод для User-а.
+	 * Парсинг ответа от ресурса на команду RESUME_SM.
+	 */
+	public void onResponseResumeSM( final Binary resp )
+	{
+		MUST( resumeTicket != null, "command RESUME SM not called" );
+
+		BinParser parser = new BinParser( resp );
+		Binary resourceRandom = parser.getBinary( 16 );
+		MUST( resourceRandom.size() == 16, "SM Error: Wrong random size" );
+		MUST( parser.getInt() == resumeTicket.mode, "SM Error: Wrong SM mode in response" );
+		Binary confirm = parser.getBinary();
+
+		Binary secret = resumedSecret( resumeTicket, resumeRandom, resourceRandom );
+		MUST( confirm.equals( calcConfirm( secret, resumeTicket, resumeRandom, resourceRandom ) ),
+				"SM Error: Wrong resume confirmation" );
+
+		this.otherStaticPublic = resumeTicket.otherStaticPublic;
+		this.mode = resumeTicket.mode;
+		deriveSessionKeys( secret, resumeTicket.resumeCount + 1, resumeTicket.chainStartMs );
+		resumeTicket = null;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Сложить начальный IV и index.
@@ -148,6 +537,93 @@ public class RelaySM
 		return curIV;
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * nonce = nonceBase xor index (в последних 4 байтах).
+	 * Индекс передаётся в открытом виде и аутентифицируется тегом, поэтому порядок сообщений не важен.
+	 */
+	private byte[] makeNonce( int index )
+	{
+		byte[] nonce = nonceBase.clone();
+		nonce[ nonce.length - 4 ] ^= (byte)(index >>> 24);
+		nonce[ nonce.length - 3 ] ^= (byte)(index >>> 16);
+		nonce[ nonce.length - 2 ] ^= (byte)(index >>> 8);
+		nonce[ nonce.length - 1 ] ^= (byte)index;
+		return nonce;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Индекс - дополнительные аутентифицируемые данные.
+	 */
+	private static byte[] makeAAD( int index )
+	{
+		return new byte[] { (byte)(index >>> 24), (byte)(index >>> 16), (byte)(index >>> 8), (byte)index };
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим AEAD. Дописать в out: [Len]Crypt | [Len]Tag, Crypt = Encrypt( header | data ).
+	 * Открытые данные копируются сразу на место в out и шифруются там же - без промежуточных массивов.
+	 * Каждый индекс шифруется не более одного раза - иначе повторился бы nonce.
+	 */
+	private void encryptAEAD( ChaCha20Poly1305 aead, ReplayWindow indexes, int index, int header1, int header2,
+		int headerLen, final Binary data, Binary out )
+	{
+		MUST( indexes.accept( index & 0xFFFFFFFFL ), "SM Error: Index already used" );
+
+		int cryptLen = headerLen + data.size();
+		int start = out.size();
+		out.resize( start + 4 + cryptLen + 4 + ChaCha20Poly1305.TAG_SIZE );
+
+		int cryptOff = start + 4;
+		out.setInt( start, cryptLen );
+		out.setInt( cryptOff, header1 );
+		if( headerLen == 8 )
+			out.setInt( cryptOff + 4, header2 );
+		System.arraycopy( data.getDataRef(), 0, out.getDataRef(), cryptOff + headerLen, data.size() );
+		out.setInt( cryptOff + cryptLen, ChaCha20Poly1305.TAG_SIZE );
+
+		byte[] nonce = makeNonce( index );
+		byte[] aad = makeAAD( index );
+		byte[] buf = out.getDataRef();
+		synchronized( aead )
+		{
+			aead.encrypt( nonce, 0, aad, 0, aad.length, buf, cryptOff, cryptLen, buf, cryptOff, buf, cryptOff + cryptLen + 4 );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Режим AEAD. Проверить тег и расшифровать Crypt на месте - в массиве, который разбирает parser.
+	 * Индекс отмечается использованным только после проверки тега: испорченное или подложное сообщение
+	 * отвергается, не меняя состояния сессии.
+	 * @return смещение открытых данных в parser.getBin().
+	 */
+	private int decryptAEAD( ChaCha20Poly1305 aead, ReplayWindow indexes, int index, BinParser parser, int headerLen )
+	{
+		Binary buf = parser.getBin();
+		int cryptOff = parser.skipBinary();
+		int cryptLen = buf.getIntBE( cryptOff - 4 );
+		int tagOff = parser.skipBinary();
+		MUST( (cryptLen >= headerLen) && (buf.getIntBE( tagOff - 4 ) == ChaCha20Poly1305.TAG_SIZE ), "SM Error: Wrong Data Len" );
+
+		long unsignedIndex = index & 0xFFFFFFFFL;
+		MUST( indexes.isNew( unsignedIndex ), "SM Error: Replayed index" );
+
+		byte[] nonce = makeNonce( index );
+		byte[] aad = makeAAD( index );
+		byte[] arr = buf.getDataRef();
+		boolean ok;
+		synchronized( aead )
+		{
+			ok = aead.decrypt( nonce, 0, aad, 0, aad.length, arr, cryptOff, cryptLen, arr, cryptOff, arr, tagOff );
+		}
+		MUST( ok, "SM Error: Wrong CCS" );
+		MUST( indexes.accept( unsignedIndex ), "SM Error: Replayed index" );
+		return cryptOff;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Зашифровать данные запроса.
@@ -156,6 +632,24 @@ public class RelaySM
 	 */
 	public Binary encryptRequest( int commandIndex, int commandCode, final Binary commandData )
 	{
+		Binary out = Bin().reserve( commandData.size() + 44 );
+		encryptRequest( commandIndex, commandCode, commandData, out );
+		return out;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные запроса и дописать в конец out.
+	 * В режиме AEAD шифрует на месте в out, без промежуточных копий.
+	 */
+	public void encryptRequest( int commandIndex, int commandCode, final Binary commandData, Binary out )
+	{
+		if( mode == MODE_CHACHA20_POLY1305 )
+		{
+			encryptAEAD( aeadRequest, requestIndexes, commandIndex, commandCode, 0, 4, commandData, out );
+			return;
+		}
+
 		Binary data = Bin().reserve( 4 + commandData.size() );
 		data.addInt( commandCode );
 		data.add( commandData );
@@ -164,26 +658,33 @@ public class RelaySM
 		Binary crypt = sessionKeyRequestEncrypt.encrypt( data, CryptoMode.CFB, AlignMode.BLOCK, curIV );
 		Binary ccs = sessionKeyRequestCCS.calcCCS( crypt, AlignMode.BLOCK, CCSMode.CLASSIC, curIV );
 
-		data.clear();
-		data.reserve( crypt.size() + 4 + ccs.size() + 4 );
-		data.addInt( crypt.size() );
-		data.add( crypt );
-		data.addInt( ccs.size() );
-		data.add( ccs );
-		return data;
+		out.reserve( out.size() + crypt.size() + 4 + ccs.size() + 4 );
+		out.addInt( crypt.size() );
+		out.add( crypt );
+		out.addInt( ccs.size() );
+		out.add( ccs );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Расшифровать данные запроса.
 	 * В commandDataBuf возвращаются расшифрованные данные запроса
+	 * В режиме AEAD данные расшифровываются на месте - в массиве, который разбирает parser.
 	 * @return commandData
 	 */
 	public Binary decryptRequest( int userToResourceIndex, BinParser parser, Int commandCode )
 	{
+		if( mode == MODE_CHACHA20_POLY1305 )
+		{
+			int off = decryptAEAD( aeadRequest, requestIndexes, userToResourceIndex, parser, 4 );
+			Binary buf = parser.getBin();
+			commandCode.val = buf.getIntBE( off );
+			return new Binary( buf.getDataRef(), off + 4, buf.getIntBE( off - 4 ) - 4 );
+		}
+
 		Binary crypt = parser.getBinary();
 		Binary ccs = parser.getBinary();
-		
+
 		Binary curIV = sumIV( userToResourceIndex );
 		Binary myCCS = sessionKeyRequestCCS.calcCCS( crypt, AlignMode.BLOCK, CCSMode.CLASSIC, curIV );
 		MUST( myCCS.equals( ccs ), "SM Error: Wrong CCS" );
@@ -194,7 +695,7 @@ public class RelaySM
 		commandCode.val = openData.getIntBE( 0 );
 		return openData.last( openData.size() - 4 );
 	}
-	
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Зашифровать данные ответа.
@@ -203,6 +704,24 @@ public class RelaySM
 	 */
 	public Binary encryptResponse( int commandIndex, int answerCode, int status, final Binary responseData )
 	{
+		Binary out = Bin().reserve( responseData.size() + 48 );
+		encryptResponse( commandIndex, answerCode, status, responseData, out );
+		return out;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Зашифровать данные ответа и дописать в конец out.
+	 * В режиме AEAD шифрует на месте в out, без промежуточных копий.
+	 */
+	public void encryptResponse( int commandIndex, int answerCode, int status, final Binary responseData, Binary out )
+	{
+		if( mode == MODE_CHACHA20_POLY1305 )
+		{
+			encryptAEAD( aeadResponse, responseIndexes, commandIndex, answerCode, status, 8, responseData, out );
+			return;
+		}
+
 		Binary data = Bin().reserve( 8 + responseData.size() );
 		data.addInt( answerCode );
 		data.addInt( status );
@@ -212,25 +731,33 @@ public class RelaySM
 		Binary crypt = sessionKeyResponseEncrypt.encrypt( data, CryptoMode.CFB, AlignMode.BLOCK, curIV );
 		Binary ccs = sessionKeyResponseCCS.calcCCS( crypt, AlignMode.BLOCK, CCSMode.CLASSIC, curIV );
 
-		data.clear();
-		data.reserve( crypt.size() + 4 + ccs.size() + 4 );
-		data.addInt( crypt.size() );
-		data.add( crypt );
-		data.addInt( ccs.size() );
-		data.add( ccs );
-		return data;
+		out.reserve( out.size() + crypt.size() + 4 + ccs.size() + 4 );
+		out.addInt( crypt.size() );
+		out.add( crypt );
+		out.addInt( ccs.size() );
+		out.add( ccs );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * Расшифровать данные ответа.
+	 * В режиме AEAD данные расшифровываются на месте - в массиве, который разбирает parser.
 	 * @return responseData
 	 */
 	public Binary decryptResponse( int userToResourceIndex, BinParser parser, Int answerCode, Int status )
 	{
+		if( mode == MODE_CHACHA20_POLY1305 )
+		{
+			int off = decryptAEAD( aeadResponse, responseIndexes, userToResourceIndex, parser, 8 );
+			Binary buf = parser.getBin();
+			answerCode.val = buf.getIntBE( off );
+			status.val = buf.getIntBE( off + 4 );
+			return new Binary( buf.getDataRef(), off + 8, buf.getIntBE( off - 4 ) - 8 );
+		}
+
 		Binary crypt = parser.getBinary();
 		Binary ccs = parser.getBinary();
-		
+
 		Binary curIV = sumIV( userToResourceIndex );
 		Binary myCCS = sessionKeyResponseCCS.calcCCS( crypt, AlignMode.BLOCK, CCSMode.CLASSIC, curIV );
 		MUST( myCCS.equals( ccs ), "SM Error: Wrong CCS" );
@@ -0,0 +1,344 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5.relay;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.denom.*;
+
+import static org.denom.Ex.MUST;
+
+// ----------------------------------------------------------------------------------------------------------------
+/**
+ * Кэш SM-сессий ресурса: User Handle -> RelaySM, и билетов для возобновления сессий без ECDH.
+ * Ограничен по количеству (вытесняются давно не использованные - LRU) и по времени простоя.
+ * Relay не сообщает ресурсу об отключении юзеров, поэтому без вытеснения сессии копились бы бесконечно.
+ * Разбит на сегменты со своими блокировками, чтобы рабочие потоки ресурса не конкурировали за один монитор.
+ * Просроченные записи удаляются попутно, при обращениях к сегменту, не чаще раза в секунду.
+ * Thread-safe.
+ */
+public class RelaySMCache
+{
+	private final static int SEGMENTS = 16;
+	private final static long SWEEP_INTERVAL_MS = 1000;
+
+	private final Segment<Long, RelaySM>[] sessions;
+	private final Segment<Binary, RelaySM.Ticket>[] tickets;
+	private final boolean ticketsEnabled;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictedIdle = new AtomicLong();
+	private final AtomicLong evictedLRU = new AtomicLong();
+	private final AtomicLong resumptions = new AtomicLong();
+	private final AtomicLong resumptionMisses = new AtomicLong();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * maxSessions = 100 000, простой сессии - 30 минут; maxTickets = 100 000, время жизни билета - 24 часа.
+	 */
+	public RelaySMCache()
+	{
+		this( 100_000, 30 * 60_000L, 100_000, 24 * 3600_000L );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param maxSessions - максимум SM-сессий, при превышении вытесняется давно не использованная.
+	 * @param maxIdleMs - через сколько мс без команд сессия удаляется.
+	 * @param maxTickets - максимум билетов для возобновления сессий.
+	 * @param ticketLifetimeMs - время жизни билета.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public RelaySMCache( int maxSessions, long maxIdleMs, int maxTickets, long ticketLifetimeMs )
+	{
+		MUST( (maxSessions > 0) && (maxIdleMs > 0) && (maxTickets >= 0) && (ticketLifetimeMs > 0), "Wrong RelaySMCache params" );
+
+		ticketsEnabled = maxTickets > 0;
+		sessions = new Segment[ SEGMENTS ];
+		tickets = new Segment[ SEGMENTS ];
+		for( int i = 0; i < SEGMENTS; ++i )
+		{
+			sessions[ i ] = new Segment<>( (maxSessions + SEGMENTS - 1) / SEGMENTS, maxIdleMs );
+			tickets[ i ] = new Segment<>( (maxTickets + SEGMENTS - 1) / SEGMENTS, ticketLifetimeMs );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static int segmentIndex( Object key )
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return h & (SEGMENTS - 1);
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Найти SM-сессию юзера и отметить её как использованную.
+	 * @return null, если сессии нет (не было INIT_SM или сессия вытеснена).
+	 */
+	public RelaySM get( long userHandle )
+	{
+		RelaySM sm = sessions[ segmentIndex( userHandle ) ].get( userHandle, this );
+		(sm != null ? hits : misses).incrementAndGet();
+		return sm;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Найти SM-сессию, не меняя счётчики hit/miss. Например, в dispatchSend для уже найденной сессии.
+	 */
+	public RelaySM peek( long userHandle )
+	{
+		return sessions[ segmentIndex( userHandle ) ].get( userHandle, this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public void put( long userHandle, RelaySM sm )
+	{
+		MUST( sm != null, "Null params" );
+		sessions[ segmentIndex( userHandle ) ].put( userHandle, sm, this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public void remove( long userHandle )
+	{
+		sessions[ segmentIndex( userHandle ) ].remove( userHandle );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сохранить билет сессии, чтобы юзер мог возобновить её после переподключения.
+	 * Если maxTickets == 0 - билеты не хранятся.
+	 */
+	public void putTicket( RelaySM.Ticket ticket )
+	{
+		if( ticketsEnabled && (ticket != null) )
+			tickets[ segmentIndex( ticket.id ) ].put( ticket.id, ticket, this );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Забрать билет. Билет одноразовый - после возобновления у сессии будет новый билет.
+	 * @return null, если билета нет или он просрочен.
+	 */
+	public RelaySM.Ticket takeTicket( final Binary ticketId )
+	{
+		return takeTicket( ticketId, null );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Забрать билет, только если он прошёл проверку accept (под блокировкой сегмента).
+	 * Не прошедший проверку билет остаётся в кэше - чужой запрос не может его израсходовать.
+	 * @param accept - null - без проверки.
+	 * @return null, если билета нет, он просрочен или не прошёл проверку.
+	 */
+	public RelaySM.Ticket takeTicket( final Binary ticketId, Predicate<RelaySM.Ticket> accept )
+	{
+		RelaySM.Ticket ticket = tickets[ segmentIndex( ticketId ) ].take( ticketId, accept, this );
+		(ticket != null ? resumptions : resumptionMisses).incrementAndGet();
+		return ticket;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Удалить все просроченные сессии и билеты, не дожидаясь обращений к сегментам.
+	 */
+	public void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		for( int i = 0; i < SEGMENTS; ++i )
+		{
+			sessions[ i ].sweep( now, this );
+			tickets[ i ].sweep( now, this );
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int size()
+	{
+		int n = 0;
+		for( Segment<Long, RelaySM> s : sessions )
+			n += s.size();
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getTicketCount()
+	{
+		int n = 0;
+		for( Segment<Binary, RelaySM.Ticket> s : tickets )
+			n += s.size();
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз SM-сессия найдена в кэше.
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз SM-сессии не оказалось в кэше - юзеру придётся заново выполнить INIT_SM или RESUME_SM.
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько сессий и билетов удалено по простою (сроку жизни).
+	 */
+	public long getEvictedIdleCount()
+	{
+		return evictedIdle.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько сессий и билетов вытеснено из-за превышения размера кэша.
+	 */
+	public long getEvictedLRUCount()
+	{
+		return evictedLRU.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько сессий возобновлено по билету, без ECDH.
+	 */
+	public long getResumptionCount()
+	{
+		return resumptions.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз билет не найден - юзер выполняет полный INIT_SM.
+	 */
+	public long getResumptionMissCount()
+	{
+		return resumptionMisses.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public String toString()
+	{
+		return String.format( "sessions: %d, tickets: %d, hits: %d, misses: %d, evicted idle: %d, evicted LRU: %d, "
+				+ "resumptions: %d, resumption misses: %d",
+				size(), getTicketCount(), getHitCount(), getMissCount(), getEvictedIdleCount(), getEvictedLRUCount(),
+				getResumptionCount(), getResumptionMissCount() );
+	}
+
+	// =================================================================================================================
+	private final static class Entry<V>
+	{
+		final V value;
+		long lastUsedMs;
+
+		Entry( V value, long now )
+		{
+			this.value = value;
+			this.lastUsedMs = now;
+		}
+	}
+
+	// =================================================================================================================
+	/**
+	 * LinkedHashMap в порядке доступа: в голове - давно не использованные записи.
+	 * Все методы - под монитором сегмента.
+	 */
+	private final static class Segment<K, V>
+	{
+		private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>( 16, 0.75f, true );
+		private final int capacity;
+		private final long maxIdleMs;
+		private long lastSweepMs = System.currentTimeMillis();
+
+		Segment( int capacity, long maxIdleMs )
+		{
+			this.capacity = capacity;
+			this.maxIdleMs = maxIdleMs;
+		}
+
+		synchronized V get( K key, RelaySMCache cache )
+		{
+			long now = System.currentTimeMillis();
+			sweepIfTime( now, cache );
+
+			Entry<V> e = map.get( key );
+			if( e == null )
+				return null;
+			e.lastUsedMs = now;
+			return e.value;
+		}
+
+		synchronized void put( K key, V value, RelaySMCache cache )
+		{
+			long now = System.currentTimeMillis();
+			sweepIfTime( now, cache );
+
+			map.put( key, new Entry<>( value, now ) );
+
+			Iterator<Entry<V>> it = map.values().iterator();
+			while( (map.size() > capacity) && it.hasNext() )
+			{
+				it.next();
+				it.remove();
+				cache.evictedLRU.incrementAndGet();
+			}
+		}
+
+		synchronized V take( K key, Predicate<V> accept, RelaySMCache cache )
+		{
+			long now = System.currentTimeMillis();
+			sweepIfTime( now, cache );
+
+			Entry<V> e = map.get( key );
+			if( (e == null) || ((accept != null) && !accept.test( e.value )) )
+				return null;
+			map.remove( key );
+			return e.value;
+		}
+
+		synchronized void remove( K key )
+		{
+			map.remove( key );
+		}
+
+		synchronized int size()
+		{
+			return map.size();
+		}
+
+		synchronized void sweep( long now, RelaySMCache cache )
+		{
+			lastSweepMs = now;
+			Iterator<Entry<V>> it = map.values().iterator();
+			while( it.hasNext() )
+			{
+				if( (now - it.next().lastUsedMs) <= maxIdleMs )
+					break; // Дальше - только более свежие записи
+				it.remove();
+				cache.evictedIdle.incrementAndGet();
+			}
+		}
+
+		private void sweepIfTime( long now, RelaySMCache cache )
+		{
+			if( (now - lastSweepMs) >= SWEEP_INTERVAL_MS )
+				sweep( now, cache );
+		}
+	}
+
+}
@@ -16,6 +16,7 @@ import static org.denom.Ex.MUST;
  * Класс для подписывания и проверки подписи под структурами Relay.
  * Все постоянные (статические) ключевые пары для Relay и клиентов должны генерироваться такими, что публичный ключ в сжатом виде имеет
  * первый байт = 02. Это даёт возможность хранить 32 байта (только координата X точки Q на кривой), а не 33 байта.
+ * После задания ключей sign и verify можно вызывать из нескольких потоков одновременно - без блокировок.
  */
 public class RelaySigner
 {
@@ -24,8 +25,12 @@ public class RelaySigner
 	 */
 	public static final int PUBLIC_KEY_SIZE = 32;
 
-	private ECAlg signAlg = new ECAlg( new Secp256r1() );
-	private IHash hashAlg = new SHA256();
+	/**
+	 * Кривая общая для всех экземпляров: таблицы предвычислений для точки G строятся один раз на процесс.
+	 */
+	private static final Secp256r1 CURVE = new Secp256r1();
+
+	private ECAlg signAlg = new ECAlg( CURVE );
 
 	private Binary publicKey;
 	private Binary privateKey;
@@ -119,15 +124,21 @@ public class RelaySigner
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	public synchronized Binary sign( final Binary data )
+	/**
+	 * Потокобезопасный. ECAlg при подписи только читает ключ, хеш вычисляется отдельным объектом на каждый вызов.
+	 */
+	public Binary sign( final Binary data )
 	{
-		return signAlg.signECDSA( hashAlg.calc( data ) );
+		return signAlg.signECDSA( new SHA256().calc( data ) );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
-	public synchronized boolean verify( final Binary data, final Binary sign )
+	/**
+	 * Потокобезопасный.
+	 */
+	public boolean verify( final Binary data, final Binary sign )
 	{
-		return signAlg.verifyECDSA( hashAlg.calc( data ), sign );
+		return signAlg.verifyECDSA( new SHA256().calc( data ), sign );
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -0,0 +1,166 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5.relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.denom.*;
+import org.denom.d5.*;
+
+import static org.denom.Binary.Bin;
+import static org.denom.Ex.MUST;
+
+// ----------------------------------------------------------------------------------------------------------------
+/**
+ * Client to communicate with Denom Relay server as User, with many SEND commands in flight on one connection.
+ * Открытые команды (cmdSendAsync) конвейеризуются - ответы приходят в произвольном порядке.
+ * Зашифрованные команды (cmdSendEncrypted) выполняются строго по одной: состояние RelaySM (IV) меняется
+ * при каждой операции, поэтому порядок шифрования и расшифровывания у юзера и ресурса должен совпадать.
+ */
+public class RelayUserAsyncClient extends D5AsyncClient
+{
+	public ResponseGetResourceInfo resourceInfo;
+
+	private final AtomicInteger indexUserResource = new AtomicInteger( 1 );
+	protected RelaySM relaySM = null;
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public RelayUserAsyncClient( String host, int port, int maxInFlight )
+	{
+		super( host, port, 10, maxInFlight );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Check if Resource present on Server.
+	 */
+	public ResponseGetResourceInfo cmdGetResourceInfo( final Binary resourcePublicKey )
+	{
+		Binary commandData = new Binary().reserve( 36 );
+		commandData.addInt( resourcePublicKey.size() );
+		commandData.add( resourcePublicKey );
+
+		D5Response response = command( RelayCommand.GET_RESOURCE_INFO, commandData );
+
+		ResponseGetResourceInfo info = new ResponseGetResourceInfo();
+		info.fromBin( response.data );
+		this.resourceInfo = info;
+
+		return info;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Начало защищенной сессии в режиме RelaySM.MODE_CLASSIC.
+	 * @param userKey - Постоянный ключ пользователя
+	 */
+	public void sendInitSM( RelaySigner userKey )
+	{
+		sendInitSM( userKey, RelaySM.MODE_CLASSIC );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Начало защищенной сессии.
+	 * @param smMode - предлагаемый режим SM, см. RelaySM.MODE_*. Ресурс может выбрать MODE_CLASSIC,
+	 * если не разрешил MODE_CHACHA20_POLY1305 (RelayResourceClient.setSMMode).
+	 */
+	public synchronized void sendInitSM( RelaySigner userKey, int smMode )
+	{
+		MUST( this.resourceInfo != null, "Not connected to Resource" );
+
+		RelaySM aRelaySM = new RelaySM( userKey, smMode );
+		Binary data = aRelaySM.requestInitSM( this.resourceInfo.resourcePublicKey );
+		Binary resp = await( cmdSendAsync( RelayCommand.INIT_SM, data ) );
+		aRelaySM.onResponseInitSM( resp );
+
+		this.relaySM = aRelaySM;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Возобновить защищенную сессию по билету предыдущей сессии, см. RelayUserClient.sendResumeSM.
+	 * @return true - сессия возобновлена по билету.
+	 */
+	public synchronized boolean sendResumeSM( RelaySigner userKey, RelaySM.Ticket ticket )
+	{
+		MUST( this.resourceInfo != null, "Not connected to Resource" );
+
+		if( (ticket != null) && ticket.otherStaticPublic.equals( Bin( Bin("02"), resourceInfo.resourcePublicKey ) ) )
+		{
+			RelaySM aRelaySM = new RelaySM( userKey );
+			try
+			{
+				Binary resp = await( cmdSendAsync( RelayCommand.RESUME_SM, aRelaySM.requestResumeSM( ticket ) ) );
+				aRelaySM.onResponseResumeSM( resp );
+				this.relaySM = aRelaySM;
+				return true;
+			}
+			catch( Ex ex ) {}
+		}
+
+		sendInitSM( userKey );
+		return false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Билет текущей SM-сессии - для sendResumeSM после переподключения.
+	 * null - SM не инициализирован или цепочка возобновлений исчерпана (RelaySM.MAX_RESUMPTIONS).
+	 */
+	public synchronized RelaySM.Ticket getSMTicket()
+	{
+		return (relaySM != null) ? relaySM.getTicket() : null;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Отправить ресурсу команду внутри команды SEND, не дожидаясь ответа.
+	 * Блокируется, если заполнено окно команд в полёте.
+	 * @return future с данными ответа ресурса.
+	 */
+	public CompletableFuture<Binary> cmdSendAsync( int CommandCodeToResource, final Binary data )
+	{
+		MUST( resourceInfo != null, "command SEND: Not connected to resource" );
+
+		long handle = resourceInfo.resourceHandle;
+		int index = indexUserResource.getAndIncrement();
+		Binary commandData = RelayUserClient.requestSend( handle, index, CommandCodeToResource, data );
+
+		return commandAsync( RelayCommand.SEND, commandData ).thenApply(
+			response -> RelayUserClient.parseResponseSend( response.data, handle, index, CommandCodeToResource ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public Binary cmdSend( int CommandCodeToResource, final Binary data )
+	{
+		return await( cmdSendAsync( CommandCodeToResource, data ) );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Отправить ресурсу зашифрованную команду внутри команды SEND и дождаться ответа.
+	 * Зашифрованные команды выполняются по одной, открытые команды при этом продолжают идти параллельно.
+	 */
+	public synchronized Binary cmdSendEncrypted( int CommandCodeToResource, final Binary data )
+	{
+		MUST( resourceInfo != null, "command SEND: Not connected to resource" );
+		MUST( relaySM != null, "SM Error: Not initialized" );
+
+		int index = indexUserResource.getAndIncrement();
+
+		Binary commandData = new Binary().reserve( data.size() + 64 );
+		commandData.addLong( resourceInfo.resourceHandle );
+		commandData.addInt( 0 ); // 4-байтовое поле, в которое Relay занесет индекс команды
+		commandData.addInt( index );
+		relaySM.encryptRequest( index, CommandCodeToResource, data, commandData );
+
+		D5Response response = command( RelayCommand.SEND_ENCRYPTED, commandData );
+
+		return RelayUserClient.parseResponseSendEncrypted( relaySM, response.data, resourceInfo.resourceHandle,
+				index, CommandCodeToResource );
+	}
+
+}
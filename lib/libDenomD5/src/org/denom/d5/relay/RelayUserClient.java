@@ -7,6 +7,7 @@ import org.denom.*;
 import org.denom.d5.*;
 import org.denom.format.BinParser;
 
+import static org.denom.Binary.Bin;
 import static org.denom.Ex.MUST;
 
 // ----------------------------------------------------------------------------------------------------------------
@@ -48,14 +49,25 @@ public class RelayUserClient extends D5Client
 
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
-	 * Начало защищенной сессии.
+	 * Начало защищенной сессии в режиме RelaySM.MODE_CLASSIC.
 	 * @param userKey - Постоянный ключ пользователя
 	 */
 	public void sendInitSM( RelaySigner userKey )
+	{
+		sendInitSM( userKey, RelaySM.MODE_CLASSIC );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Начало защищенной сессии.
+	 * @param smMode - предлагаемый режим SM, см. RelaySM.MODE_*. Ресурс может выбрать MODE_CLASSIC,
+	 * если не разрешил MODE_CHACHA20_POLY1305 (RelayResourceClient.setSMMode).
+	 */
+	public void sendInitSM( RelaySigner userKey, int smMode )
 	{
 		MUST( this.resourceInfo != null, "Not connected to Resource" );
 
-		RelaySM aRelaySM = new RelaySM( userKey );
+		RelaySM aRelaySM = new RelaySM( userKey, smMode );
 		Binary data = aRelaySM.requestInitSM( this.resourceInfo.resourcePublicKey );
 		Binary resp = cmdSend( RelayCommand.INIT_SM, data );
 		aRelaySM.onResponseInitSM( resp );
@@ -63,6 +75,45 @@ public class RelayUserClient extends D5Client
 		this.relaySM = aRelaySM;
 	}
 
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Возобновить защищенную сессию по билету предыдущей сессии с этим ресурсом - без ECDH.
+	 * Если билета нет, он от другого ресурса или ресурс его не принял (просрочен, вытеснен, старая версия ресурса),
+	 * или ответ ресурса не подтвердил ключи - выполняется полный INIT_SM.
+	 * @param ticket - getSMTicket() предыдущего соединения, может быть null.
+	 * @return true - сессия возобновлена по билету.
+	 */
+	public boolean sendResumeSM( RelaySigner userKey, RelaySM.Ticket ticket )
+	{
+		MUST( this.resourceInfo != null, "Not connected to Resource" );
+
+		if( (ticket != null) && ticket.otherStaticPublic.equals( Bin( Bin("02"), resourceInfo.resourcePublicKey ) ) )
+		{
+			RelaySM aRelaySM = new RelaySM( userKey );
+			try
+			{
+				Binary resp = cmdSend( RelayCommand.RESUME_SM, aRelaySM.requestResumeSM( ticket ) );
+				aRelaySM.onResponseResumeSM( resp );
+				this.relaySM = aRelaySM;
+				return true;
+			}
+			catch( Ex ex ) {}
+		}
+
+		sendInitSM( userKey );
+		return false;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Билет текущей SM-сессии - для sendResumeSM после переподключения.
+	 * null - SM не инициализирован или цепочка возобновлений исчерпана (RelaySM.MAX_RESUMPTIONS).
+	 */
+	public RelaySM.Ticket getSMTicket()
+	{
+		return (relaySM != null) ? relaySM.getTicket() : null;
+	}
+
 	// -----------------------------------------------------------------------------------------------------------------
 	/**
 	 * struct RequestSend
@@ -95,26 +146,51 @@ public class RelayUserClient extends D5Client
 	{
 		MUST( resourceInfo.resourceHandle != -1, "command SEND: Not connected to resource" );
 
-		Binary commandData = new Binary().reserve( data.size() + 12 );
+		Binary commandData = requestSend( resourceInfo.resourceHandle, indexUserResource, CommandCodeToResource, data );
 
-		commandData.addLong( resourceInfo.resourceHandle );
+		command( RelayCommand.SEND, commandData );
+
+		Binary respData = parseResponseSend( curResponse.data, resourceInfo.resourceHandle, indexUserResource, CommandCodeToResource );
+
+		indexUserResource++;
+
+		return respData;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сформировать данные команды SEND.
+	 */
+	static Binary requestSend( long resourceHandle, int userToResourceIndex, int CommandCodeToResource, final Binary data )
+	{
+		Binary commandData = new Binary().reserve( data.size() + 24 );
+
+		commandData.addLong( resourceHandle );
 		commandData.addInt( 0 ); // 4-байтовое поле, в которое Relay занесет индекс команды
 
-		commandData.addInt( indexUserResource );
+		commandData.addInt( userToResourceIndex );
 		commandData.addInt( CommandCodeToResource );
 
 		commandData.addInt( data.size() );
 		commandData.add( data );
+		return commandData;
+	}
 
-		command( RelayCommand.SEND, commandData );
-
-		BinParser parser = new BinParser( curResponse.data );
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Разобрать ответ на команду SEND.
+	 * @return данные ответа ресурса.
+	 */
+	static Binary parseResponseSend( final Binary responseData, long resourceHandle, int userToResourceIndex,
+		int CommandCodeToResource )
+	{
+		BinParser parser = new BinParser( responseData );
 		long handle = parser.getLong();
-		MUST( handle == resourceInfo.resourceHandle, "SEND: Wrong handle in response" );
+		MUST( handle == resourceHandle, "SEND: Wrong handle in response" );
 		parser.getInt(); // 4-байтовое поле для индекса команды
 
 		int index = parser.getInt();
-		MUST( indexUserResource == index, "SEND: Wrong index in response" );
+		MUST( userToResourceIndex == index, "SEND: Wrong index in response" );
 
 		int answerCode = parser.getInt();
 		MUST( (answerCode + 0x20000000) == CommandCodeToResource, "SEND: Wrong Answer Code" );
@@ -125,11 +201,7 @@ public class RelayUserClient extends D5Client
 			throw new Ex( status, parser.getString() );
 		}
 
-		Binary respData = parser.getBinary();
-
-		indexUserResource++;
-
-		return respData;
+		return parser.getBinary();
 	}
 
 	// -----------------------------------------------------------------------------------------------------------------
@@ -151,29 +223,44 @@ public class RelayUserClient extends D5Client
 		MUST( resourceInfo.resourceHandle != -1, "command SEND: Not connected to resource" );
 		MUST( relaySM != null, "SM Error: Not initialized" );
 
-		Binary commandData = new Binary().reserve( data.size() + 12 );
+		Binary commandData = new Binary().reserve( data.size() + 64 );
 
 		commandData.addLong( resourceInfo.resourceHandle );
 		commandData.addInt( 0 ); // 4-байтовое поле, в которое Relay занесет индекс команды
 
 		commandData.addInt( indexUserResource );
 
-		Binary encrypted = relaySM.encryptRequest( indexUserResource, CommandCodeToResource, data );
-		commandData.add( encrypted );
+		relaySM.encryptRequest( indexUserResource, CommandCodeToResource, data, commandData );
 
 		command( RelayCommand.SEND_ENCRYPTED, commandData );
 
-		BinParser parser = new BinParser( curResponse.data );
+		Binary respData = parseResponseSendEncrypted( relaySM, curResponse.data, resourceInfo.resourceHandle,
+				indexUserResource, CommandCodeToResource );
+
+		indexUserResource++;
+
+		return respData;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Разобрать и расшифровать ответ на команду SEND_ENCRYPTED.
+	 * @return расшифрованные данные ответа ресурса.
+	 */
+	static Binary parseResponseSendEncrypted( RelaySM relaySM, final Binary responseData, long resourceHandle,
+		int userToResourceIndex, int CommandCodeToResource )
+	{
+		BinParser parser = new BinParser( responseData );
 		long handle = parser.getLong();
-		MUST( handle == resourceInfo.resourceHandle, "SEND: Wrong handle in response" );
+		MUST( handle == resourceHandle, "SEND: Wrong handle in response" );
 		parser.getInt(); // 4-байтовое поле для индекса команды
 
 		int index = parser.getInt();
-		MUST( indexUserResource == index, "SEND: Wrong index in response" );
+		MUST( userToResourceIndex == index, "SEND: Wrong index in response" );
 
 		Int answerCode = new Int();
 		Int status = new Int();
-		Binary respData = relaySM.decryptResponse( indexUserResource, parser, answerCode, status );
+		Binary respData = relaySM.decryptResponse( userToResourceIndex, parser, answerCode, status );
 
 		MUST( (answerCode.val + 0x20000000) == CommandCodeToResource, "SEND: Wrong Answer Code" );
 
@@ -183,8 +270,6 @@ public class RelayUserClient extends D5Client
 			throw new Ex( status.val, msg );
 		}
 
-		indexUserResource++;
-
 		return respData;
 	}
 
@@ -0,0 +1,383 @@
+// Denom.org
+// Author:  Sergey Novochenko,  Digrol@gmail.com
+
+package org.denom.d5.relay;
+
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.denom.*;
+
+import static org.denom.Ex.MUST;
+
+// ----------------------------------------------------------------------------------------------------------------
+/**
+ * Pool of RelayUserClient connections, keyed by Relay host, port and Resource public key.
+ * Connections are kept connected to Resource and with initialized secure messaging (if userKey given),
+ * so borrower skips TCP connect, GET_RESOURCE_INFO and INIT_SM handshake.
+ * Новые соединения возобновляют SM по билету последней сессии с тем же ресурсом (RESUME_SM), без ECDH.
+ * Перед выдачей соединение, простоявшее дольше probeAfterIdleMs, проверяется командой ENUM_COMMANDS.
+ * Соединения, простоявшие дольше maxIdleMs, закрываются фоновым потоком.
+ * Thread-safe.
+ */
+public class RelayUserClientPool implements AutoCloseable
+{
+	private final static class Entry
+	{
+		final String key;
+		final RelayUserClient client;
+		volatile long lastUsedMs;
+
+		Entry( String key, RelayUserClient client )
+		{
+			this.key = key;
+			this.client = client;
+		}
+	}
+
+	private final RelaySigner userKey;
+
+	private volatile int maxIdlePerKey = 8;
+	private volatile long maxIdleMs = 60_000;
+	private volatile long probeAfterIdleMs = 1_000;
+
+	/**
+	 * Свободные соединения. Выдаются с головы (самые 'тёплые'), вытесняются с хвоста (самые старые).
+	 */
+	private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Entry>> idle = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<RelayUserClient, Entry> borrowed = new ConcurrentHashMap<>();
+
+	/**
+	 * Последний билет SM-сессии для каждого ключа: новое соединение возобновляет сессию без ECDH.
+	 */
+	private final ConcurrentHashMap<String, RelaySM.Ticket> tickets = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService reaper;
+	private volatile boolean closed = false;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong returns = new AtomicLong();
+	private final AtomicLong borrowNanos = new AtomicLong();
+	private final AtomicLong returnNanos = new AtomicLong();
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong handshakesAvoided = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong probeFailures = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * @param userKey - Постоянный ключ пользователя для INIT_SM. Если null - SM не инициализируется.
+	 */
+	public RelayUserClientPool( RelaySigner userKey )
+	{
+		this.userKey = userKey;
+
+		reaper = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryNamed( "RelayUserClientPool-Reaper", Thread.NORM_PRIORITY, 0, true ) );
+		reaper.scheduleWithFixedDelay( this::evictIdle, 1, 1, TimeUnit.SECONDS );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько свободных соединений хранить для одного ключа. Лишние возвращённые соединения закрываются.
+	 */
+	public RelayUserClientPool setMaxIdlePerKey( int maxIdlePerKey )
+	{
+		MUST( maxIdlePerKey >= 0, "Wrong maxIdlePerKey" );
+		this.maxIdlePerKey = maxIdlePerKey;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Через сколько мс простоя свободное соединение закрывается.
+	 */
+	public RelayUserClientPool setMaxIdleMs( long maxIdleMs )
+	{
+		MUST( maxIdleMs > 0, "Wrong maxIdleMs" );
+		this.maxIdleMs = maxIdleMs;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * После скольких мс простоя соединение проверяется командой ENUM_COMMANDS перед выдачей.
+	 * 0 - проверять при каждой выдаче.
+	 */
+	public RelayUserClientPool setProbeAfterIdleMs( long probeAfterIdleMs )
+	{
+		MUST( probeAfterIdleMs >= 0, "Wrong probeAfterIdleMs" );
+		this.probeAfterIdleMs = probeAfterIdleMs;
+		return this;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private static String makeKey( String host, int port, final Binary resourcePublicKey )
+	{
+		return host + ":" + port + "/" + resourcePublicKey.Hex();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Взять соединение с Relay-ем, подключённое к ресурсу.
+	 * После работы вернуть в пул - giveBack(), при ошибке в команде - invalidate().
+	 */
+	public RelayUserClient borrow( String host, int port, final Binary resourcePublicKey )
+	{
+		MUST( !closed, "RelayUserClientPool closed" );
+		long t0 = System.nanoTime();
+
+		String key = makeKey( host, port, resourcePublicKey );
+		Entry entry = null;
+
+		ConcurrentLinkedDeque<Entry> deque = idle.get( key );
+		if( deque != null )
+		{
+			while( (entry = deque.pollFirst()) != null )
+			{
+				if( isAlive( entry ) )
+				{
+					handshakesAvoided.incrementAndGet();
+					break;
+				}
+				probeFailures.incrementAndGet();
+				entry.client.close();
+			}
+		}
+
+		if( entry == null )
+		{
+			entry = new Entry( key, connect( key, host, port, resourcePublicKey ) );
+			handshakes.incrementAndGet();
+		}
+
+		borrowed.put( entry.client, entry );
+
+		borrows.incrementAndGet();
+		borrowNanos.addAndGet( System.nanoTime() - t0 );
+		return entry.client;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private RelayUserClient connect( String key, String host, int port, final Binary resourcePublicKey )
+	{
+		RelayUserClient client = new RelayUserClient( host, port );
+		try
+		{
+			client.cmdGetResourceInfo( resourcePublicKey );
+			MUST( client.resourceInfo.resourceHandle != 0, "No Resource with key: " + resourcePublicKey.Hex() );
+			if( userKey != null )
+			{
+				// Билет одноразовый - забираем его, а после рукопожатия сохраняем билет новой сессии
+				if( client.sendResumeSM( userKey, tickets.remove( key ) ) )
+					resumed.incrementAndGet();
+				tickets.put( key, client.getSMTicket() );
+			}
+		}
+		catch( Throwable ex )
+		{
+			client.close();
+			throw ex;
+		}
+		return client;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	private boolean isAlive( Entry entry )
+	{
+		if( (System.currentTimeMillis() - entry.lastUsedMs) < probeAfterIdleMs )
+			return true;
+
+		try
+		{
+			entry.client.commandEnumCommands();
+			return true;
+		}
+		catch( Throwable ex )
+		{
+			return false;
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Вернуть исправное соединение в пул.
+	 */
+	public void giveBack( RelayUserClient client )
+	{
+		long t0 = System.nanoTime();
+
+		Entry entry = borrowed.remove( client );
+		MUST( entry != null, "RelayUserClient not borrowed from this pool" );
+
+		ConcurrentLinkedDeque<Entry> deque = idle.computeIfAbsent( entry.key, k -> new ConcurrentLinkedDeque<>() );
+		if( closed || (deque.size() >= maxIdlePerKey) )
+		{
+			client.close();
+		}
+		else
+		{
+			entry.lastUsedMs = System.currentTimeMillis();
+			deque.addFirst( entry );
+			// Пул мог закрыться, пока соединение возвращалось
+			if( closed && deque.remove( entry ) )
+				client.close();
+		}
+
+		returns.incrementAndGet();
+		returnNanos.addAndGet( System.nanoTime() - t0 );
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть соединение, в котором произошла ошибка, вместо возврата в пул.
+	 * Например, после исключения из cmdSend состояние SM и индексы команд могут быть рассогласованы.
+	 */
+	public void invalidate( RelayUserClient client )
+	{
+		borrowed.remove( client );
+		client.close();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть соединения, простоявшие дольше maxIdleMs. Выполняется в потоке reaper.
+	 */
+	private void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		for( ConcurrentLinkedDeque<Entry> deque : idle.values() )
+		{
+			for( Iterator<Entry> it = deque.descendingIterator(); it.hasNext(); )
+			{
+				Entry entry = it.next();
+				if( (now - entry.lastUsedMs) <= maxIdleMs )
+					break;
+
+				// Соединение могли забрать параллельно - закрываем, только если удалили из очереди мы.
+				if( deque.remove( entry ) )
+				{
+					entry.client.close();
+					evicted.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Закрыть все свободные соединения. Выданные соединения закрываются при возврате.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		reaper.shutdownNow();
+
+		for( ConcurrentLinkedDeque<Entry> deque : idle.values() )
+		{
+			Entry entry;
+			while( (entry = deque.pollFirst()) != null )
+				entry.client.close();
+		}
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getIdleCount()
+	{
+		int n = 0;
+		for( ConcurrentLinkedDeque<Entry> deque : idle.values() )
+			n += deque.size();
+		return n;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public int getBorrowedCount()
+	{
+		return borrowed.size();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	public long getBorrowCount()
+	{
+		return borrows.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз соединение создавалось заново: TCP connect + GET_RESOURCE_INFO + INIT_SM.
+	 */
+	public long getHandshakeCount()
+	{
+		return handshakes.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько новых соединений возобновили SM-сессию по билету, без ECDH. Входит в getHandshakeCount().
+	 */
+	public long getResumedCount()
+	{
+		return resumed.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько раз выдано готовое соединение из пула, без рукопожатия.
+	 */
+	public long getHandshakesAvoided()
+	{
+		return handshakesAvoided.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько свободных соединений не прошло проверку ENUM_COMMANDS.
+	 */
+	public long getProbeFailures()
+	{
+		return probeFailures.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Сколько соединений закрыто по простою.
+	 */
+	public long getEvictedCount()
+	{
+		return evicted.get();
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Среднее время borrow(), мкс. Включает проверку и создание соединений.
+	 */
+	public long getAvgBorrowMicros()
+	{
+		long n = borrows.get();
+		return (n == 0) ? 0 : borrowNanos.get() / n / 1000;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	/**
+	 * Среднее время giveBack(), мкс.
+	 */
+	public long getAvgReturnMicros()
+	{
+		long n = returns.get();
+		return (n == 0) ? 0 : returnNanos.get() / n / 1000;
+	}
+
+	// -----------------------------------------------------------------------------------------------------------------
+	@Override
+	public String toString()
+	{
+		return String.format( "borrows: %d, handshakes: %d, resumed: %d, avoided: %d, probe failures: %d, evicted: %d, "
+				+ "avg borrow: %d us, avg return: %d us, idle: %d, borrowed: %d",
+				getBorrowCount(), getHandshakeCount(), getResumedCount(), getHandshakesAvoided(), getProbeFailures(), getEvictedCount(),
+				getAvgBorrowMicros(), getAvgReturnMicros(), getIdleCount(), getBorrowedCount() );
+	}
+
+}
@@ -54,7 +54,7 @@ public class SharimRelayResource extends RelayResourceClient
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary onGetSharesList( long userHandle, BinParser parser )
 	{
-		Binary userPublicKey = userSMSesions.get( userHandle ).otherStaticPublic;
+		Binary userPublicKey = getUserPublicKey( userHandle );
 
 		Arr< Pair<String, Boolean> > shareList = shares.getSharesListForUser( userPublicKey );
 		BinBuilder bb = new BinBuilder();
@@ -70,7 +70,7 @@ public class SharimRelayResource extends RelayResourceClient
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary onListFiles( long userHandle, BinParser parser )
 	{
-		Binary userPublicKey = userSMSesions.get( userHandle ).otherStaticPublic;
+		Binary userPublicKey = getUserPublicKey( userHandle );
 
 		String shareName = parser.getString();
 		String relativeDirPath = parser.getString();
@@ -111,7 +111,7 @@ public class SharimRelayResource extends RelayResourceClient
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary onGetFileInfo( long userHandle, BinParser parser )
 	{
-		Binary userPublicKey = userSMSesions.get( userHandle ).otherStaticPublic;
+		Binary userPublicKey = getUserPublicKey( userHandle );
 
 		String shareName = parser.getString();
 		String relativeFilename = parser.getString();
@@ -135,7 +135,7 @@ public class SharimRelayResource extends RelayResourceClient
 	// -----------------------------------------------------------------------------------------------------------------
 	private Binary onGetFilePart( long userHandle, BinParser parser )
 	{
-		Binary userPublicKey = userSMSesions.get( userHandle ).otherStaticPublic;
+		Binary userPublicKey = getUserPublicKey( userHandle );
 
 		String shareName = parser.getString();
 		String relativeFilename = parser.getString();